@@ -0,0 +1,46 @@
+/**
+ * BenchmarkMain
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * Runs the JMH benchmarks, taking the usual JMH options. Unless -rf/-rff are
+ * given the results are written as JSON to target/jmh-result.json, so runs
+ * can be compared to catch regressions.
+ * <p>
+ * java -jar benchmarks/target/benchmarks.jar [regexp] [JMH options]
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.benchmarks;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * @author bdasgupt
+ */
+public class BenchmarkMain {
+
+    public static final String DEFAULT_RESULT_FILE = "target/jmh-result.json";
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        if (cmd.shouldHelp() || cmd.shouldList() || cmd.shouldListProfilers() || cmd.shouldListResultFormats()) {
+            Main.main(args);
+            return;
+        }
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(cmd);
+        if (!cmd.getResultFormat().hasValue()) {
+            options.resultFormat(ResultFormatType.JSON);
+        }
+        if (!cmd.getResult().hasValue()) {
+            options.result(DEFAULT_RESULT_FILE);
+        }
+        new Runner(options.build()).run();
+    }
+}
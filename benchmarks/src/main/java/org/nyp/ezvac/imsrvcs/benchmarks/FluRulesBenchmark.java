@@ -0,0 +1,70 @@
+/**
+ * FluRulesBenchmark
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * NYPFluRules.recommendationFlu() on the test cases of
+ * datafiles/tests/flu-2017.csv (the cases TestRules prints). One operation
+ * evaluates every case of the file.
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.benchmarks;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.nyp.ezvac.imsrvcs.rules.NYPFluRules;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * @author bdasgupt
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FluRulesBenchmark {
+
+    private List<RuleFixtures.FluCase> cases;
+    private Date seasonStart;
+    private Date seasonEnd;
+
+    @Setup
+    public void setup() throws Exception {
+        RuleFixtures.quiet();
+        cases = RuleFixtures.fluCases();
+        // The 2017-2018 season, as in TestRules
+        Date[] season = RuleFixtures.fluSeason(RuleFixtures.auditDate());
+        seasonStart = season[0];
+        seasonEnd = season[1];
+    }
+
+    @TearDown
+    public void tearDown() {
+        RuleFixtures.loud();
+    }
+
+    @Benchmark
+    public void recommendationFlu(Blackhole bh) {
+        for (RuleFixtures.FluCase c : cases) {
+            NYPFluRules fluRules = new NYPFluRules(c.cds, c.auditDate, seasonStart, seasonEnd);
+            bh.consume(fluRules.recommendationFlu());
+        }
+    }
+}
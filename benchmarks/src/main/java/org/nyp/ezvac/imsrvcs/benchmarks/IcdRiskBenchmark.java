@@ -0,0 +1,120 @@
+/**
+ * IcdRiskBenchmark
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * The high risk checks of NYPRules for patients with a growing number of
+ * icd9/icd10 codes. The codes are given in both icd9 and icd10, and the high
+ * risk ones (HIB, MENB, meningoccocal, PPSV) come last, so a hit is found
+ * after every other code has been looked at. Also measures building NYPRules,
+ * which splits the codes.
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.benchmarks;
+
+import ca.uhn.fhir.model.dstu2.resource.ImmunizationRecommendation;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.nyp.ezvac.imsrvcs.rules.NYPRules;
+import org.nyph.cdslibrary.CDSLibraryWrapper;
+import org.nyph.cdslibrary.dto.HistoryStatusDTO;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * @author bdasgupt
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IcdRiskBenchmark {
+
+    @Param({"1", "5", "20", "100"})
+    public int codes;
+
+    @Param({"true", "false"})
+    public boolean highRisk;
+
+    private String icd9;
+    private String icd10;
+    private ImmunizationRecommendation recommendations;
+    private CDSLibraryWrapper cds;
+    private Date dateOfBirth;
+    private Date auditDate;
+    private NYPRules rules;
+
+    @Setup
+    public void setup() throws Exception {
+        RuleFixtures.quiet();
+        RuleFixtures.loadICDValues();
+        icd9 = RuleFixtures.diagnoses(false, codes, highRisk, "PPSV", "HIB", "MENB", "meningoccocal");
+        icd10 = RuleFixtures.diagnoses(true, codes, highRisk, "PPSV", "HIB", "MENB", "meningoccocal");
+        auditDate = RuleFixtures.auditDate();
+        dateOfBirth = RuleFixtures.yearsBefore(auditDate, 12);
+        recommendations = RuleFixtures.recommendations(RuleFixtures.typicalForecast());
+        cds = RuleFixtures.cds("F", dateOfBirth, auditDate, new ArrayList<HistoryStatusDTO>());
+        rules = newRules();
+    }
+
+    @TearDown
+    public void tearDown() {
+        RuleFixtures.loud();
+    }
+
+    private NYPRules newRules() {
+        return new NYPRules(null, recommendations, icd9, icd10, dateOfBirth, "F", auditDate, cds);
+    }
+
+    @Benchmark
+    public NYPRules newNYPRules() {
+        return newRules();
+    }
+
+    @Benchmark
+    public boolean isPPSVHighRisk() {
+        return rules.isPPSVHighRisk();
+    }
+
+    @Benchmark
+    public boolean isPCV13HighRisk() {
+        return rules.isPCV13HighRisk();
+    }
+
+    @Benchmark
+    public boolean isHibHighRisk() {
+        return rules.isHibHighRisk();
+    }
+
+    @Benchmark
+    public boolean isMeningoccocalHighRisk() {
+        return rules.isMeningoccocalHighRisk();
+    }
+
+    @Benchmark
+    public boolean isMenBHighRisk() {
+        return rules.isMenBHighRisk();
+    }
+
+    @Benchmark
+    public boolean isHPVHighRisk() {
+        return rules.isHPVHighRisk();
+    }
+}
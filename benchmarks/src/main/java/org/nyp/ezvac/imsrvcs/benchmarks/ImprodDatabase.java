@@ -0,0 +1,418 @@
+/**
+ * ImprodDatabase
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * An in-memory H2 copy of the improd tables the Immunization lookups join
+ * (improd-h2.sql), filled with synthetic patients. The vaccines cycle through
+ * the childhood and adult series, one in eleven is a combination vaccine
+ * (DTaP-HepB-IPV) that comes back as three component rows. Every patient also
+ * gets an mpi and a patient_table row, for the Patient and EMPI lookups.
+ * Patients can also be added with their own vaccines and dates (the
+ * synthetic population, see PopulationGenerator), and the database can be
+ * kept in a file when it would not fit in memory.
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.benchmarks;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.nyph.cdslibrary.dto.HistoryStatusDTO;
+
+/**
+ * @author bdasgupt
+ */
+public class ImprodDatabase {
+
+    // mixcode, cvx, display group, description, component medcodes
+    private static final Object[][] VACCINES = {
+        {1001, 20, "DTP", "DTaP", new int[]{2001}},
+        {1002, 49, "Hib", "Hib (PRP-OMP)", new int[]{2002}},
+        {1003, 10, "Polio", "IPV", new int[]{2003}},
+        {1004, 8, "HepB", "Hep B, adolescent or pediatric", new int[]{2004}},
+        {1010, 110, "DTP", "DTaP-Hep B-IPV", new int[]{2001, 2004, 2003}},
+        {1005, 133, "Pneumo", "Pneumococcal conjugate PCV 13", new int[]{2005}},
+        {1006, 3, "MMR", "MMR", new int[]{2006}},
+        {1007, 21, "Varicella", "Varicella", new int[]{2007}},
+        {1008, 83, "HepA", "Hep A, ped/adol, 2 dose", new int[]{2008}},
+        {1009, 88, "Influenza", "Influenza, unspecified formulation", new int[]{2009}},
+        {1011, 163, "MenB", "Meningococcal B, OMV", new int[]{2011}}
+    };
+
+    // medcode, display group, cvx, description
+    private static final Object[][] COMPONENTS = {
+        {2001, "DTP", 20, "DTaP"},
+        {2002, "Hib", 49, "Hib"},
+        {2003, "Polio", 10, "IPV"},
+        {2004, "HepB", 8, "Hep B"},
+        {2005, "Pneumo", 133, "PCV 13"},
+        {2006, "MMR", 3, "MMR"},
+        {2007, "Varicella", 21, "Varicella"},
+        {2008, "HepA", 83, "Hep A"},
+        {2009, "Influenza", 88, "Influenza"},
+        {2011, "MenB", 163, "MenB"}
+    };
+
+    private static final String[] MANUFACTURERS = {"MSD", "SKB", "PMC", "PFR"};
+
+    // The first immunization id addPatient gives out, they are numbered in order
+    public static final long FIRST_IMMUNIZATION_ID = 11000000L;
+
+    private final Connection conn;
+    private long nextImmunizationId = FIRST_IMMUNIZATION_ID;
+    private long nextVisitId = 5000000L;
+
+    private PreparedStatement mpiInsert = null;
+    private PreparedStatement patientInsert = null;
+    private PreparedStatement visitInsert = null;
+    private PreparedStatement mixInsert = null;
+    private PreparedStatement compInsert = null;
+
+    /**
+     * Creates the database (dropped when the connection is closed) and its
+     * reference data
+     *
+     * @param name
+     * @throws SQLException
+     */
+    public ImprodDatabase(String name) throws SQLException {
+        this(DriverManager.getConnection(url(name)));
+    }
+
+    /**
+     * Creates the database in a file, for populations too large for memory.
+     * An existing database of that name is replaced.
+     *
+     * @param directory
+     * @param name
+     * @throws SQLException
+     */
+    public ImprodDatabase(File directory, String name) throws SQLException {
+        this(DriverManager.getConnection(fileUrl(directory, name, true)));
+    }
+
+    private ImprodDatabase(Connection conn) throws SQLException {
+        this.conn = conn;
+        Statement stmt = conn.createStatement();
+        try {
+            stmt.execute("RUNSCRIPT FROM 'classpath:/improd-h2.sql'");
+        } finally {
+            stmt.close();
+        }
+        insertVaccines();
+    }
+
+    /**
+     * The url of the named database, for other connections (a pool) to the
+     * same database while this one is open
+     *
+     * @param name
+     * @return
+     */
+    public static String url(String name) {
+        return "jdbc:h2:mem:" + name + ";MODE=DB2";
+    }
+
+    /**
+     * The url of a database in a file
+     *
+     * @param directory
+     * @param name
+     * @param replace - drop what the database holds when it is opened
+     * @return
+     */
+    public static String fileUrl(File directory, String name, boolean replace) {
+        return "jdbc:h2:file:" + new File(directory, name).getAbsolutePath() + ";MODE=DB2"
+                + (replace ? ";INIT=DROP ALL OBJECTS" : "");
+    }
+
+    public Connection getConnection() {
+        return conn;
+    }
+
+    public void close() throws SQLException {
+        PreparedStatement[] statements = {mpiInsert, patientInsert, visitInsert, mixInsert, compInsert};
+        for (PreparedStatement statement : statements) {
+            if (statement != null) {
+                statement.close();
+            }
+        }
+        conn.close();
+    }
+
+    private void insertVaccines() throws SQLException {
+        PreparedStatement mix = conn.prepareStatement("INSERT INTO improd.vaccinemix_table VALUES (?, ?)");
+        PreparedStatement mapper = conn.prepareStatement("INSERT INTO improd.vaccinemapper_table VALUES (?, ?, ?)");
+        PreparedStatement group = conn.prepareStatement("INSERT INTO improd.jsp_vaccine_display_group VALUES (?, ?, ?)");
+        try {
+            for (Object[] v : VACCINES) {
+                mix.setInt(1, (Integer) v[0]);
+                mix.setString(2, (String) v[3]);
+                mix.executeUpdate();
+            }
+            for (int i = 0; i < COMPONENTS.length; i++) {
+                Object[] c = COMPONENTS[i];
+                mapper.setInt(1, (Integer) c[0]);
+                mapper.setString(2, (String) c[3]);
+                mapper.setInt(3, (Integer) c[2]);
+                mapper.executeUpdate();
+                group.setInt(1, (Integer) c[0]);
+                group.setString(2, (String) c[1]);
+                group.setInt(3, i + 1);
+                group.executeUpdate();
+            }
+        } finally {
+            mix.close();
+            mapper.close();
+            group.close();
+        }
+    }
+
+    /**
+     * Adds a patient with the given number of immunizations, one every 30
+     * days going back from the audit date
+     *
+     * @param upid
+     * @param empi
+     * @param shots
+     * @param auditDate
+     * @return - the immunization ids, oldest first (as the history query
+     * returns them)
+     * @throws SQLException
+     */
+    public List<Long> addPatient(String upid, String empi, int shots, Date auditDate) throws SQLException {
+        // Born two months before the first shot
+        Date dateOfBirth = RuleFixtures.daysBefore(auditDate, 30 * shots + 60);
+        insertPatient(upid, empi, dateOfBirth, (upid.hashCode() % 2 == 0) ? "F" : "M", auditDate);
+        List<Long> ids = new ArrayList<Long>();
+        for (int i = shots - 1; i >= 0; i--) {
+            ids.add(insertImmunization(upid, VACCINES[i % VACCINES.length], RuleFixtures.daysBefore(auditDate, 30 * (i + 1)), i));
+        }
+        return ids;
+    }
+
+    /**
+     * Adds a patient with the given immunizations
+     *
+     * @param upid
+     * @param empi
+     * @param dateOfBirth
+     * @param gender
+     * @param cvxCodes - the vaccines, of those in VACCINES (see isKnownVaccine)
+     * @param shotDates - the dates of the immunizations, oldest first
+     * @param auditDate
+     * @return - the immunization ids, in the order of the immunizations
+     * @throws SQLException
+     */
+    public List<Long> addPatient(String upid, String empi, Date dateOfBirth, String gender,
+            int[] cvxCodes, Date[] shotDates, Date auditDate) throws SQLException {
+        insertPatient(upid, empi, dateOfBirth, gender, auditDate);
+        List<Long> ids = new ArrayList<Long>(cvxCodes.length);
+        for (int i = 0; i < cvxCodes.length; i++) {
+            ids.add(insertImmunization(upid, vaccineOf(cvxCodes[i]), shotDates[i], i));
+        }
+        return ids;
+    }
+
+    /**
+     * Adds a visit without immunizations, e.g. one scheduled for tomorrow for
+     * the visit warmup
+     *
+     * @param upid
+     * @param visitDate
+     * @throws SQLException
+     */
+    public void addVisit(String upid, Date visitDate) throws SQLException {
+        prepare();
+        visitInsert.setLong(1, nextVisitId++);
+        visitInsert.setInt(2, 10);
+        visitInsert.setString(3, upid);
+        visitInsert.setDate(4, new java.sql.Date(visitDate.getTime()));
+        visitInsert.executeUpdate();
+    }
+
+    /**
+     * Whether addPatient knows the vaccine
+     *
+     * @param cvx
+     * @return
+     */
+    public static boolean isKnownVaccine(int cvx) {
+        for (Object[] v : VACCINES) {
+            if ((Integer) v[1] == cvx) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void prepare() throws SQLException {
+        if (mpiInsert != null) {
+            return;
+        }
+        mpiInsert = conn.prepareStatement("INSERT INTO improd.mpi_table "
+                + "(upid, empi, localpatient_id, orgsite_id, cir_num, source, cir_sync_time) VALUES (?, ?, ?, ?, ?, 'EZVAC', ?)");
+        patientInsert = conn.prepareStatement("INSERT INTO improd.patient_table "
+                + "(upid, firstname, lastname, dob, sex, address1, city, state, zip, primary_tel, patient_status) "
+                + "VALUES (?, ?, ?, ?, ?, ?, 'New York', 'NY', '10032', '212-555-0100', 'A')");
+        visitInsert = conn.prepareStatement("INSERT INTO improd.visit_table VALUES (?, ?, ?, ?)");
+        mixInsert = conn.prepareStatement("INSERT INTO improd.immunizationmix_table VALUES "
+                + "(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, NULL, NULL, NULL, NULL, ?, ?, ?, 'N', ?)");
+        compInsert = conn.prepareStatement("INSERT INTO improd.immunizationcomp_table VALUES (?, ?, ?, ?, ?)");
+    }
+
+    private void insertPatient(String upid, String empi, Date dateOfBirth, String gender, Date auditDate) throws SQLException {
+        prepare();
+        mpiInsert.setString(1, upid);
+        mpiInsert.setString(2, empi);
+        mpiInsert.setString(3, "L" + upid);
+        mpiInsert.setInt(4, 1);
+        mpiInsert.setString(5, "C" + upid);
+        mpiInsert.setTimestamp(6, new Timestamp(auditDate.getTime()));
+        mpiInsert.executeUpdate();
+
+        patientInsert.setString(1, upid);
+        patientInsert.setString(2, "First" + upid);
+        patientInsert.setString(3, "Last" + upid);
+        patientInsert.setDate(4, new java.sql.Date(dateOfBirth.getTime()));
+        patientInsert.setString(5, gender);
+        patientInsert.setString(6, "1 Main Street");
+        patientInsert.executeUpdate();
+    }
+
+    // i varies the administrator, site, data source etc. of the immunization
+    private long insertImmunization(String upid, Object[] vaccine, Date shotDate, int i) throws SQLException {
+        SimpleDateFormat iso = new SimpleDateFormat("yyyy-MM-dd");
+        long visitId = nextVisitId++;
+        long immunizationId = nextImmunizationId++;
+
+        visitInsert.setLong(1, visitId);
+        visitInsert.setInt(2, 10 + (i % 2));
+        visitInsert.setString(3, upid);
+        visitInsert.setDate(4, new java.sql.Date(shotDate.getTime()));
+        visitInsert.executeUpdate();
+
+        int p = 1;
+        mixInsert.setLong(p++, immunizationId);
+        mixInsert.setInt(p++, (Integer) vaccine[0]);
+        mixInsert.setLong(p++, visitId);
+        mixInsert.setString(p++, iso.format(shotDate));
+        mixInsert.setInt(p++, 100 + (i % 3));
+        mixInsert.setInt(p++, 1 + (i % 4));
+        mixInsert.setInt(p++, (i % 7 == 0) ? 2 : 1);
+        mixInsert.setInt(p++, 101);
+        mixInsert.setInt(p++, 102);
+        mixInsert.setString(p++, upid);
+        mixInsert.setString(p++, (i % 13 == 0) ? "N" : "Y");
+        mixInsert.setInt(p++, 1 + (i % 2));
+        mixInsert.setString(p++, "0.5 mL");
+        mixInsert.setString(p++, "mL");
+        mixInsert.setTimestamp(p++, new Timestamp(shotDate.getTime()));
+        mixInsert.executeUpdate();
+
+        int[] medcodes = (int[]) vaccine[4];
+        for (int j = 0; j < medcodes.length; j++) {
+            compInsert.setLong(1, immunizationId);
+            compInsert.setInt(2, medcodes[j]);
+            compInsert.setString(3, "LOT" + immunizationId + "-" + j);
+            compInsert.setString(4, MANUFACTURERS[(i + j) % MANUFACTURERS.length]);
+            compInsert.setString(5, iso.format(RuleFixtures.daysBefore(shotDate, -365)));
+            compInsert.executeUpdate();
+        }
+        return immunizationId;
+    }
+
+    /**
+     * The shot statuses ICE would send back for the immunizations, one per
+     * series of the vaccine (the combination vaccine counts in three)
+     *
+     * @param ids - as returned by addPatient
+     * @return
+     */
+    public static List<HistoryStatusDTO> statusHistory(List<Long> ids) {
+        List<HistoryStatusDTO> statuses = new ArrayList<HistoryStatusDTO>();
+        int shots = ids.size();
+        for (int n = 0; n < shots; n++) {
+            // addPatient gives the oldest immunization the highest i
+            int i = shots - 1 - n;
+            statuses.add(status(ids.get(n), VACCINES[i % VACCINES.length], i % 9 != 0, 1 + n / VACCINES.length));
+        }
+        return statuses;
+    }
+
+    /**
+     * The shot statuses of immunizations added with their vaccines, the shot
+     * number counting the earlier shots of the same vaccine
+     *
+     * @param ids - as returned by addPatient
+     * @param cvxCodes
+     * @param valid - whether the shot counts, the others are below the
+     * minimum interval
+     * @return
+     */
+    public static List<HistoryStatusDTO> statusHistory(List<Long> ids, int[] cvxCodes, boolean[] valid) {
+        List<HistoryStatusDTO> statuses = new ArrayList<HistoryStatusDTO>(ids.size());
+        for (int n = 0; n < ids.size(); n++) {
+            int shotNumber = 1;
+            for (int k = 0; k < n; k++) {
+                if (cvxCodes[k] == cvxCodes[n] && valid[k]) {
+                    shotNumber++;
+                }
+            }
+            statuses.add(status(ids.get(n), vaccineOf(cvxCodes[n]), valid[n], shotNumber));
+        }
+        return statuses;
+    }
+
+    private static HistoryStatusDTO status(long id, Object[] vaccine, boolean valid, int shotNumber) {
+        int[] medcodes = (int[]) vaccine[4];
+        StringBuilder series = new StringBuilder();
+        StringBuilder reasons = new StringBuilder();
+        for (int j = 0; j < medcodes.length; j++) {
+            if (j > 0) {
+                series.append(',');
+                reasons.append(',');
+            }
+            series.append("Immunization Evaluation Focus (").append(groupOf(medcodes[j])).append(")");
+            reasons.append(valid ? "" : "BELOW_MINIMUM_INTERVAL");
+        }
+        HistoryStatusDTO h = new HistoryStatusDTO();
+        h.setImmunizationId(Integer.valueOf((int) id));
+        h.setCvxCode((Integer) vaccine[1]);
+        h.setSeries(series.toString());
+        h.setReason(reasons.toString());
+        h.setValid(valid);
+        h.setShotNumber(shotNumber);
+        return h;
+    }
+
+    private static Object[] vaccineOf(int cvx) {
+        for (Object[] v : VACCINES) {
+            if ((Integer) v[1] == cvx) {
+                return v;
+            }
+        }
+        throw new IllegalArgumentException("No vaccine with cvx " + cvx);
+    }
+
+    private static String groupOf(int medcode) {
+        for (Object[] c : COMPONENTS) {
+            if ((Integer) c[0] == medcode) {
+                return (String) c[1];
+            }
+        }
+        return "Unknown";
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * LongHistoryBenchmark
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * The rules that walk the immunization history (flu, MenB, PPSV,
+ * immunoglobin) on synthetic histories of a growing number of shots, to see
+ * how they scale for adult patients with long records.
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.benchmarks;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.nyp.ezvac.imsrvcs.rules.NYPFluRules;
+import org.nyp.ezvac.imsrvcs.rules.NYPRules;
+import org.nyph.cdslibrary.CDSLibraryWrapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * @author bdasgupt
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LongHistoryBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int shots;
+
+    private NYPRules rules;
+    private NYPFluRules fluRules;
+
+    @Setup
+    public void setup() throws Exception {
+        RuleFixtures.quiet();
+        RuleFixtures.loadICDValues();
+        Date auditDate = RuleFixtures.auditDate();
+        // Old enough for the history, young enough (2 - 18) for the PPSV rule to look at it
+        Date dateOfBirth = RuleFixtures.yearsBefore(auditDate, 17);
+        CDSLibraryWrapper cds = RuleFixtures.cds("F", dateOfBirth, auditDate, RuleFixtures.longHistory(shots, auditDate));
+        rules = new NYPRules(null, RuleFixtures.recommendations(RuleFixtures.typicalForecast()),
+                null, RuleFixtures.diagnoses(true, 1, true, "PPSV"), dateOfBirth, "F", auditDate, cds);
+        Date[] season = RuleFixtures.fluSeason(auditDate);
+        fluRules = new NYPFluRules(cds, auditDate, season[0], season[1]);
+    }
+
+    @TearDown
+    public void tearDown() {
+        RuleFixtures.loud();
+    }
+
+    @Benchmark
+    public String recommendationFlu() {
+        return fluRules.recommendationFlu();
+    }
+
+    @Benchmark
+    public String recommendationMenB() {
+        return rules.recommendationMenB();
+    }
+
+    @Benchmark
+    public String recommendationPPSV() {
+        return rules.recommendationPPSV();
+    }
+
+    @Benchmark
+    public String recommendationImmunoglobin() {
+        return rules.recommendationImmunoglobin();
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * NYPRulesBenchmark
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * Each recommendationXxx() rule of NYPRules on a typical ICE forecast and
+ * history, for patients of different ages with a few diagnoses, one of them
+ * high risk. allRules() runs the rules RecommendationPipeline applies, in its
+ * order (MenB_V2 and Immunoglobin are not applied there).
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.benchmarks;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.nyp.ezvac.imsrvcs.rules.NYPRules;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * @author bdasgupt
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NYPRulesBenchmark {
+
+    // Age of the patient in years
+    @Param({"1", "8", "15", "40", "70"})
+    public int age;
+
+    private NYPRules rules;
+
+    @Setup
+    public void setup() throws Exception {
+        RuleFixtures.quiet();
+        RuleFixtures.loadICDValues();
+        Date auditDate = RuleFixtures.auditDate();
+        Date dateOfBirth = RuleFixtures.yearsBefore(auditDate, age);
+        rules = new NYPRules(null, RuleFixtures.recommendations(RuleFixtures.typicalForecast()),
+                RuleFixtures.diagnoses(false, 3, false), RuleFixtures.diagnoses(true, 4, true, "PPSV"),
+                dateOfBirth, "M", auditDate, RuleFixtures.cds("M", dateOfBirth, auditDate, RuleFixtures.longHistory(20, auditDate)));
+    }
+
+    @TearDown
+    public void tearDown() {
+        RuleFixtures.loud();
+    }
+
+    @Benchmark
+    public String recommendationHepA() {
+        return rules.recommendationHepA();
+    }
+
+    @Benchmark
+    public String recommendationHib() {
+        return rules.recommendationHib();
+    }
+
+    @Benchmark
+    public String recommendationMeningoccocal() {
+        return rules.recommendationMeningoccocal();
+    }
+
+    @Benchmark
+    public String recommendationMenB() {
+        return rules.recommendationMenB();
+    }
+
+    @Benchmark
+    public String recommendationMenB_V2() {
+        return rules.recommendationMenB_V2();
+    }
+
+    @Benchmark
+    public String recommendationPCV13() {
+        return rules.recommendationPCV13();
+    }
+
+    @Benchmark
+    public String recommendationPPSV() {
+        return rules.recommendationPPSV();
+    }
+
+    @Benchmark
+    public String recommendationHPV() {
+        return rules.recommendationHPV();
+    }
+
+    @Benchmark
+    public String recommendationImmunoglobin() {
+        return rules.recommendationImmunoglobin();
+    }
+
+    @Benchmark
+    public void allRules(Blackhole bh) {
+        bh.consume(rules.recommendationHepA());
+        bh.consume(rules.recommendationHib());
+        bh.consume(rules.recommendationMeningoccocal());
+        bh.consume(rules.recommendationHPV());
+        bh.consume(rules.recommendationPPSV());
+        bh.consume(rules.recommendationPCV13());
+        bh.consume(rules.recommendationMenB());
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * RecordedRulesBenchmark
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * The NYP rules on real patients: the evaluations of a recording made with
+ * ice.record (see EvaluationRecording), replayed from memory instead of
+ * calling ICE. Each invocation runs the rules RecommendationPipeline applies
+ * for the next recorded patient, round robin. The diagnoses are not part of
+ * a recording, every patient gets the same few, one of them high risk.
+ * <p>
+ * java -jar benchmarks/target/benchmarks.jar RecordedRules -p recording=/path/to/ice-recording.bin
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.benchmarks;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.nyp.ezvac.imsrvcs.cache.CDSEvaluation;
+import org.nyp.ezvac.imsrvcs.recording.RecordedEvaluations;
+import org.nyp.ezvac.imsrvcs.rules.NYPRules;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * @author bdasgupt
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordedRulesBenchmark {
+
+    // The recording, comma separated for several
+    @Param({"target/ice-recording.bin"})
+    public String recording;
+
+    private final List<NYPRules> rules = new ArrayList<NYPRules>();
+    private int next = 0;
+
+    @Setup
+    public void setup() throws Exception {
+        List<File> files = new ArrayList<File>();
+        for (String fileName : recording.split(",")) {
+            File file = new File(fileName.trim());
+            if (!file.exists()) {
+                throw new IllegalStateException("No recording " + file + ", record one with -Dice.record=" + file);
+            }
+            files.add(file);
+        }
+        RuleFixtures.quiet();
+        RuleFixtures.loadICDValues();
+        String icd9 = RuleFixtures.diagnoses(false, 3, false);
+        String icd10 = RuleFixtures.diagnoses(true, 4, true, "PPSV");
+        for (CDSEvaluation evaluation : new RecordedEvaluations(files, false).getEvaluations()) {
+            rules.add(new NYPRules(null, RuleFixtures.recommendations(evaluation), icd9, icd10,
+                    evaluation.getDateOfBirth(), evaluation.getGender(), evaluation.getAuditDate(),
+                    evaluation.toLibraryWrapper()));
+        }
+        if (rules.isEmpty()) {
+            throw new IllegalStateException("No evaluations in " + recording);
+        }
+        // the same patients one after another would flatter the caches
+        Collections.shuffle(rules, new Random(42));
+    }
+
+    @TearDown
+    public void tearDown() {
+        RuleFixtures.loud();
+    }
+
+    @Benchmark
+    public void allRules(Blackhole bh) {
+        NYPRules r = rules.get(next);
+        next = (next + 1) % rules.size();
+        bh.consume(r.recommendationHepA());
+        bh.consume(r.recommendationHib());
+        bh.consume(r.recommendationMeningoccocal());
+        bh.consume(r.recommendationHPV());
+        bh.consume(r.recommendationPPSV());
+        bh.consume(r.recommendationPCV13());
+        bh.consume(r.recommendationMenB());
+    }
+}
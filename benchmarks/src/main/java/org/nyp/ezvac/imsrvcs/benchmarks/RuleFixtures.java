@@ -0,0 +1,384 @@
+/**
+ * RuleFixtures
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * In-memory inputs for the rules benchmarks: the high risk icd9/icd10 codes
+ * from the datafiles (instead of the DB), CDSLibraryWrappers without a
+ * connection, ICE style recommendations and immunization histories. Nothing
+ * goes to the DB or to ICE.
+ * <p>
+ * The datafiles directory is taken from -Dimsrvcs.datafiles (datafiles, i.e.
+ * run from the project directory, by default).
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.benchmarks;
+
+import ca.uhn.fhir.model.dstu2.resource.ImmunizationRecommendation;
+import ca.uhn.fhir.model.dstu2.resource.ImmunizationRecommendation.Recommendation;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.nyp.ezvac.imsrvcs.cache.CDSEvaluation;
+import org.nyp.ezvac.imsrvcs.rules.NYPRules;
+import org.nyph.cdslibrary.CDSLibraryWrapper;
+import org.nyph.cdslibrary.dto.HistoryStatusDTO;
+import org.nyph.cdslibrary.dto.ImmunizationRecommendationDTO;
+
+/**
+ * @author bdasgupt
+ */
+public class RuleFixtures {
+
+    public static final String[] ICD_FILES = {"hib.csv", "menb.csv", "mening.csv", "pcv13.csv", "ppsv.csv"};
+    public static final String FLU_TEST_FILE = "tests/flu-2017.csv";
+
+    // The series names NYPFluRules and NYPRules look for in the history
+    public static final String FLU_SERIES = "Influenza Vaccine Group";
+    public static final int CVX_FLU = 88;
+    public static final int CVX_MENB = 163;
+    public static final int CVX_IMMUNOGLOBIN = 86;
+    public static final int CVX_PCV13 = 133;
+
+    private static Map<String, List<String>> icd9 = null;
+    private static Map<String, List<String>> icd10 = null;
+
+    private static PrintStream console = null;
+
+    private RuleFixtures() {
+    }
+
+    public static File datafiles() {
+        return new File(System.getProperty("imsrvcs.datafiles", "datafiles"));
+    }
+
+    /**
+     * The rules print as they go, which is kept (it is part of what they cost)
+     * but sent nowhere so it neither floods the JMH output nor waits on it
+     */
+    public static synchronized void quiet() {
+        if (console == null) {
+            console = System.out;
+            System.setOut(new PrintStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                }
+            }));
+        }
+    }
+
+    public static synchronized void loud() {
+        if (console != null) {
+            System.setOut(console);
+            console = null;
+        }
+    }
+
+    /**
+     * Loads the high risk codes from the datafiles into NYPRules, in place of
+     * the DB
+     *
+     * @throws IOException
+     */
+    public static synchronized void loadICDValues() throws IOException {
+        if (icd9 != null) {
+            return;
+        }
+        Map<String, List<String>> codes9 = new HashMap<String, List<String>>();
+        Map<String, List<String>> codes10 = new HashMap<String, List<String>>();
+        for (String file : ICD_FILES) {
+            BufferedReader br = new BufferedReader(new FileReader(new File(datafiles(), file)));
+            try {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    // code,description,9|10,series - the description may be quoted and hold commas
+                    String[] tokens = line.split(",");
+                    if (tokens.length < 4) {
+                        continue;
+                    }
+                    String code = tokens[0].trim();
+                    String type = tokens[tokens.length - 2].trim();
+                    String series = tokens[tokens.length - 1].trim();
+                    Map<String, List<String>> codes = "9".equals(type) ? codes9 : codes10;
+                    List<String> list = codes.get(series);
+                    if (list == null) {
+                        list = new ArrayList<String>();
+                        codes.put(series, list);
+                    }
+                    list.add(code);
+                }
+            } finally {
+                br.close();
+            }
+        }
+        NYPRules.initializeICDValues(toSets(codes9), toSets(codes10));
+        icd9 = codes9;
+        icd10 = codes10;
+    }
+
+    /**
+     * The high risk codes of the datafiles by series, after loadICDValues
+     *
+     * @param icd10Codes - icd10 or icd9 codes
+     * @return
+     */
+    public static Map<String, List<String>> highRiskCodes(boolean icd10Codes) {
+        return icd10Codes ? icd10 : icd9;
+    }
+
+    private static Map<String, HashSet<String>> toSets(Map<String, List<String>> codes) {
+        Map<String, HashSet<String>> sets = new HashMap<String, HashSet<String>>();
+        for (Map.Entry<String, List<String>> e : codes.entrySet()) {
+            sets.put(e.getKey(), new HashSet<String>(e.getValue()));
+        }
+        return sets;
+    }
+
+    /**
+     * A patient's codes as the services get them (code|code|...), count codes
+     * in all. With highRisk the last ones are high risk codes of the given
+     * series, the rest match nothing.
+     *
+     * @param icd10Codes - icd10 or icd9 codes
+     * @param count
+     * @param highRisk
+     * @param series
+     * @return
+     */
+    public static String diagnoses(boolean icd10Codes, int count, boolean highRisk, String... series) {
+        StringBuilder sb = new StringBuilder();
+        int hits = highRisk ? Math.min(count, series.length) : 0;
+        for (int i = 0; i < count - hits; i++) {
+            if (sb.length() > 0) {
+                sb.append('|');
+            }
+            sb.append(icd10Codes ? "Z00." : "V70.").append(i);
+        }
+        for (int i = 0; i < hits; i++) {
+            List<String> codes = (icd10Codes ? icd10 : icd9).get(series[i]);
+            if (sb.length() > 0) {
+                sb.append('|');
+            }
+            sb.append(codes.get(codes.size() / 2));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A CDSLibraryWrapper without a connection, holding the patient and the
+     * history
+     *
+     * @param gender
+     * @param dateOfBirth
+     * @param auditDate
+     * @param history
+     * @return
+     */
+    public static CDSLibraryWrapper cds(String gender, Date dateOfBirth, Date auditDate, List<HistoryStatusDTO> history) {
+        CDSLibraryWrapper cds = new CDSLibraryWrapper(null);
+        cds.setGender(gender);
+        cds.setDateOfBirth(dateOfBirth);
+        cds.setEvaluationDate(auditDate);
+        cds.setHistory(history);
+        cds.setDbHistory(history);
+        return cds;
+    }
+
+    public static HistoryStatusDTO shot(int cvx, String series, Date shotDate) {
+        HistoryStatusDTO h = new HistoryStatusDTO();
+        h.setCvxCode(cvx);
+        h.setSeries(series);
+        h.setShotDate(shotDate);
+        return h;
+    }
+
+    /**
+     * A synthetic history of count shots, going back from the audit date
+     * every 30 days, across the flu, MenB, immunoglobin and PCV13 codes
+     *
+     * @param count
+     * @param auditDate
+     * @return
+     */
+    public static List<HistoryStatusDTO> longHistory(int count, Date auditDate) {
+        int[] cvx = {CVX_FLU, CVX_MENB, CVX_IMMUNOGLOBIN, CVX_PCV13, 20, 10, 3, 21};
+        String[] series = {FLU_SERIES, "Meningococcal B Vaccine Group", "Immunoglobin", "PCV Vaccine Group",
+            "DTP Vaccine Group", "Polio Vaccine Group", "MMR Vaccine Group", "Varicella Vaccine Group"};
+        List<HistoryStatusDTO> history = new ArrayList<HistoryStatusDTO>(count);
+        for (int i = 0; i < count; i++) {
+            history.add(shot(cvx[i % cvx.length], series[i % series.length], daysBefore(auditDate, 30 * (i + 1))));
+        }
+        return history;
+    }
+
+    /**
+     * What ICE sends back for a patient, as {series, description} pairs
+     *
+     * @param forecasts
+     * @return
+     */
+    public static ImmunizationRecommendation recommendations(String[][] forecasts) {
+        ImmunizationRecommendation im = new ImmunizationRecommendation();
+        for (String[] forecast : forecasts) {
+            Recommendation r = im.addRecommendation();
+            r.getProtocol().setSeries(forecast[0]);
+            r.getProtocol().setDescription(forecast[1]);
+        }
+        return im;
+    }
+
+    /**
+     * The recommendations of a recorded evaluation, mapped the way
+     * RecommendationPipeline maps what ICE sends back
+     *
+     * @param evaluation
+     * @return
+     */
+    public static ImmunizationRecommendation recommendations(CDSEvaluation evaluation) {
+        ImmunizationRecommendation im = new ImmunizationRecommendation();
+        for (ImmunizationRecommendationDTO ir : evaluation.getRecommendations()) {
+            Recommendation r = im.addRecommendation();
+            String series = ir.getEvaluatonDescription();
+            if (series != null) {
+                series = series.replaceAll("Immunization Evaluation Focus \\(", "").replaceAll("\\)", "");
+                if (series.equalsIgnoreCase("Td")) {
+                    series = "DTP Vaccine Group";
+                }
+            }
+            r.getProtocol().setSeries(series);
+            r.getProtocol().setDescription(ir.getRecommendationCode() + " - " + ir.getInterpretationCode());
+        }
+        return im;
+    }
+
+    /**
+     * The ICE forecast of a typical patient, with the statuses the NYP rules
+     * act on
+     *
+     * @return
+     */
+    public static String[][] typicalForecast() {
+        return new String[][]{
+            {"DTP Vaccine Group", "NOT_RECOMMENDED - COMPLETE"},
+            {"Hep A Vaccine Group", "CONDITIONAL - HIGH_RISK"},
+            {"Hep B Vaccine Group", "NOT_RECOMMENDED - COMPLETE"},
+            {"Hib Vaccine Group", "CONDITIONAL - HIGH_RISK"},
+            {"HPV Vaccine Group", "RECOMMENDED - DUE_NOW"},
+            {"Influenza Vaccine Group", "RECOMMENDED - DUE_NOW"},
+            {"Meningococcal Vaccine Group", "CONDITIONAL - HIGH_RISK"},
+            {"Meningococcal B Vaccine Group", "CONDITIONAL - HIGH_RISK"},
+            {"MMR Vaccine Group", "RECOMMENDED - DUE_NOW"},
+            {"PCV Vaccine Group", "NOT_RECOMMENDED - COMPLETE"},
+            {"Polio Vaccine Group", "NOT_RECOMMENDED - COMPLETE"},
+            {"Rotavirus Vaccine Group", "RECOMMENDED - DUE_NOW"},
+            {"Varicella Vaccine Group", "RECOMMENDED - DUE_NOW"},
+            {"Zoster Vaccine Group", "NOT_RECOMMENDED - AGE"}
+        };
+    }
+
+    /**
+     * A flu test case from datafiles/tests/flu-2017.csv
+     */
+    public static class FluCase {
+
+        public final String description;
+        public final CDSLibraryWrapper cds;
+        public final Date auditDate;
+
+        FluCase(String description, CDSLibraryWrapper cds, Date auditDate) {
+            this.description = description;
+            this.cds = cds;
+            this.auditDate = auditDate;
+        }
+    }
+
+    /**
+     * The flu test cases, read as TestRules does
+     *
+     * @return
+     * @throws Exception
+     */
+    public static List<FluCase> fluCases() throws Exception {
+        SimpleDateFormat formatter = new SimpleDateFormat("MM/dd/yy");
+        List<FluCase> cases = new ArrayList<FluCase>();
+        BufferedReader br = new BufferedReader(new FileReader(new File(datafiles(), FLU_TEST_FILE)));
+        try {
+            String line = br.readLine(); // The CSV header
+            while ((line = br.readLine()) != null) {
+                String[] tokens = line.split(",");
+                if (tokens.length < 5) {
+                    continue;
+                }
+                Date auditDate = formatter.parse(tokens[4]);
+                List<HistoryStatusDTO> history = new ArrayList<HistoryStatusDTO>();
+                for (int i = 5; i < (tokens.length - 2); i += 2) {
+                    String shotType = tokens[i].trim();
+                    String shotDate = tokens[i + 1].trim();
+                    if (shotType.equalsIgnoreCase("influenza") && shotDate.length() > 0) {
+                        history.add(shot(CVX_FLU, FLU_SERIES, formatter.parse(shotDate)));
+                    }
+                }
+                cases.add(new FluCase(tokens[0], cds(tokens[2], formatter.parse(tokens[3]), auditDate, history), auditDate));
+            }
+        } finally {
+            br.close();
+        }
+        return cases;
+    }
+
+    /**
+     * The flu season (August 1 to July 31) the date falls in
+     *
+     * @param date
+     * @return - {start, end}
+     */
+    public static Date[] fluSeason(Date date) {
+        Calendar cal = new GregorianCalendar();
+        cal.setTime(date);
+        int year = cal.get(Calendar.YEAR);
+        if (cal.get(Calendar.MONTH) < Calendar.AUGUST) {
+            year--;
+        }
+        Date start = new GregorianCalendar(year, Calendar.AUGUST, 1).getTime();
+        Date end = new GregorianCalendar(year + 1, Calendar.JULY, 31).getTime();
+        return new Date[]{start, end};
+    }
+
+    public static Date yearsBefore(Date date, int years) {
+        Calendar cal = new GregorianCalendar();
+        cal.setTime(date);
+        cal.add(Calendar.YEAR, -years);
+        return cal.getTime();
+    }
+
+    public static Date daysBefore(Date date, int days) {
+        Calendar cal = new GregorianCalendar();
+        cal.setTime(date);
+        cal.add(Calendar.DAY_OF_YEAR, -days);
+        return cal.getTime();
+    }
+
+    public static Date auditDate() {
+        return new GregorianCalendar(2017, Calendar.OCTOBER, 1).getTime();
+    }
+}
@@ -0,0 +1,431 @@
+/**
+ * AccessLogReplay
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * Replays the services' access logs (see filters.AccessLog) against an
+ * instance, so that a change can be measured on the real traffic - the same
+ * mix of endpoints, patients (upids, EMPIs), icd9/icd10 codes, series and
+ * audit dates, the same userid and appid headers, at the same pace.
+ * <p>
+ * java -Dreplay.speed=10 -cp benchmarks/target/benchmarks.jar \
+ * org.nyp.ezvac.imsrvcs.loadtest.AccessLogReplay http://localhost:8080 access.log.2 access.log.1 access.log
+ * <p>
+ * The log lines are sorted by arrival time (they are written as the requests
+ * complete), so the files can be given in any order. The GET lines the
+ * LoggingFilter wrote to imsrvcs.log through log4j before the access log
+ * (layout %d{yyyy-MM-dd HH:mm:ss} %-5p %c{1}:%L - %m%n) are read too, so older
+ * traffic can be replayed: they have no status or time taken, and their arrival
+ * time is to the second. Options, as system properties:
+ * <p>
+ * replay.speed (1) - 1 replays at the recorded pace, 10 ten times faster, max
+ * as fast as the clients can send (each client waits for its response)
+ * replay.clients (64) - requests in flight at most. At a set speed a request
+ * that finds every client busy waits, and the wait counts in its sched time
+ * replay.methods (GET) - the methods replayed
+ * replay.match (/services/) - only uris matching this pattern are replayed
+ * replay.limit (0, none) - replays at most this many requests
+ * replay.pinAuditDate (false) - adds auditdate=(the day of the request) to the
+ * recommendation and schedule=Y requests without one, so they evaluate as of
+ * the day they were made instead of today
+ * replay.accept (application/json+fhir) - the Accept header, which the log
+ * does not have
+ * <p>
+ * Reported per endpoint: the replayed latency percentiles (from sending the
+ * request), the p99 from when the request was due (which includes waiting for
+ * a client), the logged p50/p99, the errors (5xx or no response) and the
+ * requests whose status differs from the logged one (the last three for
+ * access log lines only).
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.loadtest;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.nyp.ezvac.imsrvcs.metrics.LatencyHistogram;
+
+/**
+ * @author bdasgupt
+ */
+public class AccessLogReplay {
+
+    private static final Pattern RESOURCE_NAME = Pattern.compile("[A-Z][A-Za-z]*|metadata");
+
+    // {ip:..., host:..., uid:..., appId:..., uri: "..."} as logged by the LoggingFilter through log4j
+    private static final Pattern LEGACY_LINE = Pattern.compile(
+            "^(\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2}) +\\S+ +\\S+ - \\{ip:(.*?), host:(.*?), uid:(.*?), appId:(.*?), uri: \"(.*)\"\\}\\s*$");
+    private static final Pattern SCHEME_AND_HOST = Pattern.compile("^[A-Za-z][A-Za-z0-9+.-]*://[^/]*");
+
+    /**
+     * One logged request
+     */
+    static class Entry {
+
+        long time;
+        String day;
+        String uid;
+        String appId;
+        String method;
+        // 0 and -1 when not logged (imsrvcs.log lines)
+        int status;
+        long millis;
+        String uri;
+        String key;
+    }
+
+    /**
+     * What the replay saw for an endpoint
+     */
+    static class EndpointStats {
+
+        final LatencyHistogram replayed = new LatencyHistogram();
+        final LatencyHistogram scheduled = new LatencyHistogram();
+        final LatencyHistogram logged = new LatencyHistogram();
+        final AtomicLong requests = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong statusChanged = new AtomicLong();
+    }
+
+    private final String target;
+    private final String accept;
+    private final Map<String, EndpointStats> stats = new TreeMap<String, EndpointStats>();
+
+    AccessLogReplay(String target, String accept) {
+        this.target = target.endsWith("/") ? target.substring(0, target.length() - 1) : target;
+        this.accept = accept;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: AccessLogReplay <target, e.g. http://localhost:8080> <access log>...");
+            System.exit(1);
+        }
+        String speedOption = System.getProperty("replay.speed", "1");
+        double speed = speedOption.equalsIgnoreCase("max") ? 0 : Double.parseDouble(speedOption);
+        int clients = Integer.getInteger("replay.clients", 64);
+        List<String> methods = new ArrayList<String>();
+        for (String method : System.getProperty("replay.methods", "GET").split(",")) {
+            methods.add(method.trim().toUpperCase());
+        }
+        Pattern match = Pattern.compile(System.getProperty("replay.match", "/services/"));
+        int limit = Integer.getInteger("replay.limit", 0);
+        boolean pinAuditDate = Boolean.parseBoolean(System.getProperty("replay.pinAuditDate", "false"));
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", String.valueOf(Math.max(clients, 5)));
+        }
+
+        AccessLogReplay replay = new AccessLogReplay(args[0], System.getProperty("replay.accept", "application/json+fhir"));
+        List<Entry> entries = new ArrayList<Entry>();
+        int skipped = 0;
+        for (int i = 1; i < args.length; i++) {
+            skipped += read(args[i], methods, match, pinAuditDate, entries);
+        }
+        Collections.sort(entries, new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                return (a.time < b.time) ? -1 : ((a.time == b.time) ? 0 : 1);
+            }
+        });
+        if (limit > 0 && entries.size() > limit) {
+            entries = new ArrayList<Entry>(entries.subList(0, limit));
+        }
+        if (entries.isEmpty()) {
+            System.out.println("Nothing to replay (" + skipped + " lines skipped)");
+            return;
+        }
+        for (Entry e : entries) {
+            if (e.millis >= 0) {
+                replay.statsOf(e.key).logged.record(e.millis * 1000000L);
+            }
+        }
+
+        long recordedMillis = entries.get(entries.size() - 1).time - entries.get(0).time;
+        System.out.println("Replaying " + entries.size() + " requests (" + skipped + " lines skipped), recorded over "
+                + (recordedMillis / 1000L) + " s, to " + replay.target + " at " + ((speed == 0) ? "max" : speed + "x")
+                + " speed with " + clients + " clients");
+        long elapsed = (speed == 0) ? replay.replayMax(entries, clients) : replay.replayTimed(entries, clients, speed);
+        replay.report(elapsed, entries.size(), recordedMillis);
+        System.exit(0);
+    }
+
+    /**
+     * Reads an access log, or the request lines of an imsrvcs.log
+     *
+     * @return - the lines skipped
+     */
+    static int read(String fileName, List<String> methods, Pattern match, boolean pinAuditDate, List<Entry> entries) throws Exception {
+        SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+        SimpleDateFormat legacyTimeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        int skipped = 0;
+        BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(fileName), "UTF-8"));
+        try {
+            String line;
+            while ((line = br.readLine()) != null) {
+                Entry e = parse(line, timeFormat);
+                if (e == null) {
+                    e = parseLegacy(line, legacyTimeFormat);
+                }
+                if (e == null || !methods.contains(e.method) || !match.matcher(e.uri).find()) {
+                    skipped++;
+                    continue;
+                }
+                if (pinAuditDate) {
+                    e.uri = pinAuditDate(e.uri, e.key, e.day);
+                }
+                entries.add(e);
+            }
+        } finally {
+            br.close();
+        }
+        return skipped;
+    }
+
+    /**
+     * Parses a line, time ip uid appid method status millis uri?query
+     *
+     * @return - null when the line is not an access log line
+     */
+    static Entry parse(String line, SimpleDateFormat timeFormat) {
+        String[] fields = line.split("\t");
+        if (fields.length < 8) {
+            return null;
+        }
+        Entry e = new Entry();
+        try {
+            e.time = timeFormat.parse(fields[0]).getTime();
+            e.status = Integer.parseInt(fields[5]);
+            e.millis = Long.parseLong(fields[6]);
+        } catch (ParseException ex) {
+            return null;
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+        e.day = fields[0].substring(0, 10).replace("-", "");
+        e.uid = fields[2].equals("-") ? null : fields[2];
+        e.appId = fields[3].equals("-") ? null : fields[3];
+        e.method = fields[4];
+        e.uri = fields[7];
+        e.key = keyOf(e.method, e.uri);
+        return e;
+    }
+
+    /**
+     * Parses a GET request line of imsrvcs.log, e.g.
+     * <p>
+     * 2018-03-01 10:15:02 INFO  LoggingFilter:67 - {ip:10.0.0.1, host:10.0.0.1,
+     * uid:dasgupt, appId:ezvac, uri: "http://host:8080/imsrvcs/services/ImmunizationRecommendation?empi=2000079083"}
+     *
+     * @return - null when the line is not a request line
+     */
+    static Entry parseLegacy(String line, SimpleDateFormat timeFormat) {
+        Matcher m = LEGACY_LINE.matcher(line);
+        if (!m.matches()) {
+            return null;
+        }
+        Entry e = new Entry();
+        try {
+            e.time = timeFormat.parse(m.group(1)).getTime();
+        } catch (ParseException ex) {
+            return null;
+        }
+        e.day = m.group(1).substring(0, 10).replace("-", "");
+        e.uid = (m.group(4).length() == 0) ? null : m.group(4);
+        e.appId = (m.group(5).length() == 0) ? null : m.group(5);
+        e.method = "GET";
+        e.status = 0;
+        e.millis = -1;
+        // The full url was logged, the replay sends the path and query to the target
+        e.uri = SCHEME_AND_HOST.matcher(m.group(6)).replaceFirst("");
+        e.key = keyOf(e.method, e.uri);
+        return e;
+    }
+
+    /**
+     * The endpoint of a request, resource and operation as labelled on
+     * /metrics (see Metrics.endpointOf)
+     */
+    static String keyOf(String method, String uri) {
+        int q = uri.indexOf('?');
+        String path = (q < 0) ? uri : uri.substring(0, q);
+        int services = path.indexOf("/services/");
+        path = (services < 0) ? "" : path.substring(services + "/services/".length());
+        String[] parts = (path.length() == 0) ? new String[0] : path.split("/");
+        String resource = "";
+        if (parts.length > 0 && !parts[0].startsWith("$")) {
+            resource = RESOURCE_NAME.matcher(parts[0]).matches() ? parts[0] : "other";
+        }
+        String last = (parts.length > 0) ? parts[parts.length - 1] : "";
+        String operation = method.toLowerCase();
+        if (last.startsWith("$")) {
+            operation = last;
+        } else if ("metadata".equals(resource)) {
+            operation = "metadata";
+        } else if ("GET".equals(method)) {
+            operation = (parts.length == 2 && !parts[1].startsWith("_")) ? "read" : "search";
+        }
+        if ("Immunization".equals(resource) && uri.matches(".*[?&]schedule=[Yy](&.*)?")) {
+            operation = operation + " schedule";
+        }
+        return resource + " " + operation;
+    }
+
+    /**
+     * Adds the day of the request as its audit date, for the requests that are
+     * evaluated as of an audit date and have none
+     */
+    static String pinAuditDate(String uri, String key, String day) {
+        boolean evaluated = key.startsWith("ImmunizationRecommendation search") || key.endsWith(" schedule");
+        if (!evaluated || uri.matches(".*[?&]auditdate=.*")) {
+            return uri;
+        }
+        return uri + ((uri.indexOf('?') < 0) ? "?" : "&") + "auditdate=" + day;
+    }
+
+    private synchronized EndpointStats statsOf(String key) {
+        EndpointStats s = stats.get(key);
+        if (s == null) {
+            s = new EndpointStats();
+            stats.put(key, s);
+        }
+        return s;
+    }
+
+    /**
+     * Sends every request when it is due, speed times faster than recorded
+     *
+     * @return - the elapsed nanoseconds
+     */
+    long replayTimed(List<Entry> entries, int clients, double speed) throws InterruptedException {
+        ExecutorService executor = new ThreadPoolExecutor(clients, clients, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        long first = entries.get(0).time;
+        long start = System.nanoTime();
+        for (final Entry e : entries) {
+            final long due = start + (long) ((e.time - first) * 1000000L / speed);
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            executor.execute(new Runnable() {
+                public void run() {
+                    send(e, due);
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.DAYS);
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Sends the requests in order as fast as the clients get their responses
+     *
+     * @return - the elapsed nanoseconds
+     */
+    long replayMax(final List<Entry> entries, int clients) throws InterruptedException {
+        final AtomicInteger next = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        long start = System.nanoTime();
+        for (int c = 0; c < clients; c++) {
+            Thread client = new Thread(new Runnable() {
+                public void run() {
+                    int i;
+                    while ((i = next.getAndIncrement()) < entries.size()) {
+                        send(entries.get(i), System.nanoTime());
+                    }
+                }
+            }, "replay-client-" + c);
+            client.start();
+            threads.add(client);
+        }
+        for (Thread client : threads) {
+            client.join();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private void send(Entry e, long due) {
+        EndpointStats s = statsOf(e.key);
+        long start = System.nanoTime();
+        int status = -1;
+        try {
+            HttpURLConnection http = (HttpURLConnection) new URL(target + e.uri).openConnection();
+            http.setRequestMethod(e.method);
+            http.setRequestProperty("Accept", accept);
+            if (e.uid != null) {
+                http.setRequestProperty("userid", e.uid);
+            }
+            if (e.appId != null) {
+                http.setRequestProperty("appid", e.appId);
+            }
+            http.setConnectTimeout(5000);
+            http.setReadTimeout(180000);
+            status = http.getResponseCode();
+            InputStream in = (status < 400) ? http.getInputStream() : http.getErrorStream();
+            if (in != null) {
+                StubUpstream.readFully(in);
+            }
+        } catch (Exception ex) {
+            // No response, counted as an error
+        }
+        long end = System.nanoTime();
+        s.replayed.record(end - start);
+        s.scheduled.record(end - due);
+        s.requests.incrementAndGet();
+        if (status < 0 || status >= 500) {
+            s.errors.incrementAndGet();
+        }
+        if (e.status > 0 && status != e.status) {
+            s.statusChanged.incrementAndGet();
+        }
+    }
+
+    void report(long elapsedNanos, int requests, long recordedMillis) {
+        double seconds = elapsedNanos / 1e9;
+        String format = "%-40s %8s %7s %7s %9s %9s %9s %9s %9s %9s %9s%n";
+        System.out.printf(format, "endpoint", "requests", "errors", "status", "p50 ms", "p90 ms", "p99 ms", "max ms",
+                "sched p99", "log p50", "log p99");
+        long errors = 0;
+        long changed = 0;
+        for (Map.Entry<String, EndpointStats> entry : stats.entrySet()) {
+            EndpointStats s = entry.getValue();
+            errors += s.errors.get();
+            changed += s.statusChanged.get();
+            System.out.printf(format, entry.getKey(), s.requests.get(), s.errors.get(), s.statusChanged.get(),
+                    millis(s.replayed.getQuantileMicros(0.50)), millis(s.replayed.getQuantileMicros(0.90)),
+                    millis(s.replayed.getQuantileMicros(0.99)), millis(s.replayed.getQuantileMicros(1.0)),
+                    millis(s.scheduled.getQuantileMicros(0.99)),
+                    millis(s.logged.getQuantileMicros(0.50)), millis(s.logged.getQuantileMicros(0.99)));
+        }
+        System.out.println(requests + " requests in " + String.format("%.1f", seconds) + " s ("
+                + String.format("%.1f", requests / seconds) + " req/s, recorded "
+                + String.format("%.1f", requests * 1000.0 / Math.max(1L, recordedMillis)) + " req/s), "
+                + errors + " errors, " + changed + " with a different status than logged");
+        System.out.println("(percentiles are bucket upper bounds, within 12.5%)");
+    }
+
+    private static String millis(long micros) {
+        return String.format("%.1f", micros / 1000.0);
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * LatencyDistribution
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * How long a stand-in upstream (CIR sync, ICE) takes to answer, given as
+ * <p>
+ * none - answers right away
+ * fixed:ms
+ * uniform:min:max
+ * exponential:mean
+ * lognormal:median:p99 - a long tail, the usual shape of the real services
+ * <p>
+ * all in milliseconds.
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.loadtest;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * @author bdasgupt
+ */
+public class LatencyDistribution {
+
+    // The 99th percentile of the standard normal distribution
+    private static final double Z_99 = 2.3263;
+
+    private final String spec;
+    private final String type;
+    private final double a;
+    private final double b;
+
+    private LatencyDistribution(String spec, String type, double a, double b) {
+        this.spec = spec;
+        this.type = type;
+        this.a = a;
+        this.b = b;
+    }
+
+    /**
+     * Parses a distribution, see the class comment for the format
+     *
+     * @param spec
+     * @return
+     */
+    public static LatencyDistribution parse(String spec) {
+        String[] tokens = spec.trim().split(":");
+        String type = tokens[0].toLowerCase();
+        try {
+            if (type.equals("none") || type.equals("0")) {
+                return new LatencyDistribution(spec, "fixed", 0, 0);
+            } else if (type.equals("fixed") && tokens.length == 2) {
+                return new LatencyDistribution(spec, type, Double.parseDouble(tokens[1]), 0);
+            } else if (type.equals("uniform") && tokens.length == 3) {
+                return new LatencyDistribution(spec, type, Double.parseDouble(tokens[1]), Double.parseDouble(tokens[2]));
+            } else if (type.equals("exponential") && tokens.length == 2) {
+                return new LatencyDistribution(spec, type, Double.parseDouble(tokens[1]), 0);
+            } else if (type.equals("lognormal") && tokens.length == 3) {
+                double median = Double.parseDouble(tokens[1]);
+                double p99 = Double.parseDouble(tokens[2]);
+                if (median <= 0 || p99 < median) {
+                    throw new IllegalArgumentException("Invalid latency distribution " + spec + ", need 0 < median <= p99");
+                }
+                double mu = Math.log(median);
+                double sigma = (Math.log(p99) - mu) / Z_99;
+                return new LatencyDistribution(spec, type, mu, sigma);
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Invalid latency distribution " + spec
+                + ", expected none, fixed:ms, uniform:min:max, exponential:mean or lognormal:median:p99");
+    }
+
+    /**
+     * A latency drawn from the distribution
+     *
+     * @return - milliseconds
+     */
+    public long sample() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        double millis;
+        if (type.equals("uniform")) {
+            millis = a + random.nextDouble() * (b - a);
+        } else if (type.equals("exponential")) {
+            millis = -a * Math.log(1.0 - random.nextDouble());
+        } else if (type.equals("lognormal")) {
+            millis = Math.exp(a + b * random.nextGaussian());
+        } else {
+            millis = a;
+        }
+        return Math.max(0L, Math.round(millis));
+    }
+
+    /**
+     * Sleeps for a latency drawn from the distribution
+     *
+     * @throws InterruptedException
+     */
+    public void sleep() throws InterruptedException {
+        long millis = sample();
+        if (millis > 0) {
+            Thread.sleep(millis);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return spec;
+    }
+}
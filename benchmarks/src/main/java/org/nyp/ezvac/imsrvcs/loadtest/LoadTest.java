@@ -0,0 +1,420 @@
+/**
+ * LoadTest
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * End to end load test of the services without DB2, CIR or ICE. Boots
+ * Services (with the LoggingFilter and ResourceUsageFilter, and /metrics) in
+ * an embedded Jetty, against
+ * <p>
+ * - an in-memory H2 copy of the improd tables (ImprodDatabase) filled with
+ * synthetic patients, bound as java:comp/env/jdbc/nypis through a pool
+ * - a stub CIR sync service (cirsync.url)
+ * - a stub ICE, called by StandInIceLoader in place of the CDS library
+ * (ice.standIn)
+ * <p>
+ * with the CIR and ICE latencies drawn from configurable distributions, then
+ * runs closed loop clients against a weighted mix of endpoints (Workload) and
+ * reports the throughput and the latency percentiles per endpoint. The
+ * services' own /metrics is saved at the end for the per stage breakdown.
+ * <p>
+ * mvn -f benchmarks/pom.xml package
+ * java -Dloadtest.clients=32 -Dloadtest.ice.latency=lognormal:300:2000 \
+ * -cp benchmarks/target/benchmarks.jar org.nyp.ezvac.imsrvcs.loadtest.LoadTest
+ * <p>
+ * run from the project directory (the NYP rules' ICD codes are read from
+ * datafiles). Options, as system properties:
+ * <p>
+ * loadtest.clients (16) - concurrent clients, each waits for its response
+ * loadtest.thinkMillis (0) - pause of a client between requests
+ * loadtest.warmupSeconds (15), loadtest.durationSeconds (60)
+ * loadtest.workload - see Workload, Workload.DEFAULT by default
+ * loadtest.patients (1000), loadtest.shots (20) - the average shots per patient
+ * loadtest.population - the directory of a synthetic population written by
+ * PopulationGenerator, its first loadtest.patients patients are loaded
+ * instead of loadtest.shots shots each
+ * loadtest.cir.latency (lognormal:80:600), loadtest.cir.failRate (0)
+ * loadtest.ice.latency (lognormal:250:1500), loadtest.ice.failRate (0)
+ * loadtest.db.maxConnections (20)
+ * loadtest.accept (application/json+fhir) - the Accept header of the requests
+ * loadtest.metricsFile (target/loadtest-metrics.txt)
+ * loadtest.quiet (true) - drop what the services print
+ * <p>
+ * Any imsrvcs.properties setting can be overridden the same way, e.g.
+ * -Dcache.maxEntries=0 to have every request call the stub ICE, or
+ * -Dasync.threads=32.
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.loadtest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.servlet.DispatcherType;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.nyp.ezvac.imsrvcs.benchmarks.ImprodDatabase;
+import org.nyp.ezvac.imsrvcs.benchmarks.RuleFixtures;
+import org.nyp.ezvac.imsrvcs.filters.LoggingFilter;
+import org.nyp.ezvac.imsrvcs.filters.ResourceUsageFilter;
+import org.nyp.ezvac.imsrvcs.metrics.LatencyHistogram;
+import org.nyp.ezvac.imsrvcs.metrics.MetricsServlet;
+import org.nyp.ezvac.imsrvcs.population.PopulationFiles;
+import org.nyp.ezvac.imsrvcs.population.PopulationGenerator;
+import org.nyp.ezvac.imsrvcs.population.SyntheticPatient;
+import org.nyp.ezvac.imsrvcs.services.Services;
+
+/**
+ * @author bdasgupt
+ */
+public class LoadTest {
+
+    private static final String DATABASE = "loadtest";
+    private static final String CIR_PATH = "/cir-sync-service/CIRSyncService";
+    private static final String ICE_PATH = "/ice/evaluate";
+    private static final byte[] CIR_BODY = "<html><body>Sync complete</body></html>".getBytes();
+    private static final Pattern IMMUNIZATION_ID = Pattern.compile("<immunization id=\"(\\d+)\"");
+
+    /**
+     * What one phase (warmup, measured) of the run saw for an endpoint
+     */
+    static class EndpointStats {
+
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong requests = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+    }
+
+    private final Workload workload;
+    private final int patients;
+    private final String accept;
+    private String baseUrl;
+    private volatile EndpointStats[] stats;
+
+    LoadTest(Workload workload, int patients, String accept) {
+        this.workload = workload;
+        this.patients = patients;
+        this.accept = accept;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int clients = Integer.getInteger("loadtest.clients", 16);
+        long thinkMillis = Long.getLong("loadtest.thinkMillis", 0L);
+        int warmupSeconds = Integer.getInteger("loadtest.warmupSeconds", 15);
+        int durationSeconds = Integer.getInteger("loadtest.durationSeconds", 60);
+        int patients = Integer.getInteger("loadtest.patients", 1000);
+        int shots = Integer.getInteger("loadtest.shots", 20);
+        Workload workload = Workload.parse(System.getProperty("loadtest.workload", Workload.DEFAULT));
+        LatencyDistribution cirLatency = LatencyDistribution.parse(System.getProperty("loadtest.cir.latency", "lognormal:80:600"));
+        LatencyDistribution iceLatency = LatencyDistribution.parse(System.getProperty("loadtest.ice.latency", "lognormal:250:1500"));
+        double cirFailRate = Double.parseDouble(System.getProperty("loadtest.cir.failRate", "0"));
+        double iceFailRate = Double.parseDouble(System.getProperty("loadtest.ice.failRate", "0"));
+        int maxConnections = Integer.getInteger("loadtest.db.maxConnections", 20);
+        String metricsFile = System.getProperty("loadtest.metricsFile", "target/loadtest-metrics.txt");
+
+        // HttpURLConnection keeps only http.maxConnections (5) idle connections per host, more clients would
+        // reconnect on most requests
+        setDefault("http.maxConnections", String.valueOf(Math.max(clients, 5)));
+
+        PrintStream console = System.out;
+        if (Boolean.parseBoolean(System.getProperty("loadtest.quiet", "true"))) {
+            RuleFixtures.quiet();
+        }
+
+        // The stand-ins for CIR and ICE
+        StubUpstream upstream = new StubUpstream();
+        StubUpstream.Endpoint cir = upstream.addEndpoint(CIR_PATH, "text/html", new StubUpstream.Responder() {
+            public byte[] respond(byte[] request) {
+                return CIR_BODY;
+            }
+        }, cirLatency, cirFailRate);
+        StubUpstream.Endpoint ice = upstream.addEndpoint(ICE_PATH, "text/xml; charset=UTF-8", new StubUpstream.Responder() {
+            public byte[] respond(byte[] request) {
+                return iceResponse(request);
+            }
+        }, iceLatency, iceFailRate);
+
+        setDefault("cirsync.url", upstream.getBaseUrl() + CIR_PATH + "?upid=");
+        setDefault("ice.standIn", StandInIceLoader.class.getName());
+        setDefault("ice.standIn.url", upstream.getBaseUrl() + ICE_PATH);
+        setDefault("warmup.enabled", "false");
+        setDefault("accesslog.file", "target/loadtest-access.log");
+
+        // The database
+        long start = System.currentTimeMillis();
+        ImprodDatabase db = new ImprodDatabase(DATABASE);
+        Date today = new Date();
+        long totalShots = 0;
+        String population = System.getProperty("loadtest.population", "");
+        if (population.length() > 0) {
+            PopulationFiles.Reader reader = PopulationFiles.open(new File(population));
+            try {
+                patients = (int) Math.min(patients, reader.getPatientCount());
+                for (int i = 0; i < patients; i++) {
+                    SyntheticPatient patient = reader.next();
+                    db.addPatient(patient.upid, patient.empi, patient.dateOfBirth, patient.gender,
+                            patient.cvxCodes, patient.shotDates, reader.getAuditDate());
+                    totalShots += patient.getShotCount();
+                }
+            } finally {
+                reader.close();
+            }
+        } else {
+            Random random = new Random(42);
+            for (int i = 0; i < patients; i++) {
+                // 1 to 2 * shots, shots on average
+                int n = 1 + random.nextInt(Math.max(1, 2 * shots));
+                db.addPatient(upidOf(i), empiOf(i), n, today);
+                totalShots += n;
+            }
+        }
+        JdbcConnectionPool pool = JdbcConnectionPool.create(ImprodDatabase.url(DATABASE), "", "");
+        pool.setMaxConnections(maxConnections);
+        LocalNaming.install();
+        LocalNaming.bind("java:comp/env/jdbc/nypis", pool);
+        RuleFixtures.loadICDValues();
+        console.println("Database: " + patients + " patients, " + totalShots + " shots, "
+                + (System.currentTimeMillis() - start) + " ms");
+
+        // The services
+        Server server = new Server(new InetSocketAddress("127.0.0.1", Integer.getInteger("loadtest.port", 0)));
+        ServletContextHandler context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+        context.setContextPath("/imsrvcs");
+        EnumSet<DispatcherType> dispatches = EnumSet.of(DispatcherType.REQUEST, DispatcherType.ASYNC);
+        FilterHolder logFilter = new FilterHolder(LoggingFilter.class);
+        logFilter.setAsyncSupported(true);
+        context.addFilter(logFilter, "/*", dispatches);
+        FilterHolder usageFilter = new FilterHolder(ResourceUsageFilter.class);
+        usageFilter.setAsyncSupported(true);
+        context.addFilter(usageFilter, "/*", dispatches);
+        ServletHolder services = new ServletHolder("Services", Services.class);
+        services.setAsyncSupported(true);
+        services.setInitOrder(1);
+        context.addServlet(services, "/services/*");
+        context.addServlet(new ServletHolder("Metrics", MetricsServlet.class), "/metrics");
+        server.setHandler(context);
+        server.start();
+
+        LoadTest test = new LoadTest(workload, patients, System.getProperty("loadtest.accept", "application/json+fhir"));
+        test.baseUrl = "http://127.0.0.1:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort() + "/imsrvcs";
+        console.println("Services: " + test.baseUrl);
+        console.println("Workload: " + workload + ", " + clients + " clients, think time " + thinkMillis + " ms");
+        console.println("CIR latency " + cirLatency + ", ICE latency " + iceLatency + ", " + maxConnections + " DB connections");
+
+        try {
+            if (warmupSeconds > 0) {
+                console.println("Warming up for " + warmupSeconds + " s");
+                test.run(clients, thinkMillis, warmupSeconds);
+            }
+            console.println("Measuring for " + durationSeconds + " s");
+            long measured = test.run(clients, thinkMillis, durationSeconds);
+            RuleFixtures.loud();
+            test.report(console, measured);
+            console.println(cir);
+            console.println(ice);
+            test.saveMetrics(metricsFile);
+            console.println("Metrics saved to " + metricsFile);
+        } finally {
+            RuleFixtures.loud();
+            server.stop();
+            upstream.stop();
+            pool.dispose();
+            db.close();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Runs the clients for the duration, with new stats
+     *
+     * @param clients
+     * @param thinkMillis
+     * @param seconds
+     * @return - the elapsed nanoseconds
+     * @throws InterruptedException
+     */
+    long run(int clients, final long thinkMillis, int seconds) throws InterruptedException {
+        EndpointStats[] phase = new EndpointStats[workload.getNames().size()];
+        for (int i = 0; i < phase.length; i++) {
+            phase[i] = new EndpointStats();
+        }
+        stats = phase;
+
+        final long start = System.nanoTime();
+        final long end = start + seconds * 1000000000L;
+        final CountDownLatch done = new CountDownLatch(clients);
+        for (int c = 0; c < clients; c++) {
+            Thread client = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (System.nanoTime() < end) {
+                            request();
+                            if (thinkMillis > 0) {
+                                Thread.sleep(thinkMillis);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        // Stopped
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "loadtest-client-" + c);
+            client.setDaemon(true);
+            client.start();
+        }
+        done.await();
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * One request to an endpoint picked by weight, for a random patient
+     */
+    private void request() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int endpoint = workload.pick(random);
+        int patient = random.nextInt(patients);
+        EndpointStats s = stats[endpoint];
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            HttpURLConnection http = (HttpURLConnection) new URL(baseUrl
+                    + workload.getPath(endpoint, upidOf(patient), empiOf(patient))).openConnection();
+            http.setRequestProperty("Accept", accept);
+            http.setRequestProperty("appid", "loadtest");
+            http.setConnectTimeout(5000);
+            http.setReadTimeout(180000);
+            int status = http.getResponseCode();
+            InputStream in = (status < 400) ? http.getInputStream() : http.getErrorStream();
+            if (in != null) {
+                StubUpstream.readFully(in);
+            }
+            ok = status < 400;
+        } catch (Exception e) {
+            // Counted as an error
+        }
+        s.latency.recordSince(start);
+        s.requests.incrementAndGet();
+        if (!ok) {
+            s.errors.incrementAndGet();
+        }
+    }
+
+    /**
+     * Prints the throughput and latency percentiles of the measured phase
+     *
+     * @param out
+     * @param elapsedNanos
+     */
+    void report(PrintStream out, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        String format = "%-22s %9s %7s %9s %9s %9s %9s %9s %9s%n";
+        out.printf(format, "endpoint", "requests", "errors", "req/s", "mean ms", "p50 ms", "p90 ms", "p99 ms", "max ms");
+        long requests = 0;
+        long errors = 0;
+        for (int i = 0; i < stats.length; i++) {
+            EndpointStats s = stats[i];
+            long n = s.requests.get();
+            requests += n;
+            errors += s.errors.get();
+            out.printf(format, workload.getName(i), n, s.errors.get(), String.format("%.1f", n / seconds),
+                    millis(n == 0 ? 0 : s.latency.getSumNanos() / n / 1000L),
+                    millis(s.latency.getQuantileMicros(0.50)), millis(s.latency.getQuantileMicros(0.90)),
+                    millis(s.latency.getQuantileMicros(0.99)), millis(s.latency.getQuantileMicros(1.0)));
+        }
+        out.printf(format, "total", requests, errors, String.format("%.1f", requests / seconds), "", "", "", "", "");
+        out.println("(percentiles are bucket upper bounds, within 12.5%)");
+    }
+
+    /**
+     * Saves the services' /metrics
+     *
+     * @param fileName
+     * @throws Exception
+     */
+    void saveMetrics(String fileName) throws Exception {
+        HttpURLConnection http = (HttpURLConnection) new URL(baseUrl + "/metrics").openConnection();
+        byte[] body = StubUpstream.readFully(http.getInputStream());
+        File file = new File(fileName);
+        if (file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * The stub ICE response, the shot evaluations (one per immunization in the
+     * request) and a typical forecast
+     *
+     * @param request
+     * @return
+     */
+    static byte[] iceResponse(byte[] request) {
+        String body;
+        try {
+            body = new String(request, "UTF-8");
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        StringBuilder sb = new StringBuilder(1024 + body.length());
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+                .append("<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body><evaluateResponse>");
+        Matcher m = IMMUNIZATION_ID.matcher(body);
+        while (m.find()) {
+            sb.append("<evaluation id=\"").append(m.group(1)).append("\" status=\"VALID\"/>");
+        }
+        for (String[] forecast : RuleFixtures.typicalForecast()) {
+            String[] codes = forecast[1].split(" - ");
+            sb.append("<recommendation series=\"").append(forecast[0]).append("\" code=\"").append(codes[0])
+                    .append("\" interpretation=\"").append(codes[1]).append("\"/>");
+        }
+        sb.append("</evaluateResponse></soap:Body></soap:Envelope>");
+        try {
+            return sb.toString().getBytes("UTF-8");
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String millis(long micros) {
+        return String.format("%.1f", micros / 1000.0);
+    }
+
+    private static void setDefault(String key, String value) {
+        if (System.getProperty(key) == null) {
+            System.setProperty(key, value);
+        }
+    }
+
+    static String upidOf(int patient) {
+        return PopulationGenerator.upidOf(patient);
+    }
+
+    static String empiOf(int patient) {
+        return PopulationGenerator.empiOf(patient);
+    }
+}
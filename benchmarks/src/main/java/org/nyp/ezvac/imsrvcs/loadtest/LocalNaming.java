@@ -0,0 +1,77 @@
+/**
+ * LocalNaming
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * A minimal JNDI provider for running the services outside Tomcat, so that the
+ * providers' lookups of java:comp/env/jdbc/nypis find the load test's pool.
+ * Only lookup is supported. Installed with install(), which makes it the
+ * initial context factory of the JVM.
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.loadtest;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.spi.InitialContextFactory;
+
+/**
+ * @author bdasgupt
+ */
+public class LocalNaming implements InitialContextFactory {
+
+    private static final Map<String, Object> BINDINGS = new ConcurrentHashMap<String, Object>();
+
+    /**
+     * Makes this the initial context factory
+     */
+    public static void install() {
+        System.setProperty(Context.INITIAL_CONTEXT_FACTORY, LocalNaming.class.getName());
+    }
+
+    /**
+     * Binds an object under its full name, e.g. java:comp/env/jdbc/nypis
+     *
+     * @param name
+     * @param object
+     */
+    public static void bind(String name, Object object) {
+        BINDINGS.put(name, object);
+    }
+
+    public Context getInitialContext(Hashtable<?, ?> environment) {
+        return (Context) Proxy.newProxyInstance(Context.class.getClassLoader(), new Class<?>[]{Context.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        String name = method.getName();
+                        if (name.equals("lookup") && args.length == 1) {
+                            Object object = BINDINGS.get(args[0].toString());
+                            if (object == null) {
+                                throw new NameNotFoundException(args[0] + " is not bound");
+                            }
+                            return object;
+                        } else if (name.equals("close")) {
+                            return null;
+                        } else if (name.equals("getEnvironment")) {
+                            return new Hashtable<Object, Object>();
+                        } else if (name.equals("toString")) {
+                            return "LocalNaming" + BINDINGS.keySet();
+                        } else if (name.equals("hashCode")) {
+                            return System.identityHashCode(proxy);
+                        } else if (name.equals("equals")) {
+                            return proxy == args[0];
+                        }
+                        throw new OperationNotSupportedException(name);
+                    }
+                });
+    }
+}
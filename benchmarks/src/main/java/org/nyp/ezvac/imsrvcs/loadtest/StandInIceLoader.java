@@ -0,0 +1,211 @@
+/**
+ * StandInIceLoader
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * The ICE stand-in of the load test (ice.standIn, see cache.IceStandIn). Does
+ * what the CDS library does for getSchedule - reads the history and the
+ * demographics from jdbc/nypis and posts them to ICE, here the stub ICE at
+ * ice.standIn.url - and holds the connection across the ICE call as the
+ * library does, so the pool is as busy as in production. The shot statuses are
+ * worked out locally (every shot counts), the recommendations come from the
+ * stub's response.
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.loadtest;
+
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.naming.InitialContext;
+import javax.sql.DataSource;
+
+import org.nyp.ezvac.imsrvcs.cache.CDSEvaluation;
+import org.nyp.ezvac.imsrvcs.cache.EvaluationLoader;
+import org.nyp.ezvac.imsrvcs.metrics.Metrics;
+import org.nyp.ezvac.imsrvcs.services.ServiceConfig;
+import org.nyph.cdslibrary.dto.HistoryStatusDTO;
+import org.nyph.cdslibrary.dto.ImmunizationRecommendationDTO;
+
+/**
+ * @author bdasgupt
+ */
+public class StandInIceLoader implements EvaluationLoader {
+
+    private static final String GET_HISTORY = "SELECT a.immunization_id, a.vaccine_date, b.doh_code, g.vaccine_display_group "
+            + "FROM improd.immunizationmix_table a, improd.immunizationcomp_table c, improd.vaccinemapper_table b, "
+            + "improd.jsp_vaccine_display_group g "
+            + "WHERE a.upid = ? AND a.display = 'Y' AND c.immunization_id = a.immunization_id "
+            + "AND b.vaccine_medcode = c.vaccine_medcode AND g.vaccine_medcode = c.vaccine_medcode "
+            + "ORDER BY a.vaccine_date, a.immunization_id";
+    private static final String GET_DEMOGRAPHICS = "SELECT dob, sex FROM improd.patient_table WHERE upid = ?";
+
+    private static final Pattern RECOMMENDATION = Pattern.compile(
+            "<recommendation series=\"([^\"]*)\" code=\"([^\"]*)\" interpretation=\"([^\"]*)\"/>");
+
+    private final String url;
+    private DataSource ds = null;
+
+    public StandInIceLoader() {
+        url = ServiceConfig.getString("ice.standIn.url", "");
+        if (url.length() == 0) {
+            throw new IllegalStateException("ice.standIn.url is not set");
+        }
+    }
+
+    public CDSEvaluation load(String upid, Date auditDate) throws Exception {
+        List<HistoryStatusDTO> history = new ArrayList<HistoryStatusDTO>();
+        Date dateOfBirth = null;
+        String gender = null;
+        String response;
+
+        Connection conn = Metrics.getConnection(getDataSource());
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            pstmt = conn.prepareStatement(GET_HISTORY);
+            pstmt.setString(1, upid);
+            rs = pstmt.executeQuery();
+            Map<String, Integer> doses = new HashMap<String, Integer>();
+            HistoryStatusDTO h = null;
+            while (rs.next()) {
+                Date shotDate = rs.getDate("vaccine_date");
+                if (shotDate == null || shotDate.after(auditDate)) {
+                    continue;
+                }
+                String series = "Immunization Evaluation Focus (" + rs.getString("vaccine_display_group") + ")";
+                Integer dose = doses.get(series);
+                dose = (dose == null) ? 1 : dose + 1;
+                doses.put(series, dose);
+
+                // A combination vaccine comes back as one row per component
+                int id = rs.getInt("immunization_id");
+                if (h != null && h.getImmunizationId().intValue() == id) {
+                    h.setSeries(h.getSeries() + "," + series);
+                    h.setReason(h.getReason() + ",");
+                    continue;
+                }
+                h = new HistoryStatusDTO();
+                h.setImmunizationId(Integer.valueOf(id));
+                h.setCvxCode(Integer.valueOf(rs.getInt("doh_code")));
+                h.setShotDate(new Date(shotDate.getTime()));
+                h.setSeries(series);
+                h.setReason("");
+                h.setValid(true);
+                h.setShotNumber(dose);
+                history.add(h);
+            }
+            rs.close();
+            pstmt.close();
+
+            pstmt = conn.prepareStatement(GET_DEMOGRAPHICS);
+            pstmt.setString(1, upid);
+            rs = pstmt.executeQuery();
+            if (rs.next()) {
+                dateOfBirth = new Date(rs.getDate("dob").getTime());
+                gender = rs.getString("sex");
+            }
+            if (dateOfBirth == null) {
+                throw new Exception("No date of birth for " + upid);
+            }
+
+            response = post(request(upid, auditDate, dateOfBirth, gender, history));
+        } finally {
+            try {
+                if (rs != null) {
+                    rs.close();
+                }
+                if (pstmt != null) {
+                    pstmt.close();
+                }
+            } catch (Exception e) {
+            }
+            conn.close();
+        }
+
+        return new CDSEvaluation(upid, auditDate, history, history, recommendations(response, auditDate), dateOfBirth, gender);
+    }
+
+    private synchronized DataSource getDataSource() throws Exception {
+        if (ds == null) {
+            ds = (DataSource) new InitialContext().lookup("java:comp/env/jdbc/nypis");
+        }
+        return ds;
+    }
+
+    /**
+     * The evaluation request, one immunization element per shot
+     */
+    private static String request(String upid, Date auditDate, Date dateOfBirth, String gender, List<HistoryStatusDTO> history) {
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd");
+        StringBuilder sb = new StringBuilder(256 + history.size() * 96);
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+                .append("<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body>")
+                .append("<evaluate patient=\"").append(upid).append("\" evalTime=\"").append(sdf.format(auditDate))
+                .append("\" birthTime=\"").append(sdf.format(dateOfBirth)).append("\" gender=\"").append(gender).append("\">");
+        for (HistoryStatusDTO h : history) {
+            sb.append("<immunization id=\"").append(h.getImmunizationId()).append("\" cvx=\"").append(h.getCvxCode())
+                    .append("\" date=\"").append(sdf.format(h.getShotDate())).append("\"/>");
+        }
+        sb.append("</evaluate></soap:Body></soap:Envelope>");
+        return sb.toString();
+    }
+
+    private String post(String body) throws Exception {
+        HttpURLConnection http = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            http.setRequestMethod("POST");
+            http.setDoOutput(true);
+            http.setConnectTimeout(2000);
+            http.setReadTimeout(60000);
+            http.setRequestProperty("Content-Type", "text/xml; charset=UTF-8");
+            http.setRequestProperty("SOAPAction", "evaluate");
+            OutputStream os = http.getOutputStream();
+            os.write(body.getBytes("UTF-8"));
+            os.close();
+            int status = http.getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK) {
+                StubUpstream.readFully(http.getErrorStream() == null ? http.getInputStream() : http.getErrorStream());
+                throw new Exception("ICE returned HTTP " + status);
+            }
+            return new String(StubUpstream.readFully(http.getInputStream()), "UTF-8");
+        } catch (Exception e) {
+            http.disconnect();
+            throw e;
+        }
+    }
+
+    /**
+     * The recommendations in the response, proposed for the audit date when
+     * due now
+     */
+    private static List<ImmunizationRecommendationDTO> recommendations(String response, Date auditDate) {
+        List<ImmunizationRecommendationDTO> recommendations = new ArrayList<ImmunizationRecommendationDTO>();
+        Matcher m = RECOMMENDATION.matcher(response);
+        while (m.find()) {
+            ImmunizationRecommendationDTO r = new ImmunizationRecommendationDTO();
+            r.setEvaluatonDescription("Immunization Evaluation Focus (" + m.group(1) + ")");
+            r.setRecommendationCode(m.group(2));
+            r.setInterpretationCode(m.group(3));
+            r.setRecommendatoinString(m.group(2));
+            if (m.group(2).equals("RECOMMENDED")) {
+                r.setProposedDate(auditDate);
+            }
+            recommendations.add(r);
+        }
+        return recommendations;
+    }
+}
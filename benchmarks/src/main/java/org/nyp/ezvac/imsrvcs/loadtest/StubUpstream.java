@@ -0,0 +1,164 @@
+/**
+ * StubUpstream
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * A local HTTP stand-in for an upstream service (the CIR sync service, ICE).
+ * Every request is answered after a latency drawn from the endpoint's
+ * distribution, and a configurable fraction of them fail with a 500. Like
+ * tests.CIRSyncStub, but with latency distributions and any number of
+ * endpoints.
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author bdasgupt
+ */
+public class StubUpstream {
+
+    /**
+     * Builds the response to a request body
+     */
+    public interface Responder {
+
+        byte[] respond(byte[] request);
+    }
+
+    /**
+     * One endpoint of the stub and what it has served
+     */
+    public static class Endpoint {
+
+        private final String name;
+        private final String contentType;
+        private final Responder responder;
+        private volatile LatencyDistribution latency;
+        private volatile double failRate;
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+
+        Endpoint(String name, String contentType, Responder responder, LatencyDistribution latency, double failRate) {
+            this.name = name;
+            this.contentType = contentType;
+            this.responder = responder;
+            this.latency = latency;
+            this.failRate = failRate;
+        }
+
+        public void setLatency(LatencyDistribution latency) {
+            this.latency = latency;
+        }
+
+        public void setFailRate(double failRate) {
+            this.failRate = failRate;
+        }
+
+        public long getRequestCount() {
+            return requests.get();
+        }
+
+        public long getFailureCount() {
+            return failures.get();
+        }
+
+        @Override
+        public String toString() {
+            return name + " [latency " + latency + ", fail rate " + failRate + "]: "
+                    + requests.get() + " requests, " + failures.get() + " failed";
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * Constructor, starts the stub on a free local port
+     *
+     * @throws Exception
+     */
+    public StubUpstream() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 200);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * Adds an endpoint
+     *
+     * @param path
+     * @param contentType
+     * @param responder
+     * @param latency
+     * @param failRate - 0.0 to 1.0
+     * @return
+     */
+    public Endpoint addEndpoint(String path, String contentType, Responder responder, LatencyDistribution latency, double failRate) {
+        final Endpoint endpoint = new Endpoint(path, contentType, responder, latency, failRate);
+        server.createContext(path, new HttpHandler() {
+            public void handle(HttpExchange exchange) {
+                try {
+                    endpoint.requests.incrementAndGet();
+                    byte[] request = readFully(exchange.getRequestBody());
+                    endpoint.latency.sleep();
+                    if (ThreadLocalRandom.current().nextDouble() < endpoint.failRate) {
+                        endpoint.failures.incrementAndGet();
+                        exchange.sendResponseHeaders(500, -1);
+                        return;
+                    }
+                    byte[] body = endpoint.responder.respond(request);
+                    exchange.getResponseHeaders().set("Content-Type", endpoint.contentType);
+                    exchange.sendResponseHeaders(200, body.length);
+                    OutputStream os = exchange.getResponseBody();
+                    os.write(body);
+                    os.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        return endpoint;
+    }
+
+    /**
+     * The base url of the stub, http://127.0.0.1:port
+     *
+     * @return
+     */
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    static byte[] readFully(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * Workload
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * The mix of requests the load test sends, as name=weight pairs, e.g.
+ * <p>
+ * recommendation=50,schedule=20,immunization=15,patient=10,recommendation-empi=5
+ * <p>
+ * The names are those of ENDPOINTS, or an endpoint of its own can be given as
+ * name=weight@path, with {upid} and {empi} standing for the patient, e.g.
+ * whatif=5@/services/ImmunizationRecommendation/$what-if?identifier={upid}&dose=88
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.loadtest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * @author bdasgupt
+ */
+public class Workload {
+
+    public static final String DEFAULT = "recommendation=50,schedule=20,immunization=15,patient=10,recommendation-empi=5";
+
+    public static final Map<String, String> ENDPOINTS;
+
+    static {
+        Map<String, String> endpoints = new LinkedHashMap<String, String>();
+        endpoints.put("recommendation", "/services/ImmunizationRecommendation?identifier={upid}");
+        endpoints.put("recommendation-empi", "/services/ImmunizationRecommendation?empi={empi}");
+        endpoints.put("flu", "/services/ImmunizationRecommendation?identifier={upid}&series=flu");
+        endpoints.put("timeline", "/services/ImmunizationRecommendation/$forecast-timeline?identifier={upid}&months=12");
+        endpoints.put("immunization", "/services/Immunization?identifier={upid}");
+        endpoints.put("immunization-empi", "/services/Immunization?empi={empi}");
+        endpoints.put("schedule", "/services/Immunization?identifier={upid}&schedule=Y");
+        endpoints.put("patient", "/services/Patient?identifier={upid}&idtype=upid");
+        ENDPOINTS = Collections.unmodifiableMap(endpoints);
+    }
+
+    private final List<String> names = new ArrayList<String>();
+    private final List<String> paths = new ArrayList<String>();
+    private final List<Integer> cumulativeWeights = new ArrayList<Integer>();
+    private int totalWeight = 0;
+
+    /**
+     * Parses a workload, see the class comment for the format
+     *
+     * @param spec
+     * @return
+     */
+    public static Workload parse(String spec) {
+        Workload workload = new Workload();
+        for (String entry : spec.split(",")) {
+            entry = entry.trim();
+            if (entry.length() == 0) {
+                continue;
+            }
+            int eq = entry.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("Invalid workload entry " + entry + ", expected name=weight[@path]");
+            }
+            String name = entry.substring(0, eq).trim();
+            String weight = entry.substring(eq + 1).trim();
+            String path;
+            int at = weight.indexOf('@');
+            if (at >= 0) {
+                path = weight.substring(at + 1).trim();
+                weight = weight.substring(0, at).trim();
+            } else {
+                path = ENDPOINTS.get(name);
+                if (path == null) {
+                    throw new IllegalArgumentException("Unknown endpoint " + name + ", known are " + ENDPOINTS.keySet());
+                }
+            }
+            int w;
+            try {
+                w = Integer.parseInt(weight);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid weight in workload entry " + entry);
+            }
+            if (w > 0) {
+                workload.totalWeight += w;
+                workload.names.add(name);
+                workload.paths.add(path);
+                workload.cumulativeWeights.add(workload.totalWeight);
+            }
+        }
+        if (workload.totalWeight == 0) {
+            throw new IllegalArgumentException("Empty workload " + spec);
+        }
+        return workload;
+    }
+
+    public List<String> getNames() {
+        return Collections.unmodifiableList(names);
+    }
+
+    /**
+     * An endpoint picked by weight
+     *
+     * @param random
+     * @return - the index of the endpoint
+     */
+    public int pick(Random random) {
+        int r = random.nextInt(totalWeight);
+        for (int i = 0; i < cumulativeWeights.size(); i++) {
+            if (r < cumulativeWeights.get(i)) {
+                return i;
+            }
+        }
+        return cumulativeWeights.size() - 1;
+    }
+
+    public String getName(int endpoint) {
+        return names.get(endpoint);
+    }
+
+    /**
+     * The path of the endpoint for the patient
+     *
+     * @param endpoint
+     * @param upid
+     * @param empi
+     * @return
+     */
+    public String getPath(int endpoint, String upid, String empi) {
+        return paths.get(endpoint).replace("{upid}", upid).replace("{empi}", empi);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        int previous = 0;
+        for (int i = 0; i < names.size(); i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(names.get(i)).append('=').append(cumulativeWeights.get(i) - previous);
+            previous = cumulativeWeights.get(i);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,287 @@
+/**
+ * PopulationFiles
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * A synthetic population in columnar files, one file per column, so that a
+ * population can be loaded again (into the load test's database, say) without
+ * generating it, and a single column (the dates of birth, the shots per
+ * patient) can be read on its own. In the directory:
+ * <p>
+ * population.properties - the seed, the audit date and the counts
+ * <p>
+ * patient.upid, patient.empi, patient.gender, patient.icd9, patient.icd10,
+ * patient.risk - strings (DataOutput UTF), patient.dob - longs (millis),
+ * patient.shots - ints, the number of shots of the patient
+ * <p>
+ * shot.cvx - ints, shot.date - longs (millis), shot.valid - bytes (1 or 0),
+ * the shots of all patients one after another, in the order of the patients
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.population;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.Properties;
+
+/**
+ * @author bdasgupt
+ */
+public class PopulationFiles {
+
+    private static final String PROPERTIES = "population.properties";
+    private static final int VERSION = 1;
+
+    private PopulationFiles() {
+    }
+
+    /**
+     * Starts a population in the directory, replacing the one there
+     *
+     * @param directory
+     * @param seed
+     * @param auditDate
+     * @return
+     * @throws IOException
+     */
+    public static Writer create(File directory, long seed, Date auditDate) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        return new Writer(directory, seed, auditDate);
+    }
+
+    /**
+     * Opens the population in the directory
+     *
+     * @param directory
+     * @return
+     * @throws IOException
+     */
+    public static Reader open(File directory) throws IOException {
+        return new Reader(directory);
+    }
+
+    private static DataOutputStream output(File directory, String column) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(directory, column)), 65536));
+    }
+
+    private static DataInputStream input(File directory, String column) throws IOException {
+        return new DataInputStream(new BufferedInputStream(new FileInputStream(new File(directory, column)), 65536));
+    }
+
+    private static void close(Closeable[] columns) throws IOException {
+        IOException failure = null;
+        for (Closeable column : columns) {
+            try {
+                column.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Appends patients to the columns
+     */
+    public static class Writer {
+
+        private final File directory;
+        private final long seed;
+        private final Date auditDate;
+        private final DataOutputStream upid;
+        private final DataOutputStream empi;
+        private final DataOutputStream gender;
+        private final DataOutputStream icd9;
+        private final DataOutputStream icd10;
+        private final DataOutputStream risk;
+        private final DataOutputStream dob;
+        private final DataOutputStream shots;
+        private final DataOutputStream cvx;
+        private final DataOutputStream shotDate;
+        private final DataOutputStream valid;
+        private long patientCount = 0;
+        private long shotCount = 0;
+
+        private Writer(File directory, long seed, Date auditDate) throws IOException {
+            this.directory = directory;
+            this.seed = seed;
+            this.auditDate = auditDate;
+            upid = output(directory, "patient.upid");
+            empi = output(directory, "patient.empi");
+            gender = output(directory, "patient.gender");
+            icd9 = output(directory, "patient.icd9");
+            icd10 = output(directory, "patient.icd10");
+            risk = output(directory, "patient.risk");
+            dob = output(directory, "patient.dob");
+            shots = output(directory, "patient.shots");
+            cvx = output(directory, "shot.cvx");
+            shotDate = output(directory, "shot.date");
+            valid = output(directory, "shot.valid");
+        }
+
+        public void write(SyntheticPatient patient) throws IOException {
+            upid.writeUTF(patient.upid);
+            empi.writeUTF(patient.empi);
+            gender.writeUTF(patient.gender);
+            icd9.writeUTF(patient.icd9);
+            icd10.writeUTF(patient.icd10);
+            risk.writeUTF(patient.riskSeries);
+            dob.writeLong(patient.dateOfBirth.getTime());
+            shots.writeInt(patient.getShotCount());
+            for (int i = 0; i < patient.getShotCount(); i++) {
+                cvx.writeInt(patient.cvxCodes[i]);
+                shotDate.writeLong(patient.shotDates[i].getTime());
+                valid.writeByte(patient.valid[i] ? 1 : 0);
+            }
+            patientCount++;
+            shotCount += patient.getShotCount();
+        }
+
+        /**
+         * Closes the columns and writes population.properties, which marks
+         * the population complete
+         *
+         * @throws IOException
+         */
+        public void close() throws IOException {
+            PopulationFiles.close(new Closeable[]{upid, empi, gender, icd9, icd10, risk, dob, shots, cvx, shotDate, valid});
+            Properties properties = new Properties();
+            properties.setProperty("version", String.valueOf(VERSION));
+            properties.setProperty("seed", String.valueOf(seed));
+            properties.setProperty("auditDate", String.valueOf(auditDate.getTime()));
+            properties.setProperty("patients", String.valueOf(patientCount));
+            properties.setProperty("shots", String.valueOf(shotCount));
+            FileOutputStream out = new FileOutputStream(new File(directory, PROPERTIES));
+            try {
+                properties.store(out, "Synthetic population, see PopulationGenerator");
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Reads the patients back in order
+     */
+    public static class Reader {
+
+        private final long seed;
+        private final Date auditDate;
+        private final long patientCount;
+        private final long shotCount;
+        private final DataInputStream upid;
+        private final DataInputStream empi;
+        private final DataInputStream gender;
+        private final DataInputStream icd9;
+        private final DataInputStream icd10;
+        private final DataInputStream risk;
+        private final DataInputStream dob;
+        private final DataInputStream shots;
+        private final DataInputStream cvx;
+        private final DataInputStream shotDate;
+        private final DataInputStream valid;
+        private int next = 0;
+
+        private Reader(File directory) throws IOException {
+            Properties properties = new Properties();
+            File file = new File(directory, PROPERTIES);
+            if (!file.exists()) {
+                throw new IOException("No population in " + directory + " (or it was not completed)");
+            }
+            FileInputStream in = new FileInputStream(file);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+            int version = Integer.parseInt(properties.getProperty("version", "0"));
+            if (version != VERSION) {
+                throw new IOException(directory + " holds a version " + version + " population, expected " + VERSION);
+            }
+            seed = Long.parseLong(properties.getProperty("seed"));
+            auditDate = new Date(Long.parseLong(properties.getProperty("auditDate")));
+            patientCount = Long.parseLong(properties.getProperty("patients"));
+            shotCount = Long.parseLong(properties.getProperty("shots"));
+            upid = input(directory, "patient.upid");
+            empi = input(directory, "patient.empi");
+            gender = input(directory, "patient.gender");
+            icd9 = input(directory, "patient.icd9");
+            icd10 = input(directory, "patient.icd10");
+            risk = input(directory, "patient.risk");
+            dob = input(directory, "patient.dob");
+            shots = input(directory, "patient.shots");
+            cvx = input(directory, "shot.cvx");
+            shotDate = input(directory, "shot.date");
+            valid = input(directory, "shot.valid");
+        }
+
+        public long getSeed() {
+            return seed;
+        }
+
+        public Date getAuditDate() {
+            return auditDate;
+        }
+
+        public long getPatientCount() {
+            return patientCount;
+        }
+
+        public long getShotCount() {
+            return shotCount;
+        }
+
+        /**
+         * The next patient
+         *
+         * @return - null after the last one
+         * @throws IOException
+         */
+        public SyntheticPatient next() throws IOException {
+            if (next >= patientCount) {
+                return null;
+            }
+            try {
+                String patientUpid = upid.readUTF();
+                String patientEmpi = empi.readUTF();
+                String patientGender = gender.readUTF();
+                String patientIcd9 = icd9.readUTF();
+                String patientIcd10 = icd10.readUTF();
+                String patientRisk = risk.readUTF();
+                Date dateOfBirth = new Date(dob.readLong());
+                int count = shots.readInt();
+                int[] cvxCodes = new int[count];
+                Date[] shotDates = new Date[count];
+                boolean[] shotValid = new boolean[count];
+                for (int i = 0; i < count; i++) {
+                    cvxCodes[i] = cvx.readInt();
+                    shotDates[i] = new Date(shotDate.readLong());
+                    shotValid[i] = valid.readByte() != 0;
+                }
+                return new SyntheticPatient(next++, patientUpid, patientEmpi, dateOfBirth, patientGender,
+                        patientIcd9, patientIcd10, patientRisk, cvxCodes, shotDates, shotValid);
+            } catch (EOFException e) {
+                throw new IOException("The population ends before patient " + next + " of " + patientCount);
+            }
+        }
+
+        public void close() throws IOException {
+            PopulationFiles.close(new Closeable[]{upid, empi, gender, icd9, icd10, risk, dob, shots, cvx, shotDate, valid});
+        }
+    }
+}
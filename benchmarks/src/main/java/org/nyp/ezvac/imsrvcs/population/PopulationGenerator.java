@@ -0,0 +1,571 @@
+/**
+ * PopulationGenerator
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * Makes up a population of patients for testing the rules, the cache and the
+ * services at scale. Patient n is generated from the seed and n alone, so the
+ * same seed gives the same population whatever its size, and any patient can
+ * be generated again without the ones before it.
+ * <p>
+ * - the ages follow a clinic mix, most patients are children
+ * <p>
+ * - the shots follow the childhood schedule per vaccine (CVX), each dose given
+ * or missed by how compliant the patient is, late by how punctual they are,
+ * and now and then before the minimum interval (an invalid shot). Some
+ * children get the DTaP-HepB-IPV combination. Flu shots come each season
+ * from 6 months on (two doses in the first season of a child under 9), some
+ * adolescents get MenB. Shots older than historyYears are not on record.
+ * <p>
+ * - a few patients (highRiskRate) have high risk diagnoses, codes of one
+ * series sampled from the datafiles risk tables, most have some other codes
+ * <p>
+ * The upids and empis are those of the load test (see upidOf and empiOf). A
+ * generator is not thread safe, give each thread its own.
+ * <p>
+ * Run as a program it writes a population to columnar files
+ * (PopulationFiles), to an H2 improd database in a file (ImprodDatabase) and
+ * to an ICE recording (EvaluationRecording, see RecordedEvaluations) - the
+ * evaluation of every patient being their shot statuses and the typical
+ * forecast - and prints the shape of the population:
+ * <p>
+ * java -Dpopulation.patients=1000000 -Dpopulation.h2=target \
+ * -cp benchmarks/target/benchmarks.jar org.nyp.ezvac.imsrvcs.population.PopulationGenerator
+ * <p>
+ * run from the project directory (the risk tables are read from datafiles).
+ * Options, as system properties:
+ * <p>
+ * population.patients (100000), population.seed (42)
+ * population.auditDate (today, yyyy-MM-dd)
+ * population.historyYears (25), population.highRiskRate (0.05)
+ * population.visitRate (0.01) - the share of patients with a visit the day
+ * after the audit date, for the visit warmup
+ * population.out (target/population) - the directory of the columnar files,
+ * none when empty
+ * population.h2 - the directory of the H2 database (improd), none when empty
+ * population.recording - the ICE recording, none when empty
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.population;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.nyp.ezvac.imsrvcs.benchmarks.ImprodDatabase;
+import org.nyp.ezvac.imsrvcs.benchmarks.RuleFixtures;
+import org.nyp.ezvac.imsrvcs.cache.CDSEvaluation;
+import org.nyp.ezvac.imsrvcs.recording.EvaluationRecording;
+import org.nyph.cdslibrary.dto.HistoryStatusDTO;
+import org.nyph.cdslibrary.dto.ImmunizationRecommendationDTO;
+
+/**
+ * @author bdasgupt
+ */
+public class PopulationGenerator {
+
+    // Age bands in years, from, to, share in percent
+    private static final int[][] AGE_BANDS = {
+        {0, 2, 22},
+        {2, 6, 14},
+        {6, 12, 12},
+        {12, 19, 12},
+        {19, 45, 20},
+        {45, 65, 12},
+        {65, 95, 8}
+    };
+
+    private static final int CVX_HEPB = 8;
+    private static final int CVX_DTAP = 20;
+    private static final int CVX_IPV = 10;
+    private static final int CVX_DTAP_HEPB_IPV = 110;
+    private static final int CVX_FLU = 88;
+    private static final int CVX_MENB = 163;
+
+    // cvx, the recommended ages of the doses in days, the minimum interval between doses in days
+    private static final Object[][] SCHEDULE = {
+        {CVX_HEPB, new int[]{0, 30, 183}, 28},
+        {CVX_DTAP, new int[]{61, 122, 183, 456, 1461}, 28},
+        {49, new int[]{61, 122, 365}, 28},
+        {CVX_IPV, new int[]{61, 122, 183, 1461}, 28},
+        {133, new int[]{61, 122, 183, 365}, 28},
+        {3, new int[]{365, 1461}, 28},
+        {21, new int[]{365, 1461}, 84},
+        {83, new int[]{365, 548}, 183},
+        {CVX_MENB, new int[]{5844, 5874}, 28}
+    };
+
+    // Common diagnoses, none of them high risk
+    private static final String[] OTHER_ICD9 = {"V20.2", "465.9", "401.9", "272.4", "300.02", "724.2", "V04.81", "382.9"};
+    private static final String[] OTHER_ICD10 = {"Z00.129", "J06.9", "I10", "E78.5", "F41.1", "M54.5", "Z23", "H66.90"};
+
+    // The share of children given the combination, of adolescents given MenB, of shots given too early
+    private static final double COMBO_RATE = 0.4;
+    private static final double MENB_RATE = 0.3;
+    private static final double EARLY_RATE = 0.02;
+
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    private final long seed;
+    private final Date auditDate;
+    private final List<String> riskSeries = new ArrayList<String>();
+    private final Map<String, List<String>> icd9RiskCodes;
+    private final Map<String, List<String>> icd10RiskCodes;
+    private final List<String> otherIcd9 = new ArrayList<String>();
+    private final List<String> otherIcd10 = new ArrayList<String>();
+    private final Calendar calendar = new GregorianCalendar();
+    private int historyYears = 25;
+    private double highRiskRate = 0.05;
+
+    /**
+     * @param seed
+     * @param auditDate - the day the population is as of, no shot is later
+     * @param icd9RiskCodes - the high risk codes by series, see
+     * RuleFixtures.highRiskCodes
+     * @param icd10RiskCodes
+     */
+    public PopulationGenerator(long seed, Date auditDate, Map<String, List<String>> icd9RiskCodes,
+            Map<String, List<String>> icd10RiskCodes) {
+        this.seed = seed;
+        this.auditDate = startOfDay(auditDate);
+        this.icd9RiskCodes = new TreeMap<String, List<String>>(icd9RiskCodes);
+        this.icd10RiskCodes = new TreeMap<String, List<String>>(icd10RiskCodes);
+        Set<String> series = new HashSet<String>(icd9RiskCodes.keySet());
+        series.retainAll(icd10RiskCodes.keySet());
+        riskSeries.addAll(series);
+        Collections.sort(riskSeries);
+        Set<String> riskCodes = new HashSet<String>();
+        for (List<String> codes : icd9RiskCodes.values()) {
+            riskCodes.addAll(codes);
+        }
+        for (List<String> codes : icd10RiskCodes.values()) {
+            riskCodes.addAll(codes);
+        }
+        for (String code : OTHER_ICD9) {
+            if (!riskCodes.contains(code)) {
+                otherIcd9.add(code);
+            }
+        }
+        for (String code : OTHER_ICD10) {
+            if (!riskCodes.contains(code)) {
+                otherIcd10.add(code);
+            }
+        }
+    }
+
+    public Date getAuditDate() {
+        return auditDate;
+    }
+
+    /**
+     * How many years back the shots are on record, longer histories for
+     * adults with more of it
+     *
+     * @param historyYears
+     */
+    public void setHistoryYears(int historyYears) {
+        this.historyYears = historyYears;
+    }
+
+    public void setHighRiskRate(double highRiskRate) {
+        this.highRiskRate = highRiskRate;
+    }
+
+    public static String upidOf(int patient) {
+        return String.valueOf(3000000 + patient);
+    }
+
+    public static String empiOf(int patient) {
+        return String.valueOf(2000000000L + patient);
+    }
+
+    /**
+     * Patient n of the population
+     *
+     * @param index
+     * @return
+     */
+    public SyntheticPatient generate(int index) {
+        Random random = new Random(mix(seed + index * 0x9E3779B97F4A7C15L));
+
+        int[] band = pickBand(random);
+        long ageDays = (long) (365.25 * band[0]) + (long) (random.nextDouble() * 365.25 * (band[1] - band[0]));
+        Date dateOfBirth = addDays(auditDate, -ageDays);
+        String gender = (random.nextInt(100) < 51) ? "F" : "M";
+
+        // How many of the doses the patient gets, and how late
+        double compliance = 1 - 0.4 * square(random.nextDouble());
+        double meanDelayDays = 5 + 60 * square(random.nextDouble());
+        boolean combo = random.nextDouble() < COMBO_RATE;
+        double fluPropensity = random.nextDouble();
+
+        String riskSeriesName = null;
+        if (!riskSeries.isEmpty() && random.nextDouble() < highRiskRate) {
+            riskSeriesName = riskSeries.get(random.nextInt(riskSeries.size()));
+        }
+        boolean menB = ageDays >= 16 * 365 && (random.nextDouble() < MENB_RATE || "MENB".equals(riskSeriesName));
+
+        Date onRecordFrom = addDays(auditDate, -(long) (365.25 * historyYears));
+        List<Shot> shots = new ArrayList<Shot>();
+        for (Object[] vaccine : SCHEDULE) {
+            int cvx = (Integer) vaccine[0];
+            if (cvx == CVX_MENB && !menB) {
+                continue;
+            }
+            int[] ages = (int[]) vaccine[1];
+            int minInterval = (Integer) vaccine[2];
+            Date previous = null;
+            for (int dose = 0; dose < ages.length; dose++) {
+                if (ages[dose] > ageDays || random.nextDouble() > compliance) {
+                    continue;
+                }
+                int doseCvx = cvx;
+                if (combo && dose < 3 && cvx == CVX_DTAP) {
+                    doseCvx = CVX_DTAP_HEPB_IPV;
+                } else if (combo && ((dose < 3 && cvx == CVX_IPV) || (dose > 0 && cvx == CVX_HEPB))) {
+                    // given in the combination
+                    continue;
+                }
+                Date shotDate = addDays(dateOfBirth, ages[dose] + (long) exponential(random, meanDelayDays));
+                boolean valid = true;
+                if (previous != null) {
+                    Date earliest = addDays(previous, minInterval);
+                    if (random.nextDouble() < EARLY_RATE) {
+                        shotDate = addDays(previous, 1 + random.nextInt(minInterval - 1));
+                        valid = false;
+                    } else if (shotDate.before(earliest)) {
+                        shotDate = earliest;
+                    }
+                }
+                if (!shotDate.before(auditDate)) {
+                    break;
+                }
+                shots.add(new Shot(doseCvx, shotDate, valid));
+                if (valid) {
+                    previous = shotDate;
+                }
+            }
+        }
+        addFluShots(random, dateOfBirth, ageDays, fluPropensity, meanDelayDays, shots);
+
+        List<Shot> onRecord = new ArrayList<Shot>(shots.size());
+        for (Shot shot : shots) {
+            if (!shot.date.before(onRecordFrom)) {
+                onRecord.add(shot);
+            }
+        }
+        Shot[] sorted = onRecord.toArray(new Shot[onRecord.size()]);
+        Arrays.sort(sorted);
+        int[] cvxCodes = new int[sorted.length];
+        Date[] shotDates = new Date[sorted.length];
+        boolean[] valid = new boolean[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            cvxCodes[i] = sorted[i].cvx;
+            shotDates[i] = sorted[i].date;
+            valid[i] = sorted[i].valid;
+        }
+
+        // most high risk codes come as icd10 codes
+        boolean riskAsIcd10 = random.nextInt(5) != 0;
+        String icd9 = diagnoses(random, otherIcd9, icd9RiskCodes, riskAsIcd10 ? null : riskSeriesName);
+        String icd10 = diagnoses(random, otherIcd10, icd10RiskCodes, riskAsIcd10 ? riskSeriesName : null);
+        return new SyntheticPatient(index, upidOf(index), empiOf(index), dateOfBirth, gender, icd9, icd10,
+                (riskSeriesName == null) ? "" : riskSeriesName, cvxCodes, shotDates, valid);
+    }
+
+    // One flu shot a season (October to March), two in the first season of a child under 9
+    private void addFluShots(Random random, Date dateOfBirth, long ageDays, double propensity, double meanDelayDays,
+            List<Shot> shots) {
+        double uptake;
+        if (ageDays < 365 * 5) {
+            uptake = 0.6;
+        } else if (ageDays < 365 * 18) {
+            uptake = 0.45;
+        } else if (ageDays < 365 * 65) {
+            uptake = 0.35;
+        } else {
+            uptake = 0.7;
+        }
+        uptake = Math.min(0.95, uptake * (0.5 + propensity));
+        Date eligible = addDays(dateOfBirth, 183);
+        calendar.setTime(eligible);
+        int firstYear = calendar.get(Calendar.YEAR) - 1;
+        calendar.setTime(auditDate);
+        int lastYear = calendar.get(Calendar.YEAR);
+        boolean first = true;
+        for (int year = firstYear; year <= lastYear; year++) {
+            if (random.nextDouble() > uptake) {
+                continue;
+            }
+            calendar.clear();
+            calendar.set(year, Calendar.OCTOBER, 1);
+            Date start = calendar.getTime();
+            Date shotDate = addDays(start, (long) Math.min(180, exponential(random, 10 + meanDelayDays)));
+            if (shotDate.before(eligible)) {
+                shotDate = eligible;
+            }
+            if (!shotDate.before(auditDate)) {
+                break;
+            }
+            shots.add(new Shot(CVX_FLU, shotDate, true));
+            if (first && shotDate.getTime() - dateOfBirth.getTime() < 9 * 365 * DAY) {
+                Date second = addDays(shotDate, 28 + (long) exponential(random, 7));
+                if (second.before(auditDate)) {
+                    shots.add(new Shot(CVX_FLU, second, true));
+                }
+            }
+            first = false;
+        }
+    }
+
+    // A few other codes, and one or two of the series' high risk codes when riskSeries is given
+    private static String diagnoses(Random random, List<String> other, Map<String, List<String>> riskCodes, String riskSeries) {
+        StringBuilder sb = new StringBuilder();
+        int count = other.isEmpty() ? 0 : random.nextInt(4);
+        for (int i = 0; i < count; i++) {
+            append(sb, other.get(random.nextInt(other.size())));
+        }
+        List<String> codes = (riskSeries == null) ? null : riskCodes.get(riskSeries);
+        if (codes != null && !codes.isEmpty()) {
+            int hits = 1 + random.nextInt(2);
+            for (int i = 0; i < hits; i++) {
+                append(sb, codes.get(random.nextInt(codes.size())));
+            }
+        }
+        return sb.toString();
+    }
+
+    // Each code once
+    private static void append(StringBuilder sb, String code) {
+        if (("|" + sb + "|").contains("|" + code + "|")) {
+            return;
+        }
+        if (sb.length() > 0) {
+            sb.append('|');
+        }
+        sb.append(code);
+    }
+
+    private static int[] pickBand(Random random) {
+        int r = random.nextInt(100);
+        for (int[] band : AGE_BANDS) {
+            if (r < band[2]) {
+                return band;
+            }
+            r -= band[2];
+        }
+        return AGE_BANDS[AGE_BANDS.length - 1];
+    }
+
+    /**
+     * The age bands, for the summary
+     *
+     * @return - e.g. 0-2
+     */
+    public static List<String> ageBands() {
+        List<String> bands = new ArrayList<String>();
+        for (int[] band : AGE_BANDS) {
+            bands.add(band[0] + "-" + band[1]);
+        }
+        return bands;
+    }
+
+    /**
+     * The age band of a date of birth on the audit date
+     *
+     * @param dateOfBirth
+     * @return - one of ageBands()
+     */
+    public String ageBandOf(Date dateOfBirth) {
+        double years = (auditDate.getTime() - dateOfBirth.getTime()) / (365.25 * DAY);
+        int[] band = AGE_BANDS[AGE_BANDS.length - 1];
+        for (int i = AGE_BANDS.length - 1; i >= 0; i--) {
+            if (years >= AGE_BANDS[i][0]) {
+                band = AGE_BANDS[i];
+                break;
+            }
+        }
+        return band[0] + "-" + band[1];
+    }
+
+    /**
+     * The evaluation ICE would make of the patient: the statuses of the shots
+     * and the typical forecast
+     *
+     * @param patient
+     * @param ids - the immunization ids, as ImprodDatabase.addPatient gave
+     * them
+     * @return
+     */
+    public CDSEvaluation evaluationOf(SyntheticPatient patient, List<Long> ids) {
+        List<HistoryStatusDTO> history = ImprodDatabase.statusHistory(ids, patient.cvxCodes, patient.valid);
+        List<ImmunizationRecommendationDTO> recommendations = new ArrayList<ImmunizationRecommendationDTO>();
+        for (String[] forecast : RuleFixtures.typicalForecast()) {
+            String[] status = forecast[1].split(" - ");
+            ImmunizationRecommendationDTO r = new ImmunizationRecommendationDTO();
+            r.setEvaluatonDescription("Immunization Evaluation Focus (" + forecast[0] + ")");
+            r.setRecommendationCode(status[0]);
+            r.setInterpretationCode(status[1]);
+            r.setRecommendatoinString(status[0]);
+            if (status[0].equals("RECOMMENDED")) {
+                r.setProposedDate(auditDate);
+            }
+            recommendations.add(r);
+        }
+        return new CDSEvaluation(patient.upid, auditDate, history, history, recommendations, patient.dateOfBirth,
+                patient.gender);
+    }
+
+    private static double exponential(Random random, double mean) {
+        return -mean * Math.log(1 - random.nextDouble());
+    }
+
+    private static double square(double x) {
+        return x * x;
+    }
+
+    // The finalizer of MurmurHash3, so that neighbouring patients get unrelated random numbers
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+
+    // Generating takes many of these, so the calendar is kept
+    private Date addDays(Date date, long days) {
+        calendar.setTime(date);
+        calendar.add(Calendar.DAY_OF_YEAR, (int) days);
+        return calendar.getTime();
+    }
+
+    private static Date startOfDay(Date date) {
+        Calendar cal = new GregorianCalendar();
+        cal.setTime(date);
+        cal.set(Calendar.HOUR_OF_DAY, 0);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        return cal.getTime();
+    }
+
+    /**
+     * A shot, ordered by date (and vaccine on the same day)
+     */
+    private static final class Shot implements Comparable<Shot> {
+
+        final int cvx;
+        final Date date;
+        final boolean valid;
+
+        Shot(int cvx, Date date, boolean valid) {
+            this.cvx = cvx;
+            this.date = date;
+            this.valid = valid;
+        }
+
+        public int compareTo(Shot other) {
+            int c = date.compareTo(other.date);
+            return (c != 0) ? c : (cvx - other.cvx);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int patients = Integer.getInteger("population.patients", 100000);
+        long seed = Long.getLong("population.seed", 42L);
+        String auditDateText = System.getProperty("population.auditDate", "");
+        Date auditDate = (auditDateText.length() == 0) ? new Date() : new SimpleDateFormat("yyyy-MM-dd").parse(auditDateText);
+        double visitRate = Double.parseDouble(System.getProperty("population.visitRate", "0.01"));
+        String out = System.getProperty("population.out", "target/population");
+        String h2 = System.getProperty("population.h2", "");
+        String recordingFile = System.getProperty("population.recording", "");
+
+        RuleFixtures.loadICDValues();
+        PopulationGenerator generator = new PopulationGenerator(seed, auditDate,
+                RuleFixtures.highRiskCodes(false), RuleFixtures.highRiskCodes(true));
+        generator.setHistoryYears(Integer.getInteger("population.historyYears", 25));
+        generator.setHighRiskRate(Double.parseDouble(System.getProperty("population.highRiskRate", "0.05")));
+
+        PopulationFiles.Writer files = (out.length() == 0) ? null : PopulationFiles.create(new File(out), seed, generator.getAuditDate());
+        ImprodDatabase db = null;
+        if (h2.length() > 0) {
+            new File(h2).mkdirs();
+            db = new ImprodDatabase(new File(h2), "improd");
+            db.getConnection().setAutoCommit(false);
+        }
+        EvaluationRecording recording = (recordingFile.length() == 0) ? null : EvaluationRecording.open(new File(recordingFile));
+
+        Date tomorrow = generator.addDays(generator.getAuditDate(), 1);
+        Random visits = new Random(seed);
+        PopulationSummary summary = new PopulationSummary(generator);
+        long nextImmunizationId = ImprodDatabase.FIRST_IMMUNIZATION_ID;
+        long start = System.currentTimeMillis();
+        try {
+            for (int i = 0; i < patients; i++) {
+                SyntheticPatient patient = generator.generate(i);
+                summary.add(patient);
+                if (files != null) {
+                    files.write(patient);
+                }
+                List<Long> ids;
+                if (db != null) {
+                    ids = db.addPatient(patient.upid, patient.empi, patient.dateOfBirth, patient.gender,
+                            patient.cvxCodes, patient.shotDates, generator.getAuditDate());
+                    if (visits.nextDouble() < visitRate) {
+                        db.addVisit(patient.upid, tomorrow);
+                    }
+                    if (i % 10000 == 9999) {
+                        db.getConnection().commit();
+                    }
+                } else {
+                    // the ids the database would have given
+                    ids = new ArrayList<Long>(patient.getShotCount());
+                    for (int j = 0; j < patient.getShotCount(); j++) {
+                        ids.add(nextImmunizationId++);
+                    }
+                }
+                if (recording != null) {
+                    recording.append(generator.evaluationOf(patient, ids));
+                }
+                if (i % 100000 == 99999) {
+                    System.out.println((i + 1) + " patients, " + (System.currentTimeMillis() - start) + " ms");
+                }
+            }
+        } finally {
+            if (files != null) {
+                files.close();
+            }
+            if (db != null) {
+                db.getConnection().commit();
+                db.close();
+            }
+            if (recording != null) {
+                recording.close();
+            }
+        }
+        System.out.println("Generated " + patients + " patients (seed " + seed + ") in "
+                + (System.currentTimeMillis() - start) + " ms");
+        if (files != null) {
+            System.out.println("Columnar files: " + out);
+        }
+        if (db != null) {
+            System.out.println("H2 database: " + ImprodDatabase.fileUrl(new File(h2), "improd", false));
+        }
+        if (recording != null) {
+            System.out.println("ICE recording: " + recordingFile);
+        }
+        summary.print(System.out);
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * PopulationSummary
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * The shape of a synthetic population: the patients by age band, the shots
+ * per patient (the history lengths the rules and the mapping see), the shots
+ * per vaccine and the high risk patients per series.
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.population;
+
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * @author bdasgupt
+ */
+public class PopulationSummary {
+
+    // Patients with more shots are counted in the last bucket
+    private static final int MAX_SHOTS = 500;
+
+    private final PopulationGenerator generator;
+    private final Map<String, long[]> byAgeBand = new LinkedHashMap<String, long[]>();
+    private final Map<Integer, long[]> byVaccine = new TreeMap<Integer, long[]>();
+    private final Map<String, long[]> byRiskSeries = new TreeMap<String, long[]>();
+    private final long[] shotsPerPatient = new long[MAX_SHOTS + 1];
+    private long patients = 0;
+    private long shots = 0;
+    private long invalidShots = 0;
+    private int maxShots = 0;
+
+    public PopulationSummary(PopulationGenerator generator) {
+        this.generator = generator;
+        for (String band : PopulationGenerator.ageBands()) {
+            // patients, shots
+            byAgeBand.put(band, new long[2]);
+        }
+    }
+
+    public void add(SyntheticPatient patient) {
+        int count = patient.getShotCount();
+        patients++;
+        shots += count;
+        maxShots = Math.max(maxShots, count);
+        shotsPerPatient[Math.min(count, MAX_SHOTS)]++;
+        long[] band = byAgeBand.get(generator.ageBandOf(patient.dateOfBirth));
+        band[0]++;
+        band[1] += count;
+        for (int i = 0; i < count; i++) {
+            counter(byVaccine, patient.cvxCodes[i])[0]++;
+            if (!patient.valid[i]) {
+                invalidShots++;
+            }
+        }
+        if (patient.riskSeries.length() > 0) {
+            counter(byRiskSeries, patient.riskSeries)[0]++;
+        }
+    }
+
+    private static <K> long[] counter(Map<K, long[]> counters, K key) {
+        long[] counter = counters.get(key);
+        if (counter == null) {
+            counter = new long[1];
+            counters.put(key, counter);
+        }
+        return counter;
+    }
+
+    /**
+     * The number of shots at or below which the given share of the patients
+     * are
+     *
+     * @param q - e.g. 0.99
+     * @return
+     */
+    public int getShotsQuantile(double q) {
+        long rank = (long) Math.ceil(q * patients);
+        long seen = 0;
+        for (int n = 0; n <= MAX_SHOTS; n++) {
+            seen += shotsPerPatient[n];
+            if (seen >= rank && seen > 0) {
+                return n;
+            }
+        }
+        return maxShots;
+    }
+
+    public void print(PrintStream out) {
+        out.println(String.format("%d patients, %d shots (%.1f a patient, %d invalid)", patients, shots,
+                (patients == 0) ? 0.0 : (double) shots / patients, invalidShots));
+        out.println(String.format("Shots a patient: p50 %d, p90 %d, p99 %d, max %d", getShotsQuantile(0.5),
+                getShotsQuantile(0.9), getShotsQuantile(0.99), maxShots));
+        out.println(String.format("%-8s %10s %8s %10s", "age", "patients", "%", "shots/pt"));
+        for (Map.Entry<String, long[]> e : byAgeBand.entrySet()) {
+            long[] band = e.getValue();
+            out.println(String.format("%-8s %10d %8.1f %10.1f", e.getKey(), band[0],
+                    (patients == 0) ? 0.0 : 100.0 * band[0] / patients, (band[0] == 0) ? 0.0 : (double) band[1] / band[0]));
+        }
+        StringBuilder vaccines = new StringBuilder("Shots by cvx:");
+        for (Map.Entry<Integer, long[]> e : byVaccine.entrySet()) {
+            vaccines.append(' ').append(e.getKey()).append('=').append(e.getValue()[0]);
+        }
+        out.println(vaccines);
+        StringBuilder risk = new StringBuilder("High risk patients:");
+        for (Map.Entry<String, long[]> e : byRiskSeries.entrySet()) {
+            risk.append(' ').append(e.getKey()).append('=').append(e.getValue()[0]);
+        }
+        out.println(risk);
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * SyntheticPatient
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * A patient made up by PopulationGenerator: the demographics, the diagnoses
+ * (as the services get them, code|code|...) and the immunizations, oldest
+ * first.
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.population;
+
+import java.util.Date;
+
+/**
+ * @author bdasgupt
+ */
+public class SyntheticPatient {
+
+    public final int index;
+    public final String upid;
+    public final String empi;
+    public final Date dateOfBirth;
+    public final String gender;
+    public final String icd9;
+    public final String icd10;
+    // the series of the high risk diagnoses, empty when none
+    public final String riskSeries;
+    public final int[] cvxCodes;
+    public final Date[] shotDates;
+    // false for a shot given before the minimum interval, which ICE does not count
+    public final boolean[] valid;
+
+    public SyntheticPatient(int index, String upid, String empi, Date dateOfBirth, String gender, String icd9,
+            String icd10, String riskSeries, int[] cvxCodes, Date[] shotDates, boolean[] valid) {
+        this.index = index;
+        this.upid = upid;
+        this.empi = empi;
+        this.dateOfBirth = dateOfBirth;
+        this.gender = gender;
+        this.icd9 = icd9;
+        this.icd10 = icd10;
+        this.riskSeries = riskSeries;
+        this.cvxCodes = cvxCodes;
+        this.shotDates = shotDates;
+        this.valid = valid;
+    }
+
+    public int getShotCount() {
+        return cvxCodes.length;
+    }
+
+    @Override
+    public String toString() {
+        return "{upid:" + upid + ", dob:" + dateOfBirth + ", gender:" + gender + ", shots:" + cvxCodes.length
+                + ", icd9:\"" + icd9 + "\", icd10:\"" + icd10 + "\"}";
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * FhirEncodingBenchmark
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * Encoding the responses of the services with the HAPI parsers, in JSON and
+ * XML, with and without pretty print (Services turns it on by default):
+ * - history - the searchset Bundle of an Immunization history with the shot
+ * statuses merged in, as returned by Immunization?identifier=...&schedule=Y
+ * - recommendation - an ImmunizationRecommendation of a typical forecast, as
+ * the pipeline maps it
+ * <p>
+ * The ResponseHighlighterInterceptor only renders for browsers (an HTML
+ * response), so it is not part of what the clients of the services pay for.
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.providers;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.dstu2.composite.CodeableConceptDt;
+import ca.uhn.fhir.model.dstu2.composite.ResourceReferenceDt;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.Immunization;
+import ca.uhn.fhir.model.dstu2.resource.ImmunizationRecommendation;
+import ca.uhn.fhir.model.dstu2.resource.ImmunizationRecommendation.Recommendation;
+import ca.uhn.fhir.model.dstu2.resource.ImmunizationRecommendation.RecommendationDateCriterion;
+import ca.uhn.fhir.model.dstu2.resource.ImmunizationRecommendation.RecommendationProtocol;
+import ca.uhn.fhir.model.dstu2.valueset.BundleTypeEnum;
+import ca.uhn.fhir.model.primitive.DateTimeDt;
+import ca.uhn.fhir.parser.IParser;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.nyp.ezvac.imsrvcs.benchmarks.ImprodDatabase;
+import org.nyp.ezvac.imsrvcs.benchmarks.RuleFixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * @author bdasgupt
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FhirEncodingBenchmark {
+
+    private static final String UPID = "900000002";
+
+    @Param({"json", "xml"})
+    public String format;
+
+    @Param({"true", "false"})
+    public boolean prettyPrint;
+
+    @Param({"history", "recommendation"})
+    public String resource;
+
+    // Immunizations in the history
+    @Param({"50"})
+    public int shots;
+
+    private IParser parser;
+    private IResource encoded;
+
+    @Setup
+    public void setup() throws Exception {
+        RuleFixtures.quiet();
+        FhirContext ctx = FhirContext.forDstu2();
+        parser = "xml".equals(format) ? ctx.newXmlParser() : ctx.newJsonParser();
+        parser.setPrettyPrint(prettyPrint);
+
+        Date auditDate = RuleFixtures.auditDate();
+        if ("history".equals(resource)) {
+            ImprodDatabase db = new ImprodDatabase("encoding");
+            try {
+                List<Long> ids = db.addPatient(UPID, "2000000002", shots, auditDate);
+                ImmunizationResourceProvider provider = new ImmunizationResourceProvider();
+                List<Immunization> history = provider.mergeShotStatuses(
+                        provider.getImmunizationRecords(db.getConnection(), null, UPID, "upid", null),
+                        ImprodDatabase.statusHistory(ids));
+                encoded = searchset(history);
+            } finally {
+                db.close();
+            }
+        } else {
+            encoded = recommendation(auditDate);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        RuleFixtures.loud();
+    }
+
+    @Benchmark
+    public String encode() {
+        return parser.encodeResourceToString(encoded);
+    }
+
+    private static Bundle searchset(List<Immunization> history) {
+        Bundle bundle = new Bundle();
+        bundle.setType(BundleTypeEnum.SEARCH_RESULTS);
+        bundle.setTotal(history.size());
+        for (Immunization im : history) {
+            bundle.addEntry().setFullUrl("http://localhost:8080/imsrvcs/services/Immunization/" + im.getId().getIdPart())
+                    .setResource(im);
+        }
+        return bundle;
+    }
+
+    /**
+     * An ImmunizationRecommendation as RecommendationPipeline.mapRecommendations
+     * builds it
+     *
+     * @param auditDate
+     * @return
+     */
+    private static ImmunizationRecommendation recommendation(Date auditDate) {
+        ImmunizationRecommendation im = new ImmunizationRecommendation();
+        ResourceReferenceDt patient = new ResourceReferenceDt();
+        patient.setReference("Patient/" + UPID);
+        im.setPatient(patient);
+        String supportingImmunizationLink = "Immunization?identifier=" + UPID + "&schedule=Y&auditdate="
+                + new SimpleDateFormat("yyyyMMdd").format(auditDate);
+        String[][] forecast = RuleFixtures.typicalForecast();
+        for (int i = 0; i < forecast.length; i++) {
+            Recommendation r = new Recommendation();
+            r.setDate(new DateTimeDt(auditDate));
+
+            CodeableConceptDt groupName = new CodeableConceptDt();
+            groupName.setText(forecast[i][0]);
+            r.setVaccineCode(groupName);
+
+            CodeableConceptDt recommendationName = new CodeableConceptDt();
+            recommendationName.setText(forecast[i][1].substring(0, forecast[i][1].indexOf(' ')));
+            r.setForecastStatus(recommendationName);
+
+            RecommendationProtocol rp = new RecommendationProtocol();
+            rp.setSeries(forecast[i][0]);
+            rp.setDescription(forecast[i][1]);
+            r.setProtocol(rp);
+
+            RecommendationDateCriterion rdc = new RecommendationDateCriterion();
+            rdc.setValue(new DateTimeDt(RuleFixtures.daysBefore(auditDate, -30 * i)));
+            r.addDateCriterion(rdc);
+
+            ResourceReferenceDt srr = new ResourceReferenceDt();
+            srr.setReference(supportingImmunizationLink);
+            List<ResourceReferenceDt> supporting = new ArrayList<ResourceReferenceDt>();
+            supporting.add(srr);
+            r.setSupportingImmunization(supporting);
+
+            im.addRecommendation(r);
+        }
+        return im;
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * ImmunizationMappingBenchmark
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * The Immunization history lookup (the query and the mapping of its rows into
+ * FHIR Immunizations, as getImmunizationRecordsFromDatabase does) against the
+ * in-memory H2 copy of improd, and computeShotStatuses on the result with the
+ * evaluation already in the cache (as after a recommendation request), for
+ * patients with a growing number of immunizations.
+ * <p>
+ * In the providers package (of this module) for the package level lookup and
+ * shot status methods of ImmunizationResourceProvider.
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.providers;
+
+import ca.uhn.fhir.model.dstu2.resource.Immunization;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.nyp.ezvac.imsrvcs.benchmarks.ImprodDatabase;
+import org.nyp.ezvac.imsrvcs.benchmarks.RuleFixtures;
+import org.nyp.ezvac.imsrvcs.cache.CDSEvaluation;
+import org.nyp.ezvac.imsrvcs.cache.EvaluationCache;
+import org.nyp.ezvac.imsrvcs.cache.EvaluationLoader;
+import org.nyph.cdslibrary.dto.HistoryStatusDTO;
+import org.nyph.cdslibrary.dto.ImmunizationRecommendationDTO;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * @author bdasgupt
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImmunizationMappingBenchmark {
+
+    private static final String UPID = "900000001";
+
+    @Param({"10", "50", "200"})
+    public int shots;
+
+    private ImprodDatabase db;
+    private ImmunizationResourceProvider provider;
+    private Date auditDate;
+
+    @Setup
+    public void setup() throws Exception {
+        RuleFixtures.quiet();
+        auditDate = RuleFixtures.auditDate();
+        db = new ImprodDatabase("improd" + shots);
+        List<Long> ids = db.addPatient(UPID, "2000000001", shots, auditDate);
+        provider = new ImmunizationResourceProvider();
+
+        // The patient has just been evaluated, computeShotStatuses finds it in the cache
+        final CDSEvaluation evaluation = new CDSEvaluation(UPID, auditDate, ImprodDatabase.statusHistory(ids),
+                new ArrayList<HistoryStatusDTO>(), new ArrayList<ImmunizationRecommendationDTO>(),
+                RuleFixtures.yearsBefore(auditDate, 20), "F");
+        EvaluationCache.getInstance().getEvaluation(UPID, auditDate, new EvaluationLoader() {
+            public CDSEvaluation load(String upid, Date auditDate) throws Exception {
+                return evaluation;
+            }
+        }, Long.MAX_VALUE);
+    }
+
+    /**
+     * computeShotStatuses adds to the immunizations it is given, so every call
+     * gets a freshly mapped history
+     */
+    @State(Scope.Thread)
+    public static class History {
+
+        List<Immunization> immunizations;
+
+        @Setup(Level.Invocation)
+        public void load(ImmunizationMappingBenchmark benchmark) throws Exception {
+            immunizations = benchmark.provider.getImmunizationRecords(benchmark.db.getConnection(), null, UPID, "upid", null);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        EvaluationCache.getInstance().invalidate(UPID);
+        db.close();
+        RuleFixtures.loud();
+    }
+
+    @Benchmark
+    public List<Immunization> queryAndMap() throws Exception {
+        return provider.getImmunizationRecords(db.getConnection(), null, UPID, "upid", null);
+    }
+
+    @Benchmark
+    public List<Immunization> computeShotStatuses(History history) throws Exception {
+        return provider.computeShotStatuses(UPID, auditDate, history.immunizations);
+    }
+}
@@ -0,0 +1,159 @@
+-- The improd tables the Immunization, Patient and ImmunizationRecommendation lookups join, for an in-memory H2
+-- database (MODE=DB2).
+--
+-- Only the columns the services read are kept.  vaccine_date and vaccine_expdate are held as ISO (yyyy-mm-dd)
+-- strings: the lookups select TO_CHAR(vaccine_date,'MM/DD/YYYY') and read it back with getDate(), which the DB2
+-- driver parses but H2 does not.  H2's TO_CHAR passes a string through as is, so getDate() reads the ISO date.
+
+CREATE SCHEMA IF NOT EXISTS improd;
+
+CREATE TABLE improd.immunizationmix_table (
+    immunization_id BIGINT PRIMARY KEY,
+    vaccine_mixcode INTEGER,
+    visit_id BIGINT,
+    vaccine_date VARCHAR(10),
+    administrator INTEGER,
+    inject_site INTEGER,
+    datasource_id INTEGER,
+    attending_phys INTEGER,
+    provider_id INTEGER,
+    upid VARCHAR(20),
+    display CHAR(1),
+    vis_date DATE,
+    measurement_date DATE,
+    measurement1 VARCHAR(20),
+    measurement2 VARCHAR(20),
+    system_id INTEGER,
+    dosage VARCHAR(20),
+    uom VARCHAR(20),
+    refusal CHAR(1),
+    update_time TIMESTAMP
+);
+
+CREATE TABLE improd.immunizationcomp_table (
+    immunization_id BIGINT,
+    vaccine_medcode INTEGER,
+    vaccine_lotnum VARCHAR(40),
+    vaccine_manufacturer VARCHAR(10),
+    vaccine_expdate VARCHAR(10)
+);
+
+CREATE TABLE improd.visit_table (
+    visit_id BIGINT PRIMARY KEY,
+    facilitysite_id INTEGER,
+    upid VARCHAR(20),
+    visit_date DATE
+);
+
+CREATE TABLE improd.facilitysite_table (
+    facilitysite_id INTEGER PRIMARY KEY,
+    facility_name VARCHAR(80)
+);
+
+CREATE TABLE improd.jsp_vaccine_display_group (
+    vaccine_medcode INTEGER,
+    vaccine_display_group VARCHAR(40),
+    display_order INTEGER
+);
+
+CREATE TABLE improd.systems_table (
+    system_id INTEGER PRIMARY KEY,
+    system_name VARCHAR(40)
+);
+
+CREATE TABLE improd.mpi_table (
+    upid VARCHAR(20) PRIMARY KEY,
+    empi VARCHAR(20),
+    localpatient_id VARCHAR(20),
+    orgsite_id INTEGER,
+    cir_num VARCHAR(20),
+    source VARCHAR(10),
+    cir_sync_time TIMESTAMP
+);
+
+CREATE TABLE improd.patient_table (
+    upid VARCHAR(20) PRIMARY KEY,
+    firstname VARCHAR(40),
+    midname VARCHAR(40),
+    lastname VARCHAR(40),
+    aka_firstname VARCHAR(40),
+    aka_lastname VARCHAR(40),
+    dob DATE,
+    ssn VARCHAR(11),
+    sex CHAR(1),
+    primary_lang VARCHAR(20),
+    secondary_lang VARCHAR(20),
+    address1 VARCHAR(80),
+    address2 VARCHAR(80),
+    city VARCHAR(40),
+    state CHAR(2),
+    zip VARCHAR(10),
+    primary_tel VARCHAR(20),
+    secondary_tel VARCHAR(20),
+    mother_firstname VARCHAR(40),
+    mother_midname VARCHAR(40),
+    mother_lastname VARCHAR(40),
+    mother_maidenname VARCHAR(40),
+    mother_dob DATE,
+    mother_ssn VARCHAR(11),
+    father_firstname VARCHAR(40),
+    father_midname VARCHAR(40),
+    father_lastname VARCHAR(40),
+    father_dob DATE,
+    father_ssn VARCHAR(11),
+    birth_name VARCHAR(80),
+    race VARCHAR(20),
+    religion VARCHAR(20),
+    vfc_status CHAR(1),
+    email VARCHAR(80),
+    privacy_indicator CHAR(1),
+    privacy_indicator_dtm TIMESTAMP,
+    patient_status CHAR(1)
+);
+
+CREATE TABLE improd.manufacturer_table (
+    manufacturer_id VARCHAR(10) PRIMARY KEY,
+    manufacturer_name VARCHAR(80)
+);
+
+CREATE TABLE improd.vaccinemix_table (
+    vaccine_mixcode INTEGER,
+    vaccine_mixdesc VARCHAR(80)
+);
+
+CREATE TABLE improd.vaccinemapper_table (
+    vaccine_medcode INTEGER,
+    vaccine_desc VARCHAR(80),
+    doh_code INTEGER
+);
+
+CREATE TABLE improd.bodysite_table (
+    body_id INTEGER PRIMARY KEY,
+    body_desc VARCHAR(40)
+);
+
+CREATE TABLE improd.provider_table (
+    provider_id INTEGER PRIMARY KEY,
+    provider_lastname VARCHAR(40),
+    provider_firstname VARCHAR(40)
+);
+
+CREATE TABLE improd.datasource_table (
+    datasource_id INTEGER PRIMARY KEY,
+    datasource_text VARCHAR(40)
+);
+
+CREATE INDEX improd.im_upid ON improd.immunizationmix_table (upid, vaccine_date, immunization_id);
+CREATE INDEX improd.mpi_empi ON improd.mpi_table (empi);
+CREATE INDEX improd.ic_id ON improd.immunizationcomp_table (immunization_id);
+CREATE INDEX improd.jvdg_medcode ON improd.jsp_vaccine_display_group (vaccine_medcode);
+CREATE INDEX improd.vm_medcode ON improd.vaccinemapper_table (vaccine_medcode);
+CREATE INDEX improd.vmix_mixcode ON improd.vaccinemix_table (vaccine_mixcode);
+
+-- Reference data
+INSERT INTO improd.systems_table VALUES (1, 'EZVAC'), (2, 'EPIC');
+INSERT INTO improd.facilitysite_table VALUES (10, 'NYP Columbia Pediatrics'), (11, 'NYP Weill Cornell Primary Care');
+INSERT INTO improd.manufacturer_table VALUES ('UNK', 'Unknown'), ('MSD', 'Merck'), ('SKB', 'GlaxoSmithKline'), ('PMC', 'Sanofi Pasteur'), ('PFR', 'Pfizer');
+INSERT INTO improd.bodysite_table VALUES (1, 'Left Deltoid'), (2, 'Right Deltoid'), (3, 'Left Thigh'), (4, 'Right Thigh');
+INSERT INTO improd.provider_table VALUES (100, 'Smith', 'Anne'), (101, 'Jones', 'Robert'), (102, 'Garcia', 'Maria');
+INSERT INTO improd.datasource_table VALUES (1, 'EzVac'), (2, 'Parental Report'), (3, 'CIR');
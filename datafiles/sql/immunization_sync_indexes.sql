@@ -0,0 +1,4 @@
+-- Indexes backing the incremental Immunization searches (date=ge... and _lastUpdated=ge...).
+-- The history queries always lead with the patient, so the range column follows the upid.
+CREATE INDEX improd.immunizationmix_upid_vdate_ix ON improd.immunizationmix_table (upid, vaccine_date, immunization_id);
+CREATE INDEX improd.immunizationmix_upid_updt_ix ON improd.immunizationmix_table (upid, update_time);
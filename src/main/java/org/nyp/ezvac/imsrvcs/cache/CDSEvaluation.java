@@ -0,0 +1,148 @@
+/**
+ * CDSEvaluation
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * The output of one recommendation engine (ICE) evaluation for a patient as of
+ * an audit date - the evaluated history, the history from the database, the
+ * recommendations and the demographics used. The evaluation is immutable once
+ * created so that it can be shared between requests through the
+ * EvaluationCache.
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.nyph.cdslibrary.CDSLibraryWrapper;
+import org.nyph.cdslibrary.dto.HistoryStatusDTO;
+import org.nyph.cdslibrary.dto.ImmunizationRecommendationDTO;
+
+/**
+ * @author bdasgupt
+ */
+public class CDSEvaluation {
+
+    private String upid;
+    private Date auditDate;
+    private List<HistoryStatusDTO> history;
+    private List<HistoryStatusDTO> dbHistory;
+    private List<ImmunizationRecommendationDTO> recommendations;
+    private Date dateOfBirth;
+    private String gender;
+    private long createdAt;
+    private long syncedAt;
+
+    /**
+     * Captures the output of a CDS library call that has already run
+     * getSchedule for the upid and audit date.
+     *
+     * @param upid
+     * @param auditDate
+     * @param cds
+     */
+    public CDSEvaluation(String upid, Date auditDate, CDSLibraryWrapper cds) {
+        this(upid, auditDate, cds.getHistory(), cds.getDBHistory(), cds.getRecommendations(), cds.getDateOfBirth(), cds.getGender());
+    }
+
+    public CDSEvaluation(String upid, Date auditDate, List<HistoryStatusDTO> history, List<HistoryStatusDTO> dbHistory,
+                         List<ImmunizationRecommendationDTO> recommendations, Date dateOfBirth, String gender) {
+        this.upid = upid;
+        this.auditDate = auditDate;
+        this.history = unmodifiable(history);
+        this.dbHistory = unmodifiable(dbHistory);
+        this.recommendations = unmodifiable(recommendations);
+        this.dateOfBirth = dateOfBirth;
+        this.gender = gender;
+        this.createdAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns a CDS library wrapper loaded with this evaluation, for the NYP
+     * rules which read the history and demographics from the wrapper. The
+     * wrapper is not connected, so it must not be used to run getSchedule.
+     *
+     * @return
+     */
+    public CDSLibraryWrapper toLibraryWrapper() {
+        CDSLibraryWrapper cds = new CDSLibraryWrapper(null);
+        cds.setGender(gender);
+        cds.setDateOfBirth(dateOfBirth);
+        cds.setEvaluationDate(auditDate);
+        cds.setHistory(new ArrayList<HistoryStatusDTO>(history));
+        cds.setDbHistory(new ArrayList<HistoryStatusDTO>(dbHistory));
+        return cds;
+    }
+
+    /**
+     * A copy of the evaluation with more shots in its history, for what-if
+     * questions. The engine recommendations stay those of this evaluation.
+     *
+     * @param doses
+     * @return
+     */
+    public CDSEvaluation withDoses(List<HistoryStatusDTO> doses) {
+        List<HistoryStatusDTO> newHistory = new ArrayList<HistoryStatusDTO>(history);
+        newHistory.addAll(doses);
+        List<HistoryStatusDTO> newDBHistory = new ArrayList<HistoryStatusDTO>(dbHistory);
+        newDBHistory.addAll(doses);
+        return new CDSEvaluation(upid, auditDate, newHistory, newDBHistory, recommendations, dateOfBirth, gender);
+    }
+
+    public String getUpid() {
+        return upid;
+    }
+
+    public Date getAuditDate() {
+        return auditDate;
+    }
+
+    public List<HistoryStatusDTO> getHistory() {
+        return history;
+    }
+
+    public List<HistoryStatusDTO> getDBHistory() {
+        return dbHistory;
+    }
+
+    public List<ImmunizationRecommendationDTO> getRecommendations() {
+        return recommendations;
+    }
+
+    public Date getDateOfBirth() {
+        return dateOfBirth;
+    }
+
+    public String getGender() {
+        return gender;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    /**
+     * When the patient was synced with the CIR just before this evaluation
+     *
+     * @return - time in milliseconds, 0 if the evaluation was made without a sync
+     */
+    public long getSyncedAt() {
+        return syncedAt;
+    }
+
+    public void setSyncedAt(long syncedAt) {
+        this.syncedAt = syncedAt;
+    }
+
+    private static <T> List<T> unmodifiable(List<T> list) {
+        if (list == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(new ArrayList<T>(list));
+    }
+}
@@ -0,0 +1,475 @@
+/**
+ * EvaluationCache
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * A short lived cache of recommendation engine (ICE) evaluations, by upid. A
+ * recommendation request followed by the request for its supporting
+ * immunizations (schedule=Y) for the same patient share a single ICE
+ * evaluation. Concurrent requests for the same patient and audit date wait on
+ * the evaluation that is already running instead of starting their own.
+ * <p>
+ * An evaluation is served for every audit date from the one it was made for up
+ * to the day its forecast can change (see ValidityWindow), so requests just
+ * after midnight do not all re-evaluate their patients.
+ * <p>
+ * The cache is bounded (the least recently used patients are evicted first).
+ * With a HistoryCheck installed (see Services) an evaluation is kept until the
+ * end of its validity window, and past a short time to live it is checked
+ * against the history before it is served, so that new shots show up quickly.
+ * Without one, evaluations simply expire after the time to live. Both are
+ * configured in imsrvcs.properties (cache.maxEntries, cache.ttlSeconds, and
+ * cache.maxValidDays for the longest validity window).
+ * Evaluations preloaded ahead of a visit (see VisitWarmup) are kept at least
+ * until the end of the visit day, as long as the patient is not synced with the
+ * CIR and no immunization is added.
+ * Requests waiting on another request's evaluation only wait until their own
+ * deadline (see RequestDeadline). If the request running the evaluation runs out
+ * of time or is cancelled, the requests waiting on it run their own instead.
+ * <p>
+ * A request that asks for a CIR sync is only served an evaluation that was made
+ * after a sync recent enough for it (see CDSEvaluation.getSyncedAt), or one
+ * preloaded for the visit day after the warmup synced the patient.
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.cache;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.nyp.ezvac.imsrvcs.services.RequestDeadline;
+import org.nyp.ezvac.imsrvcs.services.ServiceConfig;
+
+/**
+ * @author bdasgupt
+ */
+public class EvaluationCache {
+
+    private static EvaluationCache instance = null;
+
+    // Evaluations kept per patient, for different validity windows
+    private static final int MAX_WINDOWS = 4;
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final int maxValidDays;
+    private final LinkedHashMap<String, List<CacheEntry>> entries;
+    private final ConcurrentHashMap<String, FutureTask<CDSEvaluation>> inFlight = new ConcurrentHashMap<String, FutureTask<CDSEvaluation>>();
+    private volatile HistoryCheck historyCheck = null;
+
+    // Generation of the last invalidation of each patient, guarded by entries. A
+    // load that started before its patient was invalidated does not store what
+    // it read; for patients no longer remembered, forgottenGeneration is used
+    private final LinkedHashMap<String, Long> invalidations;
+    private long generation = 0;
+    private long forgottenGeneration = 0;
+    private final ThreadLocal<Load> currentLoad = new ThreadLocal<Load>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param maxEntries - the maximum number of patients held
+     * @param ttlMillis - how long an evaluation is served for
+     * @param maxValidDays - the most audit days an evaluation is served for
+     */
+    public EvaluationCache(final int maxEntries, long ttlMillis, int maxValidDays) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.maxValidDays = maxValidDays;
+        this.entries = new LinkedHashMap<String, List<CacheEntry>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<CacheEntry>> eldest) {
+                if (size() > EvaluationCache.this.maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+        this.invalidations = new LinkedHashMap<String, Long>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                if (size() > Math.max(16, EvaluationCache.this.maxEntries)) {
+                    forgottenGeneration = Math.max(forgottenGeneration, eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * The cache shared by the providers
+     *
+     * @return
+     */
+    public static synchronized EvaluationCache getInstance() {
+        if (instance == null) {
+            instance = new EvaluationCache(ServiceConfig.getInt("cache.maxEntries", 1000),
+                    ServiceConfig.getLong("cache.ttlSeconds", 300) * 1000L,
+                    ServiceConfig.getInt("cache.maxValidDays", 31));
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the evaluation for the upid as of the audit date, running the
+     * loader if there is no current evaluation in the cache.
+     *
+     * @param upid
+     * @param auditDate
+     * @param loader - runs the evaluation on a cache miss
+     * @return
+     * @throws Exception
+     */
+    public CDSEvaluation getEvaluation(String upid, Date auditDate, EvaluationLoader loader) throws Exception {
+        return getEvaluation(upid, auditDate, loader, 0);
+    }
+
+    /**
+     * Returns the evaluation for the upid as of the audit date, running the
+     * loader if there is no current evaluation in the cache, and keeps it at
+     * least until keepUntil.
+     *
+     * @param upid
+     * @param auditDate
+     * @param loader - runs the evaluation on a cache miss
+     * @param keepUntil - time in milliseconds the evaluation is kept until, 0 for
+     * the default time to live
+     * @return
+     * @throws Exception
+     */
+    public CDSEvaluation getEvaluation(String upid, Date auditDate, EvaluationLoader loader, long keepUntil) throws Exception {
+        return getEvaluation(upid, auditDate, loader, keepUntil, 0);
+    }
+
+    /**
+     * Returns the evaluation for the upid as of the audit date, running the
+     * loader if there is no current evaluation in the cache that was made after
+     * a CIR sync at or after syncedSince, and keeps it at least until keepUntil.
+     * The loader is expected to sync the patient and mark the evaluation
+     * synced (see CDSEvaluation.setSyncedAt).
+     *
+     * @param upid
+     * @param auditDate
+     * @param loader - runs the evaluation on a cache miss
+     * @param keepUntil - time in milliseconds the evaluation is kept until, 0 for
+     * the default time to live
+     * @param syncedSince - time in milliseconds, 0 if the evaluation need not
+     * have been synced
+     * @return
+     * @throws Exception
+     */
+    public CDSEvaluation getEvaluation(final String upid, final Date auditDate, final EvaluationLoader loader, long keepUntil, long syncedSince) throws Exception {
+        int auditDay = ValidityWindow.toEpochDay(auditDate);
+        // Requests that want a sync do not wait on an evaluation made without one
+        String key = upid + "|" + auditDay + ((syncedSince > 0) ? "|sync" : "");
+
+        CDSEvaluation evaluation = lookup(upid, auditDay, keepUntil, syncedSince);
+        if (evaluation != null && isHistoryChanged(upid, evaluation)) {
+            invalidate(upid);
+            evaluation = null;
+        }
+        if (evaluation != null) {
+            hits.incrementAndGet();
+            return evaluation;
+        }
+
+        RequestDeadline deadline = RequestDeadline.current();
+        while (true) {
+            // Only one evaluation runs per key, everyone else waits for its result
+            FutureTask<CDSEvaluation> task = new FutureTask<CDSEvaluation>(new Callable<CDSEvaluation>() {
+                public CDSEvaluation call() throws Exception {
+                    return loader.load(upid, auditDate);
+                }
+            });
+            FutureTask<CDSEvaluation> running = inFlight.putIfAbsent(key, task);
+            if (running == null) {
+                misses.incrementAndGet();
+                Load load = new Load(upid, currentGeneration());
+                currentLoad.set(load);
+                try {
+                    task.run();
+                    currentLoad.remove();
+                    evaluation = task.get();
+                    int untilDay = ValidityWindow.validUntil(evaluation, maxValidDays);
+                    long expiresAt = Math.max(evaluation.getCreatedAt() + ttlMillis, keepUntil);
+                    if (historyCheck != null) {
+                        // Checked against the history past the time to live, so kept for its validity window
+                        expiresAt = Math.max(expiresAt, ValidityWindow.startOfDay(untilDay));
+                    }
+                    store(upid, new CacheEntry(evaluation, auditDay, untilDay, expiresAt, evaluation.getSyncedAt(), keepUntil > 0), load.generation);
+                } catch (ExecutionException e) {
+                    throw unwrap(e);
+                } finally {
+                    currentLoad.remove();
+                    inFlight.remove(key);
+                }
+                return evaluation;
+            }
+
+            try {
+                if (deadline.hasDeadline()) {
+                    evaluation = running.get(deadline.remainingMillis(), TimeUnit.MILLISECONDS);
+                } else {
+                    evaluation = running.get();
+                }
+                hits.incrementAndGet();
+                return evaluation;
+            } catch (TimeoutException e) {
+                throw new TimeoutException("Request deadline exceeded waiting for the evaluation of " + upid);
+            } catch (CancellationException e) {
+                inFlight.remove(key, running);
+            } catch (ExecutionException e) {
+                if (!isAbandoned(e.getCause())) {
+                    throw unwrap(e);
+                }
+                // The deadline (or cancel) of the request running it, not ours
+                inFlight.remove(key, running);
+            }
+            deadline.check();
+            System.out.println("Evaluation of " + upid + " abandoned by the request running it, evaluating again");
+        }
+    }
+
+    /**
+     * Sets the check made before an evaluation kept past its time to live is
+     * served, null for none
+     *
+     * @param historyCheck
+     */
+    public void setHistoryCheck(HistoryCheck historyCheck) {
+        this.historyCheck = historyCheck;
+    }
+
+    /**
+     * Drops any evaluation held for the upid, e.g. after the history changed.
+     * Evaluations of the upid that are still being loaded are not stored,
+     * unless the load itself invalidated the upid (its CIR sync) before reading
+     * the history.
+     *
+     * @param upid
+     */
+    public void invalidate(String upid) {
+        long invalidated;
+        synchronized (entries) {
+            entries.remove(upid);
+            invalidated = ++generation;
+            invalidations.put(upid, invalidated);
+        }
+        Load load = currentLoad.get();
+        if (load != null && load.upid.equals(upid)) {
+            load.generation = invalidated;
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            invalidations.clear();
+            forgottenGeneration = ++generation;
+        }
+    }
+
+    /**
+     * The number of evaluations held
+     *
+     * @return
+     */
+    public int size() {
+        synchronized (entries) {
+            int size = 0;
+            for (List<CacheEntry> windows : entries.values()) {
+                size += windows.size();
+            }
+            return size;
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public long getExpirationCount() {
+        return expirations.get();
+    }
+
+    /**
+     * The fraction of requests that were served without running an evaluation
+     *
+     * @return
+     */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return (total == 0) ? 0.0 : (double) h / (double) total;
+    }
+
+    @Override
+    public String toString() {
+        return "EvaluationCache{size=" + size() + ", hits=" + hits.get() + ", misses=" + misses.get()
+                + ", evictions=" + evictions.get() + ", expirations=" + expirations.get() + ", hitRate=" + getHitRate() + "}";
+    }
+
+    /**
+     * The evaluation of the patient whose validity window holds the audit day
+     */
+    private CDSEvaluation lookup(String upid, int auditDay, long keepUntil, long syncedSince) {
+        synchronized (entries) {
+            List<CacheEntry> windows = entries.get(upid);
+            if (windows == null) {
+                return null;
+            }
+            long now = System.currentTimeMillis();
+            CDSEvaluation evaluation = null;
+            for (int i = windows.size() - 1; i >= 0; i--) {
+                CacheEntry entry = windows.get(i);
+                if (now > entry.expiresAt) {
+                    windows.remove(i);
+                    expirations.incrementAndGet();
+                } else if (evaluation == null && entry.fromDay <= auditDay && auditDay < entry.untilDay
+                        && (syncedSince <= 0 || entry.syncedAt >= syncedSince || (entry.preloaded && entry.syncedAt > 0))) {
+                    evaluation = entry.evaluation;
+                    if (keepUntil > entry.expiresAt) {
+                        windows.set(i, new CacheEntry(entry.evaluation, entry.fromDay, entry.untilDay, keepUntil, entry.syncedAt, true));
+                    }
+                }
+            }
+            if (windows.isEmpty()) {
+                entries.remove(upid);
+            }
+            return evaluation;
+        }
+    }
+
+    private long currentGeneration() {
+        synchronized (entries) {
+            return generation;
+        }
+    }
+
+    /**
+     * Adds the evaluation to the patient's, replacing the windows it covers,
+     * unless the upid was invalidated after the load of the evaluation started
+     * (loadGeneration)
+     */
+    private void store(String upid, CacheEntry entry, long loadGeneration) {
+        synchronized (entries) {
+            Long invalidated = invalidations.get(upid);
+            if (loadGeneration < forgottenGeneration || (invalidated != null && invalidated.longValue() > loadGeneration)) {
+                System.out.println("Evaluation of " + upid + " not cached, the patient was invalidated while it was loaded");
+                return;
+            }
+            List<CacheEntry> windows = entries.get(upid);
+            if (windows == null) {
+                windows = new ArrayList<CacheEntry>(2);
+            }
+            Iterator<CacheEntry> it = windows.iterator();
+            while (it.hasNext()) {
+                CacheEntry e = it.next();
+                if (e.fromDay >= entry.fromDay && e.untilDay <= entry.untilDay) {
+                    it.remove();
+                }
+            }
+            if (windows.size() >= MAX_WINDOWS) {
+                windows.remove(0);
+            }
+            windows.add(entry);
+            entries.put(upid, windows);
+        }
+    }
+
+    /**
+     * Whether the history of the patient changed after an evaluation that is
+     * past its time to live was made. A failed check counts as changed.
+     */
+    private boolean isHistoryChanged(String upid, CDSEvaluation evaluation) {
+        HistoryCheck check = historyCheck;
+        if (check == null || System.currentTimeMillis() < evaluation.getCreatedAt() + ttlMillis) {
+            return false;
+        }
+        try {
+            return check.hasChangedSince(upid, evaluation.getCreatedAt());
+        } catch (Exception e) {
+            System.out.println("History check of " + upid + " failed: " + e);
+            return true;
+        }
+    }
+
+    /**
+     * Whether the load failed because the request running it ran out of time or
+     * was cancelled, rather than because of the patient or the engine
+     */
+    private static boolean isAbandoned(Throwable cause) {
+        return cause instanceof TimeoutException || cause instanceof CancellationException
+                || cause instanceof InterruptedException;
+    }
+
+    private static Exception unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof Exception) {
+            return (Exception) cause;
+        }
+        return new Exception(cause);
+    }
+
+    private static class CacheEntry {
+
+        final CDSEvaluation evaluation;
+        final int fromDay;
+        final int untilDay;
+        final long expiresAt;
+        // when the patient was synced with the CIR before the evaluation, 0 if not
+        final long syncedAt;
+        // kept for a visit (see VisitWarmup), dropped when the history changes
+        final boolean preloaded;
+
+        CacheEntry(CDSEvaluation evaluation, int fromDay, int untilDay, long expiresAt, long syncedAt, boolean preloaded) {
+            this.evaluation = evaluation;
+            this.fromDay = fromDay;
+            this.untilDay = untilDay;
+            this.expiresAt = expiresAt;
+            this.syncedAt = syncedAt;
+            this.preloaded = preloaded;
+        }
+    }
+
+    // A load running on the current thread, and the generation it read the history at
+    private static class Load {
+
+        final String upid;
+        long generation;
+
+        Load(String upid, long generation) {
+            this.upid = upid;
+            this.generation = generation;
+        }
+    }
+}
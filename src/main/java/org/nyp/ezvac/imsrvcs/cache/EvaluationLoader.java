@@ -0,0 +1,30 @@
+/**
+ * EvaluationLoader
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * Runs the recommendation engine for a patient when the EvaluationCache does not
+ * hold an evaluation for the patient and audit date.
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.cache;
+
+import java.util.Date;
+
+/**
+ * @author bdasgupt
+ */
+public interface EvaluationLoader {
+
+    /**
+     * Evaluates the patient as of the audit date
+     *
+     * @param upid
+     * @param auditDate
+     * @return
+     * @throws Exception
+     */
+    CDSEvaluation load(String upid, Date auditDate) throws Exception;
+}
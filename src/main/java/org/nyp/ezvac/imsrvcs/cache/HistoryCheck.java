@@ -0,0 +1,30 @@
+/**
+ * HistoryCheck
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * Tells the EvaluationCache whether a patient's immunization history changed
+ * after an evaluation was made, for the evaluations it keeps longer than its
+ * time to live (see ImmunizationHistoryCheck).
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.cache;
+
+/**
+ * @author bdasgupt
+ */
+public interface HistoryCheck {
+
+    /**
+     * Whether an immunization of the patient was added or updated after the
+     * time
+     *
+     * @param upid
+     * @param time - time in milliseconds
+     * @return
+     * @throws Exception
+     */
+    boolean hasChangedSince(String upid, long time) throws Exception;
+}
@@ -0,0 +1,53 @@
+/**
+ * IceStandIn
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * An EvaluationLoader used in place of the CDS library (DB2 history + ICE SOAP
+ * call) when ice.standIn names one, for running the services without ICE, e.g.
+ * under the offline load test. The class needs a public no argument
+ * constructor. Without ice.standIn the recordings of ice.replay, when set, are
+ * the stand-in (RecordedEvaluations). Not set in production.
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.cache;
+
+import org.nyp.ezvac.imsrvcs.recording.RecordedEvaluations;
+import org.nyp.ezvac.imsrvcs.services.ServiceConfig;
+
+/**
+ * @author bdasgupt
+ */
+public class IceStandIn {
+
+    private static EvaluationLoader loader = null;
+    private static boolean initialized = false;
+
+    private IceStandIn() {
+    }
+
+    /**
+     * The configured stand-in, null when the CDS library is to be used
+     *
+     * @return
+     */
+    public static synchronized EvaluationLoader get() {
+        if (!initialized) {
+            String className = ServiceConfig.getString("ice.standIn", "");
+            if (className.length() > 0) {
+                try {
+                    loader = (EvaluationLoader) Class.forName(className.trim()).newInstance();
+                    System.out.println("*** ICE stand-in: " + className);
+                } catch (Exception e) {
+                    throw new IllegalStateException("Cannot create the ICE stand-in " + className, e);
+                }
+            } else {
+                loader = RecordedEvaluations.getInstance();
+            }
+            initialized = true;
+        }
+        return loader;
+    }
+}
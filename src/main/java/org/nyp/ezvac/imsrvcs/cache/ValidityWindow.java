@@ -0,0 +1,163 @@
+/**
+ * ValidityWindow
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * Works out for how many days an evaluation stays correct. The recommendations
+ * of a patient only change with the audit date when it crosses one of
+ * <p>
+ * - the proposed date of a recommendation (not due yet becomes due)
+ * - an age boundary of the NYP rules (2, 9, 10, 11, 16, 17, 19, 24 and 65 years,
+ * and 6 - 7 months for flu)
+ * - the flu season boundary (August 1st)
+ * - the end of the minimum interval after a flu shot (24 and 28 days), the first
+ * MenB shot (24 days) or a PPSV shot (8 weeks)
+ * - a shot given after the audit date (an evaluation as of a past date)
+ * <p>
+ * An evaluation made for an audit date is therefore valid for every audit date
+ * up to (not including) the first of those days. Days are counted as epoch days
+ * in the local time zone.
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.cache;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.joda.time.Days;
+import org.joda.time.LocalDate;
+import org.nyph.cdslibrary.dto.HistoryStatusDTO;
+import org.nyph.cdslibrary.dto.ImmunizationRecommendationDTO;
+
+/**
+ * @author bdasgupt
+ */
+public class ValidityWindow {
+
+    private static final LocalDate EPOCH = new LocalDate(1970, 1, 1);
+
+    // The ages in years at which the NYP rules change their answer
+    private static final int[] AGE_BOUNDARIES = {2, 9, 10, 11, 16, 17, 19, 24, 65};
+
+    private static final String FLU_SERIES = "Influenza Vaccine Group";
+    private static final Set<Integer> MENB_CVX_CODES = new HashSet<Integer>(Arrays.asList(162, 163));
+    private static final Set<Integer> PPSV_CVX_CODES = new HashSet<Integer>(Arrays.asList(133, 100, 152, 109));
+
+    private ValidityWindow() {
+    }
+
+    /**
+     * The day of the date, counted from 01/01/1970
+     *
+     * @param date
+     * @return
+     */
+    public static int toEpochDay(Date date) {
+        return Days.daysBetween(EPOCH, new LocalDate(date)).getDays();
+    }
+
+    /**
+     * The time the epoch day starts at, in milliseconds
+     *
+     * @param epochDay
+     * @return
+     */
+    public static long startOfDay(int epochDay) {
+        return EPOCH.plusDays(epochDay).toDateTimeAtStartOfDay().getMillis();
+    }
+
+    /**
+     * The first day the evaluation may no longer be correct on, as an epoch day
+     *
+     * @param evaluation
+     * @param maxDays - the window is never longer than this
+     * @return
+     */
+    public static int validUntil(CDSEvaluation evaluation, int maxDays) {
+        LocalDate auditDay = new LocalDate(evaluation.getAuditDate());
+        LocalDate until = auditDay.plusDays(Math.max(1, maxDays));
+        SortedSet<LocalDate> changes = changeDays(evaluation, auditDay, until);
+        if (!changes.isEmpty()) {
+            until = changes.first();
+        }
+        return Days.daysBetween(EPOCH, until).getDays();
+    }
+
+    /**
+     * The days after from, up to and including to, on which the recommendations
+     * of the patient can change
+     *
+     * @param evaluation
+     * @param from
+     * @param to
+     * @return
+     */
+    public static SortedSet<LocalDate> changeDays(CDSEvaluation evaluation, LocalDate from, LocalDate to) {
+        SortedSet<LocalDate> days = new TreeSet<LocalDate>();
+
+        // Proposed dates of the engine recommendations
+        for (ImmunizationRecommendationDTO ir : evaluation.getRecommendations()) {
+            if (ir.getProposedDate() != null) {
+                add(days, from, to, new LocalDate(ir.getProposedDate()));
+            }
+        }
+
+        // Age boundaries
+        if (evaluation.getDateOfBirth() != null) {
+            LocalDate dob = new LocalDate(evaluation.getDateOfBirth());
+            add(days, from, to, dob.plusMonths(6));
+            add(days, from, to, dob.plusMonths(7));
+            for (int age : AGE_BOUNDARIES) {
+                add(days, from, to, dob.plusYears(age));
+            }
+        }
+
+        // Flu seasons, 08/01 - 07/31
+        for (int year = from.getYear(); year <= to.getYear(); year++) {
+            add(days, from, to, new LocalDate(year, 8, 1));
+        }
+
+        // Later shots and the minimum intervals after a shot
+        LocalDate firstMenB = null;
+        for (HistoryStatusDTO h : evaluation.getDBHistory()) {
+            if (h.getShotDate() == null) {
+                continue;
+            }
+            LocalDate shotDay = new LocalDate(h.getShotDate());
+            add(days, from, to, shotDay);
+            if (h.getCvxCode() == null) {
+                continue;
+            }
+            if (MENB_CVX_CODES.contains(h.getCvxCode()) && (firstMenB == null || shotDay.isBefore(firstMenB))) {
+                firstMenB = shotDay;
+            }
+            if (PPSV_CVX_CODES.contains(h.getCvxCode())) {
+                add(days, from, to, shotDay.plusWeeks(8));
+            }
+        }
+        if (firstMenB != null) {
+            add(days, from, to, firstMenB.plusDays(24));
+        }
+        for (HistoryStatusDTO h : evaluation.getHistory()) {
+            if (h.getShotDate() != null && FLU_SERIES.equalsIgnoreCase(h.getSeries())) {
+                LocalDate shotDay = new LocalDate(h.getShotDate());
+                add(days, from, to, shotDay.plusDays(24));
+                add(days, from, to, shotDay.plusDays(28));
+            }
+        }
+
+        return days;
+    }
+
+    private static void add(SortedSet<LocalDate> days, LocalDate from, LocalDate to, LocalDate day) {
+        if (day.isAfter(from) && !day.isAfter(to)) {
+            days.add(day);
+        }
+    }
+}
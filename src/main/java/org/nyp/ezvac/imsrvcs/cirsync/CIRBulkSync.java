@@ -0,0 +1,224 @@
+/**
+ * CIRBulkSync
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * Syncs a cohort of patients with the CIR (a panel refresh, the batch
+ * recommendation request, the nightly pre-visit preparation). The syncs are
+ * spread over the pooled connections of the CIRSyncClient, a few at a time, and
+ * patients that were synced recently (mpi_table.cir_sync_time) are skipped.
+ * Every upid gets its own result, in the order they were given.
+ * <p>
+ * Configured in imsrvcs.properties
+ * <p>
+ * cirsync.freshSeconds - a patient synced less than this long ago is skipped
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.cirsync;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.sql.DataSource;
+
+import org.nyp.ezvac.imsrvcs.services.RequestDeadline;
+import org.nyp.ezvac.imsrvcs.services.ServiceConfig;
+import org.nyp.ezvac.imsrvcs.services.ServiceExecutors;
+
+/**
+ * @author bdasgupt
+ */
+public class CIRBulkSync {
+
+    private static final String GET_SYNC_TIMES = "SELECT upid, cir_sync_time FROM improd.mpi_table WHERE upid IN ";
+
+    // upids per sync time query
+    private static final int QUERY_CHUNK = 100;
+
+    private final CIRSyncClient client;
+    private final ExecutorService executor;
+    private final long freshMillis;
+
+    /**
+     * Constructor
+     *
+     * @param client - the client the syncs go through
+     * @param executor - runs the syncs, its size bounds the syncs in flight
+     * @param freshMillis - patients synced less than this long ago are skipped
+     */
+    public CIRBulkSync(CIRSyncClient client, ExecutorService executor, long freshMillis) {
+        this.client = client;
+        this.executor = executor;
+        this.freshMillis = freshMillis;
+    }
+
+    /**
+     * A bulk sync over the shared client and executor
+     *
+     * @return
+     */
+    public static CIRBulkSync getDefault() {
+        return new CIRBulkSync(CIRSyncClient.getInstance(), ServiceExecutors.getCIRSyncExecutor(),
+                ServiceConfig.getLong("cirsync.freshSeconds", 3600) * 1000L);
+    }
+
+    /**
+     * Syncs the patients, skipping those whose cir_sync_time is recent
+     *
+     * @param upids
+     * @return - one result per upid
+     * @throws Exception - when the sync times cannot be read
+     */
+    public List<CIRSyncResult> syncAll(List<String> upids) throws Exception {
+        return syncAll(upids, getLastSyncTimes(upids));
+    }
+
+    /**
+     * Syncs the patients, skipping those synced recently according to
+     * lastSyncTimes. A patient missing from lastSyncTimes is always synced.
+     *
+     * @param upids
+     * @param lastSyncTimes - upid to the time of its last sync
+     * @return - one result per upid, in the order of upids
+     * @throws Exception
+     */
+    public List<CIRSyncResult> syncAll(List<String> upids, Map<String, Date> lastSyncTimes) throws Exception {
+        long now = System.currentTimeMillis();
+        RequestDeadline deadline = RequestDeadline.current();
+
+        // The same patient is synced once, however often it is listed
+        Map<String, Future<CIRSyncResult>> syncs = new HashMap<String, Future<CIRSyncResult>>();
+        Map<String, CIRSyncResult> skipped = new HashMap<String, CIRSyncResult>();
+        for (final String upid : new LinkedHashSet<String>(upids)) {
+            Date lastSync = lastSyncTimes.get(upid);
+            if (lastSync != null && (now - lastSync.getTime()) < freshMillis) {
+                skipped.put(upid, CIRSyncResult.skipped(upid, "Synced " + ((now - lastSync.getTime()) / 1000) + "s ago", lastSync.getTime()));
+                continue;
+            }
+            syncs.put(upid, executor.submit(deadline.wrap(new Callable<CIRSyncResult>() {
+                public CIRSyncResult call() throws Exception {
+                    return client.sync(upid);
+                }
+            })));
+        }
+
+        List<CIRSyncResult> results = new ArrayList<CIRSyncResult>(upids.size());
+        for (String upid : upids) {
+            CIRSyncResult result = skipped.get(upid);
+            if (result == null) {
+                try {
+                    result = syncs.get(upid).get();
+                } catch (ExecutionException e) {
+                    // The deadline passed before the sync started
+                    result = CIRSyncResult.failed(upid, String.valueOf(e.getCause().getMessage()), 0);
+                }
+            }
+            results.add(result);
+        }
+        return results;
+    }
+
+    /**
+     * How many of the patients were synced, skipped and failed
+     *
+     * @param results
+     * @return
+     */
+    public static String summarize(List<CIRSyncResult> results) {
+        int synced = 0;
+        int skipped = 0;
+        int failed = 0;
+        for (CIRSyncResult result : results) {
+            switch (result.getStatus()) {
+                case SYNCED:
+                    synced++;
+                    break;
+                case SKIPPED:
+                    skipped++;
+                    break;
+                default:
+                    failed++;
+            }
+        }
+        return "CIR bulk sync of " + results.size() + ": synced " + synced + ", skipped " + skipped + ", failed " + failed;
+    }
+
+    /**
+     * Reads the cir_sync_time of the patients
+     *
+     * @param upids
+     * @return
+     * @throws Exception
+     */
+    private Map<String, Date> getLastSyncTimes(List<String> upids) throws Exception {
+        Map<String, Date> lastSyncTimes = new HashMap<String, Date>();
+        if (upids.isEmpty()) {
+            return lastSyncTimes;
+        }
+
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            Context ctx = new InitialContext();
+            DataSource ds = (DataSource) ctx.lookup("java:comp/env/jdbc/nypis");
+            conn = ds.getConnection();
+            for (int from = 0; from < upids.size(); from += QUERY_CHUNK) {
+                List<String> chunk = upids.subList(from, Math.min(upids.size(), from + QUERY_CHUNK));
+                StringBuilder sql = new StringBuilder(GET_SYNC_TIMES).append("(");
+                for (int i = 0; i < chunk.size(); i++) {
+                    sql.append((i == 0) ? "?" : ",?");
+                }
+                sql.append(")");
+
+                pstmt = conn.prepareStatement(sql.toString());
+                RequestDeadline.current().applyTo(pstmt);
+                for (int i = 0; i < chunk.size(); i++) {
+                    pstmt.setString(i + 1, chunk.get(i));
+                }
+                rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    Timestamp syncTime = rs.getTimestamp("cir_sync_time");
+                    String upid = rs.getString("upid").trim();
+                    // A patient can have several mpi rows, the latest sync counts
+                    if (syncTime != null && (lastSyncTimes.get(upid) == null || syncTime.getTime() > lastSyncTimes.get(upid).getTime())) {
+                        lastSyncTimes.put(upid, new Date(syncTime.getTime()));
+                    }
+                }
+                rs.close();
+                rs = null;
+                pstmt.close();
+                pstmt = null;
+            }
+        } finally {
+            try {
+                if (rs != null) {
+                    rs.close();
+                }
+                if (pstmt != null) {
+                    pstmt.close();
+                }
+                if (conn != null) {
+                    conn.close();
+                }
+            } catch (Exception e) {
+            }
+        }
+        return lastSyncTimes;
+    }
+}
@@ -0,0 +1,259 @@
+/**
+ * CIRSyncClient
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * Client for the CIR sync service. The client keeps a small pool of keep-alive
+ * connections to the service, so most syncs reuse an open (TLS) connection
+ * instead of doing a new handshake. The number of syncs in flight is bounded,
+ * every call has explicit connect and read timeouts (also bounded by the
+ * RequestDeadline of the request), and the response body is discarded without
+ * being decoded since only the status matters.
+ * <p>
+ * Configured in imsrvcs.properties
+ * <p>
+ * cirsync.url - the sync service, the upid is appended
+ * cirsync.maxConnections - size of the connection pool and the number of syncs in flight
+ * cirsync.connectTimeoutMillis, cirsync.readTimeoutMillis
+ * <p>
+ * When replaying recordings (ice.replay) the recorded outcome is returned
+ * without calling the service, when recording (ice.record) every outcome is
+ * recorded.
+ * <p>
+ * A successful sync can bring in new shots, so the evaluations of the patient
+ * held in the EvaluationCache are dropped.
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.cirsync;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.nyp.ezvac.imsrvcs.cache.EvaluationCache;
+import org.nyp.ezvac.imsrvcs.metrics.FlightEvent;
+import org.nyp.ezvac.imsrvcs.metrics.FlightSpan;
+import org.nyp.ezvac.imsrvcs.metrics.Metrics;
+import org.nyp.ezvac.imsrvcs.recording.EvaluationRecording;
+import org.nyp.ezvac.imsrvcs.recording.RecordedEvaluations;
+import org.nyp.ezvac.imsrvcs.services.RequestDeadline;
+import org.nyp.ezvac.imsrvcs.services.ServiceConfig;
+
+/**
+ * @author bdasgupt
+ */
+public class CIRSyncClient {
+
+    private static final String DEFAULT_URL = "https://immunize.nyp.org/cir-sync-service/CIRSyncService?upid=";
+
+    private static CIRSyncClient instance = null;
+
+    private final String url;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient client;
+    private final Semaphore permits;
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong totalLatencyMillis = new AtomicLong();
+    private final AtomicLong maxLatencyMillis = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param url - the sync service url, the upid is appended to it
+     * @param maxConnections - pooled connections and syncs in flight
+     * @param connectTimeoutMillis
+     * @param readTimeoutMillis
+     */
+    public CIRSyncClient(String url, int maxConnections, int connectTimeoutMillis, int readTimeoutMillis) {
+        this.url = url;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.connectionManager = new PoolingHttpClientConnectionManager(60, TimeUnit.SECONDS);
+        this.connectionManager.setMaxTotal(maxConnections);
+        this.connectionManager.setDefaultMaxPerRoute(maxConnections);
+        this.connectionManager.setValidateAfterInactivity(2000);
+        this.client = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .disableCookieManagement()
+                .build();
+        this.permits = new Semaphore(maxConnections, true);
+    }
+
+    /**
+     * The client shared by the services
+     *
+     * @return
+     */
+    public static synchronized CIRSyncClient getInstance() {
+        if (instance == null) {
+            instance = new CIRSyncClient(ServiceConfig.getString("cirsync.url", DEFAULT_URL),
+                    ServiceConfig.getInt("cirsync.maxConnections", 4),
+                    ServiceConfig.getInt("cirsync.connectTimeoutMillis", 2000),
+                    ServiceConfig.getInt("cirsync.readTimeoutMillis", 10000));
+        }
+        return instance;
+    }
+
+    /**
+     * Closes the pooled connections, called when the web application is stopped
+     */
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.close();
+            instance = null;
+        }
+    }
+
+    /**
+     * Syncs the patient with the CIR. A failure is logged and returned in the
+     * result, it is never thrown - the patient is then evaluated with the
+     * history that is already in the database.
+     *
+     * @param upid
+     * @return
+     */
+    public CIRSyncResult sync(String upid) {
+        RecordedEvaluations replay = RecordedEvaluations.getInstance();
+        if (replay != null) {
+            return replay.replaySync(upid);
+        }
+        FlightSpan span = FlightEvent.CIR_SYNC_CALL.begin();
+        CIRSyncResult result = call(upid);
+        if (result.isSynced()) {
+            EvaluationCache.getInstance().invalidate(upid);
+        }
+        EvaluationRecording.record(result);
+        span.set("upid", upid).set("httpStatus", result.getHttpStatus()).set("outcome", result.getStatus()).commit();
+        return result;
+    }
+
+    private CIRSyncResult call(String upid) {
+        RequestDeadline deadline = RequestDeadline.current();
+        long start = System.currentTimeMillis();
+        boolean acquired = false;
+        try {
+            // Wait for a free slot, but not past the deadline
+            long wait = Math.min(deadline.remainingMillis(), connectTimeoutMillis);
+            acquired = permits.tryAcquire(wait, TimeUnit.MILLISECONDS);
+            if (!acquired) {
+                rejected.incrementAndGet();
+                return CIRSyncResult.failed(upid, "Too many CIR syncs in progress", System.currentTimeMillis() - start);
+            }
+            deadline.check();
+
+            int remaining = (int) Math.min(Integer.MAX_VALUE, deadline.remainingMillis());
+            HttpGet get = new HttpGet(url + upid);
+            get.setConfig(RequestConfig.custom()
+                    .setConnectionRequestTimeout(Math.max(1, Math.min(connectTimeoutMillis, remaining)))
+                    .setConnectTimeout(Math.max(1, Math.min(connectTimeoutMillis, remaining)))
+                    .setSocketTimeout(Math.max(1, Math.min(readTimeoutMillis, remaining)))
+                    .build());
+
+            CloseableHttpResponse response = client.execute(get);
+            try {
+                HttpEntity entity = response.getEntity();
+                // Read and drop the body so the connection goes back to the pool
+                EntityUtils.consume(entity);
+                int status = response.getStatusLine().getStatusCode();
+                long elapsed = record(start);
+                if (status >= 400) {
+                    errors.incrementAndGet();
+                    Metrics.upstreamError("cir");
+                    System.out.println("CIR sync for " + upid + " returned " + status);
+                    return CIRSyncResult.failed(upid, "HTTP " + status, elapsed);
+                }
+                return CIRSyncResult.synced(upid, status, elapsed);
+            } finally {
+                response.close();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            errors.incrementAndGet();
+            Metrics.upstreamError("cir");
+            return CIRSyncResult.failed(upid, "Interrupted", record(start));
+        } catch (Exception e) {
+            errors.incrementAndGet();
+            Metrics.upstreamError("cir");
+            System.out.println("CIR sync for " + upid + " failed: " + e);
+            return CIRSyncResult.failed(upid, String.valueOf(e.getMessage()), record(start));
+        } finally {
+            if (acquired) {
+                permits.release();
+            }
+        }
+    }
+
+    public long getCallCount() {
+        return calls.get();
+    }
+
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public long getMaxLatencyMillis() {
+        return maxLatencyMillis.get();
+    }
+
+    public double getAverageLatencyMillis() {
+        long n = calls.get();
+        return (n == 0) ? 0.0 : (double) totalLatencyMillis.get() / (double) n;
+    }
+
+    /**
+     * Connections open in the pool (leased and available)
+     *
+     * @return
+     */
+    public int getOpenConnections() {
+        return connectionManager.getTotalStats().getLeased() + connectionManager.getTotalStats().getAvailable();
+    }
+
+    @Override
+    public String toString() {
+        return "CIRSyncClient{calls=" + calls.get() + ", errors=" + errors.get() + ", rejected=" + rejected.get()
+                + ", avgMillis=" + getAverageLatencyMillis() + ", maxMillis=" + maxLatencyMillis.get()
+                + ", pool=" + connectionManager.getTotalStats() + "}";
+    }
+
+    /**
+     * Closes the pooled connections
+     */
+    public void close() {
+        try {
+            client.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private long record(long start) {
+        long elapsed = System.currentTimeMillis() - start;
+        calls.incrementAndGet();
+        totalLatencyMillis.addAndGet(elapsed);
+        long max = maxLatencyMillis.get();
+        while (elapsed > max && !maxLatencyMillis.compareAndSet(max, elapsed)) {
+            max = maxLatencyMillis.get();
+        }
+        return elapsed;
+    }
+}
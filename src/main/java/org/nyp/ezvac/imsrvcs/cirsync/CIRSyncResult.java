@@ -0,0 +1,101 @@
+/**
+ * CIRSyncResult
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * The outcome of the CIR sync of one patient.
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.cirsync;
+
+/**
+ * @author bdasgupt
+ */
+public class CIRSyncResult {
+
+    public enum Status {
+        SYNCED, SKIPPED, FAILED
+    }
+
+    private String upid;
+    private Status status;
+    private int httpStatus;
+    private String message;
+    private long elapsedMillis;
+    private long syncedAt;
+
+    private CIRSyncResult(String upid, Status status, int httpStatus, String message, long elapsedMillis, long syncedAt) {
+        this.upid = upid;
+        this.status = status;
+        this.httpStatus = httpStatus;
+        this.message = message;
+        this.elapsedMillis = elapsedMillis;
+        this.syncedAt = syncedAt;
+    }
+
+    public static CIRSyncResult synced(String upid, int httpStatus, long elapsedMillis) {
+        return new CIRSyncResult(upid, Status.SYNCED, httpStatus, null, elapsedMillis, System.currentTimeMillis() - elapsedMillis);
+    }
+
+    public static CIRSyncResult skipped(String upid, String message) {
+        return new CIRSyncResult(upid, Status.SKIPPED, 0, message, 0, 0);
+    }
+
+    /**
+     * A patient that was not synced because it was synced recently
+     *
+     * @param upid
+     * @param message
+     * @param lastSync - time in milliseconds of that sync
+     * @return
+     */
+    public static CIRSyncResult skipped(String upid, String message, long lastSync) {
+        return new CIRSyncResult(upid, Status.SKIPPED, 0, message, 0, lastSync);
+    }
+
+    public static CIRSyncResult failed(String upid, String message, long elapsedMillis) {
+        return new CIRSyncResult(upid, Status.FAILED, 0, message, elapsedMillis, 0);
+    }
+
+    public String getUpid() {
+        return upid;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isSynced() {
+        return status == Status.SYNCED;
+    }
+
+    public int getHttpStatus() {
+        return httpStatus;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    /**
+     * When the patient's history was last brought up to date with the CIR: the
+     * start of this sync, or the earlier sync a skipped patient had
+     *
+     * @return - time in milliseconds, 0 if not known or the sync failed
+     */
+    public long getSyncedAt() {
+        return syncedAt;
+    }
+
+    @Override
+    public String toString() {
+        return "{upid:" + upid + ", status:" + status + ((message == null) ? "" : ", message:\"" + message + "\"")
+                + ", millis:" + elapsedMillis + "}";
+    }
+}
@@ -0,0 +1,398 @@
+/**
+ * AccessLog
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * The access log of the services, written off the request threads. A request
+ * thread only copies the references of its fields into a preallocated slot of a
+ * ring buffer. A background writer drains the slots into a rotating file. When
+ * the writer falls behind and the ring is full, records are dropped (and
+ * counted) rather than holding up the request. So are the records drained while
+ * the file cannot be written; the writer tries the file again every 30 seconds
+ * and logs the failure once.
+ * <p>
+ * One line per request, tab separated:
+ * <p>
+ * time ip uid appid method status millis uri?query
+ * <p>
+ * Configured in imsrvcs.properties
+ * <p>
+ * accesslog.enabled - writes the access log
+ * accesslog.file - the log file, rotated to file.1 ... file.n
+ * accesslog.bufferSize - records the ring holds (rounded up to a power of 2)
+ * accesslog.maxFileMB - size at which the file is rotated
+ * accesslog.maxFiles - rotated files kept
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.filters;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.nyp.ezvac.imsrvcs.services.ServiceConfig;
+
+/**
+ * @author bdasgupt
+ */
+public class AccessLog {
+
+    private static AccessLog instance = null;
+
+    // How long the file is left alone after it could not be opened or written
+    private static final long RETRY_MILLIS = 30000L;
+
+    private final Entry[] ring;
+    private final int mask;
+    // sequence[i] == position: slot free for the producer at position
+    // sequence[i] == position + 1: slot filled, ready for the writer
+    private final AtomicLongArray sequence;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private long head = 0;
+
+    private final File file;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private Writer out = null;
+    private long fileBytes = 0;
+    private long retryAt = 0;
+    private boolean failing = false;
+
+    // The time is formatted once a second, the milliseconds are appended
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.");
+    private long formattedSecond = -1;
+    private String formattedTime = null;
+    private final StringBuilder line = new StringBuilder(512);
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    /**
+     * One request. Preallocated, the fields are overwritten every time the
+     * slot is reused.
+     */
+    private static final class Entry {
+        long time;
+        String ip;
+        String uid;
+        String appId;
+        String method;
+        String uri;
+        String query;
+        int status;
+        long millis;
+    }
+
+    /**
+     * Constructor, starts the writer thread
+     *
+     * @param file - the log file
+     * @param bufferSize - records the ring holds
+     * @param maxFileBytes - size at which the file is rotated
+     * @param maxFiles - rotated files kept
+     */
+    public AccessLog(File file, int bufferSize, long maxFileBytes, int maxFiles) {
+        int capacity = 1;
+        while (capacity < Math.max(2, bufferSize)) {
+            capacity <<= 1;
+        }
+        this.ring = new Entry[capacity];
+        this.mask = capacity - 1;
+        this.sequence = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            ring[i] = new Entry();
+            sequence.set(i, i);
+        }
+        this.file = file;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = maxFiles;
+
+        this.writer = new Thread(new Runnable() {
+            public void run() {
+                drainLoop();
+            }
+        }, "imsrvcs-accesslog");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * The access log of the services, null when it is disabled
+     *
+     * @return
+     */
+    public static synchronized AccessLog getInstance() {
+        if (instance == null && ServiceConfig.getBoolean("accesslog.enabled", true)) {
+            instance = new AccessLog(new File(ServiceConfig.getString("accesslog.file", "/usr/local/tomcat/logs/services/access.log")),
+                    ServiceConfig.getInt("accesslog.bufferSize", 8192),
+                    ServiceConfig.getLong("accesslog.maxFileMB", 100) * 1024L * 1024L,
+                    ServiceConfig.getInt("accesslog.maxFiles", 10));
+        }
+        return instance;
+    }
+
+    /**
+     * Writes out what is left in the ring and closes the file, called when the
+     * web application is stopped
+     */
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.close();
+            instance = null;
+        }
+    }
+
+    /**
+     * Queues a request for the log. Never blocks, the record is dropped when the
+     * ring is full.
+     *
+     * @param time - when the request arrived
+     * @param ip
+     * @param uid - userid header
+     * @param appId - appid header
+     * @param method
+     * @param uri
+     * @param query - the query string, or null
+     * @param status - the response status
+     * @param millis - time taken
+     * @return - false when the record was dropped
+     */
+    public boolean record(long time, String ip, String uid, String appId, String method,
+                          String uri, String query, int status, long millis) {
+        long position;
+        while (true) {
+            position = tail.get();
+            long available = sequence.get((int) position & mask) - position;
+            if (available == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (available < 0) {
+                dropped.incrementAndGet();
+                return false;
+            }
+        }
+        int slot = (int) position & mask;
+        Entry e = ring[slot];
+        e.time = time;
+        e.ip = ip;
+        e.uid = uid;
+        e.appId = appId;
+        e.method = method;
+        e.uri = uri;
+        e.query = query;
+        e.status = status;
+        e.millis = millis;
+        sequence.lazySet(slot, position + 1);
+        return true;
+    }
+
+    public long getWritten() {
+        return written.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Stops the writer once the ring is drained
+     */
+    public void close() {
+        running = false;
+        writer.interrupt();
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drainLoop() {
+        while (true) {
+            int drained = 0;
+            drained = drain();
+            if (drained == 0 && out != null) {
+                try {
+                    out.flush();
+                } catch (IOException e) {
+                    fileFailed(e);
+                }
+            }
+            if (drained == 0) {
+                if (!running) {
+                    break;
+                }
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    // Closing, drain what is left
+                }
+            }
+        }
+        closeFile();
+    }
+
+    /**
+     * Writes the filled slots, in order. The records that cannot be written are
+     * dropped.
+     *
+     * @return - the number of records drained
+     */
+    private int drain() {
+        int drained = 0;
+        while (true) {
+            int slot = (int) head & mask;
+            if (sequence.get(slot) != head + 1) {
+                return drained;
+            }
+            Entry e = ring[slot];
+            line.setLength(0);
+            appendTime(e.time);
+            appendField(e.ip);
+            appendField(e.uid);
+            appendField(e.appId);
+            appendField(e.method);
+            line.append(e.status).append('\t').append(e.millis).append('\t');
+            appendValue(e.uri);
+            if (e.query != null) {
+                line.append('?');
+                appendValue(e.query);
+            }
+            line.append('\n');
+            e.ip = e.uid = e.appId = e.method = e.uri = e.query = null;
+            sequence.lazySet(slot, head + ring.length);
+            head++;
+
+            if (write(line)) {
+                written.incrementAndGet();
+            } else {
+                dropped.incrementAndGet();
+            }
+            drained++;
+        }
+    }
+
+    private void appendTime(long time) {
+        long second = time / 1000L;
+        if (second != formattedSecond) {
+            formattedTime = timeFormat.format(new Date(second * 1000L));
+            formattedSecond = second;
+        }
+        int millis = (int) (time % 1000L);
+        line.append(formattedTime).append((char) ('0' + millis / 100)).append((char) ('0' + millis / 10 % 10))
+                .append((char) ('0' + millis % 10)).append('\t');
+    }
+
+    private void appendField(String value) {
+        if (value == null || value.length() == 0) {
+            line.append('-');
+        } else {
+            appendValue(value);
+        }
+        line.append('\t');
+    }
+
+    // Tabs and line breaks would break the line up
+    private void appendValue(String value) {
+        if (value == null) {
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            line.append((c == '\t' || c == '\n' || c == '\r') ? ' ' : c);
+        }
+    }
+
+    /**
+     * Writes the line, opening (or rotating) the file first if need be
+     *
+     * @param s
+     * @return - false if the file cannot be written now
+     */
+    private boolean write(CharSequence s) {
+        if (out == null && System.currentTimeMillis() < retryAt) {
+            return false;
+        }
+        try {
+            if (out == null || fileBytes >= maxFileBytes) {
+                rotate();
+                if (failing) {
+                    System.out.println("Access log " + file + " is written again, " + dropped.get() + " records dropped in all");
+                    failing = false;
+                }
+            }
+            out.append(s);
+            fileBytes += s.length();
+            return true;
+        } catch (IOException e) {
+            fileFailed(e);
+            return false;
+        }
+    }
+
+    /**
+     * Closes the file and leaves it alone for a while, logging the first
+     * failure only
+     */
+    private void fileFailed(IOException e) {
+        closeFile();
+        retryAt = System.currentTimeMillis() + RETRY_MILLIS;
+        if (!failing) {
+            System.out.println("Access log " + file + " cannot be written, records are dropped until it can: " + e);
+            failing = true;
+        }
+    }
+
+    private void rotate() throws IOException {
+        if (out != null) {
+            closeFile();
+            for (int i = maxFiles - 1; i >= 1; i--) {
+                File from = new File(file.getPath() + "." + i);
+                if (from.exists()) {
+                    File to = new File(file.getPath() + "." + (i + 1));
+                    to.delete();
+                    from.renameTo(to);
+                }
+            }
+            File first = new File(file.getPath() + ".1");
+            first.delete();
+            if (maxFiles > 0) {
+                file.renameTo(first);
+            } else {
+                file.delete();
+            }
+        }
+        if (file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+        out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"), 64 * 1024);
+        fileBytes = file.length();
+    }
+
+    private void closeFile() {
+        try {
+            if (out != null) {
+                out.close();
+            }
+        } catch (Exception e) {
+        } finally {
+            out = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "AccessLog{written:" + written.get() + ", dropped:" + dropped.get() + ", file:" + file + "}";
+    }
+}
@@ -3,13 +3,26 @@
  * curl --header "userid: dasgupt" localhost:8080/imsrces/ImmunizationRecommendation?empi=2000079083
  * curl --header "userid: dasgupt" --header "appid: al localhost:8080/imsrvcs/services/ImmunizationRecommendation?empi=2000079083
  *
+ * Every request is written to the AccessLog once it completes (for requests
+ * processed asynchronously, when the async processing completes). The uid and
+ * appid parameters are hidden from the services, and only the first value of a
+ * parameter is passed on. With accesslog.log4j set (off by default, it builds
+ * and writes the line on the request thread), GET requests are also logged
+ * through log4j (imsrvcs.log) as they arrive, as they were before the access
+ * log.
  */
 package org.nyp.ezvac.imsrvcs.filters;
 
-import java.util.Collections;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.Enumeration;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -20,6 +33,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
 
+import org.nyp.ezvac.imsrvcs.services.ServiceConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,88 +44,77 @@ public class LoggingFilter implements Filter {
 
     private static Logger logger = LoggerFactory.getLogger(LoggingFilter.class);
 
+    private AccessLog accessLog = null;
+    private boolean logRequests = false;
+
     public void init(FilterConfig config) throws ServletException {
         // Require user id and app name
         System.out.println("*** Filter init");
+        accessLog = AccessLog.getInstance();
+        logRequests = ServiceConfig.getBoolean("accesslog.log4j", false);
     }
 
     public void doFilter(ServletRequest request,
                          ServletResponse response,
                          FilterChain chain)
             throws java.io.IOException, ServletException {
-        HttpServletRequest httpRequest = (HttpServletRequest) request;
-        String ipAddress = request.getRemoteAddr();
-        String uid = "";
-        String appId = "";
-
-        if (httpRequest.getMethod().equalsIgnoreCase("GET")) {
-            HttpServletResponse httpResponse = (HttpServletResponse) response;
-
-            Enumeration headerNames = httpRequest.getHeaderNames();
-            while (headerNames.hasMoreElements()) {
-                String headerName = (String) headerNames.nextElement();
-                if (headerName.equalsIgnoreCase("userid")) {
-                    uid = httpRequest.getHeader(headerName);
-                }
-                if (headerName.equalsIgnoreCase("appid")) {
-                    appId = httpRequest.getHeader(headerName);
-                }
-            }
-            String logString = "{ip:" + httpRequest.getRemoteAddr() + ", "
-                    + "host:" + httpRequest.getRemoteHost() + ", "
-                    + "uid:" + uid + ", "
-                    + "appId:" + appId + ", "
-                    + "uri: \"" + getFullURL(httpRequest) + "\"}";
-            System.out.println(logString);
-            logger.info(logString);
-            System.out.println("Done");
-
-            //request.removeAttribute("uid");
-            //request.removeAttribute("appid");
+        final HttpServletRequest httpRequest = (HttpServletRequest) request;
+        final HttpServletResponse httpResponse = (HttpServletResponse) response;
+        final long time = System.currentTimeMillis();
+        final long started = System.nanoTime();
 
+        if (logRequests && httpRequest.getMethod().equalsIgnoreCase("GET")) {
+            logger.info("{ip:" + httpRequest.getRemoteAddr() + ", "
+                    + "host:" + httpRequest.getRemoteHost() + ", "
+                    + "uid:" + nullToEmpty(httpRequest.getHeader("userid")) + ", "
+                    + "appId:" + nullToEmpty(httpRequest.getHeader("appid")) + ", "
+                    + "uri: \"" + getFullURL(httpRequest) + "\"}");
         }
 
-        chain.doFilter(parseRequest(httpRequest), response);
-    }
-
-    public void destroy() {
-    }
+        try {
+            chain.doFilter(new ParameterFilter(httpRequest), response);
+        } finally {
+            if (accessLog != null) {
+                if (httpRequest.isAsyncStarted()) {
+                    try {
+                        httpRequest.getAsyncContext().addListener(new AsyncListener() {
+                            public void onComplete(AsyncEvent event) throws IOException {
+                                log(httpRequest, httpResponse, time, started);
+                            }
 
-    private HttpServletRequest parseRequest(HttpServletRequest request) throws ServletException {
-        Map<String, String[]> parameterMap = new HashMap<String, String[]>();
-        Enumeration<String> parameterNames = request.getParameterNames();
+                            public void onTimeout(AsyncEvent event) throws IOException {
+                            }
 
-        while (parameterNames.hasMoreElements()) {
-            String paramName = parameterNames.nextElement();
-            String[] paramValues = request.getParameterValues(paramName);
+                            public void onError(AsyncEvent event) throws IOException {
+                            }
 
-            if (!paramName.equalsIgnoreCase("uid") && !paramName.equalsIgnoreCase("appid")) {
-                parameterMap.put(paramName, new String[]{paramValues[0]});
+                            public void onStartAsync(AsyncEvent event) throws IOException {
+                            }
+                        });
+                    } catch (IllegalStateException e) {
+                        // Already completed
+                        log(httpRequest, httpResponse, time, started);
+                    }
+                } else {
+                    log(httpRequest, httpResponse, time, started);
+                }
             }
         }
-
-        return wrapRequest(request, parameterMap);
     }
 
-    private static HttpServletRequest wrapRequest(HttpServletRequest request, final Map<String, String[]> parameterMap) {
-        return new HttpServletRequestWrapper(request) {
-            public Map<String, String[]> getParameterMap() {
-                return parameterMap;
-            }
-
-            public String[] getParameterValues(String name) {
-                return parameterMap.get(name);
-            }
+    public void destroy() {
+        AccessLog.shutdown();
+        accessLog = null;
+    }
 
-            public String getParameter(String name) {
-                String[] params = getParameterValues(name);
-                return params != null && params.length > 0 ? params[0] : null;
-            }
+    private void log(HttpServletRequest request, HttpServletResponse response, long time, long started) {
+        accessLog.record(time, request.getRemoteAddr(), request.getHeader("userid"), request.getHeader("appid"),
+                request.getMethod(), request.getRequestURI(), request.getQueryString(), response.getStatus(),
+                (System.nanoTime() - started) / 1000000L);
+    }
 
-            public Enumeration<String> getParameterNames() {
-                return Collections.enumeration(parameterMap.keySet());
-            }
-        };
+    private static String nullToEmpty(String value) {
+        return (value == null) ? "" : value;
     }
 
     private static String getFullURL(HttpServletRequest request) {
@@ -124,4 +127,150 @@ public class LoggingFilter implements Filter {
             return requestURL.append('?').append(queryString).toString();
         }
     }
+
+    private static boolean isHidden(String name) {
+        return name.equalsIgnoreCase("uid") || name.equalsIgnoreCase("appid");
+    }
+
+    private static String[] firstValue(String[] values) {
+        return (values == null || values.length <= 1) ? values : new String[]{values[0]};
+    }
+
+    /**
+     * The request as the services see it, without the uid and appid parameters
+     * and with only the first value of each parameter. Reads through to the
+     * parameters of the request, nothing is copied.
+     */
+    private static class ParameterFilter extends HttpServletRequestWrapper {
+
+        private Map<String, String[]> parameterMap = null;
+
+        ParameterFilter(HttpServletRequest request) {
+            super(request);
+        }
+
+        @Override
+        public String getParameter(String name) {
+            return isHidden(name) ? null : super.getParameter(name);
+        }
+
+        @Override
+        public String[] getParameterValues(String name) {
+            return isHidden(name) ? null : firstValue(super.getParameterValues(name));
+        }
+
+        @Override
+        public Enumeration<String> getParameterNames() {
+            final Enumeration<String> names = super.getParameterNames();
+            return new Enumeration<String>() {
+                private String next = advance();
+
+                private String advance() {
+                    while (names.hasMoreElements()) {
+                        String name = names.nextElement();
+                        if (!isHidden(name)) {
+                            return name;
+                        }
+                    }
+                    return null;
+                }
+
+                public boolean hasMoreElements() {
+                    return next != null;
+                }
+
+                public String nextElement() {
+                    if (next == null) {
+                        throw new NoSuchElementException();
+                    }
+                    String name = next;
+                    next = advance();
+                    return name;
+                }
+            };
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Map<String, String[]> getParameterMap() {
+            if (parameterMap == null) {
+                parameterMap = new ParameterMapView((Map<String, String[]>) super.getParameterMap());
+            }
+            return parameterMap;
+        }
+    }
+
+    /**
+     * A read only view of the parameter map of the request, filtered as in
+     * ParameterFilter
+     */
+    private static class ParameterMapView extends AbstractMap<String, String[]> {
+
+        private final Map<String, String[]> parameters;
+
+        ParameterMapView(Map<String, String[]> parameters) {
+            this.parameters = parameters;
+        }
+
+        @Override
+        public String[] get(Object key) {
+            return (key instanceof String && !isHidden((String) key)) ? firstValue(parameters.get(key)) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof String && !isHidden((String) key) && parameters.containsKey(key);
+        }
+
+        @Override
+        public Set<Map.Entry<String, String[]>> entrySet() {
+            return new AbstractSet<Map.Entry<String, String[]>>() {
+                @Override
+                public Iterator<Map.Entry<String, String[]>> iterator() {
+                    final Iterator<Map.Entry<String, String[]>> it = parameters.entrySet().iterator();
+                    return new Iterator<Map.Entry<String, String[]>>() {
+                        private Map.Entry<String, String[]> next = advance();
+
+                        private Map.Entry<String, String[]> advance() {
+                            while (it.hasNext()) {
+                                Map.Entry<String, String[]> e = it.next();
+                                if (!isHidden(e.getKey())) {
+                                    return new SimpleImmutableEntry<String, String[]>(e.getKey(), firstValue(e.getValue()));
+                                }
+                            }
+                            return null;
+                        }
+
+                        public boolean hasNext() {
+                            return next != null;
+                        }
+
+                        public Map.Entry<String, String[]> next() {
+                            if (next == null) {
+                                throw new NoSuchElementException();
+                            }
+                            Map.Entry<String, String[]> e = next;
+                            next = advance();
+                            return e;
+                        }
+
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    int size = 0;
+                    for (String name : parameters.keySet()) {
+                        if (!isHidden(name)) {
+                            size++;
+                        }
+                    }
+                    return size;
+                }
+            };
+        }
+    }
 }
@@ -0,0 +1,97 @@
+/*
+ * Counts the heap allocated and the CPU time used by every request, see
+ * ResourceUsage. The totals are added up by resource, operation and appid on
+ * /metrics once the request completes (for requests processed asynchronously,
+ * when the async processing completes).
+ *
+ * The usage of a single request is sent back in the X-Allocated-Bytes and
+ * X-CPU-Time-Micros headers when the request carries the debug header with the
+ * configured token
+ * curl --header "X-Debug-Token: <usage.debugToken>" -i localhost:8080/imsrvcs/services/ImmunizationRecommendation?empi=2000079083
+ */
+package org.nyp.ezvac.imsrvcs.filters;
+
+import java.io.IOException;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+
+import org.nyp.ezvac.imsrvcs.metrics.Metrics;
+import org.nyp.ezvac.imsrvcs.metrics.ResourceUsage;
+import org.nyp.ezvac.imsrvcs.services.ServiceConfig;
+
+/**
+ * @author bdasgupt
+ */
+public class ResourceUsageFilter implements Filter {
+
+    private static final String[] USAGE_LABELS = {"resource", "operation", "appid"};
+
+    private boolean enabled = false;
+
+    public void init(FilterConfig config) throws ServletException {
+        enabled = ServiceConfig.getBoolean("usage.enabled", true) && ResourceUsage.isSupported();
+        System.out.println("*** Resource usage filter init, enabled: " + enabled);
+    }
+
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        if (!enabled) {
+            chain.doFilter(request, response);
+            return;
+        }
+        final HttpServletRequest httpRequest = (HttpServletRequest) request;
+        final ResourceUsage usage = ResourceUsage.start(httpRequest);
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            usage.suspend();
+            if (httpRequest.isAsyncStarted()) {
+                try {
+                    httpRequest.getAsyncContext().addListener(new AsyncListener() {
+                        public void onComplete(AsyncEvent event) throws IOException {
+                            record(httpRequest, usage);
+                        }
+
+                        public void onTimeout(AsyncEvent event) throws IOException {
+                        }
+
+                        public void onError(AsyncEvent event) throws IOException {
+                        }
+
+                        public void onStartAsync(AsyncEvent event) throws IOException {
+                        }
+                    });
+                } catch (IllegalStateException e) {
+                    // Already completed
+                    record(httpRequest, usage);
+                }
+            } else {
+                record(httpRequest, usage);
+            }
+        }
+    }
+
+    public void destroy() {
+    }
+
+    private static void record(HttpServletRequest request, ResourceUsage usage) {
+        String[] endpoint = Metrics.endpointOf(request);
+        String appid = request.getHeader("appid");
+        if (appid == null) {
+            appid = "";
+        }
+        Metrics.counter("imsrvcs_request_allocated_bytes_total", "Heap allocated by the requests",
+                USAGE_LABELS, endpoint[0], endpoint[1], appid).addAndGet(usage.getAllocatedBytes());
+        Metrics.counter("imsrvcs_request_cpu_microseconds_total", "CPU time used by the requests",
+                USAGE_LABELS, endpoint[0], endpoint[1], appid).addAndGet(usage.getCpuNanos() / 1000L);
+        Metrics.counter("imsrvcs_request_usage_count_total", "Requests counted in the allocated bytes and CPU time",
+                USAGE_LABELS, endpoint[0], endpoint[1], appid).incrementAndGet();
+    }
+}
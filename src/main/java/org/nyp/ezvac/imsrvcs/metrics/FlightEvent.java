@@ -0,0 +1,279 @@
+/**
+ * FlightEvent
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * Java Flight Recorder events for the hot paths of the services, so a
+ * recording shows recommendation requests, CIR syncs, ICE evaluations, rule
+ * evaluations and immunization queries next to the GC and lock events.
+ * <p>
+ * The services are built for Java 6, so the event types cannot extend
+ * jdk.jfr.Event. They are created at startup through jdk.jfr.EventFactory
+ * (JDK 11 and later), by reflection. On an older JVM, or when the types cannot
+ * be created, every event is a no-op. A listener on the flight recorder keeps
+ * track of whether any recording is running. When none is, begin() returns
+ * FlightSpan.OFF after reading that flag, nothing is allocated. The flight
+ * recorder belongs to the JVM, so the listener and the event types are removed
+ * (shutdown) when the web application is stopped.
+ * <p>
+ * FlightSpan span = FlightEvent.ICE_EVALUATION.begin();
+ * ...
+ * span.set("upid", upid).set("recommendations", n).commit();
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.metrics;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author bdasgupt
+ */
+public class FlightEvent {
+
+    private static final String CATEGORY = "Immunization Services";
+
+    public static final FlightEvent RECOMMENDATION_REQUEST = new FlightEvent("RecommendationRequest", "Recommendation Request",
+            new String[]{"upid", "empi", "series", "recommendations", "outcome", "stages"},
+            new Class<?>[]{String.class, String.class, String.class, int.class, String.class, String.class});
+
+    public static final FlightEvent CIR_SYNC_CALL = new FlightEvent("CirSyncCall", "CIR Sync Call",
+            new String[]{"upid", "httpStatus", "outcome"},
+            new Class<?>[]{String.class, int.class, String.class});
+
+    public static final FlightEvent ICE_EVALUATION = new FlightEvent("IceEvaluation", "ICE Evaluation",
+            new String[]{"upid", "auditDate", "recommendations", "outcome"},
+            new Class<?>[]{String.class, String.class, int.class, String.class});
+
+    public static final FlightEvent NYP_RULE_EVALUATION = new FlightEvent("NypRuleEvaluation", "NYP Rule Evaluation",
+            new String[]{"series", "outcome"},
+            new Class<?>[]{String.class, String.class});
+
+    public static final FlightEvent IMMUNIZATION_QUERY = new FlightEvent("ImmunizationQuery", "Immunization Query",
+            new String[]{"query", "patientId", "rows"},
+            new Class<?>[]{String.class, String.class, int.class});
+
+    public static final FlightEvent SHOT_STATUS_MERGE = new FlightEvent("ShotStatusMerge", "Shot Status Merge",
+            new String[]{"immunizations", "statuses", "merged"},
+            new Class<?>[]{int.class, int.class, int.class});
+
+    private final String name;
+    private final String[] fields;
+    // jdk.jfr.EventFactory and jdk.jfr.EventType, null when JFR is not available
+    private Object factory = null;
+    private Object eventType = null;
+
+    // Set by the flight recorder listener
+    private static volatile boolean recording = false;
+    private static boolean listening = false;
+    // jdk.jfr.FlightRecorderListener, kept to remove it again
+    private static Object listener = null;
+    private static Method removeListener = null;
+
+    private static Method isEnabled;
+    private static Method newEvent;
+    static Method begin;
+    static Method end;
+    static Method commit;
+    static Method set;
+
+    private FlightEvent(String name, String label, String[] fields, Class<?>[] types) {
+        this.name = name;
+        this.fields = fields;
+        try {
+            create(label, types);
+        } catch (Throwable t) {
+            // Not a JFR capable JVM
+            factory = null;
+            eventType = null;
+        }
+    }
+
+    /**
+     * Starts an event, the span is committed (or dropped) by the caller
+     *
+     * @return - FlightSpan.OFF when the event is not being recorded
+     */
+    public FlightSpan begin() {
+        if (!recording || eventType == null) {
+            return FlightSpan.OFF;
+        }
+        try {
+            if (!((Boolean) isEnabled.invoke(eventType))) {
+                return FlightSpan.OFF;
+            }
+            Object event = newEvent.invoke(factory);
+            begin.invoke(event);
+            return new FlightSpan(this, event);
+        } catch (Exception e) {
+            return FlightSpan.OFF;
+        }
+    }
+
+    /**
+     * Whether the event is being recorded
+     *
+     * @return
+     */
+    public boolean isEnabled() {
+        try {
+            return recording && eventType != null && (Boolean) isEnabled.invoke(eventType);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    int indexOf(String field) {
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i].equals(field)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void create(String label, Class<?>[] types) throws Exception {
+        ClassLoader loader = ClassLoader.getSystemClassLoader();
+        Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory", true, loader);
+        Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement", true, loader);
+        Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor", true, loader);
+        Class<? extends Annotation> nameAnnotation = (Class<? extends Annotation>) Class.forName("jdk.jfr.Name", true, loader);
+        Class<? extends Annotation> labelAnnotation = (Class<? extends Annotation>) Class.forName("jdk.jfr.Label", true, loader);
+        Class<? extends Annotation> categoryAnnotation = (Class<? extends Annotation>) Class.forName("jdk.jfr.Category", true, loader);
+        Class<? extends Annotation> stackTraceAnnotation = (Class<? extends Annotation>) Class.forName("jdk.jfr.StackTrace", true, loader);
+        Constructor<?> newAnnotation = annotationElement.getConstructor(Class.class, Object.class);
+        Constructor<?> newValue = valueDescriptor.getConstructor(Class.class, String.class, List.class);
+
+        List<Object> annotations = new ArrayList<Object>();
+        annotations.add(newAnnotation.newInstance(nameAnnotation, "org.nyp.ezvac.imsrvcs." + name));
+        annotations.add(newAnnotation.newInstance(labelAnnotation, label));
+        Object category = Array.newInstance(String.class, 1);
+        Array.set(category, 0, CATEGORY);
+        annotations.add(newAnnotation.newInstance(categoryAnnotation, category));
+        // The spans are identified by their fields, stack traces only add to the cost
+        annotations.add(newAnnotation.newInstance(stackTraceAnnotation, Boolean.FALSE));
+
+        List<Object> values = new ArrayList<Object>();
+        for (int i = 0; i < fields.length; i++) {
+            values.add(newValue.newInstance(types[i], fields[i], Collections.emptyList()));
+        }
+
+        Object created = factoryClass.getMethod("create", List.class, List.class).invoke(null, annotations, values);
+        Object type = factoryClass.getMethod("getEventType").invoke(created);
+
+        synchronized (FlightEvent.class) {
+            if (newEvent == null) {
+                Class<?> eventClass = Class.forName("jdk.jfr.Event", true, loader);
+                isEnabled = type.getClass().getMethod("isEnabled");
+                newEvent = factoryClass.getMethod("newEvent");
+                begin = eventClass.getMethod("begin");
+                end = eventClass.getMethod("end");
+                commit = eventClass.getMethod("commit");
+                set = eventClass.getMethod("set", int.class, Object.class);
+            }
+            if (!listening) {
+                listen(loader);
+                listening = true;
+            }
+        }
+        this.factory = created;
+        this.eventType = type;
+        System.out.println("JFR event " + getName() + " registered");
+    }
+
+    /**
+     * Follows the recordings started and stopped (jcmd JFR.start, JMC or
+     * -XX:StartFlightRecording)
+     *
+     * @param loader
+     * @throws Exception
+     */
+    private static void listen(ClassLoader loader) throws Exception {
+        final Class<?> recorderClass = Class.forName("jdk.jfr.FlightRecorder", true, loader);
+        Class<?> listenerClass = Class.forName("jdk.jfr.FlightRecorderListener", true, loader);
+        listener = Proxy.newProxyInstance(loader, new Class<?>[]{listenerClass}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("recordingStateChanged") || method.getName().equals("recorderInitialized")) {
+                    recording = isRecording(recorderClass);
+                    return null;
+                } else if (method.getName().equals("hashCode")) {
+                    return System.identityHashCode(proxy);
+                } else if (method.getName().equals("equals")) {
+                    return proxy == args[0];
+                } else if (method.getName().equals("toString")) {
+                    return "FlightEvent listener";
+                }
+                return null;
+            }
+        });
+        recorderClass.getMethod("addListener", listenerClass).invoke(null, listener);
+        removeListener = recorderClass.getMethod("removeListener", listenerClass);
+        if (((Boolean) recorderClass.getMethod("isInitialized").invoke(null))) {
+            recording = isRecording(recorderClass);
+        }
+    }
+
+    /**
+     * Removes the listener from the flight recorder and unregisters the event
+     * types, so they do not hold on to the web application's classes. Called
+     * when the web application is stopped, the events are no-ops afterwards.
+     */
+    public static synchronized void shutdown() {
+        recording = false;
+        if (listener != null) {
+            try {
+                removeListener.invoke(null, listener);
+            } catch (Exception e) {
+                System.out.println("JFR listener not removed: " + e);
+            }
+            listener = null;
+            removeListener = null;
+            listening = false;
+        }
+        FlightEvent[] events = {RECOMMENDATION_REQUEST, CIR_SYNC_CALL, ICE_EVALUATION, NYP_RULE_EVALUATION,
+            IMMUNIZATION_QUERY, SHOT_STATUS_MERGE};
+        for (FlightEvent event : events) {
+            event.unregister();
+        }
+    }
+
+    private void unregister() {
+        if (factory == null) {
+            return;
+        }
+        try {
+            factory.getClass().getMethod("unregister").invoke(factory);
+        } catch (Exception e) {
+        }
+        factory = null;
+        eventType = null;
+    }
+
+    private static boolean isRecording(Class<?> recorderClass) {
+        try {
+            Object recorder = recorderClass.getMethod("getFlightRecorder").invoke(null);
+            List<?> recordings = (List<?>) recorderClass.getMethod("getRecordings").invoke(recorder);
+            for (Object r : recordings) {
+                if ("RUNNING".equals(String.valueOf(r.getClass().getMethod("getState").invoke(r)))) {
+                    return true;
+                }
+            }
+        } catch (Exception e) {
+        }
+        return false;
+    }
+}
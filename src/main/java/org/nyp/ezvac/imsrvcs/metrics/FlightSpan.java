@@ -0,0 +1,93 @@
+/**
+ * FlightSpan
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * A started FlightEvent. The fields are set as the work goes on and the span is
+ * committed when it is done, which records it with its duration. The OFF span
+ * (no recording) ignores everything, so callers never need to check.
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.metrics;
+
+/**
+ * @author bdasgupt
+ */
+public class FlightSpan {
+
+    public static final FlightSpan OFF = new FlightSpan(null, null);
+
+    private final FlightEvent type;
+    private final Object event;
+
+    FlightSpan(FlightEvent type, Object event) {
+        this.type = type;
+        this.event = event;
+    }
+
+    /**
+     * Whether the span is being recorded, to skip working out field values
+     * that are costly
+     *
+     * @return
+     */
+    public boolean isRecording() {
+        return event != null;
+    }
+
+    public FlightSpan set(String field, String value) {
+        if (event != null) {
+            setValue(field, value);
+        }
+        return this;
+    }
+
+    public FlightSpan set(String field, int value) {
+        if (event != null) {
+            setValue(field, value);
+        }
+        return this;
+    }
+
+    /**
+     * Sets a text field to the value's string, worked out only when the span
+     * is being recorded
+     *
+     * @param field
+     * @param value
+     * @return
+     */
+    public FlightSpan set(String field, Object value) {
+        if (event != null) {
+            setValue(field, (value == null) ? null : value.toString());
+        }
+        return this;
+    }
+
+    /**
+     * Ends the span and records it
+     */
+    public void commit() {
+        if (event == null) {
+            return;
+        }
+        try {
+            FlightEvent.end.invoke(event);
+            FlightEvent.commit.invoke(event);
+        } catch (Exception e) {
+        }
+    }
+
+    private void setValue(String field, Object value) {
+        int index = type.indexOf(field);
+        if (index < 0) {
+            throw new IllegalArgumentException("No field " + field + " in " + type.getName());
+        }
+        try {
+            FlightEvent.set.invoke(event, index, value);
+        } catch (Exception e) {
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * LatencyHistogram
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * A lock free latency histogram with HDR style log-linear buckets. Latencies
+ * are counted in microseconds, every power of 2 is split into 8 buckets, so a
+ * latency is placed within 12.5% of its value from 1 microsecond up to about
+ * 19 hours. Recording is two atomic increments, no locks and no allocation.
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @author bdasgupt
+ */
+public class LatencyHistogram {
+
+    // 2^SUB_BUCKET_BITS buckets per power of 2
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 36;
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong sumNanos = new AtomicLong();
+
+    /**
+     * Records a latency
+     *
+     * @param nanos
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(bucketOf(nanos / 1000L));
+        sumNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Records the time since startNanos (System.nanoTime)
+     *
+     * @param startNanos
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getSumNanos() {
+        return sumNanos.get();
+    }
+
+    /**
+     * A copy of the bucket counts, see lowerBoundMicros for the bucket bounds
+     *
+     * @return
+     */
+    public long[] getCounts() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return copy;
+    }
+
+    /**
+     * The latency below which the fraction of the recorded latencies falls, in
+     * microseconds (the upper bound of its bucket)
+     *
+     * @param quantile - 0.0 to 1.0
+     * @return
+     */
+    public long getQuantileMicros(double quantile) {
+        long[] c = getCounts();
+        long total = 0;
+        for (long n : c) {
+            total += n;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += c[i];
+            if (seen >= Math.max(1, rank)) {
+                return lowerBoundMicros(i + 1);
+            }
+        }
+        return lowerBoundMicros(BUCKETS);
+    }
+
+    static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * The smallest latency of the bucket in microseconds, the bucket holds the
+     * latencies up to (not including) the lower bound of the next bucket
+     *
+     * @param bucket
+     * @return
+     */
+    static long lowerBoundMicros(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+    }
+}
@@ -0,0 +1,392 @@
+/**
+ * Metrics
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * The latency histograms and counters of the services, written out by the
+ * MetricsServlet in the Prometheus text format. Every metric has a name and at
+ * most a couple of labels, e.g. the stage of a recommendation request. A metric
+ * is created the first time it is used and kept for the life of the
+ * application. The number of label values of a metric is capped, further values
+ * are counted under "other".
+ * <p>
+ * Recording is lock free (see LatencyHistogram), so the metrics are left on in
+ * production. metrics.enabled=false in imsrvcs.properties turns the recording
+ * off.
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.metrics;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import javax.servlet.http.HttpServletRequest;
+import javax.sql.DataSource;
+
+import org.nyp.ezvac.imsrvcs.services.ServiceConfig;
+
+/**
+ * @author bdasgupt
+ */
+public class Metrics {
+
+    public static final String REQUEST_SECONDS = "imsrvcs_request_seconds";
+    public static final String STAGE_SECONDS = "imsrvcs_stage_seconds";
+    public static final String POOL_WAIT_SECONDS = "imsrvcs_db_pool_wait_seconds";
+    public static final String UPSTREAM_ERRORS = "imsrvcs_upstream_errors_total";
+    public static final String REQUEST_ERRORS = "imsrvcs_request_errors_total";
+
+    private static final String[] STAGE_LABELS = {"stage"};
+    private static final String[] REQUEST_LABELS = {"resource", "operation"};
+    private static final String[] UPSTREAM_LABELS = {"upstream"};
+    private static final String[] NO_LABELS = {};
+
+    private static final Pattern RESOURCE_NAME = Pattern.compile("[A-Za-z]+");
+
+    private static final boolean ENABLED = ServiceConfig.getBoolean("metrics.enabled", true);
+
+    // Label values kept per metric, the rest are counted as "other"
+    private static final int MAX_LABEL_VALUES = 200;
+
+    // Upper bounds of the exported histogram buckets, in seconds
+    private static final double[] BUCKET_SECONDS = {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5,
+        1, 2.5, 5, 10, 30, 60, 120};
+
+    private static final ConcurrentMap<String, Family> families = new ConcurrentHashMap<String, Family>();
+
+    private static final LatencyHistogram DISABLED_HISTOGRAM = new LatencyHistogram();
+    private static final AtomicLong DISABLED_COUNTER = new AtomicLong();
+
+    /**
+     * The metrics of a name, one per set of label values
+     */
+    private static class Family {
+        final String name;
+        final String help;
+        final boolean histogram;
+        final String[] labelNames;
+        final ConcurrentMap<String, Object> children = new ConcurrentHashMap<String, Object>();
+        final ConcurrentMap<String, String[]> labelValues = new ConcurrentHashMap<String, String[]>();
+
+        Family(String name, String help, boolean histogram, String[] labelNames) {
+            this.name = name;
+            this.help = help;
+            this.histogram = histogram;
+            this.labelNames = labelNames;
+        }
+
+        Object get(String key, String[] values) {
+            Object child = children.get(key);
+            if (child != null) {
+                return child;
+            }
+            if (children.size() >= MAX_LABEL_VALUES) {
+                String[] other = new String[values.length];
+                for (int i = 0; i < other.length; i++) {
+                    other[i] = "other";
+                }
+                key = keyOf(other);
+                values = other;
+                child = children.get(key);
+                if (child != null) {
+                    return child;
+                }
+            }
+            Object created = histogram ? new LatencyHistogram() : new AtomicLong();
+            child = children.putIfAbsent(key, created);
+            if (child == null) {
+                labelValues.put(key, values.clone());
+                child = created;
+            }
+            return child;
+        }
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * The latency histogram of the metric with the given label values
+     *
+     * @param name - e.g. imsrvcs_stage_seconds
+     * @param help - description, used when the metric is first created
+     * @param labelNames
+     * @param labelValues
+     * @return
+     */
+    public static LatencyHistogram histogram(String name, String help, String[] labelNames, String... labelValues) {
+        if (!ENABLED) {
+            return DISABLED_HISTOGRAM;
+        }
+        return (LatencyHistogram) family(name, help, true, labelNames).get(keyOf(labelValues), labelValues);
+    }
+
+    /**
+     * The counter of the metric with the given label values
+     *
+     * @param name - e.g. imsrvcs_upstream_errors_total
+     * @param help - description, used when the metric is first created
+     * @param labelNames
+     * @param labelValues
+     * @return
+     */
+    public static AtomicLong counter(String name, String help, String[] labelNames, String... labelValues) {
+        if (!ENABLED) {
+            return DISABLED_COUNTER;
+        }
+        return (AtomicLong) family(name, help, false, labelNames).get(keyOf(labelValues), labelValues);
+    }
+
+    /**
+     * Records the time spent in a stage of a request
+     *
+     * @param stage
+     * @param nanos
+     */
+    public static void recordStage(String stage, long nanos) {
+        histogram(STAGE_SECONDS, "Time spent in each stage of a request", STAGE_LABELS, stage).record(nanos);
+    }
+
+    /**
+     * Records the time taken by a request to a provider, and counts it as an
+     * error if it failed (status 500 and up)
+     *
+     * @param resource - the resource type, e.g. ImmunizationRecommendation
+     * @param operation - read, search or the name of the operation
+     * @param status - the response status
+     * @param nanos
+     */
+    public static void recordRequest(String resource, String operation, int status, long nanos) {
+        histogram(REQUEST_SECONDS, "Time taken by the requests, by resource and operation",
+                REQUEST_LABELS, resource, operation).record(nanos);
+        if (status >= 500) {
+            counter(REQUEST_ERRORS, "Requests that failed with a server error, by resource and operation",
+                    REQUEST_LABELS, resource, operation).incrementAndGet();
+        }
+    }
+
+    /**
+     * The resource type (e.g. ImmunizationRecommendation) and operation (read,
+     * search, $forecast-timeline ...) a request to the services is for
+     *
+     * @param request
+     * @return - {resource, operation}
+     */
+    public static String[] endpointOf(HttpServletRequest request) {
+        String resource = "";
+        String operation = request.getMethod().toLowerCase();
+        String path = request.getPathInfo();
+        String[] parts = (path == null || path.length() < 2) ? new String[0] : path.substring(1).split("/");
+        if (parts.length > 0 && !parts[0].startsWith("$")) {
+            // Anything but a resource name is not worth a label of its own
+            resource = RESOURCE_NAME.matcher(parts[0]).matches() ? parts[0] : "other";
+        }
+        String last = (parts.length > 0) ? parts[parts.length - 1] : "";
+        if (last.startsWith("$")) {
+            operation = last;
+        } else if ("metadata".equals(resource)) {
+            operation = "metadata";
+        } else if ("GET".equals(request.getMethod())) {
+            operation = (parts.length == 2 && !parts[1].startsWith("_")) ? "read" : "search";
+        }
+        return new String[]{resource, operation};
+    }
+
+    /**
+     * Counts a failed call to an upstream service
+     *
+     * @param upstream - db, cir or ice
+     */
+    public static void upstreamError(String upstream) {
+        counter(UPSTREAM_ERRORS, "Failed calls to the database, the CIR sync service and the recommendation engine",
+                UPSTREAM_LABELS, upstream).incrementAndGet();
+    }
+
+    /**
+     * Takes a connection from the pool, timing the wait
+     *
+     * @param ds
+     * @return
+     * @throws SQLException
+     */
+    public static Connection getConnection(DataSource ds) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return ds.getConnection();
+        } catch (SQLException e) {
+            upstreamError("db");
+            throw e;
+        } finally {
+            histogram(POOL_WAIT_SECONDS, "Time spent waiting for a jdbc/nypis connection", NO_LABELS, NO_LABELS).recordSince(start);
+        }
+    }
+
+    /**
+     * Writes the histograms and counters in the Prometheus text format
+     *
+     * @param out
+     */
+    public static void writeTo(PrintWriter out) {
+        List<String> names = new ArrayList<String>(families.keySet());
+        Collections.sort(names);
+        for (String name : names) {
+            Family family = families.get(name);
+            out.print("# HELP ");
+            out.print(family.name);
+            out.print(' ');
+            out.println(family.help);
+            out.print("# TYPE ");
+            out.print(family.name);
+            out.println(family.histogram ? " histogram" : " counter");
+            for (Map.Entry<String, Object> child : family.children.entrySet()) {
+                String[] values = family.labelValues.get(child.getKey());
+                if (values == null) {
+                    // Still being created
+                    continue;
+                }
+                String labels = formatLabels(family.labelNames, values);
+                if (family.histogram) {
+                    writeHistogram(out, family.name, labels, (LatencyHistogram) child.getValue());
+                } else {
+                    writeSample(out, family.name, labels, null, Long.toString(((AtomicLong) child.getValue()).get()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a single value
+     *
+     * @param out
+     * @param name
+     * @param help
+     * @param type - counter or gauge
+     * @param value
+     */
+    public static void writeValue(PrintWriter out, String name, String help, String type, double value) {
+        out.print("# HELP ");
+        out.print(name);
+        out.print(' ');
+        out.println(help);
+        out.print("# TYPE ");
+        out.print(name);
+        out.print(' ');
+        out.println(type);
+        writeSample(out, name, "", null, formatDouble(value));
+    }
+
+    private static Family family(String name, String help, boolean histogram, String[] labelNames) {
+        Family family = families.get(name);
+        if (family == null) {
+            Family created = new Family(name, help, histogram, labelNames);
+            family = families.putIfAbsent(name, created);
+            if (family == null) {
+                family = created;
+            }
+        }
+        return family;
+    }
+
+    private static void writeHistogram(PrintWriter out, String name, String labels, LatencyHistogram histogram) {
+        long[] counts = histogram.getCounts();
+        long cumulative = 0;
+        int bucket = 0;
+        for (double bound : BUCKET_SECONDS) {
+            long boundMicros = (long) (bound * 1000000L);
+            // Whole buckets below the bound, and the share of the bucket the bound falls in
+            while (bucket < counts.length && LatencyHistogram.lowerBoundMicros(bucket + 1) <= boundMicros) {
+                cumulative += counts[bucket];
+                bucket++;
+            }
+            long partial = 0;
+            if (bucket < counts.length && counts[bucket] > 0) {
+                long low = LatencyHistogram.lowerBoundMicros(bucket);
+                long high = LatencyHistogram.lowerBoundMicros(bucket + 1);
+                if (boundMicros > low) {
+                    partial = counts[bucket] * (boundMicros - low) / (high - low);
+                }
+            }
+            writeSample(out, name + "_bucket", labels, formatDouble(bound), Long.toString(cumulative + partial));
+        }
+        long total = cumulative;
+        for (int i = bucket; i < counts.length; i++) {
+            total += counts[i];
+        }
+        writeSample(out, name + "_bucket", labels, "+Inf", Long.toString(total));
+        writeSample(out, name + "_sum", labels, null, formatDouble(histogram.getSumNanos() / 1e9));
+        writeSample(out, name + "_count", labels, null, Long.toString(total));
+    }
+
+    private static void writeSample(PrintWriter out, String name, String labels, String le, String value) {
+        out.print(name);
+        if (labels.length() > 0 || le != null) {
+            out.print('{');
+            out.print(labels);
+            if (le != null) {
+                if (labels.length() > 0) {
+                    out.print(',');
+                }
+                out.print("le=\"");
+                out.print(le);
+                out.print('"');
+            }
+            out.print('}');
+        }
+        out.print(' ');
+        out.println(value);
+    }
+
+    private static String formatLabels(String[] names, String[] values) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < names.length && i < values.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(names[i]).append("=\"");
+            String value = (values[i] == null) ? "" : values[i];
+            for (int j = 0; j < value.length(); j++) {
+                char c = value.charAt(j);
+                if (c == '\\' || c == '"') {
+                    sb.append('\\').append(c);
+                } else if (c == '\n') {
+                    sb.append("\\n");
+                } else {
+                    sb.append(c);
+                }
+            }
+            sb.append('"');
+        }
+        return sb.toString();
+    }
+
+    private static String formatDouble(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    private static String keyOf(String[] values) {
+        if (values.length == 1) {
+            return (values[0] == null) ? "" : values[0];
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                sb.append('\u0000');
+            }
+            sb.append(values[i]);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * MetricsInterceptor
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * Marks the time a provider returned its response, before HAPI serializes it.
+ * Services records the time from the mark to the end of the request as the
+ * serialize stage.
+ * <p>
+ * Adds the X-Allocated-Bytes and X-CPU-Time-Micros headers with the usage of
+ * the request so far (see ResourceUsage) when the request carries the debug
+ * header (usage.debugHeader) with the configured token (usage.debugToken).
+ * The headers are set before HAPI writes the response, so they do not include
+ * the serialization.
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.metrics;
+
+import ca.uhn.fhir.rest.method.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.interceptor.InterceptorAdapter;
+
+import java.io.IOException;
+import javax.servlet.ServletException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.nyp.ezvac.imsrvcs.services.ServiceConfig;
+
+/**
+ * @author bdasgupt
+ */
+public class MetricsInterceptor extends InterceptorAdapter {
+
+    public static final String STAGE_SERIALIZE = "serialize";
+
+    private static final String RESPONSE_READY = MetricsInterceptor.class.getName() + ".responseReady";
+
+    private static final String DEBUG_HEADER = ServiceConfig.getString("usage.debugHeader", "X-Debug-Token");
+    private static final String DEBUG_TOKEN = ServiceConfig.getString("usage.debugToken", "");
+
+    @Override
+    public boolean outgoingResponse(RequestDetails theRequestDetails, IBaseResource theResponseObject,
+                                    HttpServletRequest theServletRequest, HttpServletResponse theServletResponse) {
+        theServletRequest.setAttribute(RESPONSE_READY, System.nanoTime());
+        addUsageHeaders(theServletRequest, theServletResponse);
+        return true;
+    }
+
+    @Override
+    public boolean handleException(RequestDetails theRequestDetails, BaseServerResponseException theException,
+                                   HttpServletRequest theServletRequest, HttpServletResponse theServletResponse)
+            throws ServletException, IOException {
+        addUsageHeaders(theServletRequest, theServletResponse);
+        return true;
+    }
+
+    /**
+     * Sends back the usage of the request, only to callers holding the token
+     *
+     * @param request
+     * @param response
+     */
+    private static void addUsageHeaders(HttpServletRequest request, HttpServletResponse response) {
+        if (DEBUG_TOKEN.length() == 0 || !DEBUG_TOKEN.equals(request.getHeader(DEBUG_HEADER))) {
+            return;
+        }
+        ResourceUsage usage = ResourceUsage.get(request);
+        if (usage != null) {
+            response.setHeader("X-Allocated-Bytes", String.valueOf(usage.getAllocatedBytes()));
+            response.setHeader("X-CPU-Time-Micros", String.valueOf(usage.getCpuNanos() / 1000L));
+        }
+    }
+
+    /**
+     * Records the serialize stage of the request, if a response was returned
+     * by a provider
+     *
+     * @param request
+     */
+    public static void recordSerialization(HttpServletRequest request) {
+        Object ready = request.getAttribute(RESPONSE_READY);
+        if (ready instanceof Long) {
+            Metrics.recordStage(STAGE_SERIALIZE, System.nanoTime() - (Long) ready);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * MetricsServlet
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * The metrics of the services in the Prometheus text format
+ * <p>
+ * http://localhost:8080/imsrvcs/metrics
+ * <p>
+ * - imsrvcs_request_seconds - latency by resource and operation (read, search,
+ * $forecast-timeline ...)
+ * - imsrvcs_request_errors_total - requests that failed with a server error
+ * - imsrvcs_stage_seconds - latency by stage of the recommendation and history
+ * requests (cirSync, ice, rules, serialize ...)
+ * - imsrvcs_db_pool_wait_seconds - time waiting for a jdbc/nypis connection
+ * - imsrvcs_upstream_errors_total - failed calls to db, cir and ice
+ * - imsrvcs_request_allocated_bytes_total, imsrvcs_request_cpu_microseconds_total
+ * - heap allocated and CPU time by resource, operation and appid
+ * - the evaluation cache, CIR sync client and access log counters
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.metrics;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.nyp.ezvac.imsrvcs.cache.EvaluationCache;
+import org.nyp.ezvac.imsrvcs.cirsync.CIRSyncClient;
+import org.nyp.ezvac.imsrvcs.filters.AccessLog;
+
+/**
+ * @author bdasgupt
+ */
+@WebServlet(name = "Metrics", urlPatterns = {"/metrics"}, displayName = "Immunization Services Metrics")
+public class MetricsServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+        response.setHeader("Cache-Control", "no-cache");
+        PrintWriter out = response.getWriter();
+
+        Metrics.writeTo(out);
+
+        EvaluationCache cache = EvaluationCache.getInstance();
+        Metrics.writeValue(out, "imsrvcs_evaluation_cache_hits_total", "Evaluations served from the cache", "counter", cache.getHitCount());
+        Metrics.writeValue(out, "imsrvcs_evaluation_cache_misses_total", "Evaluations run on a cache miss", "counter", cache.getMissCount());
+        Metrics.writeValue(out, "imsrvcs_evaluation_cache_evictions_total", "Patients evicted from the cache", "counter", cache.getEvictionCount());
+        Metrics.writeValue(out, "imsrvcs_evaluation_cache_expirations_total", "Evaluations expired in the cache", "counter", cache.getExpirationCount());
+        Metrics.writeValue(out, "imsrvcs_evaluation_cache_size", "Evaluations held in the cache", "gauge", cache.size());
+
+        CIRSyncClient cir = CIRSyncClient.getInstance();
+        Metrics.writeValue(out, "imsrvcs_cirsync_calls_total", "CIR syncs attempted", "counter", cir.getCallCount());
+        Metrics.writeValue(out, "imsrvcs_cirsync_rejected_total", "CIR syncs rejected with all connections busy", "counter", cir.getRejectedCount());
+        Metrics.writeValue(out, "imsrvcs_cirsync_open_connections", "Pooled CIR sync connections", "gauge", cir.getOpenConnections());
+
+        AccessLog accessLog = AccessLog.getInstance();
+        if (accessLog != null) {
+            Metrics.writeValue(out, "imsrvcs_accesslog_written_total", "Access log records written", "counter", accessLog.getWritten());
+            Metrics.writeValue(out, "imsrvcs_accesslog_dropped_total", "Access log records dropped with the ring full", "counter", accessLog.getDropped());
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,144 @@
+/**
+ * ResourceUsage
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * The heap allocated and the CPU time used by a request, from the per thread
+ * counters of the JVM (com.sun.management.ThreadMXBean). A request can be
+ * worked on by more than one thread - the container thread, then the request
+ * executor for the asynchronous requests - so each thread adds what it used
+ * between resume() and suspend(). Work handed off to the pipeline and CIR sync
+ * executors is not counted.
+ * <p>
+ * The usage is kept as a request attribute, see ResourceUsageFilter.
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import javax.servlet.ServletRequest;
+
+/**
+ * @author bdasgupt
+ */
+public class ResourceUsage {
+
+    private static final String ATTRIBUTE = ResourceUsage.class.getName();
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_SUPPORTED;
+    private static final boolean ALLOCATION_SUPPORTED;
+
+    static {
+        boolean cpu = false;
+        boolean allocation = false;
+        try {
+            cpu = THREADS.isCurrentThreadCpuTimeSupported();
+            if (cpu && !THREADS.isThreadCpuTimeEnabled()) {
+                THREADS.setThreadCpuTimeEnabled(true);
+            }
+            if (THREADS instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) THREADS;
+                allocation = sunThreads.isThreadAllocatedMemorySupported();
+                if (allocation && !sunThreads.isThreadAllocatedMemoryEnabled()) {
+                    sunThreads.setThreadAllocatedMemoryEnabled(true);
+                }
+            }
+        } catch (Throwable t) {
+            // Not a HotSpot JVM, or not allowed to turn the counters on
+            System.out.println("Per request CPU and allocation accounting is not available: " + t);
+        }
+        CPU_SUPPORTED = cpu;
+        ALLOCATION_SUPPORTED = allocation;
+    }
+
+    private long allocatedBytes = 0;
+    private long cpuNanos = 0;
+
+    // The threads working on the request, and their counters when they
+    // started. The executor thread can resume before the container thread has
+    // suspended.
+    private final Map<Thread, long[]> open = new IdentityHashMap<Thread, long[]>(4);
+
+    /**
+     * Starts counting on the current thread for the request
+     *
+     * @param request
+     * @return
+     */
+    public static ResourceUsage start(ServletRequest request) {
+        ResourceUsage usage = new ResourceUsage();
+        request.setAttribute(ATTRIBUTE, usage);
+        usage.resume();
+        return usage;
+    }
+
+    /**
+     * The usage of the request, null if it is not counted
+     *
+     * @param request
+     * @return
+     */
+    public static ResourceUsage get(ServletRequest request) {
+        Object usage = request.getAttribute(ATTRIBUTE);
+        return (usage instanceof ResourceUsage) ? (ResourceUsage) usage : null;
+    }
+
+    public static boolean isSupported() {
+        return CPU_SUPPORTED || ALLOCATION_SUPPORTED;
+    }
+
+    /**
+     * The current thread starts working on the request
+     */
+    public synchronized void resume() {
+        open.put(Thread.currentThread(), new long[]{threadAllocatedBytes(), threadCpuNanos()});
+    }
+
+    /**
+     * The current thread is done with the request (for now), adds what it used
+     */
+    public synchronized void suspend() {
+        long[] started = open.remove(Thread.currentThread());
+        if (started != null) {
+            allocatedBytes += threadAllocatedBytes() - started[0];
+            cpuNanos += threadCpuNanos() - started[1];
+        }
+    }
+
+    /**
+     * The bytes allocated so far, including the current thread
+     *
+     * @return
+     */
+    public synchronized long getAllocatedBytes() {
+        long[] started = open.get(Thread.currentThread());
+        return allocatedBytes + ((started == null) ? 0 : threadAllocatedBytes() - started[0]);
+    }
+
+    /**
+     * The CPU time used so far, including the current thread
+     *
+     * @return
+     */
+    public synchronized long getCpuNanos() {
+        long[] started = open.get(Thread.currentThread());
+        return cpuNanos + ((started == null) ? 0 : threadCpuNanos() - started[1]);
+    }
+
+    private static long threadAllocatedBytes() {
+        if (!ALLOCATION_SUPPORTED) {
+            return 0;
+        }
+        return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static long threadCpuNanos() {
+        return CPU_SUPPORTED ? THREADS.getCurrentThreadCpuTime() : 0;
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * ImmunizationHistoryCheck
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * The HistoryCheck of the EvaluationCache, against the immunization history in
+ * the database: the history of a patient changed when one of its immunizations
+ * was added or updated (im.update_time) after the time. The lookup is served by
+ * the (upid, update_time) index on improd.immunizationmix_table (see
+ * datafiles/sql/immunization_sync_indexes.sql). Installed when the web
+ * application is started (see Services).
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.pipeline;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.sql.DataSource;
+
+import org.nyp.ezvac.imsrvcs.cache.HistoryCheck;
+import org.nyp.ezvac.imsrvcs.metrics.Metrics;
+import org.nyp.ezvac.imsrvcs.services.RequestDeadline;
+
+/**
+ * @author bdasgupt
+ */
+public class ImmunizationHistoryCheck implements HistoryCheck {
+
+    private static final String GET_LAST_UPDATE = "SELECT MAX(update_time) FROM improd.immunizationmix_table WHERE upid = ?";
+
+    public boolean hasChangedSince(String upid, long time) throws Exception {
+        Timestamp lastUpdate = getLastUpdate(upid);
+        return lastUpdate != null && lastUpdate.getTime() > time;
+    }
+
+    /**
+     * When an immunization of the patient was last added or updated
+     *
+     * @param upid
+     * @return - null if the patient has none
+     * @throws Exception
+     */
+    private Timestamp getLastUpdate(String upid) throws Exception {
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            Context ctx = new InitialContext();
+            DataSource ds = (DataSource) ctx.lookup("java:comp/env/jdbc/nypis");
+            conn = Metrics.getConnection(ds);
+            pstmt = conn.prepareStatement(GET_LAST_UPDATE);
+            RequestDeadline.current().applyTo(pstmt);
+            pstmt.setString(1, upid);
+            rs = pstmt.executeQuery();
+            return rs.next() ? rs.getTimestamp(1) : null;
+        } finally {
+            try {
+                if (rs != null) {
+                    rs.close();
+                }
+                if (pstmt != null) {
+                    pstmt.close();
+                }
+                if (conn != null) {
+                    conn.close();
+                }
+            } catch (Exception e) {
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/**
+ * LocalSeriesEvaluator
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * The flu and MenB recommendations are computed by the NYP rules (NYPFluRules
+ * and NYPRules.recommendationMenB) from the immunization history and the
+ * demographics alone. When a request only asks for those series (series=flu or
+ * series=menb), the patient is evaluated from a direct history query instead of
+ * the recommendation engine, which takes milliseconds instead of seconds.
+ * <p>
+ * The local evaluation uses the history that is in the database, after a CIR
+ * sync when the request asks for one. Requests that do not apply the NYP rules
+ * get the engine's flu and MenB recommendations instead.
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.pipeline;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.nyp.ezvac.imsrvcs.cache.CDSEvaluation;
+import org.nyp.ezvac.imsrvcs.services.RequestDeadline;
+import org.nyph.cdslibrary.dto.HistoryStatusDTO;
+import org.nyph.cdslibrary.dto.ImmunizationRecommendationDTO;
+
+/**
+ * @author bdasgupt
+ */
+public class LocalSeriesEvaluator {
+
+    public static final String FLU_SERIES = "Influenza Vaccine Group";
+    public static final String MENB_SERIES = "MenB Vaccine Group";
+
+    private static final String FIELD_NAMES = "a.immunization_id, b.doh_code, a.vaccine_date ";
+    private static final String TABLE_NAMES = "improd.immunizationmix_table a, improd.vaccinemapper_table b ";
+
+    private static final String GET_IMMUNIZATIONS_BY = "SELECT " + FIELD_NAMES + " FROM " + TABLE_NAMES
+            + " WHERE (a.vaccine_mixcode = b.vaccine_medcode) AND a.upid = ? AND a.display='Y'";
+
+    private static final String GET_DEMOGRAPHICS = "SELECT dob, sex FROM improd.patient_table WHERE upid = ?";
+
+    // The influenza CVX codes
+    private static final Set<Integer> FLU_CVX_CODES = new HashSet<Integer>(Arrays.asList(
+            15, 16, 88, 111, 135, 140, 141, 144, 149, 150, 151, 153, 155, 158, 161, 166, 168, 171, 185, 186, 197, 200, 201, 205));
+
+    // The MenB CVX codes, the MenB series is computed by NYPRules from the codes
+    private static final Set<Integer> MENB_CVX_CODES = new HashSet<Integer>(Arrays.asList(162, 163));
+
+    private static final Set<String> LOCAL_SERIES = new HashSet<String>(Arrays.asList(FLU_SERIES, MENB_SERIES));
+
+    private LocalSeriesEvaluator() {
+    }
+
+    /**
+     * Maps the series names a client can ask for (e.g. flu, influenza, MenB, Hep
+     * A Vaccine Group) to the series names of the recommendations.
+     *
+     * @param series
+     * @return
+     */
+    public static String normalizeSeries(String series) {
+        String s = series.trim();
+        if (s.equalsIgnoreCase("flu") || s.equalsIgnoreCase("influenza") || s.equalsIgnoreCase(FLU_SERIES)) {
+            return FLU_SERIES;
+        }
+        if (s.equalsIgnoreCase("menb") || s.equalsIgnoreCase(MENB_SERIES)) {
+            return MENB_SERIES;
+        }
+        if (!s.toLowerCase().endsWith(" vaccine group")) {
+            s = s + " Vaccine Group";
+        }
+        return s;
+    }
+
+    /**
+     * The series the NYP rules count a shot of the vaccine in, null if the
+     * vaccine is evaluated by the engine
+     *
+     * @param cvx
+     * @return
+     */
+    public static String getLocalSeries(int cvx) {
+        if (FLU_CVX_CODES.contains(cvx)) {
+            return FLU_SERIES;
+        }
+        if (MENB_CVX_CODES.contains(cvx)) {
+            return MENB_SERIES;
+        }
+        return null;
+    }
+
+    /**
+     * Whether every one of the series can be answered without the engine
+     *
+     * @param series - normalized series names
+     * @return
+     */
+    public static boolean canEvaluate(Set<String> series) {
+        if (series == null || series.isEmpty()) {
+            return false;
+        }
+        Iterator<String> it = series.iterator();
+        while (it.hasNext()) {
+            if (!LOCAL_SERIES.contains(it.next())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Builds the evaluation for the patient from the database, with the flu
+     * shots in the influenza series, and no engine recommendations.
+     *
+     * @param conn
+     * @param upid
+     * @param auditDate
+     * @return
+     * @throws Exception
+     */
+    public static CDSEvaluation evaluate(Connection conn, String upid, Date auditDate) throws Exception {
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        List<HistoryStatusDTO> history = new ArrayList<HistoryStatusDTO>();
+        Date dateOfBirth = null;
+        String gender = null;
+
+        try {
+            pstmt = conn.prepareStatement(GET_IMMUNIZATIONS_BY);
+            RequestDeadline.current().applyTo(pstmt);
+            pstmt.setString(1, upid);
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                Date shotDate = rs.getDate("vaccine_date");
+                if (shotDate == null || shotDate.after(auditDate)) {
+                    continue;
+                }
+                HistoryStatusDTO h = new HistoryStatusDTO();
+                int cvx = rs.getInt("doh_code");
+                if (!rs.wasNull()) {
+                    h.setCvxCode(new Integer(cvx));
+                    if (FLU_CVX_CODES.contains(cvx)) {
+                        h.setSeries(FLU_SERIES);
+                    }
+                }
+                if (h.getSeries() == null) {
+                    h.setSeries("");
+                }
+                h.setShotDate(new Date(shotDate.getTime()));
+                history.add(h);
+            }
+            rs.close();
+            pstmt.close();
+
+            pstmt = conn.prepareStatement(GET_DEMOGRAPHICS);
+            RequestDeadline.current().applyTo(pstmt);
+            pstmt.setString(1, upid);
+            rs = pstmt.executeQuery();
+            if (rs.next()) {
+                dateOfBirth = (rs.getDate("dob") == null) ? null : new Date(rs.getDate("dob").getTime());
+                gender = rs.getString("sex");
+            }
+        } finally {
+            try {
+                if (rs != null) {
+                    rs.close();
+                }
+                if (pstmt != null) {
+                    pstmt.close();
+                }
+            } catch (Exception e) {
+            }
+        }
+
+        if (dateOfBirth == null) {
+            throw new Exception("No date of birth for " + upid);
+        }
+
+        List<ImmunizationRecommendationDTO> recommendations = Collections.emptyList();
+        return new CDSEvaluation(upid, auditDate, history, history, recommendations, dateOfBirth, gender);
+    }
+}
@@ -0,0 +1,1076 @@
+/**
+ * RecommendationPipeline
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * Computes the recommendations for one patient. All the ImmunizationRecommendation
+ * endpoints (read, identifier search, EMPI search and batch) go through here.
+ * The stages are
+ * <p>
+ * 1. resolve - find the upid for an EMPI
+ * 2. cirSync - quick CIR sync, only when the patient has to be evaluated
+ * 3. ice - the recommendation engine call (shared through the EvaluationCache)
+ * 4. map - map the engine recommendations to FHIR
+ * 5. rules - the NYP rules (flu, PPSV, PCV13, MenB etc.) on top of the engine
+ * 6. supporting - the evaluated immunization history, when it is included
+ * <p>
+ * Work that does not depend on the engine runs on the pipeline executor while
+ * the engine call is in flight - the immunization history read for the
+ * supporting immunizations (started right after the CIR sync, so synced shots
+ * are part of it) and the one time load of the ICD values used by the NYP
+ * rules. Every stage takes its own database connection and gives it back when
+ * it is done, so a request never holds one connection while it waits for
+ * another.
+ * <p>
+ * Requests for series that the NYP rules compute on their own (flu, MenB) skip
+ * the engine altogether, see LocalSeriesEvaluator.
+ * <p>
+ * The time spent in each stage is logged with every request.
+ * <p>
+ * The forecast timeline evaluates the patient once and replays the mapping and
+ * the NYP rules only on the days the recommendations can change (see
+ * ValidityWindow.changeDays).
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.pipeline;
+
+import ca.uhn.fhir.model.dstu2.composite.CodeableConceptDt;
+import ca.uhn.fhir.model.dstu2.composite.ResourceReferenceDt;
+import ca.uhn.fhir.model.dstu2.resource.Immunization;
+import ca.uhn.fhir.model.dstu2.resource.ImmunizationRecommendation;
+import ca.uhn.fhir.model.dstu2.resource.ImmunizationRecommendation.Recommendation;
+import ca.uhn.fhir.model.dstu2.resource.ImmunizationRecommendation.RecommendationDateCriterion;
+import ca.uhn.fhir.model.dstu2.resource.ImmunizationRecommendation.RecommendationProtocol;
+import ca.uhn.fhir.model.primitive.DateTimeDt;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.sql.DataSource;
+
+import org.joda.time.LocalDate;
+import org.nyp.ezvac.imsrvcs.cache.CDSEvaluation;
+import org.nyp.ezvac.imsrvcs.cache.EvaluationCache;
+import org.nyp.ezvac.imsrvcs.cache.EvaluationLoader;
+import org.nyp.ezvac.imsrvcs.cache.IceStandIn;
+import org.nyp.ezvac.imsrvcs.cache.ValidityWindow;
+import org.nyp.ezvac.imsrvcs.cirsync.CIRBulkSync;
+import org.nyp.ezvac.imsrvcs.cirsync.CIRSyncClient;
+import org.nyp.ezvac.imsrvcs.cirsync.CIRSyncResult;
+import org.nyp.ezvac.imsrvcs.metrics.FlightEvent;
+import org.nyp.ezvac.imsrvcs.metrics.FlightSpan;
+import org.nyp.ezvac.imsrvcs.metrics.Metrics;
+import org.nyp.ezvac.imsrvcs.providers.ImmunizationResourceProvider;
+import org.nyp.ezvac.imsrvcs.recording.EvaluationRecording;
+import org.nyp.ezvac.imsrvcs.rules.NYPFluRules;
+import org.nyp.ezvac.imsrvcs.rules.NYPRules;
+import org.nyp.ezvac.imsrvcs.services.RequestDeadline;
+import org.nyp.ezvac.imsrvcs.services.ServiceConfig;
+import org.nyp.ezvac.imsrvcs.services.ServiceExecutors;
+import org.nyph.cdslibrary.CDSLibraryWrapper;
+import org.nyph.cdslibrary.dto.HistoryStatusDTO;
+import org.nyph.cdslibrary.dto.ImmunizationRecommendationDTO;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * @author bdasgupt
+ */
+public class RecommendationPipeline {
+
+    public static final String STAGE_RESOLVE = "resolve";
+    public static final String STAGE_CIR_SYNC = "cirSync";
+    public static final String STAGE_ICE = "ice";
+    public static final String STAGE_EVALUATE = "evaluate";
+    public static final String STAGE_MAP = "map";
+    public static final String STAGE_RULES = "rules";
+    public static final String STAGE_RULE_SETUP = "ruleSetup";
+    public static final String STAGE_HISTORY = "history";
+    public static final String STAGE_SUPPORTING = "supporting";
+    public static final String STAGE_LOCAL = "local";
+    public static final String STAGE_TIMELINE = "timeline";
+
+    // Per-request detail (sync results, engine output, rule changes), at debug level
+    private static Logger logger = LoggerFactory.getLogger(RecommendationPipeline.class);
+
+    private static boolean CONNECT_TO_PROD = true;
+    private static boolean MENB_RULES_EXIST = false;
+
+    private static final String GET_UPIDS_FROM_EMPI = "SELECT upid FROM improd.mpi_table WHERE empi = ? order by CIR_SYNC_TIME desc";
+
+    private ImmunizationResourceProvider immunizationProvider;
+
+    /**
+     * Constructor
+     *
+     * @param immunizationProvider - reads the immunization history
+     */
+    public RecommendationPipeline(ImmunizationResourceProvider immunizationProvider) {
+        this.immunizationProvider = immunizationProvider;
+    }
+
+    /**
+     * Runs the pipeline for the request
+     *
+     * @param request
+     * @return
+     * @throws Exception
+     */
+    public RecommendationResult run(final RecommendationRequest request) throws Exception {
+        final StageTimings timings = new StageTimings();
+        final RequestDeadline deadline = RequestDeadline.current();
+        ImmunizationRecommendation im = new ImmunizationRecommendation();
+
+        // 1. resolve
+        String upid = request.getUpid();
+        if (upid == null) {
+            long start = timings.start();
+            upid = resolveUpid(request.getEmpi());
+            timings.record(STAGE_RESOLVE, start);
+            if (upid == null) {
+                return new RecommendationResult(null, im, null, null, timings);
+            }
+        }
+        final String patientUpid = upid;
+
+        // Only flu and/or MenB asked for, no need for the engine. Without the NYP
+        // rules those series are the engine's.
+        if (request.isApplyNYPRules() && LocalSeriesEvaluator.canEvaluate(request.getSeries())) {
+            return runLocal(request, upid, im, timings);
+        }
+
+        // Work that runs alongside the engine call
+        Future<?> ruleSetup = null;
+        if (request.isApplyNYPRules() && !NYPRules.isICDValuesInitialized()) {
+            ruleSetup = ServiceExecutors.getPipelineExecutor().submit(deadline.wrap(new Runnable() {
+                public void run() {
+                    long start = timings.start();
+                    Connection conn = null;
+                    try {
+                        conn = getConnection();
+                        NYPRules.initializeICDValues(conn);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        close(conn);
+                    }
+                    timings.record(STAGE_RULE_SETUP, start);
+                }
+            }));
+        }
+        final FutureTask<List<Immunization>> history = new FutureTask<List<Immunization>>(deadline.wrap(new Callable<List<Immunization>>() {
+            public List<Immunization> call() throws Exception {
+                long start = timings.start();
+                List<Immunization> immunizations = immunizationProvider.getImmunizationHistory(patientUpid);
+                timings.record(STAGE_HISTORY, start);
+                return immunizations;
+            }
+        }));
+
+        try {
+            // 2 and 3. cirSync and ice, unless the evaluation is already in the cache
+            long start = timings.start();
+            CDSEvaluation evaluation = EvaluationCache.getInstance().getEvaluation(upid, request.getAuditDate(), new EvaluationLoader() {
+                public CDSEvaluation load(String upid, Date auditDate) throws Exception {
+                    long syncedAt = 0;
+                    if (request.isSyncWithCIR()) {
+                        long start = timings.start();
+                        syncedAt = syncWithCIR(upid);
+                        timings.record(STAGE_CIR_SYNC, start);
+                    }
+                    if (request.isIncludeSupportingImmunizations()) {
+                        ServiceExecutors.getPipelineExecutor().execute(history);
+                    }
+                    return markSynced(evaluate(upid, auditDate, timings, deadline), syncedAt);
+                }
+            }, 0, getSyncedSince(request));
+            timings.record(STAGE_EVALUATE, start);
+
+            // 4. map
+            deadline.check();
+            start = timings.start();
+            mapRecommendations(im, upid, request.getAuditDate(), evaluation);
+            timings.record(STAGE_MAP, start);
+
+            // 5. rules
+            if (request.isApplyNYPRules()) {
+                if (ruleSetup != null) {
+                    ruleSetup.get(deadline.remainingMillis(), TimeUnit.MILLISECONDS);
+                }
+                start = timings.start();
+                applyNYPRules(im, upid, request, evaluation);
+                timings.record(STAGE_RULES, start);
+            }
+
+            retainSeries(im, request.getSeries());
+
+            // 6. supporting, the history read is a no-op here if it already ran alongside the engine
+            List<Immunization> supportingImmunizations = null;
+            if (request.isIncludeSupportingImmunizations()) {
+                history.run();
+                deadline.check();
+                start = timings.start();
+                supportingImmunizations = immunizationProvider.mergeShotStatuses(history.get(), evaluation.getHistory());
+                timings.record(STAGE_SUPPORTING, start);
+            }
+
+            System.out.println("Recommendation pipeline for " + upid + ": " + timings);
+            return new RecommendationResult(upid, im, evaluation, supportingImmunizations, timings);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        } finally {
+            history.cancel(false);
+            if (ruleSetup != null) {
+                ruleSetup.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * The recommendations of the patient on the audit date of the request, and
+     * on every later day up to endDate on which any of them changes. The engine
+     * is called once, for the audit date of the request. On the later days a
+     * FUTURE_RECOMMENDED engine recommendation whose proposed date has passed is
+     * taken as due, and the NYP rules are applied as of that day.
+     *
+     * @param request
+     * @param endDate - the last day of the timeline
+     * @return - one ImmunizationRecommendation per day with a change, the first
+     * is the audit date of the request
+     * @throws Exception
+     */
+    public List<ImmunizationRecommendation> forecastTimeline(RecommendationRequest request, Date endDate) throws Exception {
+        StageTimings timings = new StageTimings();
+        RequestDeadline deadline = RequestDeadline.current();
+        List<ImmunizationRecommendation> timeline = new ArrayList<ImmunizationRecommendation>();
+
+        String upid = request.getUpid();
+        if (upid == null) {
+            long start = timings.start();
+            upid = resolveUpid(request.getEmpi());
+            timings.record(STAGE_RESOLVE, start);
+            if (upid == null) {
+                return timeline;
+            }
+        }
+
+        CDSEvaluation evaluation = getEvaluation(request, upid, timings, deadline);
+
+        long start = timings.start();
+        LocalDate from = new LocalDate(request.getAuditDate());
+        List<LocalDate> days = new ArrayList<LocalDate>();
+        days.add(from);
+        days.addAll(ValidityWindow.changeDays(evaluation, from, new LocalDate(endDate)));
+
+        String previousStatuses = null;
+        for (LocalDate day : days) {
+            deadline.check();
+            Date auditDate = day.toDate();
+            ImmunizationRecommendation im = new ImmunizationRecommendation();
+            mapRecommendations(im, upid, auditDate, evaluation);
+            applyProposedDates(im, auditDate);
+            applyNYPRules(im, upid, RecommendationRequest.forUpid(upid, auditDate).setDiagnoses(request.getIcd9(), request.getIcd10()), evaluation);
+            retainSeries(im, request.getSeries());
+
+            String statuses = getStatuses(im);
+            if (!statuses.equals(previousStatuses)) {
+                timeline.add(im);
+                previousStatuses = statuses;
+            }
+        }
+        timings.record(STAGE_TIMELINE, start);
+
+        System.out.println("Forecast timeline for " + upid + ": " + days.size() + " change days, " + timeline.size() + " changes, " + timings);
+        return timeline;
+    }
+
+    /**
+     * The recommendations of the patient as they are and as they would be if the
+     * doses were given. Nothing is written to the database and the engine is
+     * not called again - the history of the (cached) evaluation is extended with
+     * the doses and the NYP rules are applied to it. Flu and MenB doses are
+     * re-evaluated completely, since the NYP rules compute those series. A dose
+     * in a series the engine computes leaves the engine status of that series
+     * as it is, and is reported in the result as not evaluated. A request for
+     * only flu and/or MenB does not call the engine at all.
+     *
+     * @param request
+     * @param doses - the hypothetical doses, with their CVX code and shot date
+     * @return
+     * @throws Exception
+     */
+    public WhatIfResult whatIf(RecommendationRequest request, List<HistoryStatusDTO> doses) throws Exception {
+        StageTimings timings = new StageTimings();
+        RequestDeadline deadline = RequestDeadline.current();
+
+        String upid = request.getUpid();
+        if (upid == null) {
+            long start = timings.start();
+            upid = resolveUpid(request.getEmpi());
+            timings.record(STAGE_RESOLVE, start);
+            if (upid == null) {
+                return new WhatIfResult(null, new ImmunizationRecommendation(), new ImmunizationRecommendation(), new ArrayList<String>(), timings);
+            }
+        }
+
+        boolean local = LocalSeriesEvaluator.canEvaluate(request.getSeries());
+        CDSEvaluation evaluation = null;
+        if (local) {
+            evaluation = evaluateLocal(request, upid, timings);
+        } else {
+            evaluation = getEvaluation(request, upid, timings, deadline);
+        }
+
+        // Put every dose in its series, the engine series from the patient's evaluated history
+        long start = timings.start();
+        List<String> notEvaluated = new ArrayList<String>();
+        for (HistoryStatusDTO dose : doses) {
+            String series = LocalSeriesEvaluator.getLocalSeries(dose.getCvxCode());
+            if (series == null) {
+                for (HistoryStatusDTO h : evaluation.getHistory()) {
+                    if (dose.getCvxCode().equals(h.getCvxCode()) && h.getSeries() != null && h.getSeries().length() > 0) {
+                        series = h.getSeries();
+                        break;
+                    }
+                }
+                notEvaluated.add("CVX " + dose.getCvxCode() + ((series == null) ? "" : " (" + series + ")")
+                        + " is evaluated by the recommendation engine, its series is not re-evaluated");
+            }
+            dose.setSeries((series == null || series.equals(LocalSeriesEvaluator.MENB_SERIES)) ? "" : series);
+        }
+        CDSEvaluation whatIfEvaluation = evaluation.withDoses(doses);
+
+        ImmunizationRecommendation current = new ImmunizationRecommendation();
+        ImmunizationRecommendation whatIf = new ImmunizationRecommendation();
+        if (local) {
+            applyLocalSeries(current, request, upid, evaluation);
+            applyLocalSeries(whatIf, request, upid, whatIfEvaluation);
+        } else {
+            mapRecommendations(current, upid, request.getAuditDate(), evaluation);
+            applyNYPRules(current, upid, request, evaluation);
+            retainSeries(current, request.getSeries());
+            mapRecommendations(whatIf, upid, request.getAuditDate(), whatIfEvaluation);
+            applyNYPRules(whatIf, upid, request, whatIfEvaluation);
+            retainSeries(whatIf, request.getSeries());
+        }
+        whatIf.setId(upid + "-whatif");
+        timings.record(STAGE_RULES, start);
+
+        System.out.println("What-if for " + upid + " with " + doses.size() + " doses: " + timings);
+        return new WhatIfResult(upid, current, whatIf, notEvaluated, timings);
+    }
+
+    /**
+     * Evaluates the patient as of the audit date ahead of time (see
+     * VisitWarmup), so that the request for it is answered from the cache. The
+     * evaluation is kept in the cache until keepUntil. There is no CIR sync, the
+     * patients are synced in bulk before they are preloaded. An evaluation
+     * marked with that sync is served to the requests of the visit day that ask
+     * for a sync.
+     *
+     * @param upid
+     * @param auditDate
+     * @param keepUntil - time in milliseconds
+     * @param syncedAt - when the bulk sync brought the patient up to date, 0 if
+     * it failed
+     * @return
+     * @throws Exception
+     */
+    public CDSEvaluation preload(String upid, Date auditDate, long keepUntil, final long syncedAt) throws Exception {
+        final StageTimings timings = new StageTimings();
+        final RequestDeadline deadline = RequestDeadline.current();
+
+        if (!NYPRules.isICDValuesInitialized()) {
+            long start = timings.start();
+            Connection conn = null;
+            try {
+                conn = getConnection();
+                NYPRules.initializeICDValues(conn);
+            } finally {
+                close(conn);
+            }
+            timings.record(STAGE_RULE_SETUP, start);
+        }
+
+        long start = timings.start();
+        CDSEvaluation evaluation = EvaluationCache.getInstance().getEvaluation(upid, auditDate, new EvaluationLoader() {
+            public CDSEvaluation load(String upid, Date auditDate) throws Exception {
+                return markSynced(evaluate(upid, auditDate, timings, deadline), syncedAt);
+            }
+        }, keepUntil);
+        timings.record(STAGE_EVALUATE, start);
+
+        System.out.println("Recommendation preload for " + upid + ": " + timings);
+        return evaluation;
+    }
+
+    /**
+     * Evaluates the flu and MenB series from the history in the database, without
+     * the engine. The supporting immunizations are returned without shot
+     * statuses, since those come from the engine.
+     *
+     * @param request
+     * @param upid
+     * @param im
+     * @param timings
+     * @return
+     * @throws Exception
+     */
+    private RecommendationResult runLocal(RecommendationRequest request, String upid, ImmunizationRecommendation im, StageTimings timings) throws Exception {
+        CDSEvaluation evaluation = evaluateLocal(request, upid, timings);
+
+        long start = timings.start();
+        applyLocalSeries(im, request, upid, evaluation);
+        timings.record(STAGE_RULES, start);
+
+        List<Immunization> supportingImmunizations = null;
+        if (request.isIncludeSupportingImmunizations()) {
+            start = timings.start();
+            supportingImmunizations = immunizationProvider.getImmunizationHistory(upid);
+            timings.record(STAGE_SUPPORTING, start);
+        }
+
+        System.out.println("Recommendation pipeline (local) for " + upid + ": " + timings);
+        return new RecommendationResult(upid, im, evaluation, supportingImmunizations, timings);
+    }
+
+    /**
+     * Builds the evaluation of the flu and MenB series from the history in the
+     * database, after a CIR sync if the request asks for one. As with the bulk
+     * sync, a patient synced within cirsync.freshSeconds (mpi_table.cir_sync_time)
+     * is not synced again.
+     *
+     * @param request
+     * @param upid
+     * @param timings
+     * @return
+     * @throws Exception
+     */
+    private CDSEvaluation evaluateLocal(RecommendationRequest request, String upid, StageTimings timings) throws Exception {
+        if (request.isSyncWithCIR()) {
+            long start = timings.start();
+            try {
+                CIRSyncResult result = CIRBulkSync.getDefault().syncAll(Collections.singletonList(upid)).get(0);
+                logger.debug("CIR sync {}", result);
+            } catch (Exception e) {
+                System.out.println("CIR sync of " + upid + " failed: " + e);
+            }
+            timings.record(STAGE_CIR_SYNC, start);
+        }
+
+        long start = timings.start();
+        Connection conn = null;
+        try {
+            conn = getConnection();
+            CDSEvaluation evaluation = LocalSeriesEvaluator.evaluate(conn, upid, request.getAuditDate());
+            if (request.getSeries().contains(LocalSeriesEvaluator.MENB_SERIES)) {
+                NYPRules.initializeICDValues(conn);
+            }
+            return evaluation;
+        } finally {
+            close(conn);
+            timings.record(STAGE_LOCAL, start);
+        }
+    }
+
+    /**
+     * Adds the flu and MenB recommendations computed by the NYP rules alone
+     *
+     * @param im
+     * @param request - the series and diagnoses
+     * @param upid
+     * @param evaluation - the history and demographics
+     * @throws Exception
+     */
+    private void applyLocalSeries(ImmunizationRecommendation im, RecommendationRequest request, String upid, CDSEvaluation evaluation) throws Exception {
+        Date auditDate = request.getAuditDate();
+        setPatient(im, upid);
+        CDSLibraryWrapper cds = evaluation.toLibraryWrapper();
+        String supportingImmunizationLink = getSupportingImmunizationLink(upid, auditDate);
+        if (request.getSeries().contains(LocalSeriesEvaluator.FLU_SERIES)) {
+            Recommendation r = new Recommendation();
+            r.setDate(new DateTimeDt(auditDate));
+            CodeableConceptDt groupName = new CodeableConceptDt();
+            groupName.setText(LocalSeriesEvaluator.FLU_SERIES);
+            r.setVaccineCode(groupName);
+            r.setForecastStatus(new CodeableConceptDt());
+            RecommendationProtocol rp = new RecommendationProtocol();
+            rp.setSeries(LocalSeriesEvaluator.FLU_SERIES);
+            r.setProtocol(rp);
+            ResourceReferenceDt srr = new ResourceReferenceDt();
+            srr.setReference(supportingImmunizationLink);
+            ArrayList al = new ArrayList();
+            al.add(srr);
+            r.setSupportingImmunization(al);
+
+            applyFluRules(r, cds, auditDate);
+            im.addRecommendation(r);
+        }
+        if (request.getSeries().contains(LocalSeriesEvaluator.MENB_SERIES)) {
+            NYPRules nypRules = new NYPRules(null, im, request.getIcd9(), request.getIcd10(), evaluation.getDateOfBirth(), evaluation.getGender(), auditDate, cds);
+            String rstr = nypRules.recommendationMenB();
+            if (rstr != null) {
+                im.addRecommendation(getMenBRecommendation(auditDate, rstr, supportingImmunizationLink));
+            }
+        }
+    }
+
+    /**
+     * Evaluates the patient as of the audit date of the request, through the
+     * cache, syncing with the CIR first if the request asks for it.
+     *
+     * @param request
+     * @param upid
+     * @param timings
+     * @param deadline
+     * @return
+     * @throws Exception
+     */
+    private CDSEvaluation getEvaluation(final RecommendationRequest request, String upid, final StageTimings timings, final RequestDeadline deadline) throws Exception {
+        long start = timings.start();
+        CDSEvaluation evaluation = EvaluationCache.getInstance().getEvaluation(upid, request.getAuditDate(), new EvaluationLoader() {
+            public CDSEvaluation load(String upid, Date auditDate) throws Exception {
+                long syncedAt = 0;
+                if (request.isSyncWithCIR()) {
+                    long start = timings.start();
+                    syncedAt = syncWithCIR(upid);
+                    timings.record(STAGE_CIR_SYNC, start);
+                }
+                return markSynced(evaluate(upid, auditDate, timings, deadline), syncedAt);
+            }
+        }, 0, getSyncedSince(request));
+        timings.record(STAGE_EVALUATE, start);
+        return evaluation;
+    }
+
+    /**
+     * Marks the FUTURE_RECOMMENDED engine recommendations whose proposed date is
+     * on or before the audit date as due
+     *
+     * @param im
+     * @param auditDate
+     */
+    private void applyProposedDates(ImmunizationRecommendation im, Date auditDate) {
+        Iterator<Recommendation> it = im.getRecommendation().iterator();
+        while (it.hasNext()) {
+            Recommendation r = it.next();
+            if (r.getProtocol().getDescription() != null && r.getProtocol().getDescription().startsWith("FUTURE_RECOMMENDED")
+                    && !r.getDateCriterion().isEmpty() && r.getDateCriterion().get(0).getValue() != null
+                    && !r.getDateCriterion().get(0).getValue().after(auditDate)) {
+                r.getProtocol().setDescription("RECOMMENDED - DUE_NOW");
+                r.getForecastStatus().setText("Recommended");
+            }
+        }
+    }
+
+    /**
+     * The series and status of every recommendation, to tell whether two days
+     * differ
+     *
+     * @param im
+     * @return
+     */
+    private String getStatuses(ImmunizationRecommendation im) {
+        StringBuilder statuses = new StringBuilder();
+        Iterator<Recommendation> it = im.getRecommendation().iterator();
+        while (it.hasNext()) {
+            Recommendation r = it.next();
+            statuses.append(r.getProtocol().getSeries()).append('=').append(r.getProtocol().getDescription())
+                    .append('/').append(r.getForecastStatus().getText()).append(';');
+        }
+        return statuses.toString();
+    }
+
+    /**
+     * Drops the recommendations that are not in the requested series
+     *
+     * @param im
+     * @param series - normalized series names, empty for all
+     */
+    private void retainSeries(ImmunizationRecommendation im, Set<String> series) {
+        if (series.isEmpty()) {
+            return;
+        }
+        Iterator<Recommendation> it = im.getRecommendation().iterator();
+        while (it.hasNext()) {
+            Recommendation r = it.next();
+            boolean requested = false;
+            Iterator<String> its = series.iterator();
+            while (its.hasNext()) {
+                if (its.next().equalsIgnoreCase(r.getProtocol().getSeries())) {
+                    requested = true;
+                }
+            }
+            if (!requested) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Given an EMPI figure out the UPID's. If there are more than one UPID's
+     * associated with it then the most recently synced one is used.
+     *
+     * @param empi
+     * @return
+     * @throws Exception
+     */
+    private String resolveUpid(String empi) throws Exception {
+        return resolveUpids(Collections.singletonList(empi)).get(empi);
+    }
+
+    /**
+     * Looks up the UPID of each EMPI over a single connection, e.g. for the
+     * entries of a batch request, so that they can be synced with the CIR in bulk
+     * before they are evaluated.
+     *
+     * @param empis
+     * @return - EMPI to UPID, EMPIs without a UPID are left out
+     * @throws Exception
+     */
+    public Map<String, String> resolveUpids(Collection<String> empis) throws Exception {
+        Map<String, String> upids = new HashMap<String, String>();
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            conn = getConnection();
+            pstmt = conn.prepareStatement(GET_UPIDS_FROM_EMPI);
+            RequestDeadline.current().applyTo(pstmt);
+            for (String empi : empis) {
+                pstmt.setString(1, empi);
+                rs = pstmt.executeQuery();
+                if (rs.next()) {
+                    upids.put(empi, rs.getString("upid").trim());
+                }
+                rs.close();
+                rs = null;
+            }
+        } finally {
+            try {
+                if (rs != null) {
+                    rs.close();
+                }
+                if (pstmt != null) {
+                    pstmt.close();
+                }
+            } catch (Exception e) {
+            }
+            close(conn);
+        }
+        return upids;
+    }
+
+    /**
+     * Do a quick CIR sync, so that shots given outside NYP are part of the
+     * history. A failed (or timed out) sync is logged and the patient is
+     * evaluated with the history that is already in the database.
+     *
+     * @param upid
+     * @return - when the sync started, 0 if it failed
+     */
+    private long syncWithCIR(String upid) {
+        long start = System.currentTimeMillis();
+        CIRSyncResult result = CIRSyncClient.getInstance().sync(upid);
+        logger.debug("CIR sync {}", result);
+        return result.isSynced() ? start : 0;
+    }
+
+    /**
+     * The oldest CIR sync a cached evaluation may have been made after to serve
+     * the request, so that a request asking for a sync is not served an
+     * evaluation made without one (cirsync.freshSeconds).
+     *
+     * @param request
+     * @return - time in milliseconds, 0 if the request does not ask for a sync
+     */
+    public static long getSyncedSince(RecommendationRequest request) {
+        if (!request.isSyncWithCIR()) {
+            return 0;
+        }
+        return System.currentTimeMillis() - ServiceConfig.getLong("cirsync.freshSeconds", 3600) * 1000L;
+    }
+
+    private static CDSEvaluation markSynced(CDSEvaluation evaluation, long syncedAt) {
+        if (syncedAt > 0) {
+            evaluation.setSyncedAt(syncedAt);
+        }
+        return evaluation;
+    }
+
+    /**
+     * Runs the recommendation engine. The CDS library has no timeouts of its own,
+     * so when the request has a deadline the call runs on the ICE executor
+     * and is abandoned (interrupted) once the deadline passes.
+     *
+     * @param upid
+     * @param auditDate
+     * @param timings
+     * @param deadline
+     * @return
+     * @throws Exception
+     */
+    private CDSEvaluation evaluate(final String upid, final Date auditDate, StageTimings timings, RequestDeadline deadline) throws Exception {
+        long start = timings.start();
+        Callable<CDSEvaluation> call = new Callable<CDSEvaluation>() {
+            public CDSEvaluation call() throws Exception {
+                Connection conn = null;
+                FlightSpan span = FlightEvent.ICE_EVALUATION.begin();
+                try {
+                    CDSEvaluation evaluation;
+                    EvaluationLoader standIn = IceStandIn.get();
+                    if (standIn != null) {
+                        evaluation = standIn.load(upid, auditDate);
+                    } else {
+                        conn = getConnection();
+                        CDSLibraryWrapper cds = new CDSLibraryWrapper(conn, CONNECT_TO_PROD);
+                        logger.debug("Using URL: {}", cds.getCIREndPoint());
+                        cds.getSchedule(upid, auditDate);
+                        evaluation = new CDSEvaluation(upid, auditDate, cds);
+                        EvaluationRecording.record(evaluation);
+                    }
+                    span.set("outcome", "ok").set("recommendations", evaluation.getRecommendations().size());
+                    return evaluation;
+                } catch (Exception e) {
+                    span.set("outcome", e);
+                    throw e;
+                } finally {
+                    close(conn);
+                    span.set("upid", upid).set("auditDate", auditDate).commit();
+                }
+            }
+        };
+
+        try {
+            deadline.check();
+            if (!deadline.hasDeadline()) {
+                return call.call();
+            }
+            Future<CDSEvaluation> future = ServiceExecutors.getIceExecutor().submit(deadline.wrap(call));
+            try {
+                return future.get(deadline.remainingMillis(), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                throw new TimeoutException("Request deadline exceeded waiting for the recommendation engine");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception) {
+                    throw (Exception) e.getCause();
+                }
+                throw e;
+            }
+        } catch (Exception e) {
+            Metrics.upstreamError("ice");
+            throw e;
+        } finally {
+            timings.record(STAGE_ICE, start);
+        }
+    }
+
+    /**
+     * Maps the recommendations of the engine to the FHIR resource
+     *
+     * @param im
+     * @param upid
+     * @param auditDate
+     * @param evaluation
+     */
+    private void mapRecommendations(ImmunizationRecommendation im, String upid, Date auditDate, CDSEvaluation evaluation) {
+        List<ImmunizationRecommendationDTO> cdsRecommendations = evaluation.getRecommendations();
+
+        setPatient(im, upid);
+
+        String supportingImmunizationLink = getSupportingImmunizationLink(upid, auditDate);
+        for (int i = 0; i < cdsRecommendations.size(); i++) {
+            ImmunizationRecommendationDTO ir = cdsRecommendations.get(i);
+            logger.debug("{}", ir);
+            Recommendation r = new Recommendation();
+            r.setDate(new DateTimeDt(auditDate));
+
+            CodeableConceptDt groupName = new CodeableConceptDt();
+            groupName.setText(formatSeriesName(ir.getEvaluatonDescription()));
+            r.setVaccineCode(groupName);
+
+            CodeableConceptDt recommendationName = new CodeableConceptDt();
+            recommendationName.setText(ir.getRecommendatoinString());
+            r.setForecastStatus(recommendationName);
+
+            RecommendationProtocol rp = new RecommendationProtocol();
+            rp.setSeries(formatSeriesName(ir.getEvaluatonDescription()));
+            rp.setDescription(ir.getRecommendationCode() + " - " + ir.getInterpretationCode());
+            r.setProtocol(rp);
+
+            if (ir.getProposedDate() != null) {
+                RecommendationDateCriterion rdc = new RecommendationDateCriterion();
+                rdc.setValue(new DateTimeDt(ir.getProposedDate()));
+                r.addDateCriterion(rdc);
+            }
+
+            ResourceReferenceDt srr = new ResourceReferenceDt();
+            srr.setReference(supportingImmunizationLink);
+
+            ArrayList al = new ArrayList();
+            al.add(srr);
+            r.setSupportingImmunization(al);
+
+            im.addRecommendation(r);
+        }
+
+        for (int i = 0; i < evaluation.getHistory().size(); i++) {
+            logger.debug("{}", evaluation.getHistory().get(i));
+        }
+    }
+
+    /**
+     * Now apply our own rules on top of the engine recommendations
+     *
+     * @param im
+     * @param upid
+     * @param request
+     * @param evaluation
+     * @throws Exception
+     */
+    private void applyNYPRules(ImmunizationRecommendation im, String upid, RecommendationRequest request, CDSEvaluation evaluation) throws Exception {
+        Date auditDate = request.getAuditDate();
+        CDSLibraryWrapper cds = evaluation.toLibraryWrapper();
+
+        // The ICD values are normally loaded by now, only take a connection if they are not
+        NYPRules nypRules = null;
+        Connection conn = null;
+        try {
+            if (!NYPRules.isICDValuesInitialized()) {
+                conn = getConnection();
+                NYPRules.initializeICDValues(conn);
+            }
+            nypRules = new NYPRules(conn, im, request.getIcd9(), request.getIcd10(), evaluation.getDateOfBirth(), evaluation.getGender(), auditDate, cds);
+        } finally {
+            close(conn);
+        }
+
+        Iterator<Recommendation> it = im.getRecommendation().iterator();
+        while (it.hasNext()) {
+            Recommendation r = it.next();
+
+            if (r.getProtocol().getSeries().equalsIgnoreCase("Hep A Vaccine Group")) {
+                String result = nypRules.recommendationHepA();
+                if (result != null) {
+                    r.getProtocol().setDescription(result);
+                }
+            }
+            if (r.getProtocol().getSeries().equalsIgnoreCase("Hib Vaccine Group")) {
+                String result = nypRules.recommendationHib();
+                if (result != null) {
+                    r.getProtocol().setDescription(result);
+                }
+            }
+            if (r.getProtocol().getSeries().equalsIgnoreCase("Meningococcal Vaccine Group")) {
+                String result = nypRules.recommendationMeningoccocal();
+
+                if (result != null) {
+                    r.getProtocol().setDescription(result);
+                }
+            }
+            if (r.getProtocol().getSeries().equalsIgnoreCase("HPV Vaccine Group")) {
+                String result = nypRules.recommendationHPV();
+
+                if (result != null) {
+                    r.getProtocol().setDescription(result);
+                }
+            }
+
+            // Skip the CIR rules for Flu and use our own, since there are issues with the CIR
+            // rules as of Dec 2017.
+            if (r.getProtocol().getSeries().equalsIgnoreCase(LocalSeriesEvaluator.FLU_SERIES)) {
+                applyFluRules(r, cds, auditDate);
+            }
+        }
+
+        // Process for PPSV
+        it = im.getRecommendation().iterator();
+        while (it.hasNext()) {
+            Recommendation r = it.next();
+            if (r.getProtocol().getSeries().equalsIgnoreCase("PPSV Vaccine Group")) {
+                logger.debug("Original {} -> {}", r.getProtocol().getSeries(), r.getProtocol().getDescription());
+                String result = nypRules.recommendationPPSV();
+                if (result != null) {
+                    r.getProtocol().setDescription(result);
+                }
+                logger.debug("New {} -> {}", r.getProtocol().getSeries(), r.getProtocol().getDescription());
+            }
+        }
+
+        // Process for PCV13
+        it = im.getRecommendation().iterator();
+        while (it.hasNext()) {
+            Recommendation r = it.next();
+            if (r.getProtocol().getSeries().equalsIgnoreCase("PCV Vaccine Group")) {
+                logger.debug("Original {} -> {}", r.getProtocol().getSeries(), r.getProtocol().getDescription());
+                String result = nypRules.recommendationPCV13();
+                if (result != null) {
+                    r.getProtocol().setDescription(result);
+                }
+                logger.debug("New {} -> {}", r.getProtocol().getSeries(), r.getProtocol().getDescription());
+            }
+        }
+
+        // Last step of the rule is to add in the MenB recommendations which are not computed by
+        // the CIR, but instead by NYP
+        if (!MENB_RULES_EXIST) {
+            String rstr = nypRules.recommendationMenB();
+            if (rstr != null) {
+                Recommendation r = getMenBRecommendation(auditDate, rstr, getSupportingImmunizationLink(upid, auditDate));
+                im.addRecommendation(r);
+            }
+        }
+    }
+
+    /**
+     * Replaces the engine flu recommendation with the NYP flu rules for the flu
+     * season of the audit date.
+     *
+     * @param r - the flu recommendation
+     * @param cds - the history and demographics of the patient
+     * @param auditDate
+     */
+    private void applyFluRules(Recommendation r, CDSLibraryWrapper cds, Date auditDate) {
+        Date seasonStartDate = null;
+        Date seasonEndDate = null;
+        DateFormat formatter = new SimpleDateFormat("MM/dd/yyyy");
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTime(auditDate);
+        try {
+            logger.debug("*** Audit Date: {}", auditDate);
+            logger.debug("*** Current Month: {}", calendar.get(Calendar.MONTH));
+            if (calendar.get(Calendar.MONTH) < 7) { // 0 based indexing
+                seasonStartDate = formatter.parse("08/01/" + (calendar.get(Calendar.YEAR) - 1));
+                seasonEndDate = formatter.parse("07/31/" + calendar.get(Calendar.YEAR));
+            } else {
+                seasonStartDate = formatter.parse("08/01/" + calendar.get(Calendar.YEAR));
+                seasonEndDate = formatter.parse("07/31/" + (calendar.get(Calendar.YEAR) + 1));
+            }
+            logger.debug("Flu Season : {} to {}", seasonStartDate, seasonEndDate);
+        } catch (ParseException e) {
+            e.printStackTrace();
+        }
+
+        NYPFluRules fluRules = new NYPFluRules(cds, auditDate, seasonStartDate, seasonEndDate);
+        String result = fluRules.recommendationFlu();
+
+        if (result != null) {
+            r.getProtocol().setDescription(result);
+            if (result.equalsIgnoreCase("NOT_RECOMMENDED - BELOW_REC_AGE_SERIES")) {
+                RecommendationDateCriterion rdc = new RecommendationDateCriterion();
+                rdc.setValue(new DateTimeDt(fluRules.getFutureRecommendedDate()));
+                r.addDateCriterion(rdc);
+                r.getForecastStatus().setText("Not Recommended");
+            } else if (result.equalsIgnoreCase("NOT_RECOMMENDED - COMPLETE")) {
+                r.getForecastStatus().setText("Not Recommended");
+            } else if (result.equalsIgnoreCase("RECOMMENDED - DUE_NOW")) {
+                r.getForecastStatus().setText("Recommended");
+            } else if (result.equalsIgnoreCase("FUTURE_RECOMMENDED - DUE_IN_FUTURE")) {
+                RecommendationDateCriterion rdc = new RecommendationDateCriterion();
+                rdc.setValue(new DateTimeDt(fluRules.getFutureRecommendedDate()));
+                r.addDateCriterion(rdc);
+                r.getForecastStatus().setText("Future Recommendation");
+            }
+        }
+    }
+
+    private void setPatient(ImmunizationRecommendation im, String upid) {
+        im.setId(upid);
+        ResourceReferenceDt patient = new ResourceReferenceDt();
+        patient.setReference("Patient/" + upid);
+        im.setPatient(patient);
+    }
+
+    private String getSupportingImmunizationLink(String upid, Date auditDate) {
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd");
+        return "Immunization?identifier=" + upid + "&schedule=Y&auditdate=" + sdf.format(auditDate);
+    }
+
+    private String formatSeriesName(String series) {
+        String ezvacSeries = series;
+        if (ezvacSeries != null) {
+            ezvacSeries = series.replaceAll("Immunization Evaluation Focus \\(", "");
+            ezvacSeries = ezvacSeries.replaceAll("\\)", "");
+        }
+        if (series.equalsIgnoreCase("Td")) {
+            ezvacSeries = "DTP Vaccine Group";
+        }
+        return ezvacSeries;
+    }
+
+    private Recommendation getMenBRecommendation(Date auditDate, String recommendation, String supportingImmunizationLink) {
+        Recommendation r = new Recommendation();
+        r.setDate(new DateTimeDt(auditDate));
+
+        CodeableConceptDt groupName = new CodeableConceptDt();
+        groupName.setText("MenB Vaccine Group");
+        r.setVaccineCode(groupName);
+
+        CodeableConceptDt recommendationName = new CodeableConceptDt();
+        String abbrRecommendation = null;
+        if (recommendation.startsWith("FUTURE_RECOMMENDED")) {
+            abbrRecommendation = "Future Recommendation";
+        } else if (recommendation.startsWith("RECOMMENDED")) {
+            abbrRecommendation = "Due Now";
+        } else if (recommendation.startsWith("NOT_RECOMMENDED")) {
+            abbrRecommendation = "Not Recommended";
+        }
+        recommendationName.setText(abbrRecommendation);
+        r.setForecastStatus(recommendationName);
+
+        RecommendationProtocol rp = new RecommendationProtocol();
+        rp.setSeries("MenB Vaccine Group");
+        rp.setDescription(recommendation);
+        r.setProtocol(rp);
+
+        ResourceReferenceDt srr = new ResourceReferenceDt();
+        srr.setReference(supportingImmunizationLink);
+        ArrayList al = new ArrayList();
+        al.add(srr);
+        r.setSupportingImmunization(al);
+
+        return r;
+    }
+
+    private Connection getConnection() throws Exception {
+        Context ctx = new InitialContext();
+        DataSource ds = (DataSource) ctx.lookup("java:comp/env/jdbc/nypis");
+        return Metrics.getConnection(ds);
+    }
+
+    private void close(Connection conn) {
+        try {
+            if (conn != null) {
+                conn.close();
+            }
+        } catch (Exception e) {
+        }
+    }
+}
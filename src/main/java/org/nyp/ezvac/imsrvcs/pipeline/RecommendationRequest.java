@@ -0,0 +1,155 @@
+/**
+ * RecommendationRequest
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * What a recommendation request asks the RecommendationPipeline for - the
+ * patient (by upid or EMPI), the audit date, the series of interest, and which
+ * of the optional stages (CIR sync, NYP rules, supporting immunizations) to run.
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.pipeline;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * @author bdasgupt
+ */
+public class RecommendationRequest {
+
+    private String upid;
+    private String empi;
+    private Date auditDate;
+    private String icd9;
+    private String icd10;
+    private boolean syncWithCIR;
+    private boolean applyNYPRules;
+    private boolean includeSupportingImmunizations;
+    private Set<String> series = Collections.emptySet();
+
+    private RecommendationRequest(String upid, String empi, Date auditDate) {
+        this.upid = upid;
+        this.empi = empi;
+        this.auditDate = (auditDate == null) ? new Date() : auditDate;
+    }
+
+    /**
+     * A request for the patient with the given upid
+     *
+     * @param upid
+     * @param auditDate - optional, defaults to today
+     * @return
+     */
+    public static RecommendationRequest forUpid(String upid, Date auditDate) {
+        return new RecommendationRequest(upid, null, auditDate);
+    }
+
+    /**
+     * A request for the patient with the given EMPI, the upid is looked up by the
+     * pipeline
+     *
+     * @param empi
+     * @param auditDate - optional, defaults to today
+     * @return
+     */
+    public static RecommendationRequest forEMPI(String empi, Date auditDate) {
+        return new RecommendationRequest(null, empi, auditDate);
+    }
+
+    /**
+     * A request for the patient with the given EMPI whose upid was already
+     * looked up (see RecommendationPipeline.resolveUpids), null to have the
+     * pipeline look it up
+     *
+     * @param empi
+     * @param upid
+     * @param auditDate - optional, defaults to today
+     * @return
+     */
+    public static RecommendationRequest forEMPI(String empi, String upid, Date auditDate) {
+        return new RecommendationRequest(upid, empi, auditDate);
+    }
+
+    public RecommendationRequest setDiagnoses(String icd9, String icd10) {
+        this.icd9 = icd9;
+        this.icd10 = icd10;
+        return this;
+    }
+
+    /**
+     * Limits the recommendations to the given series, e.g. flu|MenB. Without
+     * series all the recommendations are returned.
+     *
+     * @param series - | separated series names, may be null
+     * @return
+     */
+    public RecommendationRequest setSeries(String series) {
+        LinkedHashSet<String> seriesSet = new LinkedHashSet<String>();
+        if (series != null) {
+            String[] tokens = series.split("\\|");
+            for (int i = 0; i < tokens.length; i++) {
+                if (tokens[i].trim().length() > 0) {
+                    seriesSet.add(LocalSeriesEvaluator.normalizeSeries(tokens[i]));
+                }
+            }
+        }
+        this.series = Collections.unmodifiableSet(seriesSet);
+        return this;
+    }
+
+    public RecommendationRequest setSyncWithCIR(boolean syncWithCIR) {
+        this.syncWithCIR = syncWithCIR;
+        return this;
+    }
+
+    public RecommendationRequest setApplyNYPRules(boolean applyNYPRules) {
+        this.applyNYPRules = applyNYPRules;
+        return this;
+    }
+
+    public RecommendationRequest setIncludeSupportingImmunizations(boolean includeSupportingImmunizations) {
+        this.includeSupportingImmunizations = includeSupportingImmunizations;
+        return this;
+    }
+
+    public String getUpid() {
+        return upid;
+    }
+
+    public String getEmpi() {
+        return empi;
+    }
+
+    public Date getAuditDate() {
+        return auditDate;
+    }
+
+    public String getIcd9() {
+        return icd9;
+    }
+
+    public String getIcd10() {
+        return icd10;
+    }
+
+    public Set<String> getSeries() {
+        return series;
+    }
+
+    public boolean isSyncWithCIR() {
+        return syncWithCIR;
+    }
+
+    public boolean isApplyNYPRules() {
+        return applyNYPRules;
+    }
+
+    public boolean isIncludeSupportingImmunizations() {
+        return includeSupportingImmunizations;
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * RecommendationResult
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * The output of the RecommendationPipeline for one patient.
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.pipeline;
+
+import ca.uhn.fhir.model.dstu2.resource.Immunization;
+import ca.uhn.fhir.model.dstu2.resource.ImmunizationRecommendation;
+
+import java.util.List;
+
+import org.nyp.ezvac.imsrvcs.cache.CDSEvaluation;
+
+/**
+ * @author bdasgupt
+ */
+public class RecommendationResult {
+
+    private String upid;
+    private ImmunizationRecommendation recommendation;
+    private CDSEvaluation evaluation;
+    private List<Immunization> supportingImmunizations;
+    private StageTimings timings;
+
+    RecommendationResult(String upid, ImmunizationRecommendation recommendation, CDSEvaluation evaluation,
+                         List<Immunization> supportingImmunizations, StageTimings timings) {
+        this.upid = upid;
+        this.recommendation = recommendation;
+        this.evaluation = evaluation;
+        this.supportingImmunizations = supportingImmunizations;
+        this.timings = timings;
+    }
+
+    /**
+     * The upid of the patient, null when no patient was found for the EMPI
+     *
+     * @return
+     */
+    public String getUpid() {
+        return upid;
+    }
+
+    public ImmunizationRecommendation getRecommendation() {
+        return recommendation;
+    }
+
+    /**
+     * The recommendation engine evaluation, null when no patient was found
+     *
+     * @return
+     */
+    public CDSEvaluation getEvaluation() {
+        return evaluation;
+    }
+
+    /**
+     * The evaluated immunization history, null unless it was requested
+     *
+     * @return
+     */
+    public List<Immunization> getSupportingImmunizations() {
+        return supportingImmunizations;
+    }
+
+    public StageTimings getTimings() {
+        return timings;
+    }
+}
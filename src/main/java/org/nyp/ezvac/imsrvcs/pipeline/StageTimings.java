@@ -0,0 +1,86 @@
+/**
+ * StageTimings
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * The time spent in each stage of a recommendation request. Stages that run
+ * alongside each other are timed separately, so the sum of the stages can be
+ * more than the total time of the request. Every stage is also recorded in the
+ * imsrvcs_stage_seconds histogram (see Metrics).
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.pipeline;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.nyp.ezvac.imsrvcs.metrics.Metrics;
+
+/**
+ * @author bdasgupt
+ */
+public class StageTimings {
+
+    private final long startedAt = System.nanoTime();
+    private final LinkedHashMap<String, Long> timings = new LinkedHashMap<String, Long>();
+
+    /**
+     * Returns the current time, to be passed to record when the stage is done
+     *
+     * @return
+     */
+    public long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records a stage that started at the given time (see start) and just
+     * finished.
+     *
+     * @param stage
+     * @param startNanos
+     */
+    public synchronized void record(String stage, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        Metrics.recordStage(stage, nanos);
+        long millis = nanos / 1000000L;
+        Long previous = timings.get(stage);
+        timings.put(stage, (previous == null) ? millis : previous + millis);
+    }
+
+    /**
+     * Returns the time taken by the stage in milliseconds, or -1 if it did not
+     * run
+     *
+     * @param stage
+     * @return
+     */
+    public synchronized long getMillis(String stage) {
+        Long millis = timings.get(stage);
+        return (millis == null) ? -1 : millis;
+    }
+
+    public long getTotalMillis() {
+        return (System.nanoTime() - startedAt) / 1000000L;
+    }
+
+    public synchronized Map<String, Long> getTimings() {
+        return Collections.unmodifiableMap(new LinkedHashMap<String, Long>(timings));
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        Iterator<Map.Entry<String, Long>> it = timings.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Long> e = it.next();
+            sb.append(e.getKey()).append(":").append(e.getValue()).append("ms, ");
+        }
+        sb.append("total:").append(getTotalMillis()).append("ms}");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,264 @@
+/**
+ * VisitWarmup
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * Evaluates the patients that are expected for a visit ahead of time, so that
+ * their recommendation requests at check-in are answered from the
+ * EvaluationCache instead of waiting for the CIR sync and the recommendation
+ * engine. Once a day, off-peak, the job reads the upids of the visits of the
+ * coming day, syncs them with the CIR in bulk (skipping those synced recently)
+ * and evaluates them as of the visit date. An evaluation made after a
+ * successful (or recent) sync counts as synced for the check-in requests that
+ * ask for one. The evaluations are kept until the end of the visit day, unless
+ * the patient is synced with the CIR again or an immunization of the patient is
+ * added or updated (im.update_time) after the evaluation was made - the cache
+ * checks the history before it serves one that is past its time to live (see
+ * ImmunizationHistoryCheck).
+ * <p>
+ * Configured in imsrvcs.properties
+ * <p>
+ * warmup.enabled - runs the job, off by default since it needs a visit
+ * schedule to query
+ * warmup.hour - hour of the day the job runs (0 - 23)
+ * warmup.daysAhead - which day's visits, 1 for the next day
+ * warmup.threads - patients evaluated at a time, each takes a jdbc/nypis
+ * connection while it is evaluated, keep it below the pool size
+ * warmup.maxPatients - the most patients evaluated in a run (keep it below
+ * cache.maxEntries)
+ * warmup.patientTimeoutMillis - deadline for the evaluation of one patient
+ * warmup.visitQuery - query for the upids, with the visit date as its parameter
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.pipeline;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.sql.DataSource;
+
+import org.nyp.ezvac.imsrvcs.cirsync.CIRBulkSync;
+import org.nyp.ezvac.imsrvcs.cirsync.CIRSyncResult;
+import org.nyp.ezvac.imsrvcs.providers.ImmunizationResourceProvider;
+import org.nyp.ezvac.imsrvcs.services.RequestDeadline;
+import org.nyp.ezvac.imsrvcs.services.ServiceConfig;
+
+/**
+ * @author bdasgupt
+ */
+public class VisitWarmup implements Runnable {
+
+    private static final String DEFAULT_VISIT_QUERY = "SELECT DISTINCT upid FROM improd.visit_table WHERE visit_date = ?";
+
+    private static ScheduledExecutorService scheduler = null;
+
+    private final RecommendationPipeline pipeline;
+
+    /**
+     * Constructor
+     *
+     * @param pipeline - evaluates the patients
+     */
+    public VisitWarmup(RecommendationPipeline pipeline) {
+        this.pipeline = pipeline;
+    }
+
+    /**
+     * Schedules the daily warmup, if it is enabled. Called when the web
+     * application is started.
+     */
+    public static synchronized void start() {
+        if (scheduler != null || !ServiceConfig.getBoolean("warmup.enabled", false)) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "imsrvcs-warmup");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        scheduleNext(new VisitWarmup(new RecommendationPipeline(new ImmunizationResourceProvider())));
+    }
+
+    /**
+     * Stops the warmup, called when the web application is stopped
+     */
+    public static synchronized void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Warms up the visits of the coming day and schedules the next run
+     */
+    public void run() {
+        try {
+            Calendar visitDay = Calendar.getInstance();
+            visitDay.add(Calendar.DATE, ServiceConfig.getInt("warmup.daysAhead", 1));
+            warmup(visitDay.getTime());
+        } catch (Throwable t) {
+            t.printStackTrace();
+        } finally {
+            scheduleNext(this);
+        }
+    }
+
+    /**
+     * Syncs and evaluates the patients with a visit on the day
+     *
+     * @param visitDay
+     * @return - the number of patients evaluated
+     * @throws Exception
+     */
+    public int warmup(Date visitDay) throws Exception {
+        long started = System.currentTimeMillis();
+        final Date auditDate = startOfDay(visitDay).getTime();
+        Calendar endOfDay = startOfDay(visitDay);
+        endOfDay.add(Calendar.DATE, 1);
+        final long keepUntil = endOfDay.getTimeInMillis();
+
+        List<String> upids = getVisitUpids(auditDate);
+        int maxPatients = ServiceConfig.getInt("warmup.maxPatients", 500);
+        if (upids.size() > maxPatients) {
+            System.out.println("Visit warmup: " + upids.size() + " patients, only the first " + maxPatients + " are evaluated");
+            upids = upids.subList(0, maxPatients);
+        }
+        if (upids.isEmpty()) {
+            System.out.println("Visit warmup: no visits on " + auditDate);
+            return 0;
+        }
+
+        List<CIRSyncResult> syncs = CIRBulkSync.getDefault().syncAll(upids);
+        System.out.println(CIRBulkSync.summarize(syncs));
+        // The check-in requests accept the evaluation of a patient the bulk sync brought up to date
+        final Map<String, Long> syncedAt = new HashMap<String, Long>();
+        for (CIRSyncResult sync : syncs) {
+            syncedAt.put(sync.getUpid(), sync.getSyncedAt());
+        }
+
+        // A few patients at a time, each under its own deadline
+        final long patientTimeout = ServiceConfig.getLong("warmup.patientTimeoutMillis", 60000);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, ServiceConfig.getInt("warmup.threads", 1)));
+        int evaluated = 0;
+        try {
+            List<Future<Object>> results = new ArrayList<Future<Object>>();
+            for (final String upid : upids) {
+                results.add(executor.submit(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        return new RequestDeadline(patientTimeout).wrap(new Callable<Object>() {
+                            public Object call() throws Exception {
+                                Long patientSyncedAt = syncedAt.get(upid);
+                                return pipeline.preload(upid, auditDate, keepUntil, (patientSyncedAt == null) ? 0 : patientSyncedAt);
+                            }
+                        }).call();
+                    }
+                }));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    results.get(i).get();
+                    evaluated++;
+                } catch (ExecutionException e) {
+                    System.out.println("Visit warmup of " + upids.get(i) + " failed: " + e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        System.out.println("Visit warmup for " + auditDate + ": evaluated " + evaluated + " of " + upids.size()
+                + " patients in " + (System.currentTimeMillis() - started) + " ms");
+        return evaluated;
+    }
+
+    /**
+     * The upids of the visits on the day, in the order of the query
+     *
+     * @param visitDay
+     * @return
+     * @throws Exception
+     */
+    private List<String> getVisitUpids(Date visitDay) throws Exception {
+        Set<String> upids = new LinkedHashSet<String>();
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            Context ctx = new InitialContext();
+            DataSource ds = (DataSource) ctx.lookup("java:comp/env/jdbc/nypis");
+            conn = ds.getConnection();
+            pstmt = conn.prepareStatement(ServiceConfig.getString("warmup.visitQuery", DEFAULT_VISIT_QUERY));
+            pstmt.setDate(1, new java.sql.Date(visitDay.getTime()));
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                String upid = rs.getString(1);
+                if (upid != null && upid.trim().length() > 0) {
+                    upids.add(upid.trim());
+                }
+            }
+        } finally {
+            try {
+                if (rs != null) {
+                    rs.close();
+                }
+                if (pstmt != null) {
+                    pstmt.close();
+                }
+                if (conn != null) {
+                    conn.close();
+                }
+            } catch (Exception e) {
+            }
+        }
+        return new ArrayList<String>(upids);
+    }
+
+    private static synchronized void scheduleNext(VisitWarmup warmup) {
+        if (scheduler == null) {
+            return;
+        }
+        Calendar next = Calendar.getInstance();
+        next.set(Calendar.HOUR_OF_DAY, ServiceConfig.getInt("warmup.hour", 22));
+        next.set(Calendar.MINUTE, 0);
+        next.set(Calendar.SECOND, 0);
+        next.set(Calendar.MILLISECOND, 0);
+        if (next.getTimeInMillis() <= System.currentTimeMillis()) {
+            next.add(Calendar.DATE, 1);
+        }
+        System.out.println("Visit warmup scheduled for " + next.getTime());
+        scheduler.schedule(warmup, next.getTimeInMillis() - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private static Calendar startOfDay(Date day) {
+        Calendar c = Calendar.getInstance();
+        c.setTime(day);
+        c.set(Calendar.HOUR_OF_DAY, 0);
+        c.set(Calendar.MINUTE, 0);
+        c.set(Calendar.SECOND, 0);
+        c.set(Calendar.MILLISECOND, 0);
+        return c;
+    }
+}
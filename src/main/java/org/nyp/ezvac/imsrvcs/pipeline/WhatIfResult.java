@@ -0,0 +1,69 @@
+/**
+ * WhatIfResult
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * The output of a what-if dose simulation for one patient - the recommendations
+ * as they are, the recommendations as they would be with the hypothetical doses,
+ * and the doses whose series could not be re-evaluated.
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.pipeline;
+
+import ca.uhn.fhir.model.dstu2.resource.ImmunizationRecommendation;
+
+import java.util.List;
+
+/**
+ * @author bdasgupt
+ */
+public class WhatIfResult {
+
+    private String upid;
+    private ImmunizationRecommendation current;
+    private ImmunizationRecommendation whatIf;
+    private List<String> notEvaluated;
+    private StageTimings timings;
+
+    WhatIfResult(String upid, ImmunizationRecommendation current, ImmunizationRecommendation whatIf,
+                 List<String> notEvaluated, StageTimings timings) {
+        this.upid = upid;
+        this.current = current;
+        this.whatIf = whatIf;
+        this.notEvaluated = notEvaluated;
+        this.timings = timings;
+    }
+
+    /**
+     * The upid of the patient, null when no patient was found for the EMPI
+     *
+     * @return
+     */
+    public String getUpid() {
+        return upid;
+    }
+
+    public ImmunizationRecommendation getCurrent() {
+        return current;
+    }
+
+    public ImmunizationRecommendation getWhatIf() {
+        return whatIf;
+    }
+
+    /**
+     * A message for every dose in a series that only the recommendation engine
+     * can re-evaluate, those series are returned as they are
+     *
+     * @return
+     */
+    public List<String> getNotEvaluated() {
+        return notEvaluated;
+    }
+
+    public StageTimings getTimings() {
+        return timings;
+    }
+}
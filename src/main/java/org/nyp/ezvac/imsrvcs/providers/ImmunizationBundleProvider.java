@@ -0,0 +1,159 @@
+/**
+ * ImmunizationBundleProvider
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * Paged immunization history for a patient. Rather than loading the entire
+ * history up front, each page is read from the database when HAPI asks for it,
+ * using keyset pagination on (vaccine_date, immunization_id). The key of the
+ * last record of every page served is remembered, so the next page link only
+ * reads the records that fall within that page.
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.providers;
+
+import ca.uhn.fhir.model.dstu2.resource.Immunization;
+import ca.uhn.fhir.model.primitive.InstantDt;
+import ca.uhn.fhir.rest.server.IBundleProvider;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * @author bdasgupt
+ */
+public class ImmunizationBundleProvider implements IBundleProvider {
+
+    private ImmunizationResourceProvider provider;
+    private String patientId;
+    private String patientIdType;
+    private ImmunizationFilter filter;
+    private Integer pageSize;
+    private InstantDt published;
+    private Integer size;
+
+    // Offset -> key of the record just before that offset.  Offset 0 has no key.
+    private TreeMap<Integer, Keyset> bookmarks = new TreeMap<Integer, Keyset>();
+
+    /**
+     * Constructor
+     *
+     * @param provider - the provider used to read the records
+     * @param patientId - the upid or empi
+     * @param patientIdType - upid or empi
+     * @param filter - status, vaccine date and last updated criteria
+     * @param pageSize - optional page size requested by the client (_count)
+     */
+    public ImmunizationBundleProvider(ImmunizationResourceProvider provider, String patientId, String patientIdType, ImmunizationFilter filter, Integer pageSize) {
+        this.provider = provider;
+        this.patientId = patientId;
+        this.patientIdType = patientIdType;
+        this.filter = filter;
+        this.pageSize = pageSize;
+        this.published = InstantDt.withCurrentTime();
+        this.bookmarks.put(0, null);
+    }
+
+    @Override
+    public InstantDt getPublished() {
+        return published;
+    }
+
+    @Override
+    public synchronized List<IBaseResource> getResources(int theFromIndex, int theToIndex) {
+        List<IBaseResource> retVal = new ArrayList<IBaseResource>();
+        if (theToIndex <= theFromIndex) {
+            return retVal;
+        }
+
+        try {
+            Keyset after = findBookmark(theFromIndex);
+            List<Keyset> keys = provider.getImmunizationKeys(patientId, patientIdType, filter, after, theToIndex - theFromIndex);
+            if (!keys.isEmpty()) {
+                bookmarks.put(theFromIndex + keys.size(), keys.get(keys.size() - 1));
+            }
+            List<Immunization> immunizations = provider.getImmunizationPage(keys);
+            retVal.addAll(immunizations);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+
+        return retVal;
+    }
+
+    @Override
+    public Integer preferredPageSize() {
+        return pageSize;
+    }
+
+    @Override
+    public synchronized int size() {
+        if (size == null) {
+            try {
+                size = provider.countImmunizations(patientId, patientIdType, filter);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns the key of the record just before the given offset. Pages are
+     * normally read in order, in which case the key was remembered when the
+     * previous page was served. Otherwise the keys are walked forward from the
+     * closest offset that is known, without reading the full records.
+     *
+     * @param offset
+     * @return
+     * @throws Exception
+     */
+    private Keyset findBookmark(int offset) throws Exception {
+        Map.Entry<Integer, Keyset> closest = bookmarks.floorEntry(offset);
+        if (closest.getKey() == offset) {
+            return closest.getValue();
+        }
+
+        List<Keyset> keys = provider.getImmunizationKeys(patientId, patientIdType, filter, closest.getValue(), offset - closest.getKey());
+        if (keys.isEmpty()) {
+            return closest.getValue();
+        }
+        Keyset bookmark = keys.get(keys.size() - 1);
+        bookmarks.put(closest.getKey() + keys.size(), bookmark);
+        return bookmark;
+    }
+
+    /**
+     * The position of an immunization in the (vaccine_date, immunization_id)
+     * ordering.
+     */
+    public static class Keyset {
+
+        private Date vaccineDate;
+        private long immunizationId;
+
+        public Keyset(Date vaccineDate, long immunizationId) {
+            this.vaccineDate = vaccineDate;
+            this.immunizationId = immunizationId;
+        }
+
+        public Date getVaccineDate() {
+            return vaccineDate;
+        }
+
+        public long getImmunizationId() {
+            return immunizationId;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * ImmunizationFilter
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * The optional criteria of an immunization history search - the display
+ * status, the vaccine date range (date=ge20170101) and the last updated range
+ * (_lastUpdated=ge2018-03-01T10:00:00). Clients that keep a copy of the history
+ * use _lastUpdated to only pull the shots that were added or changed since their
+ * last poll. Both ranges are pushed down into the history queries, the last
+ * updated range is served by the (upid, update_time) index on
+ * improd.immunizationmix_table (see datafiles/sql/immunization_sync_indexes.sql).
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.providers;
+
+import ca.uhn.fhir.rest.param.DateRangeParam;
+
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.util.Date;
+
+/**
+ * @author bdasgupt
+ */
+public class ImmunizationFilter {
+
+    private String status;
+    private Date vaccineDateFrom;
+    private Date vaccineDateTo;
+    private Date lastUpdatedFrom;
+    private Date lastUpdatedTo;
+
+    /**
+     * Constructor
+     *
+     * @param status - optional status of Y, N or I
+     * @param vaccineDate - optional vaccine date range
+     * @param lastUpdated - optional last updated range
+     */
+    public ImmunizationFilter(String status, DateRangeParam vaccineDate, DateRangeParam lastUpdated) {
+        this.status = status;
+        if (vaccineDate != null) {
+            this.vaccineDateFrom = vaccineDate.getLowerBoundAsInstant();
+            this.vaccineDateTo = vaccineDate.getUpperBoundAsInstant();
+        }
+        if (lastUpdated != null) {
+            this.lastUpdatedFrom = lastUpdated.getLowerBoundAsInstant();
+            this.lastUpdatedTo = lastUpdated.getUpperBoundAsInstant();
+        }
+    }
+
+    /**
+     * Returns the additional where clause for this filter, to be appended to the
+     * patient criteria of an immunization lookup.
+     *
+     * @return
+     */
+    public String getCriteria() {
+        StringBuilder criteria = new StringBuilder();
+        if (status != null) {
+            criteria.append(" AND display = ?");
+        }
+        if (vaccineDateFrom != null) {
+            criteria.append(" AND im.vaccine_date >= ?");
+        }
+        if (vaccineDateTo != null) {
+            criteria.append(" AND im.vaccine_date <= ?");
+        }
+        if (lastUpdatedFrom != null) {
+            criteria.append(" AND im.update_time >= ?");
+        }
+        if (lastUpdatedTo != null) {
+            criteria.append(" AND im.update_time <= ?");
+        }
+        return criteria.toString();
+    }
+
+    /**
+     * Binds the parameters of the where clause returned by getCriteria.
+     *
+     * @param pstmt
+     * @param index - the index of the first parameter of this filter
+     * @return the index of the next parameter
+     * @throws Exception
+     */
+    public int setParameters(PreparedStatement pstmt, int index) throws Exception {
+        if (status != null) {
+            pstmt.setString(index++, status);
+        }
+        if (vaccineDateFrom != null) {
+            pstmt.setDate(index++, new java.sql.Date(vaccineDateFrom.getTime()));
+        }
+        if (vaccineDateTo != null) {
+            pstmt.setDate(index++, new java.sql.Date(vaccineDateTo.getTime()));
+        }
+        if (lastUpdatedFrom != null) {
+            pstmt.setTimestamp(index++, new Timestamp(lastUpdatedFrom.getTime()));
+        }
+        if (lastUpdatedTo != null) {
+            pstmt.setTimestamp(index++, new Timestamp(lastUpdatedTo.getTime()));
+        }
+        return index;
+    }
+
+    /**
+     * Whether a vaccine date or last updated range was given. An empty result
+     * for such a search is not an error, e.g. no shots changed since the last
+     * poll.
+     *
+     * @return
+     */
+    public boolean hasDateRange() {
+        return vaccineDateFrom != null || vaccineDateTo != null || lastUpdatedFrom != null || lastUpdatedTo != null;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+}
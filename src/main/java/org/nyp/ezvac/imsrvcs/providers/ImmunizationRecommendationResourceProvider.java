@@ -6,7 +6,9 @@
  * <p>
  * This file implements the ImmunizationRecommendation resource type. Given a
  * EMPI, it will first query for the entire immunization history, and then
- * compute the recommendations by calling the CIR UTD service.
+ * compute the recommendations by calling the CIR UTD service. The work itself
+ * is done by the RecommendationPipeline, this class only maps the FHIR requests
+ * on to it.
  * <p>
  * When running it on your local machine, you can use the below URL as an
  * example
@@ -23,23 +25,49 @@
  * http://localhost:8080/imsrvcs/services/ImmunizationRecommendation?empi=1005404275
  * curl -H "Accept:application/json"
  * http://localhost:8080/imsrvcs/services/ImmunizationRecommendation?empi=1005404275
+ * <p>
+ * To get the evaluated immunization history back in the same bundle, instead of
+ * following the supportingImmunization link
+ * http://localhost:8080/imsrvcs/services/ImmunizationRecommendation?empi=1005404275&_include=ImmunizationRecommendation:supporting-immunization
+ * <p>
+ * To only get some of the series back. Flu and MenB only requests are answered
+ * by the NYP rules without calling the CIR UTD service
+ * http://localhost:8080/imsrvcs/services/ImmunizationRecommendation?empi=1005404275&series=flu
+ * http://localhost:8080/imsrvcs/services/ImmunizationRecommendation?empi=1005404275&series=flu|MenB|Hep A
+ * <p>
+ * What the patient will be due for over the coming months - the
+ * recommendations on today (or start) and on every day they change, for the
+ * given number of months (default 12)
+ * http://localhost:8080/imsrvcs/services/ImmunizationRecommendation/$forecast-timeline?identifier=2070246&months=12
+ * http://localhost:8080/imsrvcs/services/ImmunizationRecommendation/$forecast-timeline?empi=1005404275&start=20160715&series=flu
+ * <p>
+ * How giving doses (CVX code, optionally :yyyyMMdd for the shot date, default
+ * today) would change the recommendations. Returns the current and the what-if
+ * recommendations, nothing is recorded
+ * http://localhost:8080/imsrvcs/services/ImmunizationRecommendation/$what-if?identifier=2070246&dose=141&dose=163
+ * http://localhost:8080/imsrvcs/services/ImmunizationRecommendation/$what-if?empi=1005404275&dose=141&series=flu
  * Revision History
  */
 package org.nyp.ezvac.imsrvcs.providers;
 
-import ca.uhn.fhir.model.dstu2.composite.CodeableConceptDt;
-import ca.uhn.fhir.model.dstu2.composite.ResourceReferenceDt;
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.Immunization;
 import ca.uhn.fhir.model.dstu2.resource.ImmunizationRecommendation;
-import ca.uhn.fhir.model.dstu2.resource.ImmunizationRecommendation.Recommendation;
-import ca.uhn.fhir.model.dstu2.resource.ImmunizationRecommendation.RecommendationDateCriterion;
-import ca.uhn.fhir.model.dstu2.resource.ImmunizationRecommendation.RecommendationProtocol;
 import ca.uhn.fhir.model.dstu2.resource.OperationOutcome;
 import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.dstu2.valueset.BundleTypeEnum;
 import ca.uhn.fhir.model.dstu2.valueset.IssueSeverityEnum;
-import ca.uhn.fhir.model.primitive.DateTimeDt;
 import ca.uhn.fhir.model.primitive.IdDt;
+import ca.uhn.fhir.model.primitive.IntegerDt;
 import ca.uhn.fhir.model.primitive.StringDt;
+import ca.uhn.fhir.model.valueset.BundleEntrySearchModeEnum;
 import ca.uhn.fhir.rest.annotation.IdParam;
+import ca.uhn.fhir.rest.annotation.IncludeParam;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
 import ca.uhn.fhir.rest.annotation.OptionalParam;
 import ca.uhn.fhir.rest.annotation.Read;
 import ca.uhn.fhir.rest.annotation.RequiredParam;
@@ -48,46 +76,30 @@ import ca.uhn.fhir.rest.param.StringParam;
 import ca.uhn.fhir.rest.server.IResourceProvider;
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.net.URL;
-import java.net.URLConnection;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.text.DateFormat;
-import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
-import javax.naming.Context;
-import javax.naming.InitialContext;
-import javax.sql.DataSource;
-
-import org.nyp.ezvac.imsrvcs.rules.NYPFluRules;
-import org.nyp.ezvac.imsrvcs.rules.NYPRules;
-import org.nyph.cdslibrary.CDSLibraryWrapper;
+import java.util.Map;
+import java.util.Set;
+
+import org.nyp.ezvac.imsrvcs.metrics.FlightEvent;
+import org.nyp.ezvac.imsrvcs.metrics.FlightSpan;
+import org.nyp.ezvac.imsrvcs.pipeline.RecommendationPipeline;
+import org.nyp.ezvac.imsrvcs.pipeline.RecommendationRequest;
+import org.nyp.ezvac.imsrvcs.pipeline.RecommendationResult;
+import org.nyp.ezvac.imsrvcs.pipeline.WhatIfResult;
 import org.nyph.cdslibrary.dto.HistoryStatusDTO;
-import org.nyph.cdslibrary.dto.ImmunizationRecommendationDTO;
 
 public class ImmunizationRecommendationResourceProvider implements IResourceProvider {
 
-    private DataSource ds = null;
-    private static boolean CONNECT_TO_PROD = true;
-    private static final String FIELD_NAMES = "a.immunization_id, b.doh_code, a.vaccine_date ";
-    private static final String TABLE_NAMES = "improd.immunizationmix_table a, improd.vaccinemapper_table b ";
-    private static final String TABLE_NAMES_EMPI = "improd.immunizationmix_table a, improd.vaccinemapper_table b, improd.mpi_table c ";
-
-    private static final String GET_IMMUNIZATIONS_BY = "SELECT " + FIELD_NAMES + " FROM " + TABLE_NAMES
-            + " WHERE (a.vaccine_mixcode = b.vaccine_medcode) AND a.upid = ? AND a.display='Y'";
+    private static final String INCLUDE_SUPPORTING_IMMUNIZATION = "ImmunizationRecommendation:supporting-immunization";
+    private static final int MAX_TIMELINE_MONTHS = 60;
 
-    private static final String GET_UPIDS_FROM_EMPI = "SELECT upid FROM improd.mpi_table WHERE empi = ? order by CIR_SYNC_TIME desc";
-
-    private static boolean MENB_RULES_EXIST = false;
-    private static String CIRSYNC_URL = "https://immunize.nyp.org/cir-sync-service/CIRSyncService?upid=";
+    private RecommendationPipeline pipeline = new RecommendationPipeline(new ImmunizationResourceProvider());
 
     /**
      * Constructor
@@ -111,115 +123,32 @@ public class ImmunizationRecommendationResourceProvider implements IResourceProv
      * derived from the database.
      *
      * @param theId
-     * @param auditDate
      * @return
      */
     @Read()
     public ImmunizationRecommendation getResourceById(@IdParam IdDt theId) {
-        ImmunizationRecommendation im = new ImmunizationRecommendation();
-        List<ImmunizationRecommendation> recommendations = new ArrayList();
-        List<HistoryStatusDTO> history = null;
-        List<ImmunizationRecommendationDTO> cdsRecommendations = null;
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd");
-        Connection conn = null;
-        Date auditDate = new Date();
+        return getResourceById(theId, true);
+    }
 
+    /**
+     * Given a UPID, run the CIR recommendation rules, with or without syncing
+     * the patient with the CIR first (the batch request syncs its patients in
+     * bulk before evaluating them).
+     *
+     * @param theId
+     * @param syncWithCIR
+     * @return
+     */
+    public ImmunizationRecommendation getResourceById(IdDt theId, boolean syncWithCIR) {
         if ((theId == null)) {
             OperationOutcome oo = new OperationOutcome();
             oo.addIssue().setSeverity(IssueSeverityEnum.FATAL).setDetails("No UPID specified");
             throw new InternalErrorException("No UPID specified", oo);
         }
-        String upid = theId.getIdPart();
-
-        try {
-            if (auditDate == null) {
-                auditDate = new Date();
-            }
-            Context ctx = new InitialContext();
-            ds = (DataSource) ctx.lookup("java:comp/env/jdbc/nypis");
-            conn = ds.getConnection();
-
-            // Do a quick CIR sync first
-            try {
-                URL url = new URL(CIRSYNC_URL + upid);
-                URLConnection urlc = url.openConnection();
-                BufferedReader br = new BufferedReader(new InputStreamReader(urlc.getInputStream()));
-                String l = null;
-                while ((l = br.readLine()) != null) {
-                    System.out.println(l);
-                }
-                br.close();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-            CDSLibraryWrapper cds = new CDSLibraryWrapper(conn, CONNECT_TO_PROD);
-            System.out.println("Using URL: " + cds.getCIREndPoint());
-            cds.getSchedule(upid, new Date());
-            history = cds.getHistory();
-            cdsRecommendations = cds.getRecommendations();
-
-            im.setId(upid);
-            ResourceReferenceDt patient = new ResourceReferenceDt();
-            patient.setReference("Patient/" + upid);
-            im.setPatient(patient);
-
-            for (int i = 0; i < cdsRecommendations.size(); i++) {
-                ImmunizationRecommendationDTO ir = cdsRecommendations.get(i);
-                System.out.println(ir);
-                Recommendation r = new Recommendation();
-                r.setDate(new DateTimeDt(auditDate));
-
-                CodeableConceptDt groupName = new CodeableConceptDt();
-                groupName.setText(formatSeriesName(ir.getEvaluatonDescription()));
-                r.setVaccineCode(groupName);
-
-                CodeableConceptDt recommendationName = new CodeableConceptDt();
-                recommendationName.setText(ir.getRecommendatoinString());
-                r.setForecastStatus(recommendationName);
-
-                RecommendationProtocol rp = new RecommendationProtocol();
-                rp.setSeries(formatSeriesName(ir.getEvaluatonDescription()));
-                rp.setDescription(ir.getRecommendationCode() + " - " + ir.getInterpretationCode());
-                r.setProtocol(rp);
-
-                if (ir.getProposedDate() != null) {
-                    RecommendationDateCriterion rdc = new RecommendationDateCriterion();
-                    rdc.setValue(new DateTimeDt(ir.getProposedDate()));
-                    r.addDateCriterion(rdc);
-                }
-
-                String supportingImmunizationLink = "Immunization?identifier=" + upid + "&schedule=Y&auditdate=" + sdf.format(auditDate);
-
-                ResourceReferenceDt srr = new ResourceReferenceDt();
-                srr.setReference(supportingImmunizationLink);
-
-                ArrayList al = new ArrayList();
-                al.add(srr);
-                r.setSupportingImmunization(al);
-
-                im.addRecommendation(r);
-
-            }
-
-            for (int i = 0; i < history.size(); i++) {
-                System.out.println(history.get(i));
-            }
-
-        } catch (Exception e) {
-            OperationOutcome oo = new OperationOutcome();
-            oo.addIssue().setSeverity(IssueSeverityEnum.FATAL).setDetails("Error in recommendations calculations: " + e.getMessage());
-            throw new InternalErrorException("Error in recommendations calculations: " + e.getMessage(), oo);
-        } finally {
-            try {
-                if (conn != null) {
-                    conn.close();
-                }
-                conn = null;
-            } catch (Exception e) {
-            }
-        }
 
-        return im;
+        RecommendationRequest request = RecommendationRequest.forUpid(theId.getIdPart(), new Date())
+                .setSyncWithCIR(syncWithCIR);
+        return runPipeline(request).getRecommendation();
     }
 
     /**
@@ -229,23 +158,38 @@ public class ImmunizationRecommendationResourceProvider implements IResourceProv
      * @param empi
      * @param icd9 - optional icd9 codes to help with the recommendations
      * @param icd10 - optional icd10 codes to help with the recommendations
+     * @param series - optional | separated series to return
+     * @param theIncludes - optional, include the supporting immunizations
      * @return
      */
     @Search()
-    public ImmunizationRecommendation getResourceByEMPI(@RequiredParam(name = "empi") StringDt empi,
-                                                        @OptionalParam(name = "icd9") StringParam icd9,
-                                                        @OptionalParam(name = "icd10") StringParam icd10,
-                                                        @OptionalParam(name = "auditdate") StringParam auditDateStr) {
-        ImmunizationRecommendation im = new ImmunizationRecommendation();
-        List<ImmunizationRecommendation> recommendations = new ArrayList();
-        List<HistoryStatusDTO> history = null;
-        List<ImmunizationRecommendationDTO> cdsRecommendations = null;
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd");
-        Connection conn = null;
-        PreparedStatement pstmt = null;
-        ResultSet rs = null;
+    public List<IResource> getResourceByEMPI(@RequiredParam(name = "empi") StringDt empi,
+                                             @OptionalParam(name = "icd9") StringParam icd9,
+                                             @OptionalParam(name = "icd10") StringParam icd10,
+                                             @OptionalParam(name = "auditdate") StringParam auditDateStr,
+                                             @OptionalParam(name = "series") StringParam series,
+                                             @IncludeParam(allow = {INCLUDE_SUPPORTING_IMMUNIZATION}) Set<Include> theIncludes) {
+        return getResourceByEMPI(empi, null, icd9, icd10, auditDateStr, series, theIncludes, true);
+    }
+
+    /**
+     * Given a EMPI, run the CIR recommendation rules, for a patient whose upid
+     * may already be known and with or without syncing the patient with the CIR
+     * first (the batch request looks up and syncs its patients in bulk before
+     * evaluating them).
+     *
+     * @param empi
+     * @param upid - the upid of the empi, null to look it up
+     * @param icd9 - optional icd9 codes to help with the recommendations
+     * @param icd10 - optional icd10 codes to help with the recommendations
+     * @param series - optional | separated series to return
+     * @param theIncludes - optional, include the supporting immunizations
+     * @param syncWithCIR
+     * @return
+     */
+    public List<IResource> getResourceByEMPI(StringDt empi, String upid, StringParam icd9, StringParam icd10, StringParam auditDateStr,
+                                             StringParam series, Set<Include> theIncludes, boolean syncWithCIR) {
         Date auditDate = new Date();
-        String supportingImmunizationLink = null;
 
         if ((empi == null)) {
             OperationOutcome oo = new OperationOutcome();
@@ -253,271 +197,44 @@ public class ImmunizationRecommendationResourceProvider implements IResourceProv
             throw new InternalErrorException("No EMPI specified", oo);
         }
 
-        try {
-            if (auditDateStr != null) {
-                SimpleDateFormat formatter = new SimpleDateFormat("yyyyMMdd");
-                try {
-                    auditDate = formatter.parse(auditDateStr.getValue());
-                } catch (Exception e) {
-                    OperationOutcome oo = new OperationOutcome();
-                    oo.addIssue().setSeverity(IssueSeverityEnum.FATAL).setDetails("Invalid audit date format, correct format is yyyyMMdd");
-                    throw new InternalErrorException("Invalid audit date format, correct format is yyyyMMdd", oo);
-                }
-            }
-            Context ctx = new InitialContext();
-            ds = (DataSource) ctx.lookup("java:comp/env/jdbc/nypis");
-            conn = ds.getConnection();
-
-            // Given an EMPI figure out the UPID's.  If there are more than one UPID's associated with it then we need to 
-            // do a patient merge
-            pstmt = conn.prepareStatement(GET_UPIDS_FROM_EMPI);
-            pstmt.setString(1, empi.getValue().toString());
-            rs = pstmt.executeQuery();
-            String upid = null;
-            if (rs.next()) {
-                upid = rs.getString("upid");
-            }
-            rs.close();
-            pstmt.close();
-
-            if (upid != null) {
-                // Do a quick CIR sync first
-                try {
-                    URL url = new URL(CIRSYNC_URL + upid);
-                    URLConnection urlc = url.openConnection();
-                    BufferedReader br = new BufferedReader(new InputStreamReader(urlc.getInputStream()));
-                    String l = null;
-                    while ((l = br.readLine()) != null) {
-                        System.out.println(l);
-                    }
-                    br.close();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-
-                CDSLibraryWrapper cds = new CDSLibraryWrapper(conn, CONNECT_TO_PROD);
-                System.out.println("Using EMPI URL: " + cds.getCIREndPoint());
-                cds.getSchedule(upid, auditDate);
-                history = cds.getHistory();
-                cdsRecommendations = cds.getRecommendations();
-
-                im.setId(upid);
-                ResourceReferenceDt patient = new ResourceReferenceDt();
-                patient.setReference("Patient/" + upid);
-                im.setPatient(patient);
-
-                for (int i = 0; i < cdsRecommendations.size(); i++) {
-                    ImmunizationRecommendationDTO ir = cdsRecommendations.get(i);
-                    System.out.println(ir);
-                    Recommendation r = new Recommendation();
-                    System.out.println("**** Using Audit Date: " + auditDate);
-                    r.setDate(new DateTimeDt(auditDate));
-
-                    CodeableConceptDt groupName = new CodeableConceptDt();
-                    groupName.setText(formatSeriesName(ir.getEvaluatonDescription()));
-                    r.setVaccineCode(groupName);
-
-                    CodeableConceptDt recommendationName = new CodeableConceptDt();
-                    recommendationName.setText(ir.getRecommendatoinString());
-                    r.setForecastStatus(recommendationName);
-
-                    RecommendationProtocol rp = new RecommendationProtocol();
-                    rp.setSeries(formatSeriesName(ir.getEvaluatonDescription()));
-                    rp.setDescription(ir.getRecommendationCode() + " - " + ir.getInterpretationCode());
-                    r.setProtocol(rp);
-
-                    if (ir.getProposedDate() != null) {
-                        RecommendationDateCriterion rdc = new RecommendationDateCriterion();
-                        rdc.setValue(new DateTimeDt(ir.getProposedDate()));
-                        r.addDateCriterion(rdc);
-                    }
-
-                    supportingImmunizationLink = "Immunization?identifier=" + upid + "&schedule=Y&auditdate=" + sdf.format(auditDate);
-
-                    ResourceReferenceDt srr = new ResourceReferenceDt();
-                    srr.setReference(supportingImmunizationLink);
-
-                    ArrayList al = new ArrayList();
-                    al.add(srr);
-                    r.setSupportingImmunization(al);
-
-                    im.addRecommendation(r);
-
-                }
-
-                for (int i = 0; i < history.size(); i++) {
-                    System.out.println(history.get(i));
-                }
-
-                // Now apply our own rulesg 
-                String icd9String = (icd9 == null) ? null : icd9.getValue().toString();
-                String icd10String = (icd10 == null) ? null : icd10.getValue().toString();
-                NYPRules nypRules = new NYPRules(conn, im, icd9String, icd10String, cds.getDateOfBirth(), cds.getGender(), auditDate, cds);
-                Iterator<Recommendation> it = im.getRecommendation().iterator();
-                while (it.hasNext()) {
-                    Recommendation r = it.next();
-
-                    if (r.getProtocol().getSeries().equalsIgnoreCase("Hep A Vaccine Group")) {
-                        String result = nypRules.recommendationHepA();
-                        if (result != null) {
-                            r.getProtocol().setDescription(result);
-                        }
-                    }
-                    if (r.getProtocol().getSeries().equalsIgnoreCase("Hib Vaccine Group")) {
-                        String result = nypRules.recommendationHib();
-                        if (result != null) {
-                            r.getProtocol().setDescription(result);
-                        }
-                    }
-                    if (r.getProtocol().getSeries().equalsIgnoreCase("Meningococcal Vaccine Group")) {
-                        String result = nypRules.recommendationMeningoccocal();
-
-                        if (result != null) {
-                            r.getProtocol().setDescription(result);
-                        }
-                    }
-                    if (r.getProtocol().getSeries().equalsIgnoreCase("HPV Vaccine Group")) {
-                        String result = nypRules.recommendationHPV();
-
-                        if (result != null) {
-                            r.getProtocol().setDescription(result);
-                        }
-                    }
-                    /*if (r.getProtocol().getSeries().equalsIgnoreCase("Meningococcal B Vaccine Group")) {
-                        String result = nypRules.recommendationMenB_V2();
-
-                        if (result != null) {
-                            r.getProtocol().setDescription(result);
-                        }
-                    }
-                    */
-                    /*if (r.getProtocol().getSeries().equalsIgnoreCase("Rotavirus Vaccine Group")
-                            || r.getProtocol().getSeries().equalsIgnoreCase("MMR Vaccine Group")
-                            || r.getProtocol().getSeries().equalsIgnoreCase("Varicella Vaccine Group")) {
-                        String result = nypRules.recommendationImmunoglobin();
-
-                        if (result != null) {
-                            r.getProtocol().setDescription(result);
-                        }
-                    }*/
-
-                    // Skip the CIR rules for Flu and use our own, since there are issues with the CIR
-                    // rules as of Dec 2017.
-                    if (r.getProtocol().getSeries().equalsIgnoreCase("Influenza Vaccine Group")) {
-                        Date seasonStartDate = null;
-                        Date seasonEndDate = null;
-                        DateFormat formatter = new SimpleDateFormat("MM/dd/yyyy");
-                        Calendar calendar = Calendar.getInstance();
-                        calendar.setTime(auditDate);
-                        try {
-                            System.out.println("*** Audit Date: " + auditDate);
-                            System.out.println("*** Current Month: " + calendar.get(Calendar.MONTH));
-                            if (calendar.get(Calendar.MONTH) < 7) { // 0 based indexing
-                                seasonStartDate = formatter.parse("08/01/" + (calendar.get(Calendar.YEAR) - 1));
-                                seasonEndDate = formatter.parse("07/31/" + calendar.get(Calendar.YEAR));
-                            } else {
-                                seasonStartDate = formatter.parse("08/01/" + calendar.get(Calendar.YEAR));
-                                seasonEndDate = formatter.parse("07/31/" + (calendar.get(Calendar.YEAR) + 1));
-                            }
-                            System.out.println("Flu Season : " + seasonStartDate + " to " + seasonEndDate);
-                        } catch (ParseException e) {
-                            e.printStackTrace();
-                        }
-
-                        NYPFluRules fluRules = new NYPFluRules(cds, auditDate, seasonStartDate, seasonEndDate);
-                        String result = fluRules.recommendationFlu();
-
-                        if (result != null) {
-                            r.getProtocol().setDescription(result);
-                            if (result.equalsIgnoreCase("NOT_RECOMMENDED - BELOW_REC_AGE_SERIES")) {
-                                RecommendationDateCriterion rdc = new RecommendationDateCriterion();
-                                rdc.setValue(new DateTimeDt(fluRules.getFutureRecommendedDate()));
-                                r.addDateCriterion(rdc);
-                                r.getForecastStatus().setText("Not Recommended");
-                            } else if (result.equalsIgnoreCase("NOT_RECOMMENDED - COMPLETE")) {
-                                r.getForecastStatus().setText("Not Recommended");
-                            } else if (result.equalsIgnoreCase("RECOMMENDED - DUE_NOW")) {
-                                r.getForecastStatus().setText("Recommended");
-                            } else if (result.equalsIgnoreCase("FUTURE_RECOMMENDED - DUE_IN_FUTURE")) {
-                                RecommendationDateCriterion rdc = new RecommendationDateCriterion();
-                                rdc.setValue(new DateTimeDt(fluRules.getFutureRecommendedDate()));
-                                r.addDateCriterion(rdc);
-                                r.getForecastStatus().setText("Future Recommendation");
-                            }
-                        }
-                    }
-                }
-
-                // Process for PPSV
-                it = im.getRecommendation().iterator();
-                while (it.hasNext()) {
-                    Recommendation r = it.next();
-                    if (r.getProtocol().getSeries().equalsIgnoreCase("PPSV Vaccine Group")) {
-                        System.out.println("Original " + r.getProtocol().getSeries() + " -> " + r.getProtocol().getDescription());
-                        String result = nypRules.recommendationPPSV();
-                        if (result != null) {
-                            r.getProtocol().setDescription(result);
-                        }
-                        System.out.println("New " + r.getProtocol().getSeries() + " -> " + r.getProtocol().getDescription());
-                    }
-                }
-
-                // Process for PCV13
-                it = im.getRecommendation().iterator();
-                while (it.hasNext()) {
-                    Recommendation r = it.next();
-                    if (r.getProtocol().getSeries().equalsIgnoreCase("PCV Vaccine Group")) {
-                        System.out.println("Original " + r.getProtocol().getSeries() + " -> " + r.getProtocol().getDescription());
-                        String result = nypRules.recommendationPCV13();
-                        if (result != null) {
-                            r.getProtocol().setDescription(result);
-                        }
-                        System.out.println("New " + r.getProtocol().getSeries() + " -> " + r.getProtocol().getDescription());
-                    }
-                }
-
-                // Last step of the rule is to add in the MenB recommendations which are not computed by
-                // the CIR, but instead by NYP
-                if (!MENB_RULES_EXIST) {
-                    String rstr = nypRules.recommendationMenB();
-                    if (rstr != null) {
-                        Recommendation r = getMenBRecommendation(auditDate, rstr, supportingImmunizationLink);
-                        im.addRecommendation(r);
-                    }
-                }
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-            OperationOutcome oo = new OperationOutcome();
-            oo.addIssue().setSeverity(IssueSeverityEnum.FATAL).setDetails("Error in recommendations calculations: " + e.getMessage());
-            throw new InternalErrorException("Error in recommendations calculations: " + e.getMessage(), oo);
-        } finally {
+        if (auditDateStr != null) {
+            SimpleDateFormat formatter = new SimpleDateFormat("yyyyMMdd");
             try {
-                if (rs != null) {
-                    rs.close();
-                }
-                if (pstmt != null) {
-                    pstmt.close();
-                }
-                if (conn != null) {
-                    conn.close();
-                }
-                conn = null;
+                auditDate = formatter.parse(auditDateStr.getValue());
             } catch (Exception e) {
+                OperationOutcome oo = new OperationOutcome();
+                oo.addIssue().setSeverity(IssueSeverityEnum.FATAL).setDetails("Invalid audit date format, correct format is yyyyMMdd");
+                throw new InternalErrorException("Invalid audit date format, correct format is yyyyMMdd", oo);
             }
         }
 
-        return im;
+        String icd9String = (icd9 == null) ? null : icd9.getValue().toString();
+        String icd10String = (icd10 == null) ? null : icd10.getValue().toString();
+        RecommendationRequest request = RecommendationRequest.forEMPI(empi.getValue().toString(), upid, auditDate)
+                .setDiagnoses(icd9String, icd10String)
+                .setSeries((series == null) ? null : series.getValue())
+                .setSyncWithCIR(syncWithCIR)
+                .setApplyNYPRules(true)
+                .setIncludeSupportingImmunizations(isSupportingImmunizationIncluded(theIncludes));
+        return getSearchResult(runPipeline(request));
     }
 
+    /**
+     * Given a UPID, run the CIR recommendation rules against the history
+     * derived from the database as of the audit date.
+     *
+     * @param id - the upid
+     * @param strAuditDate - optional audit date (yyyyMMdd)
+     * @param series - optional | separated series to return
+     * @param theIncludes - optional, include the supporting immunizations
+     * @return
+     */
     @Search()
-    public ImmunizationRecommendation getResourceById(@RequiredParam(name = Patient.SP_IDENTIFIER) StringDt id, @OptionalParam(name = "auditdate") StringParam strAuditDate) {
-        ImmunizationRecommendation im = new ImmunizationRecommendation();
-        List<ImmunizationRecommendation> recommendations = new ArrayList();
-        List<HistoryStatusDTO> history = null;
-        List<ImmunizationRecommendationDTO> cdsRecommendations = null;
+    public List<IResource> getResourceById(@RequiredParam(name = Patient.SP_IDENTIFIER) StringDt id,
+                                           @OptionalParam(name = "auditdate") StringParam strAuditDate,
+                                           @OptionalParam(name = "series") StringParam series,
+                                           @IncludeParam(allow = {INCLUDE_SUPPORTING_IMMUNIZATION}) Set<Include> theIncludes) {
         SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd");
-        Connection conn = null;
         Date auditDate = null;
 
         /* Get the audit date first */
@@ -542,124 +259,249 @@ public class ImmunizationRecommendationResourceProvider implements IResourceProv
             oo.addIssue().setSeverity(IssueSeverityEnum.FATAL).setDetails("No UPID specified");
             throw new InternalErrorException("No UPID specified", oo);
         }
-        String upid = id.getValue();
-
-        try {
-            if (auditDate == null) {
-                auditDate = new Date();
-            }
-            Context ctx = new InitialContext();
-            ds = (DataSource) ctx.lookup("java:comp/env/jdbc/nypis");
-            conn = ds.getConnection();
-
-            CDSLibraryWrapper cds = new CDSLibraryWrapper(conn, CONNECT_TO_PROD);
-            System.out.println("Using URL: " + cds.getCIREndPoint());
-            cds.getSchedule(upid, new Date());
-            history = cds.getHistory();
-            cdsRecommendations = cds.getRecommendations();
-
-            im.setId(upid);
-            ResourceReferenceDt patient = new ResourceReferenceDt();
-            patient.setReference("Patient/" + upid);
-            im.setPatient(patient);
-
-            for (int i = 0; i < cdsRecommendations.size(); i++) {
-                ImmunizationRecommendationDTO ir = cdsRecommendations.get(i);
-                System.out.println(ir);
-                Recommendation r = new Recommendation();
-                r.setDate(new DateTimeDt(auditDate));
-
-                CodeableConceptDt groupName = new CodeableConceptDt();
-                groupName.setText(ir.getEvaluatonDescription());
-                r.setVaccineCode(groupName);
-
-                CodeableConceptDt recommendationName = new CodeableConceptDt();
-                recommendationName.setText(ir.getRecommendatoinString());
-                r.setForecastStatus(recommendationName);
-
-                if (ir.getProposedDate() != null) {
-                    RecommendationDateCriterion rdc = new RecommendationDateCriterion();
-                    rdc.setValue(new DateTimeDt(ir.getProposedDate()));
-                    r.addDateCriterion(rdc);
-                }
-
-                String supportingImmunizationLink = "Immunization?identifier=" + upid + "&schedule=Y&auditdate=" + sdf.format(auditDate);
 
-                ResourceReferenceDt srr = new ResourceReferenceDt();
-                srr.setReference(supportingImmunizationLink);
-
-                ArrayList al = new ArrayList();
-                al.add(srr);
-                r.setSupportingImmunization(al);
-
-                im.addRecommendation(r);
+        RecommendationRequest request = RecommendationRequest.forUpid(id.getValue(), auditDate)
+                .setSeries((series == null) ? null : series.getValue())
+                .setIncludeSupportingImmunizations(isSupportingImmunizationIncluded(theIncludes));
+        return getSearchResult(runPipeline(request));
+    }
 
-            }
+    /**
+     * The recommendations of the patient from the start date (default today)
+     * for the number of months (default 12), on the start date and on every
+     * day any of them changes. The patient is evaluated by the engine once.
+     *
+     * @param id - the upid
+     * @param empi - or the empi
+     * @param strStartDate - optional start date (yyyyMMdd)
+     * @param months - optional number of months, at most MAX_TIMELINE_MONTHS
+     * @param icd9 - optional icd9 codes to help with the recommendations
+     * @param icd10 - optional icd10 codes to help with the recommendations
+     * @param series - optional | separated series to return
+     * @return - a collection bundle with one ImmunizationRecommendation per change
+     */
+    @Operation(name = "$forecast-timeline", idempotent = true)
+    public Bundle getForecastTimeline(@OperationParam(name = "identifier") StringDt id,
+                                      @OperationParam(name = "empi") StringDt empi,
+                                      @OperationParam(name = "start") StringDt strStartDate,
+                                      @OperationParam(name = "months") IntegerDt months,
+                                      @OperationParam(name = "icd9") StringDt icd9,
+                                      @OperationParam(name = "icd10") StringDt icd10,
+                                      @OperationParam(name = "series") StringDt series) {
+        if ((id == null || id.isEmpty()) && (empi == null || empi.isEmpty())) {
+            OperationOutcome oo = new OperationOutcome();
+            oo.addIssue().setSeverity(IssueSeverityEnum.FATAL).setDetails("No UPID or EMPI specified");
+            throw new InternalErrorException("No UPID or EMPI specified", oo);
+        }
 
-            for (int i = 0; i < history.size(); i++) {
-                System.out.println(history.get(i));
+        Date startDate = new Date();
+        if (strStartDate != null && !strStartDate.isEmpty()) {
+            try {
+                startDate = new SimpleDateFormat("yyyyMMdd").parse(strStartDate.getValue());
+            } catch (Exception e) {
+                OperationOutcome oo = new OperationOutcome();
+                oo.addIssue().setSeverity(IssueSeverityEnum.FATAL).setDetails("Invalid start date format, correct format is yyyyMMdd");
+                throw new InternalErrorException("Invalid start date format, correct format is yyyyMMdd", oo);
             }
+        }
 
+        int numberOfMonths = (months == null || months.getValue() == null) ? 12 : months.getValue();
+        if (numberOfMonths < 1 || numberOfMonths > MAX_TIMELINE_MONTHS) {
+            OperationOutcome oo = new OperationOutcome();
+            oo.addIssue().setSeverity(IssueSeverityEnum.FATAL).setDetails("The months must be between 1 and " + MAX_TIMELINE_MONTHS);
+            throw new InternalErrorException("The months must be between 1 and " + MAX_TIMELINE_MONTHS, oo);
+        }
+        Calendar endDate = Calendar.getInstance();
+        endDate.setTime(startDate);
+        endDate.add(Calendar.MONTH, numberOfMonths);
+
+        RecommendationRequest request = (id != null && !id.isEmpty())
+                ? RecommendationRequest.forUpid(id.getValue(), startDate)
+                : RecommendationRequest.forEMPI(empi.getValue(), startDate);
+        request.setDiagnoses((icd9 == null) ? null : icd9.getValue(), (icd10 == null) ? null : icd10.getValue())
+                .setSeries((series == null) ? null : series.getValue())
+                .setSyncWithCIR(true)
+                .setApplyNYPRules(true);
+
+        List<ImmunizationRecommendation> timeline = null;
+        try {
+            timeline = pipeline.forecastTimeline(request, endDate.getTime());
         } catch (Exception e) {
+            e.printStackTrace();
             OperationOutcome oo = new OperationOutcome();
             oo.addIssue().setSeverity(IssueSeverityEnum.FATAL).setDetails("Error in recommendations calculations: " + e.getMessage());
             throw new InternalErrorException("Error in recommendations calculations: " + e.getMessage(), oo);
-        } finally {
+        }
+
+        Bundle retVal = new Bundle();
+        retVal.setType(BundleTypeEnum.COLLECTION);
+        for (ImmunizationRecommendation im : timeline) {
+            retVal.addEntry().setResource(im);
+        }
+        retVal.setTotal(timeline.size());
+        return retVal;
+    }
+
+    /**
+     * The recommendations of the patient today, and as they would be with the
+     * hypothetical doses. Nothing is written to the database.
+     *
+     * @param id - the upid
+     * @param empi - or the empi
+     * @param doses - CVX code, optionally followed by :yyyyMMdd for the shot date
+     * @param icd9 - optional icd9 codes to help with the recommendations
+     * @param icd10 - optional icd10 codes to help with the recommendations
+     * @param series - optional | separated series to return
+     * @return - a collection bundle with the current and the what-if
+     * ImmunizationRecommendation, and an OperationOutcome listing the doses
+     * whose series were not re-evaluated
+     */
+    @Operation(name = "$what-if", idempotent = true)
+    public Bundle getWhatIf(@OperationParam(name = "identifier") StringDt id,
+                            @OperationParam(name = "empi") StringDt empi,
+                            @OperationParam(name = "dose") List<StringDt> doses,
+                            @OperationParam(name = "icd9") StringDt icd9,
+                            @OperationParam(name = "icd10") StringDt icd10,
+                            @OperationParam(name = "series") StringDt series) {
+        if ((id == null || id.isEmpty()) && (empi == null || empi.isEmpty())) {
+            OperationOutcome oo = new OperationOutcome();
+            oo.addIssue().setSeverity(IssueSeverityEnum.FATAL).setDetails("No UPID or EMPI specified");
+            throw new InternalErrorException("No UPID or EMPI specified", oo);
+        }
+        if (doses == null || doses.isEmpty()) {
+            OperationOutcome oo = new OperationOutcome();
+            oo.addIssue().setSeverity(IssueSeverityEnum.FATAL).setDetails("No dose specified");
+            throw new InternalErrorException("No dose specified", oo);
+        }
+
+        Date today = new Date();
+        SimpleDateFormat formatter = new SimpleDateFormat("yyyyMMdd");
+        List<HistoryStatusDTO> hypotheticalDoses = new ArrayList<HistoryStatusDTO>();
+        for (StringDt dose : doses) {
             try {
-                if (conn != null) {
-                    conn.close();
+                String[] tokens = dose.getValue().trim().split(":");
+                HistoryStatusDTO h = new HistoryStatusDTO();
+                h.setCvxCode(Integer.valueOf(tokens[0].trim()));
+                h.setShotDate((tokens.length > 1) ? formatter.parse(tokens[1].trim()) : today);
+                if (h.getShotDate().after(today)) {
+                    throw new Exception("future shot date");
                 }
-                conn = null;
+                hypotheticalDoses.add(h);
             } catch (Exception e) {
+                OperationOutcome oo = new OperationOutcome();
+                oo.addIssue().setSeverity(IssueSeverityEnum.FATAL).setDetails("Invalid dose " + dose.getValue() + ", the format is cvx or cvx:yyyyMMdd, not in the future");
+                throw new InternalErrorException("Invalid dose " + dose.getValue() + ", the format is cvx or cvx:yyyyMMdd, not in the future", oo);
             }
         }
 
-        return im;
-    }
+        RecommendationRequest request = (id != null && !id.isEmpty())
+                ? RecommendationRequest.forUpid(id.getValue(), today)
+                : RecommendationRequest.forEMPI(empi.getValue(), today);
+        request.setDiagnoses((icd9 == null) ? null : icd9.getValue(), (icd10 == null) ? null : icd10.getValue())
+                .setSeries((series == null) ? null : series.getValue())
+                .setSyncWithCIR(true)
+                .setApplyNYPRules(true);
 
-    private String formatSeriesName(String series) {
-        String ezvacSeries = series;
-        if (ezvacSeries != null) {
-            ezvacSeries = series.replaceAll("Immunization Evaluation Focus \\(", "");
-            ezvacSeries = ezvacSeries.replaceAll("\\)", "");
+        WhatIfResult result = null;
+        try {
+            result = pipeline.whatIf(request, hypotheticalDoses);
+        } catch (Exception e) {
+            e.printStackTrace();
+            OperationOutcome oo = new OperationOutcome();
+            oo.addIssue().setSeverity(IssueSeverityEnum.FATAL).setDetails("Error in recommendations calculations: " + e.getMessage());
+            throw new InternalErrorException("Error in recommendations calculations: " + e.getMessage(), oo);
         }
-        if (series.equalsIgnoreCase("Td")) {
-            ezvacSeries = "DTP Vaccine Group";
+
+        Bundle retVal = new Bundle();
+        retVal.setType(BundleTypeEnum.COLLECTION);
+        retVal.addEntry().setResource(result.getCurrent());
+        retVal.addEntry().setResource(result.getWhatIf());
+        if (!result.getNotEvaluated().isEmpty()) {
+            OperationOutcome oo = new OperationOutcome();
+            for (String message : result.getNotEvaluated()) {
+                oo.addIssue().setSeverity(IssueSeverityEnum.WARNING).setDetails(message);
+            }
+            retVal.addEntry().setResource(oo);
         }
-        return ezvacSeries;
+        return retVal;
     }
 
-    private Recommendation getMenBRecommendation(Date auditDate, String recommendation, String supportingImmunizationLink) {
-        Recommendation r = new Recommendation();
-        r.setDate(new DateTimeDt(auditDate));
-
-        CodeableConceptDt groupName = new CodeableConceptDt();
-        groupName.setText("MenB Vaccine Group");
-        r.setVaccineCode(groupName);
-
-        CodeableConceptDt recommendationName = new CodeableConceptDt();
-        String abbrRecommendation = null;
-        if (recommendation.startsWith("FUTURE_RECOMMENDED")) {
-            abbrRecommendation = "Future Recommendation";
-        } else if (recommendation.startsWith("RECOMMENDED")) {
-            abbrRecommendation = "Due Now";
-        } else if (recommendation.startsWith("NOT_RECOMMENDED")) {
-            abbrRecommendation = "Not Recommended";
+    /**
+     * Looks up the upids of the EMPIs, see RecommendationPipeline.resolveUpids
+     *
+     * @param empis
+     * @return
+     * @throws Exception
+     */
+    public Map<String, String> resolveUpids(Collection<String> empis) throws Exception {
+        return pipeline.resolveUpids(empis);
+    }
+
+    /**
+     * Runs the recommendation pipeline, failures are returned as an
+     * OperationOutcome.
+     *
+     * @param request
+     * @return
+     */
+    private RecommendationResult runPipeline(RecommendationRequest request) {
+        FlightSpan span = FlightEvent.RECOMMENDATION_REQUEST.begin();
+        span.set("upid", request.getUpid()).set("empi", request.getEmpi()).set("series", request.getSeries());
+        try {
+            RecommendationResult result = pipeline.run(request);
+            if (span.isRecording()) {
+                span.set("upid", result.getUpid()).set("outcome", "ok").set("stages", result.getTimings());
+                if (result.getRecommendation() != null) {
+                    span.set("recommendations", result.getRecommendation().getRecommendation().size());
+                }
+            }
+            return result;
+        } catch (Exception e) {
+            span.set("outcome", e);
+            e.printStackTrace();
+            OperationOutcome oo = new OperationOutcome();
+            oo.addIssue().setSeverity(IssueSeverityEnum.FATAL).setDetails("Error in recommendations calculations: " + e.getMessage());
+            throw new InternalErrorException("Error in recommendations calculations: " + e.getMessage(), oo);
+        } finally {
+            span.commit();
         }
-        recommendationName.setText(abbrRecommendation);
-        r.setForecastStatus(recommendationName);
+    }
 
-        RecommendationProtocol rp = new RecommendationProtocol();
-        rp.setSeries("MenB Vaccine Group");
-        rp.setDescription(recommendation);
-        r.setProtocol(rp);
+    /**
+     * Returns the result of a recommendation search. When the supporting
+     * immunizations are included, they are built from the same shot statuses
+     * that were computed for the recommendations, so the recommendation engine
+     * is only called once.
+     *
+     * @param result
+     * @return
+     */
+    private List<IResource> getSearchResult(RecommendationResult result) {
+        List<IResource> retVal = new ArrayList<IResource>();
+        retVal.add(result.getRecommendation());
+
+        List<Immunization> immunizations = result.getSupportingImmunizations();
+        if (immunizations != null) {
+            for (int i = 0; i < immunizations.size(); i++) {
+                Immunization immunization = immunizations.get(i);
+                ResourceMetadataKeyEnum.ENTRY_SEARCH_MODE.put(immunization, BundleEntrySearchModeEnum.INCLUDE);
+                retVal.add(immunization);
+            }
+        }
 
-        ResourceReferenceDt srr = new ResourceReferenceDt();
-        srr.setReference(supportingImmunizationLink);
-        ArrayList al = new ArrayList();
-        al.add(srr);
-        r.setSupportingImmunization(al);
+        return retVal;
+    }
 
-        return r;
+    private boolean isSupportingImmunizationIncluded(Set<Include> theIncludes) {
+        if (theIncludes != null) {
+            Iterator<Include> it = theIncludes.iterator();
+            while (it.hasNext()) {
+                String include = it.next().getValue();
+                if (include.equals(INCLUDE_SUPPORTING_IMMUNIZATION) || include.equals("*")) {
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 }
@@ -23,6 +23,14 @@
  * http://localhost:8080/imsrvcs/services/Immunization?empi=1010428628 - This
  * gets the records for a given EMPI
  * <p>
+ * http://localhost:8080/imsrvcs/services/Immunization?empi=1010428628&_count=20 - The
+ * UPID and EMPI searches are paged, ordered by vaccine date, and follow the next link
+ * in the returned bundle for the following page
+ * <p>
+ * http://localhost:8080/imsrvcs/services/Immunization?empi=1010428628&_lastUpdated=ge2018-03-01T10:00:00
+ * - This gets only the records added or changed since the given time. The vaccine
+ * date can be limited the same way with date=ge20170101
+ * <p>
  * To get the data back in JSON format...
  * curl -H "Accept:application/json+fhir" http://localhost:8080/imsrvcs/services/Immunization?identifier=U000010923
  * curl -H "Accept:application/json" "http://localhost:8080/imsrvcs/services/Immunization?identifier=U000010923"
@@ -30,6 +38,7 @@
  */
 package org.nyp.ezvac.imsrvcs.providers;
 
+import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
 import ca.uhn.fhir.model.dstu2.composite.CodeableConceptDt;
 import ca.uhn.fhir.model.dstu2.composite.CodingDt;
 import ca.uhn.fhir.model.dstu2.composite.ResourceReferenceDt;
@@ -44,14 +53,20 @@ import ca.uhn.fhir.model.primitive.CodeDt;
 import ca.uhn.fhir.model.primitive.DateDt;
 import ca.uhn.fhir.model.primitive.DateTimeDt;
 import ca.uhn.fhir.model.primitive.IdDt;
+import ca.uhn.fhir.model.primitive.InstantDt;
 import ca.uhn.fhir.model.primitive.StringDt;
+import ca.uhn.fhir.rest.annotation.Count;
 import ca.uhn.fhir.rest.annotation.IdParam;
+import ca.uhn.fhir.rest.annotation.LastUpdatedParam;
 import ca.uhn.fhir.rest.annotation.OptionalParam;
 import ca.uhn.fhir.rest.annotation.Read;
 import ca.uhn.fhir.rest.annotation.RequiredParam;
 import ca.uhn.fhir.rest.annotation.Search;
+import ca.uhn.fhir.rest.param.DateRangeParam;
 import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.server.IBundleProvider;
 import ca.uhn.fhir.rest.server.IResourceProvider;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 
@@ -59,16 +74,29 @@ import java.math.BigDecimal;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.Timestamp;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.sql.DataSource;
 
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.nyp.ezvac.imsrvcs.cache.CDSEvaluation;
+import org.nyp.ezvac.imsrvcs.cache.EvaluationCache;
+import org.nyp.ezvac.imsrvcs.cache.EvaluationLoader;
+import org.nyp.ezvac.imsrvcs.cache.IceStandIn;
+import org.nyp.ezvac.imsrvcs.metrics.FlightEvent;
+import org.nyp.ezvac.imsrvcs.metrics.FlightSpan;
+import org.nyp.ezvac.imsrvcs.metrics.Metrics;
+import org.nyp.ezvac.imsrvcs.pipeline.RecommendationPipeline;
+import org.nyp.ezvac.imsrvcs.recording.EvaluationRecording;
+import org.nyp.ezvac.imsrvcs.services.RequestDeadline;
 import org.nyph.cdslibrary.CDSLibraryWrapper;
 import org.nyph.cdslibrary.dto.HistoryStatusDTO;
 
@@ -103,26 +131,25 @@ public class ImmunizationResourceProvider implements IResourceProvider {
             + "jvdg.display_order, "
             + "TO_CHAR(im.measurement_date,'MM/DD/YYYY') measurement_date, im.measurement1, im.measurement2, NVL(s.system_name,'EZVAC') system_name, "
             + "(select doh_code from improd.vaccinemapper_table where vaccine_medcode = ic.vaccine_medcode FETCH FIRST ROW ONLY) cvx_code, dosage, uom, "
-            + "im.refusal, m.empi, m.localpatient_id, m.orgsite_id ";
+            + "im.refusal, m.empi, m.localpatient_id, m.orgsite_id, im.update_time last_updated ";
 
     private static final String TABLE_NAMES = " improd.immunizationmix_table im, improd.immunizationcomp_table ic, improd.visit_table v, improd.facilitysite_table f, improd.jsp_vaccine_display_group jvdg, improd.systems_table s, improd.mpi_table m, improd.manufacturer_table mt ";
 
     private String IMMUNIZATION_ID_LOOKUP = "SELECT " + FIELD_NAMES + " FROM " + TABLE_NAMES
             + "WHERE (im.immunization_id = ic.immunization_id) and (im.visit_id = v.visit_id) and (v.facilitysite_id = f.facilitysite_id) "
             + "and (jvdg.vaccine_medcode = ic.vaccine_medcode) and NVL(im.system_id,1) = s.system_id AND NVL(ic.vaccine_manufacturer,'UNK') = mt.manufacturer_id AND im.upid = m.upid AND im.immunization_id = ?";
-    private String IMMUNIZATION_UPID_LOOKUP = "SELECT " + FIELD_NAMES + " FROM " + TABLE_NAMES
-            + "WHERE (im.immunization_id = ic.immunization_id) and (im.visit_id = v.visit_id) and (v.facilitysite_id = f.facilitysite_id) "
-            + "and (jvdg.vaccine_medcode = ic.vaccine_medcode) and NVL(im.system_id,1) = s.system_id AND NVL(ic.vaccine_manufacturer,'UNK') = mt.manufacturer_id AND im.upid = m.upid AND im.upid = ?";
-    private String IMMUNIZATION_UPID_STATUS_LOOKUP = "SELECT " + FIELD_NAMES + " FROM " + TABLE_NAMES
-            + "WHERE (im.immunization_id = ic.immunization_id) and (im.visit_id = v.visit_id) and (v.facilitysite_id = f.facilitysite_id) "
-            + "and (jvdg.vaccine_medcode = ic.vaccine_medcode) and NVL(im.system_id,1) = s.system_id AND NVL(ic.vaccine_manufacturer,'UNK') = mt.manufacturer_id AND im.upid = m.upid AND im.upid = ? AND display = ?";
 
-    private String IMMUNIZATION_EMPI_LOOKUP = "SELECT " + FIELD_NAMES + " FROM " + TABLE_NAMES
-            + "WHERE (im.immunization_id = ic.immunization_id) and (im.visit_id = v.visit_id) and (v.facilitysite_id = f.facilitysite_id) "
-            + "and (jvdg.vaccine_medcode = ic.vaccine_medcode) and NVL(im.system_id,1) = s.system_id AND NVL(ic.vaccine_manufacturer,'UNK') = mt.manufacturer_id AND im.upid = m.upid AND m.empi = ?";
-    private String IMMUNIZATION_EMPI_STATUS_LOOKUP = "SELECT " + FIELD_NAMES + " FROM " + TABLE_NAMES
-            + "WHERE (im.immunization_id = ic.immunization_id) and (im.visit_id = v.visit_id) and (v.facilitysite_id = f.facilitysite_id) "
-            + "and (jvdg.vaccine_medcode = ic.vaccine_medcode) and NVL(im.system_id,1) = s.system_id AND NVL(ic.vaccine_manufacturer,'UNK') = mt.manufacturer_id AND im.upid = m.upid AND m.empi = ? AND display = ?";
+    // Keyset pagination on (vaccine_date, immunization_id).  A page first selects the immunization id's in range, and
+    // only then pulls the (multi row) component records for those id's.
+    private static final String IMMUNIZATION_JOIN_CRITERIA = "WHERE (im.immunization_id = ic.immunization_id) and (im.visit_id = v.visit_id) and (v.facilitysite_id = f.facilitysite_id) "
+            + "and (jvdg.vaccine_medcode = ic.vaccine_medcode) and NVL(im.system_id,1) = s.system_id AND NVL(ic.vaccine_manufacturer,'UNK') = mt.manufacturer_id AND im.upid = m.upid ";
+    private static final String KEYSET_PREDICATE = " AND (im.vaccine_date > ? OR (im.vaccine_date = ? AND im.immunization_id > ?))";
+    private static final String KEYSET_ORDER = " ORDER BY im.vaccine_date, im.immunization_id";
+    private static final String IMMUNIZATION_COUNT = "SELECT COUNT(DISTINCT im.immunization_id) FROM " + TABLE_NAMES;
+    private static final String IMMUNIZATION_KEYS = "SELECT DISTINCT im.immunization_id, im.vaccine_date FROM " + TABLE_NAMES;
+    private static final String IMMUNIZATION_PATIENT_LOOKUP = "SELECT " + FIELD_NAMES + " FROM " + TABLE_NAMES;
+    private static final String IMMUNIZATION_PAGE_LOOKUP = "SELECT " + FIELD_NAMES + " FROM " + TABLE_NAMES + IMMUNIZATION_JOIN_CRITERIA
+            + "AND im.immunization_id IN ";
 
     /**
      * Constructor
@@ -186,20 +213,29 @@ public class ImmunizationResourceProvider implements IResourceProvider {
      * allow the system to fill in the shot number as well as the status of the
      * various shots. Be warned, this can take some time so don't run it unless
      * you really really need it.
+     * <p>
+     * Without a schedule the history is returned as a paged bundle, so only the
+     * records for the requested page are ever read from the database.
      *
      * @param upid
      * @param status - optional (Y - Yes, N - No, I - Invalid)
      * @param schedule - optional (Y compute shot number in schedule, N do not
      * compute shot number in schedule)
+     * @param date - optional vaccine date range
+     * @param lastUpdated - optional range of when the records were added or
+     * last changed
+     * @param count - optional page size (_count)
      * @return
      */
     @Search()
-    public List<Immunization> findImmunizationsByUPID(@RequiredParam(name = Patient.SP_IDENTIFIER) StringDt upid,
-                                                      //public List<Immunization> findImmunizationsByUPID(@RequiredParam(name = "patient") StringDt upid,
-                                                      @OptionalParam(name = Immunization.SP_STATUS) StringParam status,
-                                                      @OptionalParam(name = "schedule") StringParam schedule,
-                                                      @OptionalParam(name = "auditdate") StringParam strAuditDate) {
-        List<Immunization> retVal = new ArrayList<Immunization>();
+    public IBundleProvider findImmunizationsByUPID(@RequiredParam(name = Patient.SP_IDENTIFIER) StringDt upid,
+                                                   //public List<Immunization> findImmunizationsByUPID(@RequiredParam(name = "patient") StringDt upid,
+                                                   @OptionalParam(name = Immunization.SP_STATUS) StringParam status,
+                                                   @OptionalParam(name = "schedule") StringParam schedule,
+                                                   @OptionalParam(name = "auditdate") StringParam strAuditDate,
+                                                   @OptionalParam(name = Immunization.SP_DATE) DateRangeParam date,
+                                                   @LastUpdatedParam DateRangeParam lastUpdated,
+                                                   @Count Integer count) {
         SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd");
         Date auditDate = null;
 
@@ -224,22 +260,28 @@ public class ImmunizationResourceProvider implements IResourceProvider {
 
         try {
             if (upid != null) {
-                List<Immunization> immunizations = null;
-                if (status == null) {
-                    immunizations = getImmunizationRecordsFromDatabase(null, upid.getValue().toString(), "upid", null);
-                } else {
-                    immunizations = getImmunizationRecordsFromDatabase(null, upid.getValue().toString(), "upid", status.getValue().toString());
+                ImmunizationFilter filter = new ImmunizationFilter((status == null) ? null : status.getValue().toString(), date, lastUpdated);
+
+                // Check to see if we need to run the recommendations engine against this history.  The shot statuses
+                // are computed against the entire history, so this is the one case where the history is not paged.
+                System.out.println("Checking on schedule");
+                if ((schedule != null) && schedule.getValue().toString().equalsIgnoreCase("Y")) {
+                    List<Immunization> immunizations = getImmunizationRecordsFromDatabase(null, upid.getValue().toString(), "upid", filter);
+                    if (immunizations.size() == 0 && filter.hasDateRange()) {
+                        return new SimpleBundleProvider(new ArrayList<IBaseResource>());
+                    } else if (immunizations.size() == 0) {
+                        throw new ResourceNotFoundException("No immunizations found for upid = " + upid.getValue().toString());
+                    }
+                    immunizations = computeShotStatuses(upid.getValue().toString(), auditDate, immunizations);
+                    return new SimpleBundleProvider(new ArrayList<IBaseResource>(immunizations));
                 }
-                if (immunizations.size() == 0) {
+
+                // A date or _lastUpdated search that matches nothing is an empty bundle, not a 404
+                ImmunizationBundleProvider immunizations = new ImmunizationBundleProvider(this, upid.getValue().toString(), "upid", filter, count);
+                if (immunizations.size() == 0 && !filter.hasDateRange()) {
                     throw new ResourceNotFoundException("No immunizations found for upid = " + upid.getValue().toString());
-                } else {
-                    // Check to see if we need to run the recommendations engine against this history.
-                    System.out.println("Checking on schedule");
-                    if ((schedule != null) && schedule.getValue().toString().equalsIgnoreCase("Y")) {
-                        immunizations = computeShotStatuses(upid.getValue().toString(), auditDate, immunizations);
-                    }
-                    return immunizations;
                 }
+                return immunizations;
             } else {
                 OperationOutcome oo = new OperationOutcome();
                 oo.addIssue().setSeverity(IssueSeverityEnum.FATAL).setDetails("No EMPI specified");
@@ -261,25 +303,27 @@ public class ImmunizationResourceProvider implements IResourceProvider {
      * Given a empi, return the entire immunization history for this patient.
      * The status is optional and can include the following values... Y - all
      * completed active displayable shots N - deleted shots I - inactive shots
+     * The history is returned as a paged bundle.
      *
      * @param upid
      * @param status
+     * @param date - optional vaccine date range
+     * @param lastUpdated - optional range of when the records were added or
+     * last changed
+     * @param count - optional page size (_count)
      * @return
      */
     @Search()
-    public List<Immunization> findImmunizationsByEMPI(@RequiredParam(name = "empi") StringDt empi,
-                                                      @OptionalParam(name = Immunization.SP_STATUS) StringParam status) {
-        List<Immunization> retVal = new ArrayList<Immunization>();
-
+    public IBundleProvider findImmunizationsByEMPI(@RequiredParam(name = "empi") StringDt empi,
+                                                   @OptionalParam(name = Immunization.SP_STATUS) StringParam status,
+                                                   @OptionalParam(name = Immunization.SP_DATE) DateRangeParam date,
+                                                   @LastUpdatedParam DateRangeParam lastUpdated,
+                                                   @Count Integer count) {
         try {
             if (empi != null) {
-                List<Immunization> immunizations = null;
-                if (status == null) {
-                    immunizations = getImmunizationRecordsFromDatabase(null, empi.getValue().toString(), "empi", null);
-                } else {
-                    immunizations = getImmunizationRecordsFromDatabase(null, empi.getValue().toString(), "empi", status.getValue().toString());
-                }
-                if (immunizations.size() == 0) {
+                ImmunizationFilter filter = new ImmunizationFilter((status == null) ? null : status.getValue().toString(), date, lastUpdated);
+                ImmunizationBundleProvider immunizations = new ImmunizationBundleProvider(this, empi.getValue().toString(), "empi", filter, count);
+                if (immunizations.size() == 0 && !filter.hasDateRange()) {
                     throw new ResourceNotFoundException("No immunizations present for empi = " + empi.getValue().toString());
                 } else {
                     return immunizations;
@@ -293,7 +337,7 @@ public class ImmunizationResourceProvider implements IResourceProvider {
             System.out.println("Threw Resource not found exception");
             OperationOutcome oo = new OperationOutcome();
             oo.addIssue().setSeverity(IssueSeverityEnum.INFORMATION).setDetails(ex.getMessage());
-            throw new InternalErrorException(ex.getMessage(), oo);
+            throw new ResourceNotFoundException(ex.getMessage(), oo);
         } catch (Exception e) {
             OperationOutcome oo = new OperationOutcome();
             oo.addIssue().setSeverity(IssueSeverityEnum.FATAL).setDetails(e.getMessage());
@@ -306,15 +350,53 @@ public class ImmunizationResourceProvider implements IResourceProvider {
      * database.
      *
      * @param id - the immunization id
-     * @param upid - The upid
-     * @param status - status of Y, N or I
+     * @param patientId - the upid or empi
+     * @param patientIdType - upid or empi
+     * @param filter - status, vaccine date and last updated criteria
      * @return
      * @throws Exception
      */
-    private List<Immunization> getImmunizationRecordsFromDatabase(String id, String patientId, String patientIdType, String status) throws Exception {
-        HashMap<Long, Immunization> uniqueImmunizations = new HashMap();
+    private List<Immunization> getImmunizationRecordsFromDatabase(String id, String patientId, String patientIdType, ImmunizationFilter filter) throws Exception {
         List<Immunization> retVal = new ArrayList<Immunization>();
         Connection conn = null;
+
+        // Initialize, query and populate the FHIR patient object 
+        try {
+            Context ctx = new InitialContext();
+            ds = (DataSource) ctx.lookup("java:comp/env/jdbc/nypis");
+            conn = Metrics.getConnection(ds);
+            retVal = getImmunizationRecords(conn, id, patientId, patientIdType, filter);
+            conn.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+            OperationOutcome oo = new OperationOutcome();
+            oo.addIssue().setSeverity(IssueSeverityEnum.FATAL).setDetails("Error in Immunization lookup: " + e.getMessage());
+            throw new InternalErrorException("Error in Immunization lookup: " + e.getMessage(), oo);
+        } finally {
+            if (conn != null) {
+                conn.close();
+                conn = null;
+            }
+        }
+
+        return retVal;
+    }
+
+    /**
+     * Looks up the immunization records by id or by patient on the given
+     * connection, and maps them into FHIR immunization objects. The connection
+     * is left open.
+     *
+     * @param conn
+     * @param id - the immunization id, or null
+     * @param patientId - the upid or empi, or null
+     * @param patientIdType - upid or empi
+     * @param filter - status, vaccine date and last updated criteria
+     * @return
+     * @throws Exception
+     */
+    List<Immunization> getImmunizationRecords(Connection conn, String id, String patientId, String patientIdType, ImmunizationFilter filter) throws Exception {
+        LinkedHashMap<Long, Immunization> uniqueImmunizations = new LinkedHashMap();
         PreparedStatement pstmt = null;
         ResultSet rs = null;
         String query = null;
@@ -323,176 +405,146 @@ public class ImmunizationResourceProvider implements IResourceProvider {
         if (id != null) {
             query = IMMUNIZATION_ID_LOOKUP;
         } else if (patientId != null) {
-            if (patientIdType.equalsIgnoreCase("upid")) {
-                if (status == null) {
-                    query = IMMUNIZATION_UPID_LOOKUP;
-                } else {
-                    query = IMMUNIZATION_UPID_STATUS_LOOKUP;
-                }
-            } else if (status == null) {
-                query = IMMUNIZATION_EMPI_LOOKUP;
-            } else {
-                query = IMMUNIZATION_EMPI_STATUS_LOOKUP;
-            }
-
+            query = IMMUNIZATION_PATIENT_LOOKUP + getPatientCriteria(patientIdType, filter) + KEYSET_ORDER;
         } else {
             throw new Exception("Unknown lookup type - valid ones are id or upid");
         }
 
-        // Initialize, query and populate the FHIR patient object 
         try {
             System.out.println("STATUS: The query is ");
             System.out.println(query);
-            Context ctx = new InitialContext();
-            ds = (DataSource) ctx.lookup("java:comp/env/jdbc/nypis");
-            conn = ds.getConnection();
             pstmt = conn.prepareStatement(query);
+            RequestDeadline.current().applyTo(pstmt);
 
             // Fill in the parameters
             if (id != null) {
                 pstmt.setString(1, id);
             } else if (patientId != null) {
                 pstmt.setString(1, patientId);
-                if (status != null) {
-                    pstmt.setString(2, status);
+                if (filter != null) {
+                    filter.setParameters(pstmt, 2);
                 }
             }
 
+            FlightSpan span = FlightEvent.IMMUNIZATION_QUERY.begin();
             rs = pstmt.executeQuery();
-            while (rs.next()) {
-                // Check to see if this is a duplicate record based on immunization_id, since we can get multiple rows for the
-                // same immunization (components)
-                Immunization im = uniqueImmunizations.get(rs.getLong("immunization_id"));
-                if (im == null) {
-                    im = new Immunization();
-                    im.setId(new Long(rs.getLong("immunization_id")).toString());
-                    im.setDate(new DateTimeDt(rs.getDate("vaccine_date")));
-
-                    // Setup the coding system - medcode
-                    CodingDt medcodeCoding = new CodingDt();
-                    medcodeCoding.setSystem("medcode");
-                    medcodeCoding.setCode(new Long(rs.getLong("vaccine_mixcode")).toString());
-                    medcodeCoding.setDisplay(rs.getString("vaccine_mixdesc"));
-                    medcodeCoding.setUserSelected(true);
-
-                    // Setup the coding system - cvx
-                    CodingDt cvxCoding = new CodingDt();
-                    cvxCoding.setSystem("http://hl7.org/fhir/sid/cvx");
-                    cvxCoding.setCode(new Long(rs.getLong("cvx_code")).toString());
-                    cvxCoding.setDisplay(rs.getString("vaccine_mixdesc"));
-                    cvxCoding.setUserSelected(true);
-
-                    // Add these 2 codes to the record
-                    CodeableConceptDt ccdt = new CodeableConceptDt();
-                    ccdt.addCoding(medcodeCoding);
-                    ccdt.addCoding(cvxCoding);
-
-                    // The Reference to the patient object
-                    ResourceReferenceDt patient = new ResourceReferenceDt();
-                    patient.setReference("Patient/" + rs.getString("upid"));
-                    im.setPatient(patient);
-
-                    // The reference to the manufacturer object
-                    ResourceReferenceDt manufacturer = new ResourceReferenceDt();
-                    manufacturer.setDisplay(rs.getString("manufacturer_name"));
-                    manufacturer.setReference("Organization/" + rs.getString("vaccine_manufacturer"));
-                    im.setManufacturer(manufacturer);
-
-                    // The reference to the facility object
-                    ResourceReferenceDt facility = new ResourceReferenceDt();
-                    facility.setDisplay(rs.getString("facility_name"));
-                    facility.setReference("Location/" + rs.getString("facilitysite_id"));
-                    im.setLocation(facility);
-
-                    // The reference to the administrator
-                    ResourceReferenceDt administrator = new ResourceReferenceDt();
-                    administrator.setDisplay(rs.getString("administrator_name"));
-                    administrator.setReference("Practitioner/" + rs.getString("administrator"));
-                    im.setPerformer(administrator);
-
-                    // The reference to the provider
-                    ResourceReferenceDt provider = new ResourceReferenceDt();
-                    provider.setDisplay(rs.getString("provider_name"));
-                    provider.setReference("Practitioner/" + rs.getString("provider_id"));
-                    im.setRequester(provider);
-
-                    im.setVaccineCode(ccdt);
-
-                    CodeDt statusCode = new CodeDt();
-                    if (rs.getString("display").equalsIgnoreCase("Y")) {
-                        statusCode.setValue(MedicationAdministrationStatusEnum.COMPLETED.toString());
-                    } else if (rs.getString("display").equalsIgnoreCase("N") || rs.getString("display").equalsIgnoreCase("I")) {
-                        statusCode.setValue(MedicationAdministrationStatusEnum.ENTERED_IN_ERROR.toString());
-                    } else {
-                        statusCode.setValue(MedicationAdministrationStatusEnum.STOPPED.toString());
-                    }
-                    im.setStatus(statusCode);
+            mapImmunizations(rs, uniqueImmunizations);
+            span.set("query", (id != null) ? "id" : "history").set("patientId", (id != null) ? id : patientId)
+                    .set("rows", uniqueImmunizations.size()).commit();
+        } finally {
+            if (rs != null) {
+                rs.close();
+                rs = null;
+            }
+            if (pstmt != null) {
+                pstmt.close();
+                pstmt = null;
+            }
+        }
 
-                    if (rs.getString("vaccine_lotnum") != null)
-                        im.setLotNumber(rs.getString("vaccine_lotnum"));
-                    if (rs.getDate("expiration_date") != null) {
-                        im.setExpirationDate(new DateDt(rs.getDate("expiration_date")));
-                    }
+        // Convert HashMap to List
+        return new ArrayList<Immunization>(uniqueImmunizations.values());
+    }
 
-                    String bodySite = rs.getString("inject_site");
-                    if (bodySite != null) {
-                        CodingDt bc = new CodingDt();
-                        bc.setCode(getManufactuerFHIRCode(rs.getString("inject_site")));
-                        bc.setDisplay(rs.getString("inject_site"));
-                        CodeableConceptDt bs = new CodeableConceptDt();
-                        bs.addCoding(bc);
-                        im.setSite(bs);
-                    }
+    /**
+     * Returns the number of distinct immunizations on file for a patient. This
+     * is used to size the paged bundle returned by the UPID and EMPI searches.
+     *
+     * @param patientId - the upid or empi
+     * @param patientIdType - upid or empi
+     * @param filter - status, vaccine date and last updated criteria
+     * @return
+     * @throws Exception
+     */
+    int countImmunizations(String patientId, String patientIdType, ImmunizationFilter filter) throws Exception {
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        int count = 0;
 
-                    // Series name
-                    VaccinationProtocol vp = new VaccinationProtocol();
-                    vp.setSeries(rs.getString("vaccine_display_group"));
-                    im.addVaccinationProtocol(vp);
-
-                    // If this shot is an antibody, we need to add this in as a CIR recommendation rule to be counted
-                    HashMap<Integer, String> antiBodyMap = getAntiBodyMap();
-                    String antiBodyGroupDesc = antiBodyMap.get(rs.getInt("vaccine_mixcode"));
-                    if (antiBodyGroupDesc != null) {
-                        VaccinationProtocol antiBodyVP = new VaccinationProtocol();
-                        antiBodyVP.setDescription("CIR recommendation rules");
-                        antiBodyVP.setSeries(antiBodyGroupDesc);
-                        im.addVaccinationProtocol(antiBodyVP);
-                    }
+        try {
+            Context ctx = new InitialContext();
+            ds = (DataSource) ctx.lookup("java:comp/env/jdbc/nypis");
+            conn = Metrics.getConnection(ds);
+            pstmt = conn.prepareStatement(IMMUNIZATION_COUNT + getPatientCriteria(patientIdType, filter));
+            RequestDeadline.current().applyTo(pstmt);
+            pstmt.setString(1, patientId);
+            if (filter != null) {
+                filter.setParameters(pstmt, 2);
+            }
+            FlightSpan span = FlightEvent.IMMUNIZATION_QUERY.begin();
+            rs = pstmt.executeQuery();
+            if (rs.next()) {
+                count = rs.getInt(1);
+            }
+            span.set("query", "count").set("patientId", patientId).set("rows", count).commit();
+        } catch (Exception e) {
+            e.printStackTrace();
+            OperationOutcome oo = new OperationOutcome();
+            oo.addIssue().setSeverity(IssueSeverityEnum.FATAL).setDetails("Error in Immunization lookup: " + e.getMessage());
+            throw new InternalErrorException("Error in Immunization lookup: " + e.getMessage(), oo);
+        } finally {
+            if (rs != null) {
+                rs.close();
+                rs = null;
+            }
+            if (pstmt != null) {
+                pstmt.close();
+                pstmt = null;
+            }
+            if (conn != null) {
+                conn.close();
+                conn = null;
+            }
+        }
 
-                    // Dosage and unit of measure
-                    SimpleQuantityDt sq = new SimpleQuantityDt();
-                    sq.setUnit(rs.getString("uom"));
-                    if (rs.getString("dosage") != null) {
-                        Double d = Double.parseDouble(rs.getString("dosage").replaceAll(".*?([\\d.]+).*", "$1"));
-                        sq.setValue(d);
-                    }
-                    im.setDoseQuantity(sq);
+        return count;
+    }
 
-                    // Datasource
-                    if (rs.getString("datasource") != null)
-                        im.setReported((rs.getString("datasource").equalsIgnoreCase("parental report")) ? true : false);
-                    else
-                        im.setReported(false);
+    /**
+     * Returns the keys (vaccine date, immunization id) of the next set of
+     * immunizations for a patient, ordered by vaccine date and immunization id.
+     *
+     * @param patientId - the upid or empi
+     * @param patientIdType - upid or empi
+     * @param filter - status, vaccine date and last updated criteria
+     * @param after - the key of the last immunization already seen, null to
+     * start with the first immunization
+     * @param count - the maximum number of keys to return
+     * @return
+     * @throws Exception
+     */
+    List<ImmunizationBundleProvider.Keyset> getImmunizationKeys(String patientId, String patientIdType, ImmunizationFilter filter, ImmunizationBundleProvider.Keyset after, int count) throws Exception {
+        List<ImmunizationBundleProvider.Keyset> keys = new ArrayList<ImmunizationBundleProvider.Keyset>();
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
 
-                    uniqueImmunizations.put(rs.getLong("immunization_id"), im);
+        String query = IMMUNIZATION_KEYS + getPatientCriteria(patientIdType, filter)
+                + ((after == null) ? "" : KEYSET_PREDICATE) + KEYSET_ORDER + " FETCH FIRST " + count + " ROWS ONLY";
 
-                } else {
-                    // Only populate the lotnum and expiration date and manufacturer
-                    if (rs.getString("vaccine_lotnum") != null) {
-                        if (im.getLocation() == null)
-                            im.setLotNumber(rs.getString("vaccine_lotnum"));
-                        else
-                            im.setLotNumber(im.getLotNumber() + ", " + rs.getString("vaccine_lotnum"));
-                    }
-                    VaccinationProtocol vp = new VaccinationProtocol();
-                    vp.setSeries(rs.getString("vaccine_display_group"));
-                    im.addVaccinationProtocol(vp);
-                    uniqueImmunizations.put(rs.getLong("immunization_id"), im);
-                }
+        try {
+            Context ctx = new InitialContext();
+            ds = (DataSource) ctx.lookup("java:comp/env/jdbc/nypis");
+            conn = Metrics.getConnection(ds);
+            pstmt = conn.prepareStatement(query);
+            RequestDeadline.current().applyTo(pstmt);
+            int index = 1;
+            pstmt.setString(index++, patientId);
+            if (filter != null) {
+                index = filter.setParameters(pstmt, index);
             }
-            rs.close();
-            pstmt.close();
-            conn.close();
+            if (after != null) {
+                pstmt.setTimestamp(index++, new Timestamp(after.getVaccineDate().getTime()));
+                pstmt.setTimestamp(index++, new Timestamp(after.getVaccineDate().getTime()));
+                pstmt.setLong(index++, after.getImmunizationId());
+            }
+            FlightSpan span = FlightEvent.IMMUNIZATION_QUERY.begin();
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                keys.add(new ImmunizationBundleProvider.Keyset(rs.getTimestamp("vaccine_date"), rs.getLong("immunization_id")));
+            }
+            span.set("query", "keys").set("patientId", patientId).set("rows", keys.size()).commit();
         } catch (Exception e) {
             e.printStackTrace();
             OperationOutcome oo = new OperationOutcome();
@@ -513,10 +565,232 @@ public class ImmunizationResourceProvider implements IResourceProvider {
             }
         }
 
-        // Convert HashMap to List
-        retVal = new ArrayList<Immunization>(uniqueImmunizations.values());
+        return keys;
+    }
 
-        return retVal;
+    /**
+     * Returns the immunization records for the given keys, in key order.
+     *
+     * @param keys - as returned by getImmunizationKeys
+     * @return
+     * @throws Exception
+     */
+    List<Immunization> getImmunizationPage(List<ImmunizationBundleProvider.Keyset> keys) throws Exception {
+        LinkedHashMap<Long, Immunization> uniqueImmunizations = new LinkedHashMap();
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+
+        if (keys.isEmpty()) {
+            return new ArrayList<Immunization>();
+        }
+
+        StringBuilder query = new StringBuilder(IMMUNIZATION_PAGE_LOOKUP).append("(");
+        for (int i = 0; i < keys.size(); i++) {
+            query.append((i == 0) ? "?" : ",?");
+        }
+        query.append(")").append(" ORDER BY vd, im.immunization_id");
+
+        try {
+            Context ctx = new InitialContext();
+            ds = (DataSource) ctx.lookup("java:comp/env/jdbc/nypis");
+            conn = Metrics.getConnection(ds);
+            pstmt = conn.prepareStatement(query.toString());
+            RequestDeadline.current().applyTo(pstmt);
+            for (int i = 0; i < keys.size(); i++) {
+                pstmt.setLong(i + 1, keys.get(i).getImmunizationId());
+            }
+            FlightSpan span = FlightEvent.IMMUNIZATION_QUERY.begin();
+            rs = pstmt.executeQuery();
+            mapImmunizations(rs, uniqueImmunizations);
+            span.set("query", "page").set("rows", uniqueImmunizations.size()).commit();
+        } catch (Exception e) {
+            e.printStackTrace();
+            OperationOutcome oo = new OperationOutcome();
+            oo.addIssue().setSeverity(IssueSeverityEnum.FATAL).setDetails("Error in Immunization lookup: " + e.getMessage());
+            throw new InternalErrorException("Error in Immunization lookup: " + e.getMessage(), oo);
+        } finally {
+            if (rs != null) {
+                rs.close();
+                rs = null;
+            }
+            if (pstmt != null) {
+                pstmt.close();
+                pstmt = null;
+            }
+            if (conn != null) {
+                conn.close();
+                conn = null;
+            }
+        }
+
+        return new ArrayList<Immunization>(uniqueImmunizations.values());
+    }
+
+    /**
+     * Returns the where clause that limits an immunization lookup to a patient
+     * (and optionally the filter criteria).
+     *
+     * @param patientIdType - upid or empi
+     * @param filter
+     * @return
+     */
+    private String getPatientCriteria(String patientIdType, ImmunizationFilter filter) {
+        String criteria = IMMUNIZATION_JOIN_CRITERIA
+                + (patientIdType.equalsIgnoreCase("upid") ? "AND im.upid = ?" : "AND m.empi = ?");
+        if (filter != null) {
+            criteria = criteria + filter.getCriteria();
+        }
+        return criteria;
+    }
+
+    /**
+     * Maps the rows of an immunization lookup into FHIR immunization objects.
+     * An immunization can come back as multiple rows (components), so the rows
+     * are folded into the given map keyed by immunization id, which also keeps
+     * the order in which the immunizations were returned by the query.
+     *
+     * @param rs
+     * @param uniqueImmunizations
+     * @throws Exception
+     */
+    private void mapImmunizations(ResultSet rs, HashMap<Long, Immunization> uniqueImmunizations) throws Exception {
+        while (rs.next()) {
+            // Check to see if this is a duplicate record based on immunization_id, since we can get multiple rows for the
+            // same immunization (components)
+            Immunization im = uniqueImmunizations.get(rs.getLong("immunization_id"));
+            if (im == null) {
+                im = new Immunization();
+                im.setId(new Long(rs.getLong("immunization_id")).toString());
+                im.setDate(new DateTimeDt(rs.getDate("vaccine_date")));
+
+                // Setup the coding system - medcode
+                CodingDt medcodeCoding = new CodingDt();
+                medcodeCoding.setSystem("medcode");
+                medcodeCoding.setCode(new Long(rs.getLong("vaccine_mixcode")).toString());
+                medcodeCoding.setDisplay(rs.getString("vaccine_mixdesc"));
+                medcodeCoding.setUserSelected(true);
+
+                // Setup the coding system - cvx
+                CodingDt cvxCoding = new CodingDt();
+                cvxCoding.setSystem("http://hl7.org/fhir/sid/cvx");
+                cvxCoding.setCode(new Long(rs.getLong("cvx_code")).toString());
+                cvxCoding.setDisplay(rs.getString("vaccine_mixdesc"));
+                cvxCoding.setUserSelected(true);
+
+                // Add these 2 codes to the record
+                CodeableConceptDt ccdt = new CodeableConceptDt();
+                ccdt.addCoding(medcodeCoding);
+                ccdt.addCoding(cvxCoding);
+
+                // The Reference to the patient object
+                ResourceReferenceDt patient = new ResourceReferenceDt();
+                patient.setReference("Patient/" + rs.getString("upid"));
+                im.setPatient(patient);
+
+                // The reference to the manufacturer object
+                ResourceReferenceDt manufacturer = new ResourceReferenceDt();
+                manufacturer.setDisplay(rs.getString("manufacturer_name"));
+                manufacturer.setReference("Organization/" + rs.getString("vaccine_manufacturer"));
+                im.setManufacturer(manufacturer);
+
+                // The reference to the facility object
+                ResourceReferenceDt facility = new ResourceReferenceDt();
+                facility.setDisplay(rs.getString("facility_name"));
+                facility.setReference("Location/" + rs.getString("facilitysite_id"));
+                im.setLocation(facility);
+
+                // The reference to the administrator
+                ResourceReferenceDt administrator = new ResourceReferenceDt();
+                administrator.setDisplay(rs.getString("administrator_name"));
+                administrator.setReference("Practitioner/" + rs.getString("administrator"));
+                im.setPerformer(administrator);
+
+                // The reference to the provider
+                ResourceReferenceDt provider = new ResourceReferenceDt();
+                provider.setDisplay(rs.getString("provider_name"));
+                provider.setReference("Practitioner/" + rs.getString("provider_id"));
+                im.setRequester(provider);
+
+                im.setVaccineCode(ccdt);
+
+                CodeDt statusCode = new CodeDt();
+                if (rs.getString("display").equalsIgnoreCase("Y")) {
+                    statusCode.setValue(MedicationAdministrationStatusEnum.COMPLETED.toString());
+                } else if (rs.getString("display").equalsIgnoreCase("N") || rs.getString("display").equalsIgnoreCase("I")) {
+                    statusCode.setValue(MedicationAdministrationStatusEnum.ENTERED_IN_ERROR.toString());
+                } else {
+                    statusCode.setValue(MedicationAdministrationStatusEnum.STOPPED.toString());
+                }
+                im.setStatus(statusCode);
+
+                if (rs.getString("vaccine_lotnum") != null)
+                    im.setLotNumber(rs.getString("vaccine_lotnum"));
+                if (rs.getDate("expiration_date") != null) {
+                    im.setExpirationDate(new DateDt(rs.getDate("expiration_date")));
+                }
+
+                String bodySite = rs.getString("inject_site");
+                if (bodySite != null) {
+                    CodingDt bc = new CodingDt();
+                    bc.setCode(getManufactuerFHIRCode(rs.getString("inject_site")));
+                    bc.setDisplay(rs.getString("inject_site"));
+                    CodeableConceptDt bs = new CodeableConceptDt();
+                    bs.addCoding(bc);
+                    im.setSite(bs);
+                }
+
+                // Series name
+                VaccinationProtocol vp = new VaccinationProtocol();
+                vp.setSeries(rs.getString("vaccine_display_group"));
+                im.addVaccinationProtocol(vp);
+
+                // If this shot is an antibody, we need to add this in as a CIR recommendation rule to be counted
+                HashMap<Integer, String> antiBodyMap = getAntiBodyMap();
+                String antiBodyGroupDesc = antiBodyMap.get(rs.getInt("vaccine_mixcode"));
+                if (antiBodyGroupDesc != null) {
+                    VaccinationProtocol antiBodyVP = new VaccinationProtocol();
+                    antiBodyVP.setDescription("CIR recommendation rules");
+                    antiBodyVP.setSeries(antiBodyGroupDesc);
+                    im.addVaccinationProtocol(antiBodyVP);
+                }
+
+                // Dosage and unit of measure
+                SimpleQuantityDt sq = new SimpleQuantityDt();
+                sq.setUnit(rs.getString("uom"));
+                if (rs.getString("dosage") != null) {
+                    Double d = Double.parseDouble(rs.getString("dosage").replaceAll(".*?([\\d.]+).*", "$1"));
+                    sq.setValue(d);
+                }
+                im.setDoseQuantity(sq);
+
+                // When the record was added or last changed, used by clients polling with _lastUpdated
+                if (rs.getTimestamp("last_updated") != null) {
+                    ResourceMetadataKeyEnum.UPDATED.put(im, new InstantDt(rs.getTimestamp("last_updated")));
+                }
+
+                // Datasource
+                if (rs.getString("datasource") != null)
+                    im.setReported((rs.getString("datasource").equalsIgnoreCase("parental report")) ? true : false);
+                else
+                    im.setReported(false);
+
+                uniqueImmunizations.put(rs.getLong("immunization_id"), im);
+
+            } else {
+                // Only populate the lotnum and expiration date and manufacturer
+                if (rs.getString("vaccine_lotnum") != null) {
+                    if (im.getLocation() == null)
+                        im.setLotNumber(rs.getString("vaccine_lotnum"));
+                    else
+                        im.setLotNumber(im.getLotNumber() + ", " + rs.getString("vaccine_lotnum"));
+                }
+                VaccinationProtocol vp = new VaccinationProtocol();
+                vp.setSeries(rs.getString("vaccine_display_group"));
+                im.addVaccinationProtocol(vp);
+                uniqueImmunizations.put(rs.getLong("immunization_id"), im);
+            }
+        }
     }
 
     /**
@@ -569,8 +843,7 @@ public class ImmunizationResourceProvider implements IResourceProvider {
      * @param history
      * @return
      */
-    private List<Immunization> computeShotStatuses(String upid, Date auditDate, List<Immunization> history) throws Exception {
-        Connection conn = null;
+    List<Immunization> computeShotStatuses(String upid, Date auditDate, List<Immunization> history) throws Exception {
         List<Immunization> retVal = new ArrayList();
         SimpleDateFormat sdf = new SimpleDateFormat("YYYY-MM-dd");
 
@@ -580,109 +853,178 @@ public class ImmunizationResourceProvider implements IResourceProvider {
             auditDate = new Date();
 
         try {
-            Context ctx = new InitialContext();
-            ds = (DataSource) ctx.lookup("java:comp/env/jdbc/nypis");
-            conn = ds.getConnection();
-
-            CDSLibraryWrapper cds = new CDSLibraryWrapper(conn, CONNECT_TO_PROD);
-            cds.getSchedule(upid, auditDate);
-
-            List<HistoryStatusDTO> statusHistory = null;
-            statusHistory = cds.getHistory();
-
-            System.out.println("Original History size is " + history.size());
-            System.out.println("Processed status History size is " + statusHistory.size());
-
-            for (int i = 0; i < history.size(); i++) {
-                Immunization im = history.get(i);
-
-                System.out.println("ID = " + im.getId().getIdPart());
-
-                for (int j = 0; j < statusHistory.size(); j++) {
-                    HistoryStatusDTO h = statusHistory.get(j);
-                    System.out.println(">>> Immunization id: " + h.getImmunizationId());
-                    if (h.getImmunizationId() == 11285275) System.out.println("I found immunization id = 11285275");
-                    if (im.getId().getIdPart().equalsIgnoreCase(h.getImmunizationId().toString())) {
-                        if (h.getImmunizationId() == 11285275) System.out.println("\tStep 1");
-                        if (h.getSeries() != null) {
-                            if (h.getImmunizationId() == 11285275) System.out.println("\tStep 2");
-                            String tokens[] = h.getSeries().split(",");
-                            for (int k = 0; k < tokens.length; k++) {
-                                if (h.getImmunizationId() == 11285275) System.out.println("\tStep 3");
-                                VaccinationProtocol vp = new VaccinationProtocol();
-                                vp.setDoseSequence(h.getShotNumber());
-                                vp.setDescription("CIR recommendation rules");
-                                vp.setSeries(formatSeriesName(tokens[k]));
-
-                                // Does this dose count towards shot
-                                CodeableConceptDt cc = new CodeableConceptDt();
-                                CodingDt count = new CodingDt();
-                                count.setCode(h.isValid() ? "counts" : "nocount");
-                                count.setDisplay(h.isValid() ? "Counts" : "Does Not Count");
-                                cc.addCoding(count);
-                                vp.setDoseStatus(cc);
-
-                                // Why does this dose count or not count
-                                String[] reasonTokens = h.getReason().split(",", -1);
-                                System.out.println("For : " + im.getId().getIdPart() + ")----> We have ******** tokens " + vp.getSeries() + " -> " + tokens.length + " : " + reasonTokens.length + " [" + h.getReason() + "]");
-                                //if (tokens.length == (reasonTokens.length-1)) {
-                                CodeableConceptDt ccr = new CodeableConceptDt();
-                                CodingDt reason = new CodingDt();
-                                reason.setDisplay(reasonTokens[k]);
-                                ccr.addCoding(reason);
-                                System.out.println("\tSetting Reason: " + reasonTokens[k] + " where k = " + k);
-                                vp.setDoseStatusReason(ccr);
-                                //}
-                                im.addVaccinationProtocol(vp);
-                            }
+            // Usually the recommendation request for the same patient and audit date
+            // has already evaluated the patient, in which case the evaluation is reused
+            CDSEvaluation evaluation = EvaluationCache.getInstance().getEvaluation(upid, auditDate, new EvaluationLoader() {
+                public CDSEvaluation load(String upid, Date auditDate) throws Exception {
+                    Connection conn = null;
+                    long start = System.nanoTime();
+                    FlightSpan span = FlightEvent.ICE_EVALUATION.begin();
+                    try {
+                        CDSEvaluation evaluation;
+                        EvaluationLoader standIn = IceStandIn.get();
+                        if (standIn != null) {
+                            evaluation = standIn.load(upid, auditDate);
+                        } else {
+                            Context ctx = new InitialContext();
+                            ds = (DataSource) ctx.lookup("java:comp/env/jdbc/nypis");
+                            conn = Metrics.getConnection(ds);
+
+                            CDSLibraryWrapper cds = new CDSLibraryWrapper(conn, CONNECT_TO_PROD);
+                            cds.getSchedule(upid, auditDate);
+                            evaluation = new CDSEvaluation(upid, auditDate, cds);
+                            EvaluationRecording.record(evaluation);
                         }
-                    }
-                }
-
-                //System.out.println("\tFor id = " + im.getId().getIdPart() + " I have " + im.getVaccinationProtocol().size() + " protocols");
-                // If there are shots that are not fitting in the ICE model, we need to add them in as well with the series name being vaccine group
-                // so Eric/Allscripts can parse.
-                if (im.getVaccinationProtocol().size() == 1) {
-                    String currentProtocol = im.getVaccinationProtocol().get(0).getSeries().toString();
-                    VaccinationProtocol vp = new VaccinationProtocol();
-                    vp.setDescription("CIR recommendation rules");
-                    if (currentProtocol.equalsIgnoreCase("HepB"))
-                        currentProtocol = "Hep B";
-                    if (currentProtocol.equalsIgnoreCase("Pneumo"))
-                        currentProtocol = "PCV";
-                    boolean isMenBSpecialGroup = false;
-                    for (int k = 0; k < im.getVaccineCode().getCoding().size(); k++) {
-                        CodingDt coding = im.getVaccineCode().getCoding().get(k);
-                        if (coding.getSystem().equalsIgnoreCase("http://hl7.org/fhir/sid/cvx")) {
-                            if (coding.getCode().equals("162") || coding.getCode().equals("163") || coding.getCode().equals("164")) {
-                                vp.setSeries("MenB Vaccine Group");
-                                isMenBSpecialGroup = true;
-                            }
+                        span.set("outcome", "ok").set("recommendations", evaluation.getRecommendations().size());
+                        return evaluation;
+                    } catch (Exception e) {
+                        Metrics.upstreamError("ice");
+                        span.set("outcome", e);
+                        throw e;
+                    } finally {
+                        Metrics.recordStage(RecommendationPipeline.STAGE_ICE, System.nanoTime() - start);
+                        span.set("upid", upid).set("auditDate", auditDate).commit();
+                        if (conn != null) {
+                            conn.close();
                         }
                     }
-                    if (!isMenBSpecialGroup)
-                        vp.setSeries(currentProtocol + " Vaccine Group");
-                    im.addVaccinationProtocol(vp);
                 }
+            });
 
-                retVal.add(im);
-            }
-
+            retVal = mergeShotStatuses(history, evaluation.getHistory());
         } catch (Exception e) {
             OperationOutcome oo = new OperationOutcome();
             oo.addIssue().setSeverity(IssueSeverityEnum.FATAL).setDetails("Error in Immunization lookup: " + e.getMessage());
             throw new InternalErrorException("Error in Immunization lookup: " + e.getMessage(), oo);
-        } finally {
-            if (conn != null) {
-                conn.close();
-                conn = null;
-            }
         }
 
         System.out.println("retval size is " + retVal.size());
         return retVal;
     }
 
+    /**
+     * Given the immunization history for a patient and the shot statuses
+     * computed by the recommendation engine for that patient, fill in the shot
+     * number and shot validity of each immunization.
+     *
+     * @param history - the immunization records
+     * @param statusHistory - the shot statuses from the recommendation engine
+     * @return
+     */
+    public List<Immunization> mergeShotStatuses(List<Immunization> history, List<HistoryStatusDTO> statusHistory) {
+        FlightSpan span = FlightEvent.SHOT_STATUS_MERGE.begin();
+        List<Immunization> retVal = new ArrayList();
+
+        System.out.println("Original History size is " + history.size());
+        System.out.println("Processed status History size is " + statusHistory.size());
+
+        for (int i = 0; i < history.size(); i++) {
+            Immunization im = history.get(i);
+
+            System.out.println("ID = " + im.getId().getIdPart());
+
+            for (int j = 0; j < statusHistory.size(); j++) {
+                HistoryStatusDTO h = statusHistory.get(j);
+                System.out.println(">>> Immunization id: " + h.getImmunizationId());
+                if (h.getImmunizationId() == 11285275) System.out.println("I found immunization id = 11285275");
+                if (im.getId().getIdPart().equalsIgnoreCase(h.getImmunizationId().toString())) {
+                    if (h.getImmunizationId() == 11285275) System.out.println("\tStep 1");
+                    if (h.getSeries() != null) {
+                        if (h.getImmunizationId() == 11285275) System.out.println("\tStep 2");
+                        String tokens[] = h.getSeries().split(",");
+                        for (int k = 0; k < tokens.length; k++) {
+                            if (h.getImmunizationId() == 11285275) System.out.println("\tStep 3");
+                            VaccinationProtocol vp = new VaccinationProtocol();
+                            vp.setDoseSequence(h.getShotNumber());
+                            vp.setDescription("CIR recommendation rules");
+                            vp.setSeries(formatSeriesName(tokens[k]));
+
+                            // Does this dose count towards shot
+                            CodeableConceptDt cc = new CodeableConceptDt();
+                            CodingDt count = new CodingDt();
+                            count.setCode(h.isValid() ? "counts" : "nocount");
+                            count.setDisplay(h.isValid() ? "Counts" : "Does Not Count");
+                            cc.addCoding(count);
+                            vp.setDoseStatus(cc);
+
+                            // Why does this dose count or not count
+                            String[] reasonTokens = h.getReason().split(",", -1);
+                            System.out.println("For : " + im.getId().getIdPart() + ")----> We have ******** tokens " + vp.getSeries() + " -> " + tokens.length + " : " + reasonTokens.length + " [" + h.getReason() + "]");
+                            //if (tokens.length == (reasonTokens.length-1)) {
+                            CodeableConceptDt ccr = new CodeableConceptDt();
+                            CodingDt reason = new CodingDt();
+                            reason.setDisplay(reasonTokens[k]);
+                            ccr.addCoding(reason);
+                            System.out.println("\tSetting Reason: " + reasonTokens[k] + " where k = " + k);
+                            vp.setDoseStatusReason(ccr);
+                            //}
+                            im.addVaccinationProtocol(vp);
+                        }
+                    }
+                }
+            }
+
+            //System.out.println("\tFor id = " + im.getId().getIdPart() + " I have " + im.getVaccinationProtocol().size() + " protocols");
+            // If there are shots that are not fitting in the ICE model, we need to add them in as well with the series name being vaccine group
+            // so Eric/Allscripts can parse.
+            if (im.getVaccinationProtocol().size() == 1) {
+                String currentProtocol = im.getVaccinationProtocol().get(0).getSeries().toString();
+                VaccinationProtocol vp = new VaccinationProtocol();
+                vp.setDescription("CIR recommendation rules");
+                if (currentProtocol.equalsIgnoreCase("HepB"))
+                    currentProtocol = "Hep B";
+                if (currentProtocol.equalsIgnoreCase("Pneumo"))
+                    currentProtocol = "PCV";
+                boolean isMenBSpecialGroup = false;
+                for (int k = 0; k < im.getVaccineCode().getCoding().size(); k++) {
+                    CodingDt coding = im.getVaccineCode().getCoding().get(k);
+                    if (coding.getSystem().equalsIgnoreCase("http://hl7.org/fhir/sid/cvx")) {
+                        if (coding.getCode().equals("162") || coding.getCode().equals("163") || coding.getCode().equals("164")) {
+                            vp.setSeries("MenB Vaccine Group");
+                            isMenBSpecialGroup = true;
+                        }
+                    }
+                }
+                if (!isMenBSpecialGroup)
+                    vp.setSeries(currentProtocol + " Vaccine Group");
+                im.addVaccinationProtocol(vp);
+            }
+
+            retVal.add(im);
+        }
+
+        span.set("immunizations", history.size()).set("statuses", statusHistory.size()).set("merged", retVal.size()).commit();
+        return retVal;
+    }
+
+    /**
+     * Returns the immunization history for a upid, with the shot numbers and
+     * shot validity filled in from shot statuses that were already computed by
+     * the recommendation engine. This is the same result as a
+     * Immunization?identifier=upid&schedule=Y request, without running the
+     * recommendation engine a second time.
+     *
+     * @param upid
+     * @param statusHistory - the shot statuses from the recommendation engine
+     * @return
+     * @throws Exception
+     */
+    public List<Immunization> getSupportingImmunizations(String upid, List<HistoryStatusDTO> statusHistory) throws Exception {
+        return mergeShotStatuses(getImmunizationHistory(upid), statusHistory);
+    }
+
+    /**
+     * Returns the full immunization history of the patient from the database,
+     * without the shot statuses.
+     *
+     * @param upid
+     * @return
+     * @throws Exception
+     */
+    public List<Immunization> getImmunizationHistory(String upid) throws Exception {
+        return getImmunizationRecordsFromDatabase(null, upid, "upid", null);
+    }
+
     private String formatSeriesName(String series) {
         String ezvacSeries = series;
         if (ezvacSeries != null) {
@@ -39,6 +39,8 @@ import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.sql.DataSource;
 
+import org.nyp.ezvac.imsrvcs.services.RequestDeadline;
+
 /**
  *
  * @author bdasgupt
@@ -83,6 +85,7 @@ public class LocationResourceProvider implements IResourceProvider {
             ds = (DataSource) ctx.lookup("java:comp/env/jdbc/nypis");
             conn = ds.getConnection();
             pstmt = conn.prepareStatement(LOCATION_ID_LOOKUP);
+            RequestDeadline.current().applyTo(pstmt);
             pstmt.setString(1, theId.getIdPart());
             rs = pstmt.executeQuery();
             while (rs.next()) {
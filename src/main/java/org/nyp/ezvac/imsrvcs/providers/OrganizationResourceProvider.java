@@ -35,6 +35,8 @@ import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.sql.DataSource;
 
+import org.nyp.ezvac.imsrvcs.services.RequestDeadline;
+
 public class OrganizationResourceProvider implements IResourceProvider {
     private DataSource ds = null;
     private String MANUFACTURER_ID_LOOKUP = "SELECT * FROM improd.manufacturer_table WHERE manufacturer_id = ?";
@@ -75,6 +77,7 @@ public class OrganizationResourceProvider implements IResourceProvider {
             ds = (DataSource) ctx.lookup("java:comp/env/jdbc/nypis");
             conn = ds.getConnection();
             pstmt = conn.prepareStatement(MANUFACTURER_ID_LOOKUP);
+            RequestDeadline.current().applyTo(pstmt);
             pstmt.setString(1, theId.getIdPart());
             rs = pstmt.executeQuery();
             while (rs.next()) {
@@ -65,6 +65,8 @@ import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.sql.DataSource;
 
+import org.nyp.ezvac.imsrvcs.services.RequestDeadline;
+
 public class PatientResourceProvider implements IResourceProvider {
 
     private DataSource ds = null;
@@ -225,6 +227,7 @@ public class PatientResourceProvider implements IResourceProvider {
             ds = (DataSource) ctx.lookup("java:comp/env/jdbc/nypis");
             conn = ds.getConnection();
             pstmt = conn.prepareStatement(query);
+            RequestDeadline.current().applyTo(pstmt);
             pstmt.setString(1, id);
             if (injectOrg)
                 pstmt.setString(2, orgSite);
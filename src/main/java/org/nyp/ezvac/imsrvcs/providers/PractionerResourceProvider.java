@@ -35,6 +35,8 @@ import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.sql.DataSource;
 
+import org.nyp.ezvac.imsrvcs.services.RequestDeadline;
+
 /**
  *
  * @author bdasgupt
@@ -82,6 +84,7 @@ public class PractionerResourceProvider implements IResourceProvider {
             System.out.println(PROVIDER_ID_LOOKUP);
             System.out.println(theId.getIdPart());
             pstmt = conn.prepareStatement(PROVIDER_ID_LOOKUP);
+            RequestDeadline.current().applyTo(pstmt);
             pstmt.setString(1, theId.getIdPart());
             rs = pstmt.executeQuery();
             while (rs.next()) {
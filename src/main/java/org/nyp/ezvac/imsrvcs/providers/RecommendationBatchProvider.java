@@ -0,0 +1,282 @@
+/**
+ * RecommendationBatchProvider
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * This file implements the FHIR batch interaction for recommendations, so that
+ * the recommendations for a panel of patients can be retrieved with a single
+ * request. Each entry of the batch is a GET on ImmunizationRecommendation, in
+ * the same form as the individual requests, e.g.
+ * <p>
+ * ImmunizationRecommendation?empi=1005404275&icd9=745.6|748&auditdate=20160715
+ * ImmunizationRecommendation/2070246
+ * <p>
+ * The entries are evaluated in parallel on the bounded batch executor. Every
+ * entry gets its own response status, and a failing entry returns its
+ * OperationOutcome without failing the rest of the batch. The patients requested
+ * by empi are looked up first, then all the patients are synced with the CIR in
+ * bulk before they are evaluated (see CIRBulkSync), skipping those synced
+ * recently.
+ * <p>
+ * curl -X POST -H "Content-Type: application/json+fhir" -d @batch.json
+ * http://localhost:8080/imsrvcs/services
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.providers;
+
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.Bundle.Entry;
+import ca.uhn.fhir.model.dstu2.resource.OperationOutcome;
+import ca.uhn.fhir.model.dstu2.valueset.BundleTypeEnum;
+import ca.uhn.fhir.model.dstu2.valueset.IssueSeverityEnum;
+import ca.uhn.fhir.model.primitive.IdDt;
+import ca.uhn.fhir.model.primitive.StringDt;
+import ca.uhn.fhir.rest.annotation.Transaction;
+import ca.uhn.fhir.rest.annotation.TransactionParam;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.nyp.ezvac.imsrvcs.cirsync.CIRBulkSync;
+import org.nyp.ezvac.imsrvcs.services.RequestDeadline;
+import org.nyp.ezvac.imsrvcs.services.ServiceConfig;
+import org.nyp.ezvac.imsrvcs.services.ServiceExecutors;
+
+/**
+ * @author bdasgupt
+ */
+public class RecommendationBatchProvider {
+
+    private static final String RESOURCE_NAME = "ImmunizationRecommendation";
+
+    private ImmunizationRecommendationResourceProvider recommendationProvider;
+
+    /**
+     * Constructor
+     *
+     * @param recommendationProvider - the provider that evaluates each entry
+     */
+    public RecommendationBatchProvider(ImmunizationRecommendationResourceProvider recommendationProvider) {
+        this.recommendationProvider = recommendationProvider;
+    }
+
+    /**
+     * Evaluates every entry of the batch and returns a batch-response bundle with
+     * one entry per request entry, in the same order.
+     *
+     * @param theInput - the batch bundle
+     * @return
+     */
+    @Transaction
+    public Bundle batch(@TransactionParam Bundle theInput) {
+        int maxEntries = ServiceConfig.getInt("batch.maxEntries", 100);
+        if (theInput.getEntry().size() > maxEntries) {
+            OperationOutcome oo = new OperationOutcome();
+            oo.addIssue().setSeverity(IssueSeverityEnum.FATAL).setDetails("A batch can contain at most " + maxEntries + " entries");
+            throw new InvalidRequestException("A batch can contain at most " + maxEntries + " entries", oo);
+        }
+
+        // Look up the patients requested by empi, then sync all of them in one go
+        List<String> empis = new ArrayList<String>();
+        for (Entry entry : theInput.getEntry()) {
+            String empi = getEmpi(entry);
+            if (empi != null) {
+                empis.add(empi);
+            }
+        }
+        Map<String, String> empiUpids = new HashMap<String, String>();
+        if (!empis.isEmpty()) {
+            try {
+                empiUpids = recommendationProvider.resolveUpids(empis);
+            } catch (Exception e) {
+                // The entries look their patient up themselves
+                e.printStackTrace();
+            }
+        }
+        final Map<String, String> resolved = empiUpids;
+
+        List<String> upids = new ArrayList<String>();
+        for (Entry entry : theInput.getEntry()) {
+            String empi = getEmpi(entry);
+            String upid = (empi == null) ? getUpid(entry) : resolved.get(empi);
+            if (upid != null) {
+                upids.add(upid);
+            }
+        }
+        if (!upids.isEmpty()) {
+            try {
+                System.out.println(CIRBulkSync.summarize(CIRBulkSync.getDefault().syncAll(upids)));
+            } catch (Exception e) {
+                // The patients are evaluated with the history already in the database
+                e.printStackTrace();
+            }
+        }
+
+        // Fan the entries out
+        ExecutorService executor = ServiceExecutors.getBatchExecutor();
+        RequestDeadline deadline = RequestDeadline.current();
+        List<Future<IResource>> results = new ArrayList<Future<IResource>>();
+        for (int i = 0; i < theInput.getEntry().size(); i++) {
+            final Entry entry = theInput.getEntry().get(i);
+            results.add(executor.submit(deadline.wrap(new Callable<IResource>() {
+                public IResource call() throws Exception {
+                    return evaluateEntry(entry, resolved);
+                }
+            })));
+        }
+
+        // Collect the outcome of each entry
+        Bundle retVal = new Bundle();
+        retVal.setType(BundleTypeEnum.BATCH_RESPONSE);
+        for (int i = 0; i < results.size(); i++) {
+            Entry responseEntry = retVal.addEntry();
+            try {
+                responseEntry.setResource(results.get(i).get());
+                responseEntry.getResponse().setStatus("200 OK");
+            } catch (ExecutionException e) {
+                setFailure(responseEntry, e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                setFailure(responseEntry, e);
+            }
+        }
+
+        return retVal;
+    }
+
+    /**
+     * Evaluates a single batch entry by handing it to the recommendation
+     * provider, exactly as if it had been requested on its own, except that its
+     * patient was already synced with the batch.
+     *
+     * @param entry
+     * @param empiUpids - the upids of the empis of the batch
+     * @return
+     * @throws Exception
+     */
+    private IResource evaluateEntry(Entry entry, Map<String, String> empiUpids) throws Exception {
+        String url = entry.getRequest().getUrl();
+        if (url == null || !url.startsWith(RESOURCE_NAME)) {
+            throw new InvalidRequestException("Only " + RESOURCE_NAME + " requests are supported in a batch: " + url);
+        }
+        if (entry.getRequest().getMethod() != null && !entry.getRequest().getMethod().equalsIgnoreCase("GET")) {
+            throw new InvalidRequestException("Only GET requests are supported in a batch: " + url);
+        }
+
+        // ImmunizationRecommendation/<upid>, already synced with the batch
+        String upid = getUpid(entry);
+        if (upid != null) {
+            return recommendationProvider.getResourceById(new IdDt(RESOURCE_NAME, upid), false);
+        }
+
+        String query = null;
+        if (url.indexOf('?') >= 0) {
+            query = url.substring(url.indexOf('?') + 1);
+        }
+
+        // ImmunizationRecommendation?empi=..., already looked up and synced with the batch
+        HashMap<String, String> parameters = parseQuery(query);
+        if (parameters.get("empi") != null) {
+            String empiUpid = empiUpids.get(parameters.get("empi"));
+            return recommendationProvider.getResourceByEMPI(new StringDt(parameters.get("empi")), empiUpid,
+                    toStringParam(parameters.get("icd9")),
+                    toStringParam(parameters.get("icd10")),
+                    toStringParam(parameters.get("auditdate")),
+                    toStringParam(parameters.get("series")), null, empiUpid == null).get(0);
+        }
+        if (parameters.get("identifier") != null) {
+            return recommendationProvider.getResourceById(new StringDt(parameters.get("identifier")),
+                    toStringParam(parameters.get("auditdate")),
+                    toStringParam(parameters.get("series")), null).get(0);
+        }
+
+        throw new InvalidRequestException("An empi or identifier is required: " + url);
+    }
+
+    /**
+     * The upid of an ImmunizationRecommendation/<upid> entry, null for any other
+     * entry
+     *
+     * @param entry
+     * @return
+     */
+    private String getUpid(Entry entry) {
+        String url = entry.getRequest().getUrl();
+        if (url == null || !url.startsWith(RESOURCE_NAME + "/")) {
+            return null;
+        }
+        String path = (url.indexOf('?') >= 0) ? url.substring(0, url.indexOf('?')) : url;
+        String upid = path.substring(RESOURCE_NAME.length() + 1).trim();
+        return (upid.length() == 0) ? null : upid;
+    }
+
+    /**
+     * The empi of an ImmunizationRecommendation?empi=... entry, null for any
+     * other entry
+     *
+     * @param entry
+     * @return
+     */
+    private String getEmpi(Entry entry) {
+        String url = entry.getRequest().getUrl();
+        if (url == null || !url.startsWith(RESOURCE_NAME + "?")) {
+            return null;
+        }
+        try {
+            return parseQuery(url.substring(url.indexOf('?') + 1)).get("empi");
+        } catch (Exception e) {
+            // Reported when the entry is evaluated
+            return null;
+        }
+    }
+
+    private void setFailure(Entry responseEntry, Throwable t) {
+        OperationOutcome oo = null;
+        String status = "500 Internal Server Error";
+        if (t instanceof BaseServerResponseException) {
+            BaseServerResponseException e = (BaseServerResponseException) t;
+            status = e.getStatusCode() + " " + e.getMessage();
+            if (e.getOperationOutcome() instanceof OperationOutcome) {
+                oo = (OperationOutcome) e.getOperationOutcome();
+            }
+        }
+        if (oo == null) {
+            oo = new OperationOutcome();
+            oo.addIssue().setSeverity(IssueSeverityEnum.FATAL).setDetails(String.valueOf(t.getMessage()));
+        }
+        responseEntry.setResource(oo);
+        responseEntry.getResponse().setStatus(status);
+    }
+
+    private HashMap<String, String> parseQuery(String query) throws Exception {
+        HashMap<String, String> parameters = new HashMap<String, String>();
+        if (query == null) {
+            return parameters;
+        }
+        String[] tokens = query.split("&");
+        for (int i = 0; i < tokens.length; i++) {
+            int index = tokens[i].indexOf('=');
+            if (index > 0) {
+                parameters.put(tokens[i].substring(0, index), URLDecoder.decode(tokens[i].substring(index + 1), "UTF-8"));
+            }
+        }
+        return parameters;
+    }
+
+    private StringParam toStringParam(String value) {
+        return (value == null) ? null : new StringParam(value);
+    }
+}
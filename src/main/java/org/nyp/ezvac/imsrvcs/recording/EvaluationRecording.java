@@ -0,0 +1,449 @@
+/**
+ * EvaluationRecording
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * Records what the CDS library (ICE) and the CIR sync service answer, so that
+ * the same answers can be replayed later without them (RecordedEvaluations).
+ * Every evaluation is recorded with its upid and audit date - the evaluated
+ * history, the database history, the recommendations, the date of birth and
+ * the gender - and every CIR sync with its outcome.
+ * <p>
+ * The recording is a binary file of length prefixed records, appended to as
+ * the evaluations come in. Strings repeat a lot within an evaluation (series
+ * names, reasons, recommendation codes), so each one is written once per
+ * record and referred to by its index after that, and numbers and dates are
+ * written as variable length integers. A record cut short (the server was
+ * stopped while writing) is skipped when the recording is read.
+ * <p>
+ * Configured in imsrvcs.properties
+ * <p>
+ * ice.record - the file to record to, appended to if it exists. Recording is
+ * off when empty.
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.recording;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.nyp.ezvac.imsrvcs.cache.CDSEvaluation;
+import org.nyp.ezvac.imsrvcs.cirsync.CIRSyncResult;
+import org.nyp.ezvac.imsrvcs.services.ServiceConfig;
+import org.nyph.cdslibrary.dto.HistoryStatusDTO;
+import org.nyph.cdslibrary.dto.ImmunizationRecommendationDTO;
+
+/**
+ * @author bdasgupt
+ */
+public class EvaluationRecording {
+
+    private static final int MAGIC = 0x494d4556; // IMEV
+    private static final int VERSION = 1;
+    private static final byte EVALUATION = 'E';
+    private static final byte CIR_SYNC = 'C';
+
+    private static EvaluationRecording recorder = null;
+    private static boolean initialized = false;
+
+    private final File file;
+    private final DataOutputStream out;
+    private long records = 0;
+
+    private EvaluationRecording(File file) throws IOException {
+        this.file = file;
+        boolean empty = !file.exists() || file.length() == 0;
+        if (!empty) {
+            checkHeader(file);
+        }
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 65536));
+        if (empty) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.flush();
+        }
+    }
+
+    private static synchronized EvaluationRecording getRecorder() {
+        if (!initialized) {
+            String fileName = ServiceConfig.getString("ice.record", "");
+            if (fileName.length() > 0) {
+                try {
+                    recorder = new EvaluationRecording(new File(fileName));
+                    System.out.println("*** Recording the ICE evaluations and CIR syncs to " + fileName);
+                } catch (IOException e) {
+                    System.out.println("*** Cannot record to " + fileName + ": " + e.getMessage());
+                }
+            }
+            initialized = true;
+        }
+        return recorder;
+    }
+
+    /**
+     * Whether ice.record is set
+     *
+     * @return
+     */
+    public static boolean isRecording() {
+        return getRecorder() != null;
+    }
+
+    /**
+     * Records an evaluation of the CDS library, when recording. Never throws,
+     * a failure to record is logged.
+     *
+     * @param evaluation
+     */
+    public static void record(CDSEvaluation evaluation) {
+        EvaluationRecording r = getRecorder();
+        if (r != null) {
+            try {
+                r.append(evaluation);
+            } catch (IOException e) {
+                System.out.println("*** Cannot record the evaluation of " + evaluation.getUpid() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Records the outcome of a CIR sync, when recording. Never throws.
+     *
+     * @param result
+     */
+    public static void record(CIRSyncResult result) {
+        EvaluationRecording r = getRecorder();
+        if (r != null) {
+            try {
+                r.append(result);
+            } catch (IOException e) {
+                System.out.println("*** Cannot record the CIR sync of " + result.getUpid() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Closes the recording, called when the web application is stopped
+     */
+    public static synchronized void shutdown() {
+        if (recorder != null) {
+            try {
+                recorder.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            System.out.println("*** Recorded " + recorder.records + " records to " + recorder.file);
+            recorder = null;
+        }
+        initialized = false;
+    }
+
+    /**
+     * Opens a recording to append to directly, for tools writing recordings
+     * of their own (e.g. of a synthetic population)
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static EvaluationRecording open(File file) throws IOException {
+        return new EvaluationRecording(file);
+    }
+
+    public void append(CDSEvaluation evaluation) throws IOException {
+        write(EVALUATION, encode(evaluation));
+    }
+
+    public void append(CIRSyncResult result) throws IOException {
+        write(CIR_SYNC, encode(result));
+    }
+
+    private synchronized void write(byte type, byte[] record) throws IOException {
+        out.writeByte(type);
+        out.writeInt(record.length);
+        out.write(record);
+        out.flush();
+        records++;
+    }
+
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * Reads a recording
+     *
+     * @param file
+     * @param evaluations - the evaluations are added here, in recorded order
+     * @param syncs - the CIR syncs are added here, in recorded order
+     * @throws IOException
+     */
+    public static void read(File file, List<CDSEvaluation> evaluations, List<CIRSyncResult> syncs) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not an evaluation recording");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException(file + " is a version " + version + " recording, expected " + VERSION);
+            }
+            while (true) {
+                int type = in.read();
+                if (type < 0) {
+                    return;
+                }
+                byte[] record;
+                try {
+                    record = new byte[in.readInt()];
+                    in.readFully(record);
+                } catch (EOFException e) {
+                    System.out.println("*** " + file + " ends with an incomplete record, skipped");
+                    return;
+                }
+                if (type == EVALUATION) {
+                    evaluations.add(decodeEvaluation(record));
+                } else if (type == CIR_SYNC) {
+                    syncs.add(decodeSync(record));
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void checkHeader(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(file + " is not a version " + VERSION + " evaluation recording");
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    static byte[] encode(CDSEvaluation evaluation) throws IOException {
+        Encoder e = new Encoder();
+        e.writeString(evaluation.getUpid());
+        e.writeDate(evaluation.getAuditDate());
+        e.writeDate(evaluation.getDateOfBirth());
+        e.writeString(evaluation.getGender());
+        e.writeHistory(evaluation.getHistory());
+        e.writeHistory(evaluation.getDBHistory());
+        List<ImmunizationRecommendationDTO> recommendations = evaluation.getRecommendations();
+        e.writeNumber(recommendations.size());
+        for (ImmunizationRecommendationDTO r : recommendations) {
+            e.writeString(r.getEvaluatonDescription());
+            e.writeString(r.getRecommendatoinString());
+            e.writeString(r.getRecommendationCode());
+            e.writeString(r.getInterpretationCode());
+            e.writeDate(r.getProposedDate());
+        }
+        return e.toByteArray();
+    }
+
+    static CDSEvaluation decodeEvaluation(byte[] record) throws IOException {
+        Decoder d = new Decoder(record);
+        String upid = d.readString();
+        Date auditDate = d.readDate();
+        Date dateOfBirth = d.readDate();
+        String gender = d.readString();
+        List<HistoryStatusDTO> history = d.readHistory();
+        List<HistoryStatusDTO> dbHistory = d.readHistory();
+        int count = (int) d.readNumber();
+        List<ImmunizationRecommendationDTO> recommendations = new ArrayList<ImmunizationRecommendationDTO>(count);
+        for (int i = 0; i < count; i++) {
+            ImmunizationRecommendationDTO r = new ImmunizationRecommendationDTO();
+            r.setEvaluatonDescription(d.readString());
+            r.setRecommendatoinString(d.readString());
+            r.setRecommendationCode(d.readString());
+            r.setInterpretationCode(d.readString());
+            r.setProposedDate(d.readDate());
+            recommendations.add(r);
+        }
+        return new CDSEvaluation(upid, auditDate, history, dbHistory, recommendations, dateOfBirth, gender);
+    }
+
+    static byte[] encode(CIRSyncResult result) throws IOException {
+        Encoder e = new Encoder();
+        e.writeString(result.getUpid());
+        e.writeString(result.getStatus().name());
+        e.writeNumber(result.getHttpStatus());
+        e.writeString(result.getMessage());
+        e.writeNumber(result.getElapsedMillis());
+        return e.toByteArray();
+    }
+
+    static CIRSyncResult decodeSync(byte[] record) throws IOException {
+        Decoder d = new Decoder(record);
+        String upid = d.readString();
+        CIRSyncResult.Status status = CIRSyncResult.Status.valueOf(d.readString());
+        int httpStatus = (int) d.readNumber();
+        String message = d.readString();
+        long elapsedMillis = d.readNumber();
+        if (status == CIRSyncResult.Status.SYNCED) {
+            return CIRSyncResult.synced(upid, httpStatus, elapsedMillis);
+        } else if (status == CIRSyncResult.Status.SKIPPED) {
+            return CIRSyncResult.skipped(upid, message);
+        }
+        return CIRSyncResult.failed(upid, message, elapsedMillis);
+    }
+
+    /**
+     * Writes one record. Numbers are zigzag varints, strings are written the
+     * first time and referred to by index after.
+     */
+    private static final class Encoder {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> strings = new HashMap<String, Integer>();
+
+        void writeNumber(long n) throws IOException {
+            long v = (n << 1) ^ (n >> 63);
+            while ((v & ~0x7FL) != 0) {
+                out.writeByte((int) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            out.writeByte((int) v);
+        }
+
+        // 0 - null, 1 - a new string follows, n - the string at index n - 2
+        void writeString(String s) throws IOException {
+            if (s == null) {
+                writeNumber(0);
+                return;
+            }
+            Integer index = strings.get(s);
+            if (index != null) {
+                writeNumber(index + 2);
+            } else {
+                strings.put(s, strings.size());
+                writeNumber(1);
+                out.writeUTF(s);
+            }
+        }
+
+        void writeInteger(Integer n) throws IOException {
+            if (n == null) {
+                out.writeBoolean(false);
+            } else {
+                out.writeBoolean(true);
+                writeNumber(n);
+            }
+        }
+
+        void writeDate(Date d) throws IOException {
+            if (d == null) {
+                out.writeBoolean(false);
+            } else {
+                out.writeBoolean(true);
+                writeNumber(d.getTime());
+            }
+        }
+
+        void writeHistory(List<HistoryStatusDTO> history) throws IOException {
+            writeNumber(history.size());
+            for (HistoryStatusDTO h : history) {
+                Integer shotNumber = h.getShotNumber();
+                boolean valid = h.isValid();
+                writeInteger(h.getImmunizationId());
+                writeInteger(h.getCvxCode());
+                writeDate(h.getShotDate());
+                writeString(h.getSeries());
+                writeString(h.getReason());
+                out.writeBoolean(valid);
+                writeInteger(shotNumber);
+            }
+        }
+
+        byte[] toByteArray() throws IOException {
+            out.flush();
+            return bytes.toByteArray();
+        }
+    }
+
+    /**
+     * Reads what Encoder wrote
+     */
+    private static final class Decoder {
+
+        private final DataInputStream in;
+        private final List<String> strings = new ArrayList<String>();
+
+        Decoder(byte[] record) {
+            in = new DataInputStream(new ByteArrayInputStream(record));
+        }
+
+        long readNumber() throws IOException {
+            long v = 0;
+            int shift = 0;
+            while (true) {
+                int b = in.readUnsignedByte();
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+                shift += 7;
+            }
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        String readString() throws IOException {
+            int n = (int) readNumber();
+            if (n == 0) {
+                return null;
+            } else if (n == 1) {
+                String s = in.readUTF();
+                strings.add(s);
+                return s;
+            }
+            return strings.get(n - 2);
+        }
+
+        Integer readInteger() throws IOException {
+            return in.readBoolean() ? Integer.valueOf((int) readNumber()) : null;
+        }
+
+        Date readDate() throws IOException {
+            return in.readBoolean() ? new Date(readNumber()) : null;
+        }
+
+        List<HistoryStatusDTO> readHistory() throws IOException {
+            int count = (int) readNumber();
+            List<HistoryStatusDTO> history = new ArrayList<HistoryStatusDTO>(count);
+            for (int i = 0; i < count; i++) {
+                HistoryStatusDTO h = new HistoryStatusDTO();
+                h.setImmunizationId(readInteger());
+                h.setCvxCode(readInteger());
+                h.setShotDate(readDate());
+                h.setSeries(readString());
+                h.setReason(readString());
+                h.setValid(in.readBoolean());
+                Integer shotNumber = readInteger();
+                if (shotNumber != null) {
+                    h.setShotNumber(shotNumber);
+                }
+                history.add(h);
+            }
+            return history;
+        }
+    }
+}
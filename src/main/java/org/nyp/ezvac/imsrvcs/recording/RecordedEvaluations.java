@@ -0,0 +1,160 @@
+/**
+ * RecordedEvaluations
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * Replays what EvaluationRecording recorded: the evaluations of the CDS
+ * library are answered from memory in place of DB2 and ICE, and the CIR syncs
+ * return the recorded outcome without calling CIR. For running NYPRules and
+ * the providers repeatably and offline - benchmarks, checking that a change
+ * to the rules does not change the recommendations of recorded patients.
+ * <p>
+ * Configured in imsrvcs.properties
+ * <p>
+ * ice.replay - the recordings to replay, comma separated. Replay is off when
+ * empty. ice.standIn, when also set, takes precedence.
+ * <p>
+ * ice.replay.anyDate - answer for a patient recorded on another audit date
+ * with their latest recording, instead of failing. The history and the
+ * recommendations are those of the recorded date.
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.recording;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.nyp.ezvac.imsrvcs.cache.CDSEvaluation;
+import org.nyp.ezvac.imsrvcs.cache.EvaluationLoader;
+import org.nyp.ezvac.imsrvcs.cirsync.CIRSyncResult;
+import org.nyp.ezvac.imsrvcs.services.ServiceConfig;
+
+/**
+ * @author bdasgupt
+ */
+public class RecordedEvaluations implements EvaluationLoader {
+
+    private static RecordedEvaluations instance = null;
+    private static boolean initialized = false;
+
+    private final Map<String, CDSEvaluation> evaluations = new LinkedHashMap<String, CDSEvaluation>();
+    private final Map<String, CDSEvaluation> latest = new HashMap<String, CDSEvaluation>();
+    private final Map<String, CIRSyncResult> syncs = new HashMap<String, CIRSyncResult>();
+    private final boolean anyDate;
+
+    /**
+     * Loads recordings
+     *
+     * @param files
+     * @param anyDate - see ice.replay.anyDate
+     * @throws IOException
+     */
+    public RecordedEvaluations(List<File> files, boolean anyDate) throws IOException {
+        this.anyDate = anyDate;
+        for (File file : files) {
+            List<CDSEvaluation> recorded = new ArrayList<CDSEvaluation>();
+            List<CIRSyncResult> recordedSyncs = new ArrayList<CIRSyncResult>();
+            EvaluationRecording.read(file, recorded, recordedSyncs);
+            for (CDSEvaluation evaluation : recorded) {
+                evaluations.put(keyOf(evaluation.getUpid(), evaluation.getAuditDate()), evaluation);
+                CDSEvaluation previous = latest.get(evaluation.getUpid());
+                if (previous == null || !previous.getAuditDate().after(evaluation.getAuditDate())) {
+                    latest.put(evaluation.getUpid(), evaluation);
+                }
+            }
+            for (CIRSyncResult sync : recordedSyncs) {
+                syncs.put(sync.getUpid(), sync);
+            }
+            System.out.println("*** Replaying " + recorded.size() + " evaluations and " + recordedSyncs.size()
+                    + " CIR syncs from " + file);
+        }
+    }
+
+    /**
+     * The replay configured by ice.replay, null when not replaying
+     *
+     * @return
+     */
+    public static synchronized RecordedEvaluations getInstance() {
+        if (!initialized) {
+            String fileNames = ServiceConfig.getString("ice.replay", "");
+            if (fileNames.length() > 0) {
+                List<File> files = new ArrayList<File>();
+                for (String fileName : fileNames.split(",")) {
+                    if (fileName.trim().length() > 0) {
+                        files.add(new File(fileName.trim()));
+                    }
+                }
+                try {
+                    instance = new RecordedEvaluations(files, ServiceConfig.getBoolean("ice.replay.anyDate", false));
+                } catch (IOException e) {
+                    throw new IllegalStateException("Cannot read the recordings " + fileNames, e);
+                }
+            }
+            initialized = true;
+        }
+        return instance;
+    }
+
+    /**
+     * The recorded evaluation of the patient on the audit date
+     *
+     * @param upid
+     * @param auditDate
+     * @return
+     * @throws Exception - when the patient was not recorded on that date
+     */
+    public CDSEvaluation load(String upid, Date auditDate) throws Exception {
+        CDSEvaluation evaluation = evaluations.get(keyOf(upid, auditDate));
+        if (evaluation == null && anyDate) {
+            CDSEvaluation recorded = latest.get(upid);
+            if (recorded != null) {
+                evaluation = new CDSEvaluation(upid, auditDate, recorded.getHistory(), recorded.getDBHistory(),
+                        recorded.getRecommendations(), recorded.getDateOfBirth(), recorded.getGender());
+            }
+        }
+        if (evaluation == null) {
+            throw new Exception("No recorded evaluation of " + upid + " on " + format(auditDate));
+        }
+        return evaluation;
+    }
+
+    /**
+     * The recorded outcome of the CIR sync of the patient, skipped when none
+     * was recorded
+     *
+     * @param upid
+     * @return
+     */
+    public CIRSyncResult replaySync(String upid) {
+        CIRSyncResult result = syncs.get(upid);
+        return (result == null) ? CIRSyncResult.skipped(upid, "Replaying, no recorded CIR sync") : result;
+    }
+
+    /**
+     * The recorded evaluations, for benchmarks iterating over them
+     *
+     * @return
+     */
+    public List<CDSEvaluation> getEvaluations() {
+        return Collections.unmodifiableList(new ArrayList<CDSEvaluation>(evaluations.values()));
+    }
+
+    private static String keyOf(String upid, Date auditDate) {
+        return upid + "|" + format(auditDate);
+    }
+
+    private static String format(Date date) {
+        return new SimpleDateFormat("yyyyMMdd").format(date);
+    }
+}
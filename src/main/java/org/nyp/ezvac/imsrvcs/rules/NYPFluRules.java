@@ -16,6 +16,8 @@ import java.util.List;
 
 import org.joda.time.DateTime;
 import org.joda.time.Months;
+import org.nyp.ezvac.imsrvcs.metrics.FlightEvent;
+import org.nyp.ezvac.imsrvcs.metrics.FlightSpan;
 import org.nyph.cdslibrary.CDSLibraryWrapper;
 import org.nyph.cdslibrary.dto.HistoryStatusDTO;
 
@@ -58,6 +60,7 @@ public class NYPFluRules {
     }
 
     public String recommendationFlu() {
+        FlightSpan span = FlightEvent.NYP_RULE_EVALUATION.begin();
         SimpleDateFormat formatter = new SimpleDateFormat("MM/dd/yyyy");
         String recommendation = null;
         int numberOfFluShotsInPreviousSeasons = 0;
@@ -193,6 +196,7 @@ public class NYPFluRules {
         } else
             recommendation = "FUTURE_RECOMMENDED - DUE_IN_FUTURE";
 
+        span.set("series", "Flu").set("outcome", recommendation).commit();
         return recommendation;
     }
 
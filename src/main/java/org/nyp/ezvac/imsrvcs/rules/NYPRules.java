@@ -16,6 +16,7 @@ import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import org.joda.time.DateTime;
 import org.joda.time.Days;
@@ -23,6 +24,8 @@ import org.joda.time.Months;
 import org.joda.time.Weeks;
 import org.joda.time.Years;
 import org.nyp.ezvac.commons.ICD;
+import org.nyp.ezvac.imsrvcs.metrics.FlightEvent;
+import org.nyp.ezvac.imsrvcs.metrics.FlightSpan;
 import org.nyph.cdslibrary.CDSLibraryWrapper;
 import org.nyph.cdslibrary.dto.HistoryStatusDTO;
 
@@ -40,7 +43,7 @@ public class NYPRules {
     private Date auditDate;
     private CDSLibraryWrapper cds;
 
-    private static boolean isICDValuesInitialized;
+    private static volatile boolean isICDValuesInitialized;
 
     // icd9 variables
     private static HashSet<String> hibICD9;
@@ -81,36 +84,99 @@ public class NYPRules {
         this.gender = gender;
         this.auditDate = auditDate;
         this.cds = cds;
+        // The icd9/icd10 values are loaded once by the caller, see initializeICDValues
+    }
 
-        // Initialize the icd9/icd10 values from the DB if not done so already
-        try {
-            if (!isICDValuesInitialized) {
-                ICD icd = new ICD(this.conn);
-                hibICD9 = icd.getHibICD9();
-                menBICD9 = icd.getMenBICD9();
-                meningoccocalICD9 = icd.getMeningoccocalICD9();
-                pcv13ICD9 = icd.getPcv13ICD9();
-                ppsvICD9 = icd.getPpsvICD9();
-                hpvICD9 = icd.getHpvICD9();
-                hibICD10 = icd.getHibICD10();
-                menBICD10 = icd.getMenBICD10();
-                meningoccocalICD10 = icd.getMeningoccocalICD10();
-                pcv13ICD10 = icd.getPcv13ICD10();
-                ppsvICD10 = icd.getPpsvICD10();
-                hpvICD10 = icd.getHpvICD10();
-                isICDValuesInitialized = true;
+    /**
+     * Loads the icd9/icd10 values used by the rules from the DB, once. This can
+     * be called ahead of time (e.g. while the patient is being evaluated) so that
+     * the first request does not pay for it. Once the values are loaded this
+     * returns without taking the lock.
+     *
+     * @param conn
+     */
+    public static void initializeICDValues(Connection conn) {
+        if (isICDValuesInitialized) {
+            return;
+        }
+        synchronized (NYPRules.class) {
+            try {
+                if (!isICDValuesInitialized) {
+                    ICD icd = new ICD(conn);
+                    hibICD9 = icd.getHibICD9();
+                    menBICD9 = icd.getMenBICD9();
+                    meningoccocalICD9 = icd.getMeningoccocalICD9();
+                    pcv13ICD9 = icd.getPcv13ICD9();
+                    ppsvICD9 = icd.getPpsvICD9();
+                    hpvICD9 = icd.getHpvICD9();
+                    hibICD10 = icd.getHibICD10();
+                    menBICD10 = icd.getMenBICD10();
+                    meningoccocalICD10 = icd.getMeningoccocalICD10();
+                    pcv13ICD10 = icd.getPcv13ICD10();
+                    ppsvICD10 = icd.getPpsvICD10();
+                    hpvICD10 = icd.getHpvICD10();
+                    isICDValuesInitialized = true;
+                }
+            } catch (Exception e) {
+                isICDValuesInitialized = false;
             }
-        } catch (Exception e) {
-            isICDValuesInitialized = false;
         }
     }
 
+    /**
+     * Sets the icd9/icd10 values used by the rules without going to the DB,
+     * e.g. from the datafiles for the benchmarks. The values are keyed by
+     * series as in the datafiles (HIB, MENB, meningoccocal, PCV13, PPSV, HPV),
+     * a series that is missing has no high risk codes.
+     *
+     * @param icd9
+     * @param icd10
+     */
+    public static synchronized void initializeICDValues(Map<String, HashSet<String>> icd9, Map<String, HashSet<String>> icd10) {
+        hibICD9 = codesOf(icd9, "HIB");
+        menBICD9 = codesOf(icd9, "MENB");
+        meningoccocalICD9 = codesOf(icd9, "meningoccocal");
+        pcv13ICD9 = codesOf(icd9, "PCV13");
+        ppsvICD9 = codesOf(icd9, "PPSV");
+        hpvICD9 = codesOf(icd9, "HPV");
+        hibICD10 = codesOf(icd10, "HIB");
+        menBICD10 = codesOf(icd10, "MENB");
+        meningoccocalICD10 = codesOf(icd10, "meningoccocal");
+        pcv13ICD10 = codesOf(icd10, "PCV13");
+        ppsvICD10 = codesOf(icd10, "PPSV");
+        hpvICD10 = codesOf(icd10, "HPV");
+        isICDValuesInitialized = true;
+    }
+
+    private static HashSet<String> codesOf(Map<String, HashSet<String>> codes, String series) {
+        HashSet<String> set = (codes == null) ? null : codes.get(series);
+        return (set == null) ? new HashSet<String>() : set;
+    }
+
+    public static boolean isICDValuesInitialized() {
+        return isICDValuesInitialized;
+    }
+
+    /**
+     * Records the outcome of a rule with the flight recorder (see FlightEvent)
+     *
+     * @param span
+     * @param series
+     * @param recommendation
+     * @return - the recommendation
+     */
+    private static String evaluated(FlightSpan span, String series, String recommendation) {
+        span.set("series", series).set("outcome", recommendation).commit();
+        return recommendation;
+    }
+
     /**
      * Applies the NYP rules to the HepA Series
      *
      * @return
      */
     public String recommendationHepA() {
+        FlightSpan span = FlightEvent.NYP_RULE_EVALUATION.begin();
         String recommendation = null;
 
         Iterator<Recommendation> it = recommendations.getRecommendation().iterator();
@@ -128,7 +194,7 @@ public class NYPRules {
             }
         }
 
-        return recommendation;
+        return evaluated(span, "HepA", recommendation);
     }
 
     /**
@@ -137,6 +203,7 @@ public class NYPRules {
      * @return
      */
     public String recommendationHib() {
+        FlightSpan span = FlightEvent.NYP_RULE_EVALUATION.begin();
         String recommendation = null;
 
         Iterator<Recommendation> it = recommendations.getRecommendation().iterator();
@@ -153,7 +220,7 @@ public class NYPRules {
             }
         }
 
-        return recommendation;
+        return evaluated(span, "Hib", recommendation);
     }
 
     /**
@@ -162,6 +229,7 @@ public class NYPRules {
      * @return
      */
     public String recommendationMeningoccocal() {
+        FlightSpan span = FlightEvent.NYP_RULE_EVALUATION.begin();
         String recommendation = null;
 
         Iterator<Recommendation> it = recommendations.getRecommendation().iterator();
@@ -181,7 +249,7 @@ public class NYPRules {
             }
         }
 
-        return recommendation;
+        return evaluated(span, "Meningococcal", recommendation);
     }
 
     /**
@@ -190,6 +258,7 @@ public class NYPRules {
      * @return
      */
     public String recommendationMenB() {
+        FlightSpan span = FlightEvent.NYP_RULE_EVALUATION.begin();
         String recommendation = null;
         boolean hasTrumenba = false;
         int ageInYears = calculateAgeInYears();
@@ -255,10 +324,11 @@ public class NYPRules {
             recommendation = "NOT_RECOMMENDED - NOT_HIGH_RISK";
         }
 
-        return recommendation;
+        return evaluated(span, "MenB", recommendation);
     }
 
     public String recommendationMenB_V2() {
+        FlightSpan span = FlightEvent.NYP_RULE_EVALUATION.begin();
         String recommendation = null;
 
         Iterator<Recommendation> it = recommendations.getRecommendation().iterator();
@@ -274,7 +344,7 @@ public class NYPRules {
                 }
             }
         }
-        return recommendation;
+        return evaluated(span, "MenB_V2", recommendation);
     }
 
     /**
@@ -283,6 +353,7 @@ public class NYPRules {
      * @return
      */
     public String recommendationPCV13() {
+        FlightSpan span = FlightEvent.NYP_RULE_EVALUATION.begin();
         String recommendation = null;
 
         Iterator<Recommendation> it = recommendations.getRecommendation().iterator();
@@ -299,7 +370,7 @@ public class NYPRules {
             }
         }
 
-        return recommendation;
+        return evaluated(span, "PCV13", recommendation);
     }
 
     /**
@@ -308,6 +379,11 @@ public class NYPRules {
      * @return
      */
     public String recommendationPPSV() {
+        FlightSpan span = FlightEvent.NYP_RULE_EVALUATION.begin();
+        return evaluated(span, "PPSV", evaluatePPSV());
+    }
+
+    private String evaluatePPSV() {
         String recommendation = null;
 
         // List the PPSV CVX codes that we would look for 
@@ -389,6 +465,7 @@ public class NYPRules {
      * @return
      */
     public String recommendationHPV() {
+        FlightSpan span = FlightEvent.NYP_RULE_EVALUATION.begin();
         String recommendation = null;
         int ageInYears = calculateAgeInYears();
 
@@ -397,7 +474,7 @@ public class NYPRules {
                 recommendation = "NEEDS_THREE_DOSES - CMC";
             }
         }
-        return recommendation;
+        return evaluated(span, "HPV", recommendation);
     }
 
     /**
@@ -407,6 +484,7 @@ public class NYPRules {
      * @return
      */
     public String recommendationImmunoglobin() {
+        FlightSpan span = FlightEvent.NYP_RULE_EVALUATION.begin();
         String recommendation = null;
 
         Iterator<Recommendation> it = recommendations.getRecommendation().iterator();
@@ -433,7 +511,7 @@ public class NYPRules {
             }
         }
 
-        return recommendation;
+        return evaluated(span, "Immunoglobin", recommendation);
     }
 
     /**
@@ -0,0 +1,328 @@
+/**
+ * GuardedResponse
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * The response an asynchronous request is processed with (see Services). Once
+ * the request is completed - by its worker, or by the container on a timeout or
+ * an error - the container recycles the response for another request, so
+ * anything the worker still writes must not reach it. The response is closed
+ * just before the request is completed, every change made to it afterwards is
+ * dropped. Closing waits for a write that is in progress.
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.services;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.Locale;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * @author bdasgupt
+ */
+class GuardedResponse extends HttpServletResponseWrapper {
+
+    private final Object lock = new Object();
+    private boolean closed = false;
+    private ServletOutputStream outputStream = null;
+    private PrintWriter writer = null;
+
+    GuardedResponse(HttpServletResponse response) {
+        super(response);
+    }
+
+    /**
+     * Closes the response, only the first caller gets true and completes the
+     * request
+     *
+     * @return
+     */
+    boolean close() {
+        synchronized (lock) {
+            if (closed) {
+                return false;
+            }
+            closed = true;
+            return true;
+        }
+    }
+
+    boolean isClosed() {
+        synchronized (lock) {
+            return closed;
+        }
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        synchronized (lock) {
+            if (outputStream == null) {
+                final ServletOutputStream out = closed ? null : super.getOutputStream();
+                outputStream = new ServletOutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        synchronized (lock) {
+                            if (!closed) {
+                                out.write(b);
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        synchronized (lock) {
+                            if (!closed) {
+                                out.write(b, off, len);
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        synchronized (lock) {
+                            if (!closed) {
+                                out.flush();
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        synchronized (lock) {
+                            if (!closed) {
+                                out.close();
+                            }
+                        }
+                    }
+                };
+            }
+            return outputStream;
+        }
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        synchronized (lock) {
+            if (writer == null) {
+                final Writer out = closed ? null : super.getWriter();
+                writer = new PrintWriter(new Writer() {
+                    @Override
+                    public void write(char[] cbuf, int off, int len) throws IOException {
+                        synchronized (lock) {
+                            if (!closed) {
+                                out.write(cbuf, off, len);
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        synchronized (lock) {
+                            if (!closed) {
+                                out.flush();
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        synchronized (lock) {
+                            if (!closed) {
+                                out.close();
+                            }
+                        }
+                    }
+                });
+            }
+            return writer;
+        }
+    }
+
+    @Override
+    public void sendError(int sc, String msg) throws IOException {
+        synchronized (lock) {
+            if (!closed) {
+                super.sendError(sc, msg);
+            }
+        }
+    }
+
+    @Override
+    public void sendError(int sc) throws IOException {
+        synchronized (lock) {
+            if (!closed) {
+                super.sendError(sc);
+            }
+        }
+    }
+
+    @Override
+    public void sendRedirect(String location) throws IOException {
+        synchronized (lock) {
+            if (!closed) {
+                super.sendRedirect(location);
+            }
+        }
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        synchronized (lock) {
+            if (!closed) {
+                super.flushBuffer();
+            }
+        }
+    }
+
+    @Override
+    public void setStatus(int sc) {
+        synchronized (lock) {
+            if (!closed) {
+                super.setStatus(sc);
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public void setStatus(int sc, String sm) {
+        synchronized (lock) {
+            if (!closed) {
+                super.setStatus(sc, sm);
+            }
+        }
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        synchronized (lock) {
+            if (!closed) {
+                super.setHeader(name, value);
+            }
+        }
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        synchronized (lock) {
+            if (!closed) {
+                super.addHeader(name, value);
+            }
+        }
+    }
+
+    @Override
+    public void setDateHeader(String name, long date) {
+        synchronized (lock) {
+            if (!closed) {
+                super.setDateHeader(name, date);
+            }
+        }
+    }
+
+    @Override
+    public void addDateHeader(String name, long date) {
+        synchronized (lock) {
+            if (!closed) {
+                super.addDateHeader(name, date);
+            }
+        }
+    }
+
+    @Override
+    public void setIntHeader(String name, int value) {
+        synchronized (lock) {
+            if (!closed) {
+                super.setIntHeader(name, value);
+            }
+        }
+    }
+
+    @Override
+    public void addIntHeader(String name, int value) {
+        synchronized (lock) {
+            if (!closed) {
+                super.addIntHeader(name, value);
+            }
+        }
+    }
+
+    @Override
+    public void addCookie(Cookie cookie) {
+        synchronized (lock) {
+            if (!closed) {
+                super.addCookie(cookie);
+            }
+        }
+    }
+
+    @Override
+    public void setContentType(String type) {
+        synchronized (lock) {
+            if (!closed) {
+                super.setContentType(type);
+            }
+        }
+    }
+
+    @Override
+    public void setCharacterEncoding(String charset) {
+        synchronized (lock) {
+            if (!closed) {
+                super.setCharacterEncoding(charset);
+            }
+        }
+    }
+
+    @Override
+    public void setContentLength(int len) {
+        synchronized (lock) {
+            if (!closed) {
+                super.setContentLength(len);
+            }
+        }
+    }
+
+    @Override
+    public void setLocale(Locale loc) {
+        synchronized (lock) {
+            if (!closed) {
+                super.setLocale(loc);
+            }
+        }
+    }
+
+    @Override
+    public void setBufferSize(int size) {
+        synchronized (lock) {
+            if (!closed) {
+                super.setBufferSize(size);
+            }
+        }
+    }
+
+    @Override
+    public void reset() {
+        synchronized (lock) {
+            if (!closed) {
+                super.reset();
+            }
+        }
+    }
+
+    @Override
+    public void resetBuffer() {
+        synchronized (lock) {
+            if (!closed) {
+                super.resetBuffer();
+            }
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/**
+ * RequestDeadline
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * The point in time by which a request has to be answered. The deadline is set
+ * by Services from the X-Request-Timeout header (in milliseconds), or else from
+ * the default for the calling application (appid header) in
+ * imsrvcs.properties, e.g.
+ * <p>
+ * deadline.defaultMillis=30000
+ * deadline.appid.kiosk=5000
+ * <p>
+ * The deadline travels with the request thread (and is handed to the threads
+ * that do work for the request, see wrap) and bounds the database queries
+ * (setQueryTimeout), the CIR sync and the recommendation engine call. Once it
+ * has passed, or the client has gone away, the remaining work is abandoned.
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.services;
+
+import java.sql.Statement;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeoutException;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * @author bdasgupt
+ */
+public class RequestDeadline {
+
+    public static final String TIMEOUT_HEADER = "X-Request-Timeout";
+
+    private static final ThreadLocal<RequestDeadline> current = new ThreadLocal<RequestDeadline>();
+
+    private final long expiresAt;
+    private volatile boolean cancelled = false;
+
+    /**
+     * Constructor
+     *
+     * @param timeoutMillis - time allowed from now, 0 or less for no deadline
+     */
+    public RequestDeadline(long timeoutMillis) {
+        this.expiresAt = (timeoutMillis > 0) ? System.currentTimeMillis() + timeoutMillis : Long.MAX_VALUE;
+    }
+
+    /**
+     * Creates the deadline for a request, from the X-Request-Timeout header or
+     * the default for the appid.
+     *
+     * @param theReq
+     * @return
+     */
+    public static RequestDeadline forRequest(HttpServletRequest theReq) {
+        long timeoutMillis = ServiceConfig.getLong("deadline.defaultMillis", 0);
+        String appId = theReq.getHeader("appid");
+        if (appId != null && appId.trim().length() > 0) {
+            timeoutMillis = ServiceConfig.getLong("deadline.appid." + appId.trim(), timeoutMillis);
+        }
+        String header = theReq.getHeader(TIMEOUT_HEADER);
+        if (header != null) {
+            try {
+                timeoutMillis = Long.parseLong(header.trim());
+            } catch (NumberFormatException e) {
+                System.out.println("Ignoring invalid " + TIMEOUT_HEADER + ": " + header);
+            }
+        }
+        return new RequestDeadline(timeoutMillis);
+    }
+
+    /**
+     * The deadline of the request the current thread is working on, a deadline
+     * that never expires if there is none.
+     *
+     * @return
+     */
+    public static RequestDeadline current() {
+        RequestDeadline deadline = current.get();
+        return (deadline == null) ? new RequestDeadline(0) : deadline;
+    }
+
+    public static void set(RequestDeadline deadline) {
+        current.set(deadline);
+    }
+
+    public static void clear() {
+        current.remove();
+    }
+
+    /**
+     * Returns a task that runs under this deadline on whichever thread runs it
+     *
+     * @param task
+     * @return
+     */
+    public <T> Callable<T> wrap(final Callable<T> task) {
+        final RequestDeadline deadline = this;
+        return new Callable<T>() {
+            public T call() throws Exception {
+                RequestDeadline previous = current.get();
+                current.set(deadline);
+                try {
+                    deadline.check();
+                    return task.call();
+                } finally {
+                    current.set(previous);
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns a task that runs under this deadline on whichever thread runs it
+     *
+     * @param task
+     * @return
+     */
+    public Runnable wrap(final Runnable task) {
+        final RequestDeadline deadline = this;
+        return new Runnable() {
+            public void run() {
+                RequestDeadline previous = current.get();
+                current.set(deadline);
+                try {
+                    if (!deadline.isExpired()) {
+                        task.run();
+                    }
+                } finally {
+                    current.set(previous);
+                }
+            }
+        };
+    }
+
+    /**
+     * Milliseconds left, Long.MAX_VALUE if there is no deadline
+     *
+     * @return
+     */
+    public long remainingMillis() {
+        if (expiresAt == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, expiresAt - System.currentTimeMillis());
+    }
+
+    public boolean hasDeadline() {
+        return expiresAt != Long.MAX_VALUE;
+    }
+
+    /**
+     * The deadline has passed or the client is gone
+     *
+     * @return
+     */
+    public boolean isExpired() {
+        return cancelled || System.currentTimeMillis() >= expiresAt;
+    }
+
+    /**
+     * Called when the client is gone or the request timed out
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Throws if the remaining work should be abandoned
+     *
+     * @throws TimeoutException
+     */
+    public void check() throws TimeoutException {
+        if (cancelled) {
+            throw new TimeoutException("Request cancelled");
+        }
+        if (System.currentTimeMillis() >= expiresAt) {
+            throw new TimeoutException("Request deadline exceeded");
+        }
+    }
+
+    /**
+     * Bounds the statement by the time that is left, in whole seconds
+     *
+     * @param stmt
+     * @throws Exception
+     */
+    public void applyTo(Statement stmt) throws Exception {
+        check();
+        if (hasDeadline()) {
+            stmt.setQueryTimeout((int) Math.max(1, (remainingMillis() + 999) / 1000));
+        }
+    }
+}
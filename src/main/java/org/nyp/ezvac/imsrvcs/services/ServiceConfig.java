@@ -0,0 +1,87 @@
+/**
+ * ServiceConfig
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * Tuning parameters for the services, read once from imsrvcs.properties on the
+ * classpath (WEB-INF/classes). Any value can be overridden with a system
+ * property of the same name, e.g. -Dbatch.threads=4
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.services;
+
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * @author bdasgupt
+ */
+public class ServiceConfig {
+
+    private static final String CONFIG_FILE = "/imsrvcs.properties";
+    private static Properties properties = null;
+
+    private ServiceConfig() {
+    }
+
+    /**
+     * Returns the value for the given key, or the default value if it is not
+     * configured.
+     *
+     * @param key
+     * @param defaultValue
+     * @return
+     */
+    public static String getString(String key, String defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null) {
+            value = getProperties().getProperty(key);
+        }
+        return (value == null || value.trim().length() == 0) ? defaultValue : value.trim();
+    }
+
+    public static int getInt(String key, int defaultValue) {
+        try {
+            return Integer.parseInt(getString(key, Integer.toString(defaultValue)));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public static long getLong(String key, long defaultValue) {
+        try {
+            return Long.parseLong(getString(key, Long.toString(defaultValue)));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        return Boolean.valueOf(getString(key, Boolean.toString(defaultValue)));
+    }
+
+    private static synchronized Properties getProperties() {
+        if (properties == null) {
+            properties = new Properties();
+            InputStream in = null;
+            try {
+                in = ServiceConfig.class.getResourceAsStream(CONFIG_FILE);
+                if (in != null) {
+                    properties.load(in);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                try {
+                    if (in != null) {
+                        in.close();
+                    }
+                } catch (Exception e) {
+                }
+            }
+        }
+        return properties;
+    }
+}
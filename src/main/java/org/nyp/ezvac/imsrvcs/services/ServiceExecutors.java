@@ -0,0 +1,177 @@
+/**
+ * ServiceExecutors
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * The bounded thread pools used by the services. Every pool has a fixed number
+ * of threads and a bounded queue, so the work fanned out by a single request can
+ * never take more database connections than the jdbc/nypis pool can hand out.
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.services;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author bdasgupt
+ */
+public class ServiceExecutors {
+
+    private static ExecutorService batchExecutor = null;
+    private static ExecutorService requestExecutor = null;
+    private static ExecutorService pipelineExecutor = null;
+    private static ExecutorService iceExecutor = null;
+    private static ExecutorService cirSyncExecutor = null;
+
+    private ServiceExecutors() {
+    }
+
+    /**
+     * Executor for the entries of a batch recommendation request
+     *
+     * @return
+     */
+    public static synchronized ExecutorService getBatchExecutor() {
+        if (batchExecutor == null) {
+            int threads = ServiceConfig.getInt("batch.threads", 2);
+            batchExecutor = newBoundedExecutor("imsrvcs-batch", threads, ServiceConfig.getInt("batch.maxEntries", 100));
+        }
+        return batchExecutor;
+    }
+
+    /**
+     * Executor for the requests that are processed asynchronously (see
+     * Services). When all the threads are busy and the queue is full, new
+     * requests are rejected so that they can be answered with a 503 instead of
+     * holding a container thread.
+     *
+     * @return
+     */
+    public static synchronized ExecutorService getRequestExecutor() {
+        if (requestExecutor == null) {
+            int threads = ServiceConfig.getInt("async.threads", 8);
+            requestExecutor = newBoundedExecutor("imsrvcs-request", threads, ServiceConfig.getInt("async.queueSize", 200),
+                    new ThreadPoolExecutor.AbortPolicy());
+        }
+        return requestExecutor;
+    }
+
+    /**
+     * Executor for the stages of a recommendation request that run alongside
+     * the recommendation engine call. When it is busy the stage runs on the
+     * request thread instead.
+     *
+     * @return
+     */
+    public static synchronized ExecutorService getPipelineExecutor() {
+        if (pipelineExecutor == null) {
+            int threads = ServiceConfig.getInt("pipeline.threads", 4);
+            pipelineExecutor = newBoundedExecutor("imsrvcs-pipeline", threads, threads * 4);
+        }
+        return pipelineExecutor;
+    }
+
+    /**
+     * Executor for the recommendation engine (ICE) calls of requests with a
+     * deadline, so the request can stop waiting when its deadline passes. It has
+     * a thread for every request and batch thread that can call ICE, so the calls
+     * do not queue behind each other or behind the pipeline stages.
+     *
+     * @return
+     */
+    public static synchronized ExecutorService getIceExecutor() {
+        if (iceExecutor == null) {
+            int threads = ServiceConfig.getInt("ice.threads",
+                    ServiceConfig.getInt("async.threads", 8) + ServiceConfig.getInt("batch.threads", 2));
+            iceExecutor = newBoundedExecutor("imsrvcs-ice", threads, threads);
+        }
+        return iceExecutor;
+    }
+
+    /**
+     * Executor for the syncs of a bulk CIR sync, one thread per pooled CIR sync
+     * connection
+     *
+     * @return
+     */
+    public static synchronized ExecutorService getCIRSyncExecutor() {
+        if (cirSyncExecutor == null) {
+            int threads = ServiceConfig.getInt("cirsync.maxConnections", 4);
+            cirSyncExecutor = newBoundedExecutor("imsrvcs-cirsync", threads, ServiceConfig.getInt("batch.maxEntries", 100));
+        }
+        return cirSyncExecutor;
+    }
+
+    /**
+     * Stops all the executors, called when the web application is stopped.
+     */
+    public static synchronized void shutdown() {
+        if (batchExecutor != null) {
+            batchExecutor.shutdownNow();
+            batchExecutor = null;
+        }
+        if (requestExecutor != null) {
+            requestExecutor.shutdownNow();
+            requestExecutor = null;
+        }
+        if (pipelineExecutor != null) {
+            pipelineExecutor.shutdownNow();
+            pipelineExecutor = null;
+        }
+        if (iceExecutor != null) {
+            iceExecutor.shutdownNow();
+            iceExecutor = null;
+        }
+        if (cirSyncExecutor != null) {
+            cirSyncExecutor.shutdownNow();
+            cirSyncExecutor = null;
+        }
+    }
+
+    /**
+     * Creates a fixed size executor with a bounded queue. When the queue is full
+     * the submitting thread runs the task itself, which slows the submitter down
+     * rather than failing the work.
+     *
+     * @param name - thread name prefix
+     * @param threads
+     * @param queueSize
+     * @return
+     */
+    static ExecutorService newBoundedExecutor(final String name, int threads, int queueSize) {
+        return newBoundedExecutor(name, threads, queueSize, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Creates a fixed size executor with a bounded queue and the given policy for
+     * when the queue is full.
+     *
+     * @param name - thread name prefix
+     * @param threads
+     * @param queueSize
+     * @param rejectionPolicy
+     * @return
+     */
+    static ExecutorService newBoundedExecutor(final String name, int threads, int queueSize, RejectedExecutionHandler rejectionPolicy) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        }, rejectionPolicy);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
@@ -10,33 +10,67 @@
  * 2. Immunization
  * 3. ImmunizationRecommendation
  * <p>
+ * Batches of ImmunizationRecommendation requests are accepted as a FHIR batch
+ * bundle posted to the base url.
+ * <p>
+ * ImmunizationRecommendation requests, Immunization requests with schedule=Y
+ * and batches wait on the CIR sync and the recommendation engine, which can take
+ * seconds. These are processed asynchronously on the request executor, so the
+ * container thread goes back to the pool while the patient is evaluated.
+ * <p>
+ * Every request gets a RequestDeadline, which bounds the database, CIR sync and
+ * recommendation engine calls made for it. An asynchronous request is
+ * completed exactly once, by its worker or by the async timeout, and the worker
+ * writes through a GuardedResponse that drops whatever it writes after that.
+ * <p>
+ * The latency of every request, by resource and operation, is recorded in
+ * Metrics and served by the MetricsServlet at /metrics.
+ * <p>
  * Revision History
  */
 
 package org.nyp.ezvac.imsrvcs.services;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.FifoMemoryPagingProvider;
 import ca.uhn.fhir.rest.server.IResourceProvider;
 import ca.uhn.fhir.rest.server.RestfulServer;
 import ca.uhn.fhir.rest.server.interceptor.LoggingInterceptor;
 import ca.uhn.fhir.rest.server.interceptor.ResponseHighlighterInterceptor;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
+import org.nyp.ezvac.imsrvcs.cache.EvaluationCache;
+import org.nyp.ezvac.imsrvcs.cirsync.CIRSyncClient;
+import org.nyp.ezvac.imsrvcs.metrics.FlightEvent;
+import org.nyp.ezvac.imsrvcs.metrics.Metrics;
+import org.nyp.ezvac.imsrvcs.metrics.MetricsInterceptor;
+import org.nyp.ezvac.imsrvcs.metrics.ResourceUsage;
+import org.nyp.ezvac.imsrvcs.pipeline.ImmunizationHistoryCheck;
+import org.nyp.ezvac.imsrvcs.pipeline.VisitWarmup;
 import org.nyp.ezvac.imsrvcs.providers.ImmunizationRecommendationResourceProvider;
 import org.nyp.ezvac.imsrvcs.providers.ImmunizationResourceProvider;
 import org.nyp.ezvac.imsrvcs.providers.LocationResourceProvider;
 import org.nyp.ezvac.imsrvcs.providers.OrganizationResourceProvider;
 import org.nyp.ezvac.imsrvcs.providers.PatientResourceProvider;
 import org.nyp.ezvac.imsrvcs.providers.PractionerResourceProvider;
+import org.nyp.ezvac.imsrvcs.providers.RecommendationBatchProvider;
+import org.nyp.ezvac.imsrvcs.recording.EvaluationRecording;
 
 /**
  * @author bdasgupt
  */
-@WebServlet(name = "Services", urlPatterns = {"/services/*"}, displayName = "Immunization Services")
+@WebServlet(name = "Services", urlPatterns = {"/services/*"}, displayName = "Immunization Services", asyncSupported = true)
 public class Services extends RestfulServer {
 
     private static final long serialVersionUID = 1L;
@@ -52,6 +86,7 @@ public class Services extends RestfulServer {
         registerInterceptor(loggingInterceptor);
         loggingInterceptor.setLoggerName("test.accesslog");
         loggingInterceptor.setMessageFormat("Source[${remoteAddr}] Operation[${operationType} ${idOrResourceName}] UA[${requestHeader.user-agent}] Params[${requestParameters}]");
+        registerInterceptor(new MetricsInterceptor());
 
 
         /*
@@ -59,16 +94,196 @@ public class Services extends RestfulServer {
          * configures itself to use them by calling
          * setResourceProviders()
          */
+        ImmunizationRecommendationResourceProvider recommendationProvider = new ImmunizationRecommendationResourceProvider();
         List<IResourceProvider> resourceProviders = new ArrayList<IResourceProvider>();
         resourceProviders.add(new PatientResourceProvider());
         resourceProviders.add(new ImmunizationResourceProvider());
-        resourceProviders.add(new ImmunizationRecommendationResourceProvider());
+        resourceProviders.add(recommendationProvider);
         resourceProviders.add(new PractionerResourceProvider());
         resourceProviders.add(new LocationResourceProvider());
         resourceProviders.add(new OrganizationResourceProvider());
         setResourceProviders(resourceProviders);
 
+        /*
+         * Batch (multi patient) recommendations
+         */
+        List<Object> plainProviders = new ArrayList<Object>();
+        plainProviders.add(new RecommendationBatchProvider(recommendationProvider));
+        setPlainProviders(plainProviders);
+
+        /*
+         * Paged searches (immunization histories) keep the next page links in memory
+         */
+        FifoMemoryPagingProvider pagingProvider = new FifoMemoryPagingProvider(100);
+        pagingProvider.setDefaultPageSize(50);
+        pagingProvider.setMaximumPageSize(500);
+        setPagingProvider(pagingProvider);
+
         registerInterceptor(new ResponseHighlighterInterceptor());
         setDefaultPrettyPrint(true);
+
+        /*
+         * Cached evaluations past their time to live are checked against the history
+         * before they are served, so they last for their validity window
+         */
+        EvaluationCache.getInstance().setHistoryCheck(new ImmunizationHistoryCheck());
+
+        /*
+         * Evaluate the patients of the coming day's visits off-peak
+         */
+        VisitWarmup.start();
+    }
+
+    /**
+     * Hands the slow requests over to the request executor. All other requests
+     * are processed on the container thread as before.
+     *
+     * @param theReq
+     * @param theResp
+     * @throws ServletException
+     * @throws IOException
+     */
+    @Override
+    protected void service(final HttpServletRequest theReq, final HttpServletResponse theResp) throws ServletException, IOException {
+        final long started = System.nanoTime();
+        final RequestDeadline deadline = RequestDeadline.forRequest(theReq);
+        if (!theReq.isAsyncSupported() || theReq.isAsyncStarted() || !isEvaluationRequest(theReq)) {
+            RequestDeadline.set(deadline);
+            try {
+                super.service(theReq, theResp);
+            } finally {
+                RequestDeadline.clear();
+                recordMetrics(theReq, theResp, started);
+            }
+            return;
+        }
+
+        final AsyncContext asyncContext = theReq.startAsync(theReq, theResp);
+        // The worker writes through the guard. Whichever of the worker, the timeout
+        // and an error closes it first completes the request, nothing written after
+        // that reaches the (recycled) response.
+        final GuardedResponse guardedResponse = new GuardedResponse((HttpServletResponse) asyncContext.getResponse());
+        // The worker answers requests past their deadline itself, the timeout is for
+        // requests that never got a worker (or one that hangs)
+        long timeoutMillis = ServiceConfig.getLong("async.timeoutSeconds", 120) * 1000L;
+        if (deadline.hasDeadline()) {
+            timeoutMillis = Math.max(timeoutMillis, deadline.remainingMillis() + 1000L);
+        }
+        asyncContext.setTimeout(timeoutMillis);
+        asyncContext.addListener(new AsyncListener() {
+            public void onComplete(AsyncEvent event) throws IOException {
+                guardedResponse.close();
+            }
+
+            public void onTimeout(AsyncEvent event) throws IOException {
+                deadline.cancel();
+                Metrics.counter("imsrvcs_request_timeouts_total", "Requests that timed out waiting for the request executor",
+                        new String[0]).incrementAndGet();
+                System.out.println("Request timed out: " + theReq.getRequestURI() + "?" + theReq.getQueryString());
+                if (!guardedResponse.close()) {
+                    return;
+                }
+                HttpServletResponse response = (HttpServletResponse) event.getAsyncContext().getResponse();
+                if (!response.isCommitted()) {
+                    response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Request timed out");
+                }
+                event.getAsyncContext().complete();
+            }
+
+            public void onError(AsyncEvent event) throws IOException {
+                // Usually the client has gone away, stop working on the request. The
+                // container completes the request once the listeners return.
+                deadline.cancel();
+                guardedResponse.close();
+            }
+
+            public void onStartAsync(AsyncEvent event) throws IOException {
+            }
+        });
+
+        try {
+            ServiceExecutors.getRequestExecutor().execute(new Runnable() {
+                public void run() {
+                    if (guardedResponse.isClosed()) {
+                        // Timed out waiting for the executor and already answered
+                        return;
+                    }
+                    RequestDeadline.set(deadline);
+                    ResourceUsage usage = ResourceUsage.get(asyncContext.getRequest());
+                    if (usage != null) {
+                        usage.resume();
+                    }
+                    try {
+                        if (deadline.isExpired()) {
+                            System.out.println("Request deadline passed in the queue: " + theReq.getRequestURI() + "?" + theReq.getQueryString());
+                            guardedResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Request timed out");
+                        } else {
+                            Services.super.service((HttpServletRequest) asyncContext.getRequest(), guardedResponse);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        RequestDeadline.clear();
+                        if (usage != null) {
+                            usage.suspend();
+                        }
+                        if (guardedResponse.close()) {
+                            recordMetrics((HttpServletRequest) asyncContext.getRequest(), (HttpServletResponse) asyncContext.getResponse(), started);
+                            asyncContext.complete();
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            System.out.println("Request executor is full, rejecting: " + theReq.getRequestURI());
+            Metrics.counter("imsrvcs_request_rejected_total", "Requests rejected with the request executor full",
+                    new String[0]).incrementAndGet();
+            theResp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many requests in progress");
+            asyncContext.complete();
+        }
+    }
+
+    /**
+     * Records the latency of the request by resource and operation, and the
+     * time HAPI took to serialize its response
+     *
+     * @param theReq
+     * @param theResp
+     * @param started
+     */
+    private void recordMetrics(HttpServletRequest theReq, HttpServletResponse theResp, long started) {
+        MetricsInterceptor.recordSerialization(theReq);
+        String[] endpoint = Metrics.endpointOf(theReq);
+        Metrics.recordRequest(endpoint[0], endpoint[1], theResp.getStatus(), System.nanoTime() - started);
+    }
+
+    /**
+     * Requests that call the recommendation engine, i.e.
+     * ImmunizationRecommendation requests, Immunization?schedule=Y and batch
+     * requests (a POST to the base URL, see RecommendationBatchProvider)
+     *
+     * @param theReq
+     * @return
+     */
+    private boolean isEvaluationRequest(HttpServletRequest theReq) {
+        String path = theReq.getPathInfo();
+        if (path == null || path.equals("/")) {
+            return "POST".equalsIgnoreCase(theReq.getMethod());
+        }
+        if (path.startsWith("/ImmunizationRecommendation")) {
+            return true;
+        }
+        return path.startsWith("/Immunization") && "Y".equalsIgnoreCase(theReq.getParameter("schedule"));
+    }
+
+    @Override
+    public void destroy() {
+        VisitWarmup.shutdown();
+        EvaluationCache.getInstance().setHistoryCheck(null);
+        ServiceExecutors.shutdown();
+        CIRSyncClient.shutdown();
+        EvaluationRecording.shutdown();
+        FlightEvent.shutdown();
+        super.destroy();
     }
 }
@@ -0,0 +1,221 @@
+/**
+ * CIRSyncStub
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * A local stand-in for the CIR sync service, for exercising CIRSyncClient
+ * without the real service. The stub answers every sync after a configurable
+ * delay and counts the connections it was opened on, so a run shows how many
+ * syncs reused a pooled connection.
+ * <p>
+ * java org.nyp.ezvac.imsrvcs.tests.CIRSyncStub [syncs] [threads] [delayMillis]
+ * <p>
+ * runs the syncs from concurrent request threads, then as one bulk sync
+ * (CIRBulkSync) with every other patient recently synced.
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.tests;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.nyp.ezvac.imsrvcs.cirsync.CIRBulkSync;
+import org.nyp.ezvac.imsrvcs.cirsync.CIRSyncClient;
+import org.nyp.ezvac.imsrvcs.cirsync.CIRSyncResult;
+
+/**
+ * @author bdasgupt
+ */
+public class CIRSyncStub {
+
+    private static final byte[] BODY = "<html><body>Sync complete</body></html>".getBytes();
+
+    private final HttpServer server;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final Set<String> connections = Collections.synchronizedSet(new HashSet<String>());
+    private volatile long delayMillis;
+    private volatile int failEvery = 0;
+
+    /**
+     * Constructor, starts the stub on a free local port
+     *
+     * @param delayMillis - how long each sync takes
+     * @throws Exception
+     */
+    public CIRSyncStub(long delayMillis) throws Exception {
+        this.delayMillis = delayMillis;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.server.createContext("/cir-sync-service/CIRSyncService", new HttpHandler() {
+            public void handle(HttpExchange exchange) {
+                try {
+                    int n = requests.incrementAndGet();
+                    connections.add(exchange.getRemoteAddress().toString());
+                    if (CIRSyncStub.this.delayMillis > 0) {
+                        Thread.sleep(CIRSyncStub.this.delayMillis);
+                    }
+                    int status = (failEvery > 0 && n % failEvery == 0) ? 500 : 200;
+                    exchange.sendResponseHeaders(status, BODY.length);
+                    OutputStream os = exchange.getResponseBody();
+                    os.write(BODY);
+                    os.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        this.server.setExecutor(Executors.newCachedThreadPool());
+        this.server.start();
+    }
+
+    /**
+     * The url to configure the client with (cirsync.url)
+     *
+     * @return
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/cir-sync-service/CIRSyncService?upid=";
+    }
+
+    public int getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * The number of distinct connections the syncs arrived on
+     *
+     * @return
+     */
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    public void setDelayMillis(long delayMillis) {
+        this.delayMillis = delayMillis;
+    }
+
+    /**
+     * Makes every n-th sync fail with a 500, 0 for none
+     *
+     * @param failEvery
+     */
+    public void setFailEvery(int failEvery) {
+        this.failEvery = failEvery;
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int syncs = (args.length > 0) ? Integer.parseInt(args[0]) : 200;
+        int threads = (args.length > 1) ? Integer.parseInt(args[1]) : 16;
+        long delay = (args.length > 2) ? Long.parseLong(args[2]) : 20;
+
+        CIRSyncStub stub = new CIRSyncStub(delay);
+        final CIRSyncClient client = new CIRSyncClient(stub.getUrl(), 4, 2000, 10000);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            stub.setFailEvery(50);
+            List<Future<CIRSyncResult>> results = new ArrayList<Future<CIRSyncResult>>();
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < syncs; i++) {
+                final String upid = String.valueOf(1000000 + i);
+                results.add(executor.submit(new Callable<CIRSyncResult>() {
+                    public CIRSyncResult call() throws Exception {
+                        return client.sync(upid);
+                    }
+                }));
+            }
+            int synced = 0;
+            int failed = 0;
+            for (Future<CIRSyncResult> f : results) {
+                if (f.get().isSynced()) {
+                    synced++;
+                } else {
+                    failed++;
+                }
+            }
+            long elapsed = System.currentTimeMillis() - start;
+
+            System.out.println("Syncs: " + syncs + ", synced: " + synced + ", failed: " + failed
+                    + ", elapsed: " + elapsed + " ms, " + (syncs * 1000L / Math.max(1, elapsed)) + " syncs/s");
+            System.out.println("Stub requests: " + stub.getRequestCount() + ", connections: " + stub.getConnectionCount());
+            System.out.println(client);
+            if (stub.getConnectionCount() > 4) {
+                System.out.println("FAILED: more connections than the pool allows");
+            }
+            if (failed != syncs / 50) {
+                System.out.println("FAILED: expected " + (syncs / 50) + " failed syncs");
+            }
+
+            runBulk(stub, syncs);
+        } finally {
+            executor.shutdown();
+            client.close();
+            stub.stop();
+        }
+    }
+
+    /**
+     * Syncs a cohort in bulk, every other patient was synced a minute ago
+     *
+     * @param stub
+     * @param syncs
+     * @throws Exception
+     */
+    private static void runBulk(CIRSyncStub stub, int syncs) throws Exception {
+        CIRSyncClient client = new CIRSyncClient(stub.getUrl(), 4, 2000, 10000);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            stub.setFailEvery(0);
+            int requestsBefore = stub.getRequestCount();
+            List<String> upids = new ArrayList<String>();
+            Map<String, Date> lastSyncTimes = new HashMap<String, Date>();
+            for (int i = 0; i < syncs; i++) {
+                String upid = String.valueOf(2000000 + i);
+                upids.add(upid);
+                if (i % 2 == 0) {
+                    lastSyncTimes.put(upid, new Date(System.currentTimeMillis() - 60000L));
+                }
+            }
+
+            long start = System.currentTimeMillis();
+            List<CIRSyncResult> results = new CIRBulkSync(client, executor, 3600000L).syncAll(upids, lastSyncTimes);
+            long elapsed = System.currentTimeMillis() - start;
+
+            System.out.println(CIRBulkSync.summarize(results) + ", elapsed: " + elapsed + " ms, "
+                    + ((syncs / 2) * 1000L / Math.max(1, elapsed)) + " syncs/s");
+            System.out.println("Stub requests: " + (stub.getRequestCount() - requestsBefore));
+            System.out.println(client);
+            for (int i = 0; i < results.size(); i++) {
+                CIRSyncResult.Status expected = (i % 2 == 0) ? CIRSyncResult.Status.SKIPPED : CIRSyncResult.Status.SYNCED;
+                if (!results.get(i).getUpid().equals(upids.get(i)) || results.get(i).getStatus() != expected) {
+                    System.out.println("FAILED: " + results.get(i) + ", expected " + expected);
+                }
+            }
+        } finally {
+            executor.shutdown();
+            client.close();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/**
+ * LoggingFilterTiming
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * Measures the time the LoggingFilter adds to a request, against the
+ * synchronous logging it replaced (headers walked, log line built and printed
+ * to System.out, parameters copied into a HashMap). The request and response
+ * are stand-ins, the chain reads every parameter the way HAPI does.
+ * <p>
+ * java org.nyp.ezvac.imsrvcs.tests.LoggingFilterTiming [requests] [accessLogFile]
+ * <p>
+ * The legacy System.out lines go to a file next to the access log, as they go to
+ * catalina.out in Tomcat.
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.tests;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.nyp.ezvac.imsrvcs.filters.AccessLog;
+import org.nyp.ezvac.imsrvcs.filters.LoggingFilter;
+
+/**
+ * @author bdasgupt
+ */
+public class LoggingFilterTiming {
+
+    private static final Map<String, String> HEADERS = new LinkedHashMap<String, String>();
+    private static final Map<String, String[]> PARAMETERS = new LinkedHashMap<String, String[]>();
+
+    static {
+        HEADERS.put("host", "localhost:8080");
+        HEADERS.put("user-agent", "curl/7.29.0");
+        HEADERS.put("accept", "application/json+fhir");
+        HEADERS.put("accept-encoding", "gzip");
+        HEADERS.put("userid", "dasgupt");
+        HEADERS.put("appid", "ezvac");
+        PARAMETERS.put("empi", new String[]{"1005404275"});
+        PARAMETERS.put("series", new String[]{"flu|menb"});
+        PARAMETERS.put("icd10", new String[]{"Z23"});
+        PARAMETERS.put("uid", new String[]{"dasgupt"});
+    }
+
+    public static void main(String[] args) throws Exception {
+        int requests = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+        File logFile = new File((args.length > 1) ? args[1] : System.getProperty("java.io.tmpdir") + "/imsrvcs-access.log");
+        System.setProperty("accesslog.file", logFile.getPath());
+
+        final HttpServletRequest request = newRequest();
+        final HttpServletResponse response = newResponse();
+        final int[] sink = new int[1];
+        FilterChain chain = new FilterChain() {
+            public void doFilter(ServletRequest req, ServletResponse res) {
+                // HAPI reads the parameter map of every request
+                for (Map.Entry<String, String[]> e : req.getParameterMap().entrySet()) {
+                    sink[0] += e.getKey().length() + e.getValue()[0].length();
+                }
+            }
+        };
+
+        PrintStream console = System.out;
+        PrintStream legacyOut = new PrintStream(new FileOutputStream(logFile.getPath() + ".legacy"), true);
+        LoggingFilter filter = new LoggingFilter();
+        filter.init(null);
+        try {
+            for (int round = 0; round < 3; round++) {
+                System.setOut(legacyOut);
+                long start = System.nanoTime();
+                for (int i = 0; i < requests; i++) {
+                    legacyDoFilter(request, chain);
+                }
+                long legacy = System.nanoTime() - start;
+                System.setOut(console);
+
+                start = System.nanoTime();
+                for (int i = 0; i < requests; i++) {
+                    filter.doFilter(request, response, chain);
+                }
+                long current = System.nanoTime() - start;
+
+                System.out.println("Round " + round + ": legacy " + (legacy / requests) + " ns/request, access log "
+                        + (current / requests) + " ns/request");
+            }
+            AccessLog accessLog = AccessLog.getInstance();
+            filter.destroy();
+            System.out.println(accessLog);
+            if (accessLog.getWritten() + accessLog.getDropped() != 3L * requests) {
+                System.out.println("FAILED: expected " + (3L * requests) + " records");
+            }
+        } finally {
+            System.setOut(console);
+            legacyOut.close();
+        }
+        System.out.println("(" + sink[0] + ")");
+    }
+
+    /**
+     * The filter as it was, without the log4j line
+     *
+     * @param httpRequest
+     * @param chain
+     * @throws Exception
+     */
+    private static void legacyDoFilter(HttpServletRequest httpRequest, FilterChain chain) throws Exception {
+        String uid = "";
+        String appId = "";
+        Enumeration headerNames = httpRequest.getHeaderNames();
+        while (headerNames.hasMoreElements()) {
+            String headerName = (String) headerNames.nextElement();
+            if (headerName.equalsIgnoreCase("userid")) {
+                uid = httpRequest.getHeader(headerName);
+            }
+            if (headerName.equalsIgnoreCase("appid")) {
+                appId = httpRequest.getHeader(headerName);
+            }
+        }
+        StringBuffer requestURL = httpRequest.getRequestURL();
+        String logString = "{ip:" + httpRequest.getRemoteAddr() + ", "
+                + "host:" + httpRequest.getRemoteHost() + ", "
+                + "uid:" + uid + ", "
+                + "appId:" + appId + ", "
+                + "uri: \"" + requestURL.append('?').append(httpRequest.getQueryString()).toString() + "\"}";
+        System.out.println(logString);
+        System.out.println("Done");
+
+        final Map<String, String[]> parameterMap = new HashMap<String, String[]>();
+        Enumeration<String> parameterNames = httpRequest.getParameterNames();
+        while (parameterNames.hasMoreElements()) {
+            String paramName = parameterNames.nextElement();
+            String[] paramValues = httpRequest.getParameterValues(paramName);
+            if (!paramName.equalsIgnoreCase("uid") && !paramName.equalsIgnoreCase("appid")) {
+                parameterMap.put(paramName, new String[]{paramValues[0]});
+            }
+        }
+        HttpServletRequest wrapped = (HttpServletRequest) Proxy.newProxyInstance(LoggingFilterTiming.class.getClassLoader(),
+                new Class<?>[]{HttpServletRequest.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return method.getName().equals("getParameterMap") ? parameterMap : null;
+                    }
+                });
+        chain.doFilter(wrapped, null);
+    }
+
+    private static HttpServletRequest newRequest() {
+        return (HttpServletRequest) Proxy.newProxyInstance(LoggingFilterTiming.class.getClassLoader(),
+                new Class<?>[]{HttpServletRequest.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String name = method.getName();
+                        if (name.equals("getMethod")) {
+                            return "GET";
+                        } else if (name.equals("getRemoteAddr") || name.equals("getRemoteHost")) {
+                            return "10.1.2.3";
+                        } else if (name.equals("getRequestURI")) {
+                            return "/imsrvcs/services/ImmunizationRecommendation";
+                        } else if (name.equals("getRequestURL")) {
+                            return new StringBuffer("http://localhost:8080/imsrvcs/services/ImmunizationRecommendation");
+                        } else if (name.equals("getQueryString")) {
+                            return "empi=1005404275&series=flu|menb&icd10=Z23&uid=dasgupt";
+                        } else if (name.equals("getHeader")) {
+                            return HEADERS.get(((String) args[0]).toLowerCase());
+                        } else if (name.equals("getHeaderNames")) {
+                            return Collections.enumeration(HEADERS.keySet());
+                        } else if (name.equals("getParameterMap")) {
+                            return PARAMETERS;
+                        } else if (name.equals("getParameterNames")) {
+                            return Collections.enumeration(PARAMETERS.keySet());
+                        } else if (name.equals("getParameterValues")) {
+                            return PARAMETERS.get(args[0]);
+                        } else if (name.equals("isAsyncStarted")) {
+                            return Boolean.FALSE;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private static HttpServletResponse newResponse() {
+        return (HttpServletResponse) Proxy.newProxyInstance(LoggingFilterTiming.class.getClassLoader(),
+                new Class<?>[]{HttpServletResponse.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return method.getName().equals("getStatus") ? 200 : null;
+                    }
+                });
+    }
+}
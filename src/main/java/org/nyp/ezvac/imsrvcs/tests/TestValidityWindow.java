@@ -0,0 +1,115 @@
+/**
+ * TestValidityWindow
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * Checks the days ValidityWindow ends an evaluation on, now that the validity
+ * window rather than the cache time to live decides how long the
+ * EvaluationCache keeps an evaluation: an age boundary of the NYP rules, the
+ * flu season boundary (August 1st), the end of the 24 days after the first MenB
+ * shot and of the 8 weeks after a PPSV shot, and the longest window when
+ * nothing changes.
+ * <p>
+ * java org.nyp.ezvac.imsrvcs.tests.TestValidityWindow
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.tests;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.nyp.ezvac.imsrvcs.cache.CDSEvaluation;
+import org.nyp.ezvac.imsrvcs.cache.ValidityWindow;
+import org.nyph.cdslibrary.dto.HistoryStatusDTO;
+import org.nyph.cdslibrary.dto.ImmunizationRecommendationDTO;
+
+/**
+ * @author bdasgupt
+ */
+public class TestValidityWindow {
+
+    private static final int MAX_VALID_DAYS = 31;
+    private static final int MENB_CVX = 162;
+    private static final int PPSV_CVX = 133;
+
+    private final SimpleDateFormat formatter = new SimpleDateFormat("MM/dd/yyyy");
+    private int failed = 0;
+
+    public static void main(String[] args) throws Exception {
+        TestValidityWindow test = new TestValidityWindow();
+        test.ageBoundary();
+        test.ageBoundaryOnTheAuditDate();
+        test.fluSeason();
+        test.menB();
+        test.ppsv();
+        test.nothingChanges();
+        System.out.println((test.failed == 0) ? "All checks passed" : test.failed + " checks failed");
+        System.exit((test.failed == 0) ? 0 : 1);
+    }
+
+    private void ageBoundary() throws Exception {
+        // 65th birthday (PPSV/PCV13) on 03/20/2018
+        CDSEvaluation evaluation = evaluation("03/10/2018", "03/20/1953", new ArrayList<HistoryStatusDTO>());
+        expect("age boundary ends the window on the 65th birthday", evaluation, "03/20/2018");
+    }
+
+    private void ageBoundaryOnTheAuditDate() throws Exception {
+        // Turns 65 on the audit date, the next change is the flu season
+        CDSEvaluation evaluation = evaluation("07/10/2018", "07/10/1953", new ArrayList<HistoryStatusDTO>());
+        expect("age boundary on the audit date does not end the window", evaluation, "08/01/2018");
+    }
+
+    private void fluSeason() throws Exception {
+        CDSEvaluation evaluation = evaluation("07/20/2018", "01/01/1980", new ArrayList<HistoryStatusDTO>());
+        expect("flu season ends the window on August 1st", evaluation, "08/01/2018");
+    }
+
+    private void menB() throws Exception {
+        List<HistoryStatusDTO> history = new ArrayList<HistoryStatusDTO>();
+        history.add(shot(MENB_CVX, "MenB", "02/20/2018"));
+        history.add(shot(MENB_CVX, "MenB", "02/25/2018"));
+        CDSEvaluation evaluation = evaluation("03/01/2018", "06/15/1998", history);
+        expect("MenB ends the window 24 days after the first MenB shot", evaluation, "03/16/2018");
+    }
+
+    private void ppsv() throws Exception {
+        List<HistoryStatusDTO> history = new ArrayList<HistoryStatusDTO>();
+        history.add(shot(PPSV_CVX, "Pneumococcal", "02/01/2018"));
+        CDSEvaluation evaluation = evaluation("03/01/2018", "06/01/1950", history);
+        expect("PPSV ends the window 8 weeks after the PPSV shot", evaluation, "03/29/2018");
+    }
+
+    private void nothingChanges() throws Exception {
+        CDSEvaluation evaluation = evaluation("02/01/2018", "06/01/1950", new ArrayList<HistoryStatusDTO>());
+        expect("the window is at most " + MAX_VALID_DAYS + " days", evaluation, "03/04/2018");
+    }
+
+    private CDSEvaluation evaluation(String auditDate, String dateOfBirth, List<HistoryStatusDTO> history) throws Exception {
+        return new CDSEvaluation("1001", formatter.parse(auditDate), history, history,
+                Collections.<ImmunizationRecommendationDTO>emptyList(), formatter.parse(dateOfBirth), "F");
+    }
+
+    private HistoryStatusDTO shot(int cvxCode, String series, String shotDate) throws Exception {
+        HistoryStatusDTO h = new HistoryStatusDTO();
+        h.setCvxCode(new Integer(cvxCode));
+        h.setSeries(series);
+        h.setShotDate(formatter.parse(shotDate));
+        return h;
+    }
+
+    private void expect(String description, CDSEvaluation evaluation, String expectedUntil) throws Exception {
+        int until = ValidityWindow.validUntil(evaluation, MAX_VALID_DAYS);
+        int expected = ValidityWindow.toEpochDay(formatter.parse(expectedUntil));
+        boolean passed = (until == expected);
+        System.out.println((passed ? "PASS " : "FAIL ") + description + " - valid until "
+                + formatter.format(new Date(ValidityWindow.startOfDay(until))) + " Expected: " + expectedUntil);
+        if (!passed) {
+            failed++;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/**
+ * WarmupCacheCheck
+ *
+ * @author Balendu Dasgupta
+ * @version 2.0
+ * <p>
+ * Checks that a patient preloaded by the visit warmup is answered from the
+ * EvaluationCache at check-in: the evaluation is preloaded the evening before
+ * after the bulk CIR sync, as RecommendationPipeline.preload does, and the
+ * EMPI request of the visit day (which asks for a CIR sync) must be a cache
+ * hit. Also checks that a patient whose bulk sync failed, or who was synced
+ * again since, is evaluated again, and that an evaluation loaded while the
+ * patient was synced by someone else is not cached (while one loaded after the
+ * load's own sync is).
+ * <p>
+ * java org.nyp.ezvac.imsrvcs.tests.WarmupCacheCheck
+ * <p>
+ * Revision History
+ */
+package org.nyp.ezvac.imsrvcs.tests;
+
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+
+import org.nyp.ezvac.imsrvcs.cache.CDSEvaluation;
+import org.nyp.ezvac.imsrvcs.cache.EvaluationCache;
+import org.nyp.ezvac.imsrvcs.cache.EvaluationLoader;
+import org.nyp.ezvac.imsrvcs.pipeline.RecommendationPipeline;
+import org.nyp.ezvac.imsrvcs.pipeline.RecommendationRequest;
+import org.nyph.cdslibrary.dto.HistoryStatusDTO;
+import org.nyph.cdslibrary.dto.ImmunizationRecommendationDTO;
+
+/**
+ * @author bdasgupt
+ */
+public class WarmupCacheCheck {
+
+    private static final long HOUR = 3600000L;
+
+    private int failed = 0;
+
+    public static void main(String[] args) throws Exception {
+        WarmupCacheCheck check = new WarmupCacheCheck();
+        check.preloadedPatientIsAHit();
+        check.failedBulkSyncIsAMiss();
+        check.syncAfterPreloadIsAMiss();
+        check.syncDuringLoadIsNotCached();
+        check.ownSyncDuringLoadIsCached();
+        System.out.println((check.failed == 0) ? "All checks passed" : check.failed + " checks failed");
+        System.exit((check.failed == 0) ? 0 : 1);
+    }
+
+    private void preloadedPatientIsAHit() throws Exception {
+        EvaluationCache cache = new EvaluationCache(100, 300000L, 31);
+        Date visitDay = today();
+        CDSEvaluation preloaded = preload(cache, "1001", visitDay, System.currentTimeMillis() - 10 * HOUR);
+
+        CDSEvaluation evaluation = checkIn(cache, "1001", visitDay);
+        expect("preloaded patient is served the preloaded evaluation", evaluation == preloaded);
+        expect("preloaded patient is a cache hit", cache.getHitCount() == 1 && cache.getMissCount() == 1);
+    }
+
+    private void failedBulkSyncIsAMiss() throws Exception {
+        EvaluationCache cache = new EvaluationCache(100, 300000L, 31);
+        Date visitDay = today();
+        CDSEvaluation preloaded = preload(cache, "1002", visitDay, 0);
+
+        CDSEvaluation evaluation = checkIn(cache, "1002", visitDay);
+        expect("patient whose bulk sync failed is evaluated again", evaluation != preloaded && cache.getMissCount() == 2);
+    }
+
+    private void syncAfterPreloadIsAMiss() throws Exception {
+        EvaluationCache cache = new EvaluationCache(100, 300000L, 31);
+        Date visitDay = today();
+        CDSEvaluation preloaded = preload(cache, "1003", visitDay, System.currentTimeMillis() - 10 * HOUR);
+        // What a successful CIR sync of the patient does
+        cache.invalidate("1003");
+
+        CDSEvaluation evaluation = checkIn(cache, "1003", visitDay);
+        expect("patient synced again after the warmup is evaluated again", evaluation != preloaded && cache.getMissCount() == 2);
+    }
+
+    private void syncDuringLoadIsNotCached() throws Exception {
+        final EvaluationCache cache = new EvaluationCache(100, 300000L, 31);
+        Date visitDay = today();
+        cache.getEvaluation("1004", visitDay, new EvaluationLoader() {
+            public CDSEvaluation load(String upid, Date auditDate) throws Exception {
+                CDSEvaluation evaluation = newEvaluation(upid, auditDate);
+                // A bulk CIR sync of the patient finishes while the history is read
+                Thread sync = new Thread(new Runnable() {
+                    public void run() {
+                        cache.invalidate("1004");
+                    }
+                });
+                sync.start();
+                sync.join();
+                return evaluation;
+            }
+        });
+
+        cache.getEvaluation("1004", visitDay, new EvaluationLoader() {
+            public CDSEvaluation load(String upid, Date auditDate) throws Exception {
+                return newEvaluation(upid, auditDate);
+            }
+        });
+        expect("evaluation loaded while the patient was synced is not cached", cache.getMissCount() == 2 && cache.getHitCount() == 0);
+    }
+
+    private void ownSyncDuringLoadIsCached() throws Exception {
+        final EvaluationCache cache = new EvaluationCache(100, 300000L, 31);
+        Date visitDay = today();
+        EvaluationLoader loader = new EvaluationLoader() {
+            public CDSEvaluation load(String upid, Date auditDate) throws Exception {
+                // What the CIR sync of the loader does before the history is read
+                cache.invalidate(upid);
+                return newEvaluation(upid, auditDate);
+            }
+        };
+        CDSEvaluation loaded = cache.getEvaluation("1005", visitDay, loader);
+
+        CDSEvaluation evaluation = cache.getEvaluation("1005", visitDay, loader);
+        expect("evaluation loaded after the load's own sync is cached", evaluation == loaded && cache.getHitCount() == 1);
+    }
+
+    /**
+     * The evaluation the warmup keeps until the end of the visit day, marked
+     * with the bulk sync of the patient
+     */
+    private CDSEvaluation preload(EvaluationCache cache, String upid, Date visitDay, final long syncedAt) throws Exception {
+        Calendar endOfDay = Calendar.getInstance();
+        endOfDay.setTime(visitDay);
+        endOfDay.add(Calendar.DATE, 1);
+        return cache.getEvaluation(upid, visitDay, new EvaluationLoader() {
+            public CDSEvaluation load(String upid, Date auditDate) throws Exception {
+                CDSEvaluation evaluation = newEvaluation(upid, auditDate);
+                if (syncedAt > 0) {
+                    evaluation.setSyncedAt(syncedAt);
+                }
+                return evaluation;
+            }
+        }, endOfDay.getTimeInMillis());
+    }
+
+    /**
+     * The EMPI request at check-in, which asks for a CIR sync
+     */
+    private CDSEvaluation checkIn(EvaluationCache cache, String upid, Date visitDay) throws Exception {
+        RecommendationRequest request = RecommendationRequest.forEMPI("2000" + upid, visitDay).setSyncWithCIR(true);
+        return cache.getEvaluation(upid, visitDay, new EvaluationLoader() {
+            public CDSEvaluation load(String upid, Date auditDate) throws Exception {
+                CDSEvaluation evaluation = newEvaluation(upid, auditDate);
+                evaluation.setSyncedAt(System.currentTimeMillis());
+                return evaluation;
+            }
+        }, 0, RecommendationPipeline.getSyncedSince(request));
+    }
+
+    private static CDSEvaluation newEvaluation(String upid, Date auditDate) {
+        Calendar dob = Calendar.getInstance();
+        dob.setTime(auditDate);
+        dob.add(Calendar.YEAR, -30);
+        return new CDSEvaluation(upid, auditDate, Collections.<HistoryStatusDTO>emptyList(), Collections.<HistoryStatusDTO>emptyList(),
+                Collections.<ImmunizationRecommendationDTO>emptyList(), dob.getTime(), "F");
+    }
+
+    private static Date today() {
+        Calendar c = Calendar.getInstance();
+        c.set(Calendar.HOUR_OF_DAY, 0);
+        c.set(Calendar.MINUTE, 0);
+        c.set(Calendar.SECOND, 0);
+        c.set(Calendar.MILLISECOND, 0);
+        return c.getTime();
+    }
+
+    private void expect(String description, boolean passed) {
+        System.out.println((passed ? "PASS " : "FAIL ") + description);
+        if (!passed) {
+            failed++;
+        }
+    }
+}